@@ -67,7 +67,7 @@ public class Get extends ClientApplication
             destination = new File(destination, source.path.last());
 
         // Get a stub for the naming server and lock the source file.
-        Service         naming_server = NamingStubs.service(source.hostname);
+        Service         naming_server = NamingStubs.federation(source.hostname);
 
         try
         {
@@ -39,6 +39,10 @@ public class Launcher
         applications.put("get", new Get());
         applications.put("put", new Put());
         applications.put("rm", new Remove());
+        applications.put("mv", new Move());
+        applications.put("locks", new Locks());
+        applications.put("watch", new Watch());
+        applications.put("snapshot", new Snapshot());
         applications.put("parse", new Parse());
         applications.put("pwd", new PrintWorkingDirectory());
         applications.put("cd", new ChangeDirectoryDummy());
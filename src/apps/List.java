@@ -11,7 +11,13 @@ import naming.*;
     arguments. For each file, it lists the filename. For each directory, it
     lists the contents of the directory. Running the application with no
     arguments is equivalent to listing the current directory on the current host
-    - that is, to giving it the single argument <code>:</code>.
+    - that is, to giving it the single argument <code>:</code>. Given the
+    option <code>-l</code>, it also prints whether each entry is a directory,
+    the size of each file, and the number of replicas of each file.
+
+    <p>
+    Directories are fetched a page at a time, so that listing a very large
+    directory does not require a single enormous reply from the naming server.
 
     <p>
     Unlike the usual <code>ls</code> command, this application is not capable of
@@ -33,7 +39,14 @@ public class List extends ClientApplication
     @Override
     public void coreLogic(String[] arguments) throws Throwable
     {
-        // Check that there is exactly one argument on the command line.
+        boolean         long_format = false;
+
+        if(arguments.length > 0 && arguments[0].equals("-l"))
+        {
+            long_format = true;
+            arguments = Arrays.copyOfRange(arguments, 1, arguments.length);
+        }
+
         if(arguments.length == 0)
             arguments = new String[] {":"};
 
@@ -42,7 +55,7 @@ public class List extends ClientApplication
         {
             try
             {
-                list(remote_path, arguments.length > 1);
+                list(remote_path, arguments.length > 1, long_format);
                 report();
             }
             catch(ApplicationFailure e)
@@ -63,9 +76,12 @@ public class List extends ClientApplication
                          is more than one command line argument, and the output
                          resulting from listing different arguments needs to be
                          distinguished.
+        @param long_format Set to <code>true</code> if the attributes of each
+                           entry should be printed along with its name.
         @throws ApplicationFailure If the path cannot be listed
      */
-    private void list(String remote_path, boolean show_path)
+    private void list(String remote_path, boolean show_path,
+                      boolean long_format)
         throws Throwable
     {
         // Parse the single argument.
@@ -81,11 +97,11 @@ public class List extends ClientApplication
                                          e.getMessage());
         }
 
-        String[]        components;
+        ArrayList<DirectoryEntry>   entries = new ArrayList<>();
 
         // If the path is remote, obtain a naming server stub. Lock the path on
         // the naming server and list it.
-        Service         naming_server = NamingStubs.service(object.hostname);
+        Service         naming_server = NamingStubs.federation(object.hostname);
 
         try
         {
@@ -99,10 +115,18 @@ public class List extends ClientApplication
 
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
-            else
-                components = new String[] {object.path.last()};
+            // A file is listed as the single entry of its own page.
+            String          cursor = null;
+
+            do
+            {
+                DirectoryListing    page =
+                    naming_server.listEntries(object.path, cursor,
+                                              DirectoryListing.MAX_ENTRIES);
+                entries.addAll(Arrays.asList(page.getEntries()));
+                cursor = page.getCursor();
+            }
+            while(cursor != null);
         }
         catch(Throwable t)
         {
@@ -122,18 +146,26 @@ public class List extends ClientApplication
             }
         }
 
-        // Sort the array of components that is returned by list and print it.
-        Arrays.sort(components);
-
+        // The entries arrive in name order and can be printed as they are.
         if(show_path)
             System.out.println(remote_path + ":");
 
-        for(int index = 0; index < components.length; ++index)
+        for(DirectoryEntry entry : entries)
         {
             if(show_path)
                 System.out.print("\t");
 
-            System.out.println(components[index]);
+            if(!long_format)
+                System.out.println(entry.getName());
+            else if(entry.isDirectory())
+                System.out.printf("d %12s %2s %s%n", "-", "-", entry.getName());
+            else
+            {
+                String  size = entry.getSize() < 0 ? "?"
+                                                   : Long.toString(entry.getSize());
+                System.out.printf("- %12s %2d %s%n", size,
+                                  entry.getReplicaCount(), entry.getName());
+            }
         }
     }
 }
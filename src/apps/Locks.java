@@ -0,0 +1,65 @@
+package apps;
+
+import naming.*;
+
+/** Prints the lock contention seen by a naming server.
+
+    <p>
+    This application takes a remote path and, optionally, the number of path
+    prefixes to show. It prints the most contended prefixes under the path,
+    with their wait histograms, queue depths and hold times, and the longest
+    single waits for locks under it.
+ */
+public class Locks extends ClientApplication
+{
+    /** Number of prefixes shown by default. */
+    private static final int    DEFAULT_COUNT = 20;
+
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Locks().run(arguments);
+    }
+
+    /** Application main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws Throwable
+    {
+        if(arguments.length != 1 && arguments.length != 2)
+            throw new ApplicationFailure("usage: locks path [count]");
+
+        // Parse the arguments.
+        RemotePath      path;
+        int             count = DEFAULT_COUNT;
+
+        try
+        {
+            path = new RemotePath(arguments[0]);
+            if(arguments.length == 2)
+                count = Integer.parseInt(arguments[1]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new ApplicationFailure("cannot parse arguments: " +
+                                         e.getMessage());
+        }
+
+        if(count < 1)
+            throw new ApplicationFailure("count must be positive");
+
+        Service         naming_server = NamingStubs.federation(path.hostname);
+
+        try
+        {
+            System.out.print(naming_server.getLockReport(path.path, count));
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot get lock report for " +
+                                         path + ": " + t.getMessage());
+        }
+    }
+}
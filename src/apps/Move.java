@@ -0,0 +1,72 @@
+package apps;
+
+import common.*;
+import naming.*;
+
+/** Moves or renames a file or directory in the distributed filesystem.
+
+    <p>
+    This application takes two remote paths on the same naming server, and
+    moves the file or directory named by the first to the second. Only the
+    metadata changes: each storage server moves its own copy in place, and no
+    file data is transferred.
+ */
+public class Move extends ClientApplication
+{
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Move().run(arguments);
+    }
+
+    /** Application main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws Throwable
+    {
+        // Check that there are exactly two arguments.
+        if(arguments.length != 2)
+            throw new ApplicationFailure("usage: mv source target");
+
+        // Parse the arguments.
+        RemotePath      source;
+        RemotePath      target;
+
+        try
+        {
+            source = new RemotePath(arguments[0]);
+            target = new RemotePath(arguments[1]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new ApplicationFailure("cannot parse path: " +
+                                         e.getMessage());
+        }
+
+        if(!source.hostname.equals(target.hostname))
+        {
+            throw new ApplicationFailure("cannot move between naming " +
+                                         "servers");
+        }
+
+        if(source.path.isRoot() || target.path.isRoot())
+            throw new ApplicationFailure("cannot move root directory");
+
+        // Move the object. The naming server takes the locks it needs itself.
+        Service         naming_server = NamingStubs.federation(source.hostname);
+
+        try
+        {
+            if(!naming_server.rename(source.path, target.path))
+                throw new ApplicationFailure(target + " already exists");
+        }
+        catch(ApplicationFailure e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot move " + source + " to " +
+                                         target + ": " + t.getMessage());
+        }
+    }
+}
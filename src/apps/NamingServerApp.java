@@ -1,15 +1,26 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
+import naming.Checkpointer;
+import naming.Journal;
 import naming.NamingServer;
 
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application takes an optional argument: a directory in
+    which to keep the journal of the directory tree. It starts a naming server
+    listening on the default client and registration ports for clients and
+    storage servers, respectively. When a journal directory is given, the
+    directory tree left by the previous run is restored from it.
+
+    <p>
+    A second argument of the form <code>data+parity</code>, such as
+    <code>6+3</code>, enables erasure coding of cold files with the given
+    numbers of data and parity fragments. It requires a journal directory.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +43,47 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there are more than two command line
+                                  arguments, or the erasure code is not
+                                  valid.
         @throws RMIException If the naming server cannot be started.
+        @throws IOException If the journal cannot be opened.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, RMIException, IOException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        if(arguments.length > 2)
+        {
+            throw new BadUsageException("usage: naming [journal-directory " +
+                                        "[data+parity]]");
+        }
+
+        if(arguments.length >= 1)
+            server = new StoppingNamingServer(new File(arguments[0]));
+        else
+            server = new StoppingNamingServer();
+
+        if(arguments.length == 2)
+        {
+            String[]    code = arguments[1].split("\\+");
+
+            try
+            {
+                if(code.length != 2)
+                    throw new IllegalArgumentException("expected data+parity");
+
+                server.enableErasureCoding(Integer.parseInt(code[0]),
+                                           Integer.parseInt(code[1]));
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new BadUsageException("invalid erasure code " +
+                                            arguments[1] + ": " +
+                                            e.getMessage());
+            }
+        }
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +97,20 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server without a journal. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server that keeps its journal in the given
+            directory. */
+        StoppingNamingServer(File journalDirectory) throws IOException
+        {
+            super(journalDirectory, Journal.DEFAULT_FSYNC_INTERVAL_MILLIS,
+                  Journal.DEFAULT_MAX_BATCH,
+                  Checkpointer.DEFAULT_INTERVAL_MILLIS);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
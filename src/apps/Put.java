@@ -77,7 +77,7 @@ public class Put extends ClientApplication
 
         // Obtain a stub for the remote naming server.
         Service         naming_server =
-            NamingStubs.service(destination.hostname);
+            NamingStubs.federation(destination.hostname);
 
         // Lock the parent of the destination path on the remote server.
         try
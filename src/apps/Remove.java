@@ -73,7 +73,7 @@ public class Remove extends ClientApplication
         // the parent object for exclusive access.
         Path            parent = object.path.parent();
 
-        Service         naming_server = NamingStubs.service(object.hostname);
+        Service         naming_server = NamingStubs.federation(object.hostname);
 
         try
         {
@@ -0,0 +1,97 @@
+package apps;
+
+import naming.*;
+
+/** Takes, deletes, lists and reads snapshots of the directory tree.
+
+    <p>
+    This application takes an operation and a remote path. <code>list</code>
+    prints the names of the snapshots of the naming server at the path's host.
+    <code>create</code> and <code>delete</code> take a snapshot's name as well,
+    and take or delete it. <code>show</code> takes a snapshot's name and prints
+    the path as the snapshot saw it: the children of a directory, or the
+    storage path of a file.
+ */
+public class Snapshot extends ClientApplication
+{
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Snapshot().run(arguments);
+    }
+
+    /** Application main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws Throwable
+    {
+        String          usage =
+            "usage: snapshot list path | snapshot (create|delete|show) path name";
+
+        if(arguments.length < 2)
+            throw new ApplicationFailure(usage);
+
+        String          operation = arguments[0];
+        boolean         named = !operation.equals("list");
+
+        if(arguments.length != (named ? 3 : 2))
+            throw new ApplicationFailure(usage);
+
+        // Parse the path.
+        RemotePath      path;
+
+        try
+        {
+            path = new RemotePath(arguments[1]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new ApplicationFailure("cannot parse path: " +
+                                         e.getMessage());
+        }
+
+        Service         naming_server = NamingStubs.federation(path.hostname);
+        String          name = named ? arguments[2] : null;
+
+        try
+        {
+            switch(operation)
+            {
+            case "list":
+                for(String snapshot : naming_server.listSnapshots())
+                    System.out.println(snapshot);
+                break;
+            case "create":
+                if(!naming_server.createSnapshot(name))
+                    throw new ApplicationFailure("snapshot " + name +
+                                                 " already exists");
+                break;
+            case "delete":
+                if(!naming_server.deleteSnapshot(name))
+                    throw new ApplicationFailure("no snapshot " + name);
+                break;
+            case "show":
+                SnapshotEntry   entry =
+                    naming_server.readSnapshot(name, path.path);
+                if(entry.isDirectory())
+                {
+                    for(String child : entry.getChildren())
+                        System.out.println(child);
+                }
+                else
+                    System.out.println(entry.getStoragePath());
+                break;
+            default:
+                throw new ApplicationFailure(usage);
+            }
+        }
+        catch(ApplicationFailure e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot " + operation +
+                                         " snapshot: " + t.getMessage());
+        }
+    }
+}
@@ -77,7 +77,7 @@ public class Touch extends ClientApplication
         // report the outcome.
         Path            parent = file.path.parent();
 
-        Service         naming_server = NamingStubs.service(file.hostname);
+        Service         naming_server = NamingStubs.federation(file.hostname);
 
         try
         {
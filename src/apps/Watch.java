@@ -0,0 +1,89 @@
+package apps;
+
+import java.util.*;
+
+import naming.*;
+
+/** Prints changes to part of the distributed filesystem as they are made.
+
+    <p>
+    This application takes a remote path and prints each creation, deletion,
+    rename and replica change of the path and its children, or, with the
+    option <code>-r</code>, of everything below it. It runs until it is
+    interrupted. It waits on the naming server for changes instead of listing
+    the tree again and again, so watching costs next to nothing while nothing
+    changes.
+ */
+public class Watch extends ClientApplication
+{
+    /** Largest number of events asked for at once. */
+    private static final int    BATCH_LIMIT = 256;
+    /** Longest time each call waits on the naming server, in milliseconds. */
+    private static final long   WAIT_MILLIS = 30000;
+
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Watch().run(arguments);
+    }
+
+    /** Application main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws Throwable
+    {
+        boolean         subtree = false;
+
+        if(arguments.length > 0 && arguments[0].equals("-r"))
+        {
+            subtree = true;
+            arguments = Arrays.copyOfRange(arguments, 1, arguments.length);
+        }
+
+        if(arguments.length != 1)
+            throw new ApplicationFailure("usage: watch [-r] path");
+
+        RemotePath      path;
+
+        try
+        {
+            path = new RemotePath(arguments[0]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new ApplicationFailure("cannot parse path: " +
+                                         e.getMessage());
+        }
+
+        Service         naming_server = NamingStubs.federation(path.hostname);
+        long            sequence = -1;
+
+        try
+        {
+            while(true)
+            {
+                WatchBatch  batch = naming_server.watch(path.path, subtree,
+                                                        sequence, BATCH_LIMIT,
+                                                        WAIT_MILLIS);
+
+                if(batch.isTruncated())
+                {
+                    System.out.println("changes missed; list " + path +
+                                       " again");
+                }
+
+                for(WatchEvent event : batch.getEvents())
+                    System.out.println(event);
+
+                sequence = batch.getSequence();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot watch " + path + ": " +
+                                         t.getMessage());
+        }
+    }
+}
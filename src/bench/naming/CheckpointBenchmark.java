@@ -0,0 +1,121 @@
+package naming;
+
+import common.Path;
+import rmi.Stub;
+import storage.Command;
+import storage.Storage;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+
+/**
+ * Measures how long the naming server takes to restore its directory tree at
+ * startup, from a checkpoint and from the journal alone, as the namespace
+ * grows.
+ *
+ * <p>
+ * For each namespace size, a tree of files spread over two levels of
+ * directories is built with the journal enabled. The tree is then restored
+ * twice into an empty file system: once by replaying the whole journal, and
+ * once from a checkpoint, which is loaded through a memory-mapped buffer.
+ * The time to write the checkpoint and its size on disk are reported too.
+ *
+ * <p>
+ * Usage: <code>java -cp .:bench naming.CheckpointBenchmark [sizes]</code>,
+ * where <code>sizes</code> is a comma-separated list of file counts. The
+ * default is <code>10000,100000,300000</code>.
+ */
+public class CheckpointBenchmark
+{
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        String sizes = args.length > 0 ? args[0] : "10000,100000,300000";
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 7001);
+        StorageContainer storageContainer = new StorageContainer(
+            Stub.create(Storage.class, address),
+            Stub.create(Command.class, address));
+
+        System.out.printf("%10s %12s %12s %12s %12s %12s%n",
+            "files", "replay ms", "write ms", "load ms", "image KiB", "B/entry");
+        for (String size : sizes.split(","))
+        {
+            int files = Integer.parseInt(size.trim());
+            File directory = Files.createTempDirectory("checkpoint-bench").toFile();
+            try
+            {
+                run(directory, files, storageContainer);
+            }
+            finally
+            {
+                for (File file : directory.listFiles()) file.delete();
+                directory.delete();
+            }
+        }
+    }
+
+    private static void run(File directory, int files, StorageContainer storageContainer)
+        throws Exception
+    {
+        FileSystem fileSystem = new FileSystem();
+        Journal journal = new Journal(directory, fileSystem,
+            Journal.DEFAULT_FSYNC_INTERVAL_MILLIS, Journal.DEFAULT_MAX_BATCH);
+        fileSystem.setJournal(journal);
+        int entries = 0;
+        for (int i = 0 ; i < files ; i++)
+        {
+            int bucket = i / FILES_PER_DIRECTORY;
+            Path path = new Path("/d" + (bucket / FILES_PER_DIRECTORY)
+                + "/e" + (bucket % FILES_PER_DIRECTORY) + "/f" + i);
+            path.addFileSize(i);
+            fileSystem.register(path, storageContainer.getStorage(), storageContainer.getCommand());
+        }
+        journal.sync();
+        journal.close();
+
+        // Restore from the journal alone
+        System.gc();
+        long start = System.nanoTime();
+        FileSystem replayed = new FileSystem();
+        journal = new Journal(directory, replayed, 1, 1);
+        long replayNanos = System.nanoTime() - start;
+        entries = count(replayed.getRoot());
+
+        // Write a checkpoint of the restored tree, dropping the journal
+        replayed.setJournal(journal);
+        start = System.nanoTime();
+        Checkpoint.write(directory, replayed, journal.roll());
+        long writeNanos = System.nanoTime() - start;
+        journal.discardThrough(journal.getLastSequence());
+        journal.close();
+        long imageBytes = new File(directory, Checkpoint.FILE_NAME).length();
+        replayed = null;
+
+        // Restore from the checkpoint
+        System.gc();
+        start = System.nanoTime();
+        FileSystem loaded = new FileSystem();
+        journal = new Journal(directory, loaded, 1, 1);
+        long loadNanos = System.nanoTime() - start;
+        journal.close();
+        if (count(loaded.getRoot()) != entries)
+            throw new IllegalStateException("checkpoint lost entries");
+
+        System.out.printf("%10d %12.1f %12.1f %12.1f %12d %12.1f%n",
+            files, replayNanos / 1e6, writeNanos / 1e6, loadNanos / 1e6,
+            imageBytes / 1024, (double) imageBytes / entries);
+    }
+
+    private static int count(FileNode node)
+    {
+        int count = 1;
+        for (FileNode child : node.getChildren().values())
+        {
+            count += count(child);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,164 @@
+package naming;
+
+import common.Path;
+import common.ReedSolomon;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the throughput of Reed-Solomon encoding and decoding, and of
+ * reading an erasure-coded file from its fragments.
+ *
+ * <p>
+ * For each code, a buffer of random data is cut into data fragments and the
+ * parity fragments are computed repeatedly; throughput is reported in MiB of
+ * file data per second. Decoding is measured with as many data fragments
+ * lost as there are parity fragments, the worst case. Finally the file is
+ * read through a <code>FragmentReader</code> from in-memory storage servers,
+ * in 1 MiB reads, first with every fragment present and then with the
+ * maximum number of data fragments lost, so that every read is rebuilt. The
+ * reads measure the coding and the parallel fan-out, not the network.
+ *
+ * <p>
+ * Usage: <code>java -cp .:bench naming.ErasureCodingBenchmark [codes
+ * [MiB]]</code>, where <code>codes</code> is a comma-separated list of
+ * <code>data+parity</code> codes and <code>MiB</code> the size of the file.
+ * The defaults are <code>4+2,6+3,10+4</code> and 64 MiB.
+ */
+public class ErasureCodingBenchmark
+{
+    private static final int ROUNDS = 5;
+    private static final int READ_BYTES = 1 << 20;
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        String codes = args.length > 0 ? args[0] : "4+2,6+3,10+4";
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        byte[] file = new byte[megabytes << 20];
+        new Random(1).nextBytes(file);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+
+        System.out.printf("%8s %12s %12s %12s %12s%n",
+            "code", "encode MiB/s", "decode MiB/s", "read MiB/s", "degraded");
+        try
+        {
+            for (String code : codes.split(","))
+            {
+                String[] counts = code.trim().split("\\+");
+                run(file, Integer.parseInt(counts[0]), Integer.parseInt(counts[1]), executor);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static void run(byte[] file, int dataFragments, int parityFragments, ExecutorService executor)
+        throws Throwable
+    {
+        ReedSolomon code = new ReedSolomon(dataFragments, parityFragments);
+        int fragmentSize = ErasureLayout.fragmentSize(file.length, dataFragments);
+        byte[][] shards = new byte[dataFragments + parityFragments][fragmentSize];
+        for (int j = 0 ; j < dataFragments ; j++)
+        {
+            int start = j * fragmentSize;
+            System.arraycopy(file, start, shards[j], 0, Math.max(0, Math.min(fragmentSize, file.length - start)));
+        }
+
+        code.encode(shards, 0, fragmentSize);
+        long started = System.nanoTime();
+        for (int round = 0 ; round < ROUNDS ; round++) code.encode(shards, 0, fragmentSize);
+        double encode = rate(file.length * (long) ROUNDS, started);
+
+        int lost = Math.min(parityFragments, dataFragments);
+        long elapsed = 0;
+        for (int round = 0 ; round <= ROUNDS ; round++)
+        {
+            byte[][] damaged = shards.clone();
+            for (int j = 0 ; j < lost ; j++) damaged[j] = null;
+            long start = System.nanoTime();
+            code.decode(damaged, 0, fragmentSize);
+            // The first round warms up
+            if (round > 0) elapsed += System.nanoTime() - start;
+            if (!Arrays.equals(damaged[0], shards[0]))
+                throw new AssertionError("decoded fragment differs");
+        }
+        double decode = file.length * (long) ROUNDS / (elapsed / 1e9) / (1 << 20);
+
+        Storage[] holders = new Storage[shards.length];
+        for (int i = 0 ; i < shards.length ; i++) holders[i] = new MemoryStorage(shards[i]);
+        FragmentReader reader = new FragmentReader(holders, dataFragments, parityFragments, file.length, executor);
+        double read = readAll(reader, file);
+        for (int j = 0 ; j < lost ; j++) holders[j] = null;
+        reader = new FragmentReader(holders, dataFragments, parityFragments, file.length, executor);
+        double degraded = readAll(reader, file);
+
+        System.out.printf("%8s %12.0f %12.0f %12.0f %12.0f%n",
+            dataFragments + "+" + parityFragments, encode, decode, read, degraded);
+    }
+
+    /** Reads the whole file in 1 MiB reads, checking the data, and returns
+        the throughput. */
+    private static double readAll(FragmentReader reader, byte[] file)
+        throws Throwable
+    {
+        Path path = new Path("/cold");
+        long started = 0;
+        for (int round = 0 ; round <= ROUNDS ; round++)
+        {
+            // The first round warms up
+            if (round == 1) started = System.nanoTime();
+            for (long offset = 0 ; offset < file.length ; offset += READ_BYTES)
+            {
+                int length = (int) Math.min(READ_BYTES, file.length - offset);
+                byte[] data = reader.read(path, offset, length);
+                if (data[length - 1] != file[(int) offset + length - 1])
+                    throw new AssertionError("read data differs");
+            }
+        }
+        return rate(file.length * (long) ROUNDS, started);
+    }
+
+    private static double rate(long bytes, long started)
+    {
+        return bytes / ((System.nanoTime() - started) / 1e9) / (1 << 20);
+    }
+
+    /** Storage server holding one fragment in memory. */
+    private static class MemoryStorage
+        implements Storage
+    {
+        private final byte[] fragment;
+
+        MemoryStorage(byte[] fragment)
+        {
+            this.fragment = fragment;
+        }
+
+        @Override
+        public long size(Path file)
+        {
+            return this.fragment.length;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            return Arrays.copyOfRange(this.fragment, (int) offset, (int) offset + length);
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException("read-only");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package naming;
+
+import common.Path;
+import rmi.Stub;
+import storage.Command;
+import storage.Storage;
+
+import java.lang.ref.Reference;
+import java.net.InetSocketAddress;
+
+/**
+ * Measures the heap taken by each entry of the naming server's directory
+ * tree.
+ *
+ * <p>
+ * For each namespace size, a tree of files spread over two levels of
+ * directories, all held by the same storage server, is built in an empty file
+ * system. The heap in use is measured after a full collection before and
+ * after the tree is built, and the difference is divided by the number of
+ * entries, files and directories alike. The result includes everything the
+ * tree keeps reachable: nodes, names, child maps, lock state and replica
+ * lists.
+ *
+ * <p>
+ * Usage: <code>java -cp .:bench naming.FileNodeFootprintBenchmark
+ * [sizes]</code>, where <code>sizes</code> is a comma-separated list of file
+ * counts. The default is <code>100000,1000000</code>.
+ */
+public class FileNodeFootprintBenchmark
+{
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    public static void main(String[] args)
+        throws Throwable
+    {
+        String sizes = args.length > 0 ? args[0] : "100000,1000000";
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 7001);
+        StorageContainer storageContainer = new StorageContainer(
+            Stub.create(Storage.class, address),
+            Stub.create(Command.class, address));
+
+        System.out.printf("%10s %10s %12s %10s%n", "files", "entries", "heap KiB", "B/entry");
+        for (String size : sizes.split(","))
+        {
+            int files = Integer.parseInt(size.trim());
+            long before = usedHeap();
+            FileSystem fileSystem = new FileSystem();
+            int entries = files;
+            for (int i = 0 ; i < files ; i++)
+            {
+                int bucket = i / FILES_PER_DIRECTORY;
+                if (i % FILES_PER_DIRECTORY == 0)
+                    entries += bucket % FILES_PER_DIRECTORY == 0 ? 2 : 1;
+                Path path = new Path("/d" + (bucket / FILES_PER_DIRECTORY)
+                    + "/e" + (bucket % FILES_PER_DIRECTORY) + "/f" + i);
+                path.addFileSize(i);
+                fileSystem.register(path, storageContainer.getStorage(), storageContainer.getCommand());
+            }
+            long after = usedHeap();
+            System.out.printf("%10d %10d %12d %10.1f%n", files, entries,
+                (after - before) / 1024, (after - before) / (double) entries);
+            // Keep the tree reachable until it has been measured
+            Reference.reachabilityFence(fileSystem);
+        }
+    }
+
+    private static long usedHeap()
+        throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0 ; i < 5 ; i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,161 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how quickly the naming server lock is handed from one holder to the
+ * next when a large number of clients contend for the same path.
+ *
+ * <p>
+ * Two scenarios are run against a single file. In the first, every client
+ * takes the lock for exclusive access in turn, and the time between one client
+ * releasing the lock and the next one returning from <code>lock</code> is
+ * recorded. In the second, a writer holds the lock while all clients queue for
+ * shared access; the time from the writer's release until each reader holds
+ * the lock is recorded.
+ *
+ * <p>
+ * Usage: <code>java -cp .:bench naming.LockHandoffBenchmark [clients]
+ * [rounds]</code>. The defaults are 1000 clients and 5 rounds.
+ */
+public class LockHandoffBenchmark
+{
+    private static final Path FILE = new Path("/bench/file");
+
+    private static volatile long lastRelease = 0;
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        FileSystem fileSystem = new FileSystem();
+        fileSystem.register(FILE, null, null);
+
+        // Warm up both paths before measuring
+        writerHandoff(fileSystem, clients, 1);
+        readerBatch(fileSystem, clients);
+
+        long[] writer = writerHandoff(fileSystem, clients, rounds);
+        report("exclusive -> exclusive handoff", writer);
+
+        ArrayList<long[]> batches = new ArrayList<>();
+        for (int i = 0 ; i < rounds ; i++)
+        {
+            batches.add(readerBatch(fileSystem, clients));
+        }
+        long[] readers = batches.stream().flatMapToLong(Arrays::stream).toArray();
+        report("exclusive -> shared batch wakeup", readers);
+        long slowest = 0;
+        for (long[] batch : batches)
+        {
+            slowest = Math.max(slowest, Arrays.stream(batch).max().orElse(0));
+        }
+        System.out.printf("  whole batch of %d readers admitted within %.1f us%n",
+            clients, slowest / 1000.0);
+    }
+
+    private static long[] writerHandoff(FileSystem fileSystem, int clients, int rounds)
+        throws InterruptedException
+    {
+        long[][] samples = new long[clients][rounds];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+        lastRelease = 0;
+        for (int i = 0 ; i < clients ; i++)
+        {
+            final long[] mine = samples[i];
+            threads[i] = new Thread(() -> {
+                try
+                {
+                    start.await();
+                    for (int r = 0 ; r < rounds ; r++)
+                    {
+                        fileSystem.lock(FILE, Status.EXCLUSIVE);
+                        long acquired = System.nanoTime();
+                        mine[r] = lastRelease == 0 ? -1 : acquired - lastRelease;
+                        lastRelease = System.nanoTime();
+                        fileSystem.unlock(FILE, Status.EXCLUSIVE);
+                    }
+                }
+                catch (Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        return Arrays.stream(samples)
+            .flatMapToLong(Arrays::stream)
+            .filter(sample -> sample >= 0)
+            .toArray();
+    }
+
+    private static long[] readerBatch(FileSystem fileSystem, int clients)
+        throws Exception
+    {
+        long[] samples = new long[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        fileSystem.lock(FILE, Status.EXCLUSIVE);
+        FileNode node = fileSystem.get(FILE);
+        for (int i = 0 ; i < clients ; i++)
+        {
+            final int index = i;
+            new Thread(() -> {
+                try
+                {
+                    fileSystem.lock(FILE, Status.SHARED);
+                    samples[index] = System.nanoTime();
+                    done.countDown();
+                }
+                catch (Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }).start();
+        }
+        // Wait until every reader has parked behind the writer
+        while (true)
+        {
+            node.lock();
+            int queued = node.getWaitQueueLength();
+            node.unlock();
+            if (queued == clients) break;
+            Thread.sleep(1);
+        }
+        long released = System.nanoTime();
+        fileSystem.unlock(FILE, Status.EXCLUSIVE);
+        done.await();
+        for (int i = 0 ; i < clients ; i++)
+        {
+            samples[i] -= released;
+            fileSystem.unlock(FILE, Status.SHARED);
+        }
+        return samples;
+    }
+
+    private static void report(String name, long[] samples)
+    {
+        Arrays.sort(samples);
+        double mean = Arrays.stream(samples).average().orElse(0);
+        System.out.printf("%s (%d samples)%n", name, samples.length);
+        System.out.printf("  mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+            mean / 1000.0,
+            percentile(samples, 0.50) / 1000.0,
+            percentile(samples, 0.99) / 1000.0,
+            samples[samples.length - 1] / 1000.0);
+    }
+
+    private static long percentile(long[] sorted, double fraction)
+    {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
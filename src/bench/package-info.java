@@ -0,0 +1,12 @@
+/** Benchmarks.
+
+    <p>
+    Like unit tests, each benchmark resides in the same package as the code it
+    measures, under a subdirectory of <code>bench/</code>, so that it can drive
+    package-private classes directly without going through RMI. Benchmarks are
+    plain programs with a <code>main</code> method that print their results.
+    To run one, execute, for example,
+    <code>java -cp .:bench naming.LockHandoffBenchmark</code> from the command
+    line, or use the <code>bench</code> target of the Makefile.
+ */
+package bench;
@@ -13,6 +13,10 @@ import storage.*;
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
     hosting the given file. Each read call corresponds to one network request.
+    When the file is replicated, each stream picks one of the replicas through
+    a <code>ReplicaSelector</code>, so that concurrent readers are spread over
+    the storage servers, and moves to another replica as soon as one cannot be
+    reached.
     If this behavior is not desirable, the <code>DFSInputStream</code> should be
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
@@ -30,8 +34,8 @@ public class DFSInputStream extends InputStream
 {
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    /** Replicas of the file. */
+    private final ReplicaSelector   replicas;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -62,20 +66,20 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve the replicas of the file.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            replicas = new ReplicaSelector(naming_server, file);
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
+        // Retrieve the length of the file from a storage server.
         try
         {
-            length = storage_server.size(file);
+            length = replicas.call(storage_server -> storage_server.size(file));
         }
         catch(RMIException e)
         {
@@ -105,7 +109,7 @@ public class DFSInputStream extends InputStream
      */
     public DFSInputStream(String hostname, Path file)
         throws Throwable {
-        this(NamingStubs.service(hostname), file);
+        this(NamingStubs.federation(hostname), file);
     }
 
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
@@ -149,7 +153,7 @@ public class DFSInputStream extends InputStream
      */
     public DFSInputStream(String hostname, String filename)
         throws Throwable {
-        this(NamingStubs.service(hostname), new Path(filename));
+        this(NamingStubs.federation(hostname), new Path(filename));
     }
 
     /** Closes the input stream.
@@ -233,10 +237,13 @@ public class DFSInputStream extends InputStream
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
         byte[]      result;
+        final long  read_offset = offset;
+        final int   bytes_to_read = read_length;
 
         try
         {
-            result = storage_server.read(path, offset, read_length);
+            result = replicas.call(storage_server ->
+                storage_server.read(path, read_offset, bytes_to_read));
             offset += read_length;
         }
         catch(FileNotFoundException e)
@@ -89,7 +89,7 @@ public class DFSOutputStream extends OutputStream
      */
     public DFSOutputStream(String hostname, Path file)
         throws Throwable {
-        this(NamingStubs.service(hostname), file);
+        this(NamingStubs.federation(hostname), file);
     }
 
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
@@ -133,7 +133,7 @@ public class DFSOutputStream extends OutputStream
      */
     public DFSOutputStream(String hostname, String filename)
         throws Throwable {
-        this(NamingStubs.service(hostname), new Path(filename));
+        this(NamingStubs.federation(hostname), new Path(filename));
     }
 
     /** Closes the output stream.
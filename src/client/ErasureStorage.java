@@ -0,0 +1,98 @@
+package client;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Storage server interface for reading an erasure-coded file from its
+    fragments.
+
+    <p>
+    The interface stands in for the storage server of a full replica, so
+    that code reading through a <code>ReplicaSelector</code> reads coded files
+    unchanged. Reads are served by a <code>FragmentReader</code>: the data
+    fragments holding the range are read in parallel, and the range is
+    rebuilt from any sufficient set of fragments if some are lost or cannot be
+    reached. The file cannot be written through this interface; writers obtain
+    a full replica with <code>Service.getStorage</code>.
+
+    <p>
+    Calls to the storage servers are made by a pool of daemon threads shared
+    by every instance.
+ */
+class ErasureStorage implements Storage
+{
+    /** Number of threads reading fragments for all instances. */
+    private static final int    THREADS = 16;
+    /** Threads reading fragments, created on first use. */
+    private static ExecutorService  executor = null;
+
+    /** Reader for the file's fragments. */
+    private final FragmentReader    reader;
+
+    /** Creates an interface reading a file from the given fragments.
+
+        @param fragments The fragments of the file, as returned by the naming
+                         server.
+     */
+    ErasureStorage(Fragment[] fragments)
+    {
+        this.reader = new FragmentReader(fragments, executor());
+    }
+
+    /** Returns the shared pool of threads reading fragments. */
+    private static synchronized ExecutorService executor()
+    {
+        if(executor != null)
+            return executor;
+
+        AtomicInteger   count = new AtomicInteger();
+        ThreadPoolExecutor  pool = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            runnable ->
+            {
+                Thread  thread = new Thread(runnable,
+                    "fragment-reader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        return executor;
+    }
+
+    /** Checks that a path is given. */
+    private void check(Path file)
+    {
+        if(file == null)
+            throw new NullPointerException("path is null");
+    }
+
+    @Override
+    public long size(Path file) throws FileNotFoundException
+    {
+        check(file);
+        return reader.getFileSize();
+    }
+
+    @Override
+    public byte[] read(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+        check(file);
+        return reader.read(file, offset, length);
+    }
+
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws FileNotFoundException, IOException
+    {
+        check(file);
+        throw new IOException("erasure-coded file cannot be written in place");
+    }
+}
@@ -0,0 +1,485 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Naming server client interface that caches metadata under leases.
+
+    <p>
+    The cache answers <code>isDirectory</code>, <code>list</code>,
+    <code>getStorage</code> and <code>getReplicas</code> from leases obtained
+    with <code>Service.lease</code>, one per path, so that repeated queries on
+    the same path need no call to the naming server until the lease runs out.
+    The cache exports a <code>CacheClient</code> interface, on which the naming
+    server reports the paths that change while they are leased; their entries
+    are dropped at once, and the naming server does not acknowledge the change
+    until they are. Cached answers are therefore as current as those of the
+    naming server itself. All other calls, including mutations, go to the
+    naming server; mutations also drop the entries they affect right away.
+
+    <p>
+    A lease that arrives after a callback received while it was being
+    obtained is used for the call that asked for it, but not cached, since the
+    callback may have been about the same path. If the naming server does not
+    grant leases, every call goes to it.
+
+    <p>
+    At most <code>capacity</code> paths are cached; the least recently used
+    are dropped first. The cache is safe to share between threads.
+ */
+public class MetadataCache implements Service, CacheClient
+{
+    /** Default number of paths cached. */
+    public static final int         DEFAULT_CAPACITY = 10000;
+
+    /** Naming server. */
+    private final Service           naming_server;
+    /** Skeleton receiving the naming server's callbacks. */
+    private final Skeleton<CacheClient> skeleton;
+    /** Stub for the callback interface, given to the naming server. */
+    private final CacheClient       callback;
+    /** Cached leases, least recently used first. */
+    private final LinkedHashMap<Path, Entry>    entries;
+    /** Number of invalidations received, guarded by <code>entries</code>. */
+    private long                    invalidations = 0;
+    /** Cleared when the naming server turns out not to grant leases. */
+    private volatile boolean        leases_supported = true;
+
+    /** Lease together with the time at which the client must stop using it. */
+    private static class Entry
+    {
+        final MetadataLease     lease;
+        final long              expires;
+
+        Entry(MetadataLease lease, long expires)
+        {
+            this.lease = lease;
+            this.expires = expires;
+        }
+    }
+
+    /** Creates a cache in front of the given naming server, receiving
+        callbacks at the local host's address.
+
+        @param naming_server Naming server interface.
+        @throws RMIException If the callback interface cannot be started.
+     */
+    public MetadataCache(Service naming_server) throws RMIException
+    {
+        this(naming_server, null, DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache in front of the given naming server.
+
+        @param naming_server Naming server interface.
+        @param hostname Hostname at which the naming server can reach this
+                        client for callbacks, or <code>null</code> for the
+                        local host's address.
+        @param capacity Largest number of paths cached.
+        @throws RMIException If the callback interface cannot be started.
+     */
+    public MetadataCache(Service naming_server, String hostname, int capacity)
+        throws RMIException
+    {
+        if(naming_server == null)
+            throw new NullPointerException("naming server is null");
+
+        this.naming_server = naming_server;
+        this.entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+
+        skeleton = new Skeleton<CacheClient>(CacheClient.class, this);
+        skeleton.start();
+
+        try
+        {
+            if(hostname == null)
+                callback = Stub.create(CacheClient.class, skeleton);
+            else
+                callback = Stub.create(CacheClient.class, skeleton, hostname);
+        }
+        catch(Throwable t)
+        {
+            skeleton.stop();
+            throw new RMIException("cannot create callback stub", t);
+        }
+    }
+
+    /** Stops receiving callbacks and empties the cache. Later calls go to the
+        naming server. */
+    public void stop()
+    {
+        leases_supported = false;
+        skeleton.stop();
+
+        synchronized(entries)
+        {
+            entries.clear();
+        }
+    }
+
+    /** Returns the lease on a path, from the cache or from the naming server,
+        or <code>null</code> if the naming server does not grant leases. */
+    private MetadataLease lease(Path path) throws RMIException
+    {
+        if(path == null)
+            throw new NullPointerException("path is null");
+
+        long        seen;
+        synchronized(entries)
+        {
+            Entry   entry = entries.get(path);
+
+            if(entry != null && entry.expires > System.currentTimeMillis())
+                return entry.lease;
+
+            if(entry != null)
+                entries.remove(path);
+
+            seen = invalidations;
+        }
+
+        if(!leases_supported)
+            return null;
+
+        // The lease is counted from before the request, so that it ends here
+        // no later than at the naming server.
+        long            asked = System.currentTimeMillis();
+        MetadataLease   lease;
+
+        try
+        {
+            lease = naming_server.lease(path, callback);
+        }
+        catch(UnsupportedOperationException e)
+        {
+            leases_supported = false;
+            return null;
+        }
+
+        synchronized(entries)
+        {
+            if(invalidations == seen && leases_supported)
+            {
+                entries.put(path,
+                    new Entry(lease, asked + lease.getDurationMillis()));
+            }
+        }
+
+        return lease;
+    }
+
+    /** Returns the lease on a file, throwing the exceptions the naming server
+        would for a path that is not a file with a live replica. */
+    private MetadataLease fileLease(Path file, MetadataLease lease)
+        throws FileNotFoundException
+    {
+        if(!lease.exists() || file.toString().equals("/"))
+            throw new FileNotFoundException("path does not exist");
+
+        if(lease.isDirectory())
+            throw new FileNotFoundException("cannot pass in directory");
+
+        if(lease.getStorage() == null && lease.getReplicas() == null)
+            throw new FileNotFoundException("no live replica of file");
+
+        return lease;
+    }
+
+    /** Drops the entries of the given paths. */
+    private void forget(Path... paths)
+    {
+        synchronized(entries)
+        {
+            for(Path path : paths)
+                entries.remove(path);
+
+            ++invalidations;
+        }
+    }
+
+    /** Drops the entries of a path, its parent, and everything below it. */
+    private void forgetSubtree(Path path)
+    {
+        String      prefix = path.toString() + "/";
+
+        synchronized(entries)
+        {
+            entries.keySet().removeIf(cached ->
+                cached.equals(path) || cached.toString().startsWith(prefix));
+
+            if(!path.toString().equals("/"))
+                entries.remove(path.parent());
+
+            ++invalidations;
+        }
+    }
+
+    /** Drops the entries of a path and its parent. */
+    private void forgetWithParent(Path path)
+    {
+        if(path.toString().equals("/"))
+            forget(path);
+        else
+            forget(path, path.parent());
+    }
+
+    // Callback from the naming server.
+    @Override
+    public void invalidate(Path[] paths)
+    {
+        forget(paths);
+    }
+
+    // Queries answered from leases.
+    @Override
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        MetadataLease   lease = lease(path);
+
+        if(lease == null)
+            return naming_server.isDirectory(path);
+
+        if(!lease.exists())
+            throw new FileNotFoundException("path does not exist");
+
+        return lease.isDirectory();
+    }
+
+    @Override
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        MetadataLease   lease = lease(directory);
+
+        if(lease == null || (lease.exists() && !lease.isDirectory()))
+            return naming_server.list(directory);
+
+        if(!lease.exists())
+            throw new FileNotFoundException("directory does not exist");
+
+        return lease.getChildren().clone();
+    }
+
+    @Override
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        MetadataLease   lease = lease(file);
+
+        if(lease == null)
+            return naming_server.getStorage(file);
+
+        Storage         storage_server = fileLease(file, lease).getStorage();
+
+        // An erasure-coded file is leased with its fragments only; the naming
+        // server restores a full replica for the caller.
+        if(storage_server == null)
+            return naming_server.getStorage(file);
+
+        return storage_server;
+    }
+
+    @Override
+    public Replica[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        MetadataLease   lease = lease(file);
+
+        if(lease == null)
+            return naming_server.getReplicas(file);
+
+        Replica[]       replicas = fileLease(file, lease).getReplicas();
+
+        if(replicas == null)
+            throw new FileNotFoundException("no live replica of file");
+
+        return replicas.clone();
+    }
+
+    // Everything else goes to the naming server.
+    @Override
+    public void lock(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        naming_server.lock(path, exclusive);
+    }
+
+    @Override
+    public void unlock(Path path, boolean exclusive) throws RMIException
+    {
+        naming_server.unlock(path, exclusive);
+    }
+
+    @Override
+    public DirectoryListing listEntries(Path path, String after,
+                                        int limit)
+        throws RMIException, FileNotFoundException
+    {
+        return naming_server.listEntries(path, after, limit);
+    }
+
+    @Override
+    public boolean createFile(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createFile(file);
+        }
+        finally
+        {
+            forgetWithParent(file);
+        }
+    }
+
+    @Override
+    public boolean createDirectory(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.createDirectory(directory);
+        }
+        finally
+        {
+            forgetWithParent(directory);
+        }
+    }
+
+    @Override
+    public boolean delete(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.delete(path);
+        }
+        finally
+        {
+            forgetSubtree(path);
+        }
+    }
+
+    @Override
+    public boolean rename(Path source, Path target)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            return naming_server.rename(source, target);
+        }
+        finally
+        {
+            forgetSubtree(source);
+            forgetWithParent(target);
+        }
+    }
+
+    @Override
+    public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+        throws RMIException
+    {
+        try
+        {
+            return naming_server.createAll(paths, directories);
+        }
+        finally
+        {
+            if(paths != null)
+            {
+                for(Path path : paths)
+                {
+                    if(path != null)
+                        forgetWithParent(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public BatchStatus[] deleteAll(Path[] paths) throws RMIException
+    {
+        try
+        {
+            return naming_server.deleteAll(paths);
+        }
+        finally
+        {
+            if(paths != null)
+            {
+                for(Path path : paths)
+                {
+                    if(path != null)
+                        forgetSubtree(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public MountTable getMountTable() throws RMIException
+    {
+        return naming_server.getMountTable();
+    }
+
+    @Override
+    public MetadataLease lease(Path path, CacheClient client)
+        throws RMIException
+    {
+        return naming_server.lease(path, client);
+    }
+
+    @Override
+    public WatchBatch watch(Path path, boolean subtree, long sequence,
+                            int limit, long waitMillis)
+        throws RMIException
+    {
+        return naming_server.watch(path, subtree, sequence, limit,
+                                   waitMillis);
+    }
+
+    @Override
+    public LockReport getLockReport(Path prefix, int limit)
+        throws RMIException
+    {
+        return naming_server.getLockReport(prefix, limit);
+    }
+
+    @Override
+    public boolean createSnapshot(String name) throws RMIException
+    {
+        return naming_server.createSnapshot(name);
+    }
+
+    @Override
+    public boolean deleteSnapshot(String name) throws RMIException
+    {
+        return naming_server.deleteSnapshot(name);
+    }
+
+    @Override
+    public String[] listSnapshots() throws RMIException
+    {
+        return naming_server.listSnapshots();
+    }
+
+    @Override
+    public SnapshotEntry readSnapshot(String name, Path path)
+        throws RMIException, FileNotFoundException
+    {
+        return naming_server.readSnapshot(name, path);
+    }
+}
@@ -0,0 +1,209 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Chooses among the replicas of a file for reading.
+
+    <p>
+    The replicas returned by <code>Service.getReplicas</code> are put in an
+    order of preference when the selector is created. Replicas on the local host
+    come first. The others follow in a random order weighted by load, so that
+    lightly loaded servers are preferred, but clients reading the same file do
+    not all pick the same server. Reads are sent to the first replica in the
+    order. A replica that cannot be reached, or no longer has the file, is
+    skipped for the lifetime of the selector, and the read is retried at once on
+    the next one.
+
+    <p>
+    The fragments of an erasure-coded file are not replicas of it, and are not
+    tried in turn. They are read together through a single
+    <code>ErasureStorage</code>, which stands in for one replica and rebuilds
+    the data from the fragments that remain if some are lost.
+
+    <p>
+    Selectors are safe to share between threads.
+ */
+public class ReplicaSelector
+{
+    /** Replicas in order of preference. */
+    private final Replica[]     replicas;
+    /** Index of the first replica not known to have failed. */
+    private int                 current = 0;
+
+    /** Addresses of the local host, computed once. */
+    private static Set<String>  local_addresses = null;
+
+    /** Operation performed on one replica.
+
+        @param <T> Type of the result of the operation.
+     */
+    public interface ReplicaCall<T>
+    {
+        /** Performs the operation on the given storage server. */
+        T call(Storage storage_server) throws RMIException, IOException;
+    }
+
+    /** Creates a selector for the replicas of a file.
+
+        @param replicas The replicas, as returned by the naming server.
+        @throws IllegalArgumentException If there are no replicas.
+     */
+    public ReplicaSelector(Replica[] replicas)
+    {
+        if(replicas.length == 0)
+            throw new IllegalArgumentException("no replicas");
+
+        if(replicas[0] instanceof Fragment)
+        {
+            Fragment[]  fragments = new Fragment[replicas.length];
+
+            for(int i = 0; i < replicas.length; ++i)
+                fragments[i] = (Fragment)replicas[i];
+
+            this.replicas = new Replica[]
+                {new Replica(new ErasureStorage(fragments), null, 0)};
+            return;
+        }
+
+        Random              random = new Random();
+        Set<String>         local = localAddresses();
+        ArrayList<Replica>  near = new ArrayList<>();
+        ArrayList<Replica>  far = new ArrayList<>();
+        Map<Replica, Double> keys = new HashMap<>();
+
+        for(Replica replica : replicas)
+        {
+            if(replica.getHost() != null && local.contains(replica.getHost()))
+                near.add(replica);
+            else
+                far.add(replica);
+
+            // An exponentially distributed key scaled by load orders the
+            // replicas at random, lightly loaded ones more likely first.
+            double  draw = -Math.log(1 - random.nextDouble());
+            keys.put(replica, draw * (1 + Math.max(0, replica.getLoad())));
+        }
+
+        Collections.shuffle(near, random);
+        far.sort(Comparator.comparingDouble(keys::get));
+        near.addAll(far);
+        this.replicas = near.toArray(new Replica[0]);
+    }
+
+    /** Creates a selector for the replicas of a file, asking the naming server
+        for them.
+
+        @param naming_server Naming server hosting the file.
+        @param file Path to the file.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    public ReplicaSelector(Service naming_server, Path file)
+        throws FileNotFoundException, RMIException
+    {
+        this(naming_server.getReplicas(file));
+    }
+
+    /** Returns the storage server currently preferred. */
+    public synchronized Storage current()
+    {
+        return replicas[Math.min(current, replicas.length - 1)].getStorage();
+    }
+
+    /** Performs an operation on the preferred replica, moving on to the next
+        replica whenever one cannot be reached or does not have the file.
+
+        @param operation The operation.
+        @return The result of the operation.
+        @throws FileNotFoundException If every replica lacks the file.
+        @throws RMIException If some replica could not be reached and no other
+                             replica succeeded.
+        @throws IOException If the operation fails on a replica for another
+                            reason. Such failures are not retried.
+     */
+    public <T> T call(ReplicaCall<T> operation)
+        throws RMIException, IOException
+    {
+        IOException     not_found = null;
+        RMIException    unreachable = null;
+
+        while(true)
+        {
+            int         attempt;
+            Storage     storage_server;
+
+            synchronized(this)
+            {
+                if(current >= replicas.length)
+                    break;
+
+                attempt = current;
+                storage_server = replicas[attempt].getStorage();
+            }
+
+            try
+            {
+                return operation.call(storage_server);
+            }
+            catch(FileNotFoundException e)
+            {
+                not_found = e;
+            }
+            catch(RMIException e)
+            {
+                unreachable = e;
+            }
+
+            // Skip the replica, unless another thread already has.
+            synchronized(this)
+            {
+                if(current == attempt)
+                    ++current;
+            }
+        }
+
+        if(unreachable != null)
+            throw unreachable;
+
+        if(not_found != null)
+            throw not_found;
+
+        throw new RMIException("no replica left to try");
+    }
+
+    /** Returns the addresses of the interfaces of the local host. */
+    private static synchronized Set<String> localAddresses()
+    {
+        if(local_addresses != null)
+            return local_addresses;
+
+        Set<String>     addresses = new HashSet<>();
+
+        try
+        {
+            for(NetworkInterface network_interface :
+                    Collections.list(NetworkInterface.getNetworkInterfaces()))
+            {
+                for(InetAddress address :
+                        Collections.list(network_interface.getInetAddresses()))
+                {
+                    addresses.add(address.getHostAddress());
+                }
+            }
+        }
+        catch(SocketException e)
+        {
+            // Without the interfaces, no replica is treated as local.
+        }
+
+        local_addresses = addresses;
+        return local_addresses;
+    }
+}
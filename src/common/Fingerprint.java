@@ -0,0 +1,89 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The content of a file, as its size and a SHA-256 checksum of its bytes.
+ * Two copies of a file with equal fingerprints hold the same bytes.
+ */
+public class Fingerprint
+    implements Serializable
+{
+    public static final String ALGORITHM = "SHA-256";
+
+    final long size;
+    final byte[] checksum;
+
+    public Fingerprint(long size, byte[] checksum)
+    {
+        if (checksum == null) throw new NullPointerException("checksum is null");
+        this.size = size;
+        this.checksum = checksum.clone();
+    }
+
+    /** Reads a local file through to fingerprint it. */
+    public static Fingerprint of(File file)
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+        long size = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file))
+        {
+            for (int read = in.read(buffer) ; read >= 0 ; read = in.read(buffer))
+            {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return new Fingerprint(size, digest.digest());
+    }
+
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    public byte[] getChecksum()
+    {
+        return this.checksum.clone();
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof Fingerprint)) return false;
+        Fingerprint fingerprint = (Fingerprint) other;
+        return this.size == fingerprint.size && Arrays.equals(this.checksum, fingerprint.checksum);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(this.size) * 31 + Arrays.hashCode(this.checksum);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0 ; i < 8 && i < this.checksum.length ; i++)
+            builder.append(String.format("%02x", this.checksum[i]));
+        return "[Fingerprint| " + this.size + " bytes, " + builder + "...]";
+    }
+}
@@ -22,6 +22,8 @@ import java.util.*;
 public class Path
     implements Iterable<String>, Comparable<Path>, Serializable
 {
+    private static final long serialVersionUID = 1171200295285567903L;
+
     ArrayList<Component> components = new ArrayList<>();
     String localPath;
     Type type;
@@ -231,13 +233,14 @@ public class Path
     {
         if (this.isRoot())
             throw new IllegalArgumentException("cannot call last() on root");
-        String parentString = "/";
+        String parentString = "";
         for (int i = 1 ; i < this.components.size() - 1 ; i++)
         {
-            parentString += this.components.get(i).toString();
+            parentString += "/" + this.components.get(i).toString();
         }
+        if (parentString.isEmpty()) parentString = "/";
         Path parent = new Path(parentString);
-        parent.type = Type.DIRECTORY;
+        if (!parent.isRoot()) parent.type = Type.DIRECTORY;
         return parent;
     }
 
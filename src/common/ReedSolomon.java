@@ -0,0 +1,256 @@
+package common;
+
+/**
+ * Systematic Reed-Solomon code over GF(2<sup>8</sup>), splitting data into
+ * <code>dataShards</code> shards and adding <code>parityShards</code> parity
+ * shards, any <code>dataShards</code> of which are enough to rebuild the rest.
+ *
+ * <p>
+ * The data shards are stored as they are. Parity shard <code>i</code> is the
+ * sum of the data shards weighted by row <code>i</code> of a Cauchy matrix,
+ * <code>1 / (x<sub>i</sub> + y<sub>j</sub>)</code> with
+ * <code>x<sub>i</sub> = dataShards + i</code> and
+ * <code>y<sub>j</sub> = j</code>. Every square submatrix of a Cauchy matrix is
+ * invertible, so any <code>dataShards</code> rows of the identity stacked on
+ * it are too, which is what makes any <code>dataShards</code> shards enough.
+ * Multiplication is done through a full 256 by 256 table, so that the inner
+ * loops are one lookup and one exclusive or per byte.
+ *
+ * <p>
+ * Shards are byte arrays of equal length; each call works on the same range
+ * of every shard. Instances are immutable and safe to share between threads.
+ */
+public class ReedSolomon
+{
+    /** Largest number of shards, data and parity together. */
+    public static final int MAX_SHARDS = 256;
+    /** Reduction polynomial of the field, x<sup>8</sup> + x<sup>4</sup> +
+        x<sup>3</sup> + x<sup>2</sup> + 1. */
+    static final int POLYNOMIAL = 0x11d;
+
+    static final byte[] EXP = new byte[512];
+    static final int[] LOG = new int[256];
+    static final byte[][] MULTIPLY = new byte[256][256];
+
+    static
+    {
+        int x = 1;
+        for (int i = 0 ; i < 255 ; i++)
+        {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int i = 255 ; i < EXP.length ; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1 ; a < 256 ; a++)
+        {
+            for (int b = 1 ; b < 256 ; b++)
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    final int dataShards;
+    final int parityShards;
+    /** Coefficients of the parity shards, one row per parity shard. */
+    final byte[][] parity;
+
+    public ReedSolomon(int dataShards, int parityShards)
+    {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_SHARDS)
+            throw new IllegalArgumentException("need at least one data shard and at most "
+                + MAX_SHARDS + " shards");
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parity = new byte[parityShards][dataShards];
+        for (int i = 0 ; i < parityShards ; i++)
+        {
+            for (int j = 0 ; j < dataShards ; j++)
+                this.parity[i][j] = inverse((dataShards + i) ^ j);
+        }
+    }
+
+    public int getDataShards()
+    {
+        return this.dataShards;
+    }
+
+    public int getParityShards()
+    {
+        return this.parityShards;
+    }
+
+    public int getTotalShards()
+    {
+        return this.dataShards + this.parityShards;
+    }
+
+    /**
+     * Computes the parity shards from the data shards, over
+     * <code>length</code> bytes from <code>offset</code>.
+     *
+     * @param shards The data shards followed by the parity shards, all
+     *               allocated.
+     */
+    public void encode(byte[][] shards, int offset, int length)
+    {
+        this.check(shards, offset, length);
+        for (int i = 0 ; i < this.parityShards ; i++)
+            this.combine(this.parity[i], shards, 0, shards[this.dataShards + i], offset, length);
+    }
+
+    /**
+     * Rebuilds the missing shards, given as <code>null</code>, from the
+     * others, over <code>length</code> bytes from <code>offset</code>. The
+     * rebuilt shards are allocated with <code>offset + length</code> bytes.
+     *
+     * @throws IllegalArgumentException If fewer than <code>dataShards</code>
+     *                                  shards are present.
+     */
+    public void decode(byte[][] shards, int offset, int length)
+    {
+        this.decodeData(shards, offset, length, 0, this.dataShards);
+        for (int i = 0 ; i < this.parityShards ; i++)
+        {
+            if (shards[this.dataShards + i] != null) continue;
+            byte[] rebuilt = new byte[offset + length];
+            this.combine(this.parity[i], shards, 0, rebuilt, offset, length);
+            shards[this.dataShards + i] = rebuilt;
+        }
+    }
+
+    /**
+     * Rebuilds the missing data shards from <code>first</code> to
+     * <code>last</code>, exclusive, as <code>decode</code> does, leaving the
+     * other missing shards <code>null</code>. Readers need no more.
+     *
+     * @throws IllegalArgumentException If fewer than <code>dataShards</code>
+     *                                  shards are present.
+     */
+    public void decodeData(byte[][] shards, int offset, int length, int first, int last)
+    {
+        if (shards.length != this.getTotalShards())
+            throw new IllegalArgumentException("expected " + this.getTotalShards() + " shards");
+        int[] present = new int[this.dataShards];
+        int found = 0;
+        boolean dataMissing = false;
+        for (int i = 0 ; i < shards.length ; i++)
+        {
+            if (shards[i] == null)
+            {
+                if (i >= first && i < last) dataMissing = true;
+                continue;
+            }
+            if (found < this.dataShards) present[found++] = i;
+        }
+        if (found < this.dataShards)
+            throw new IllegalArgumentException("only " + found + " of " + this.dataShards
+                + " shards needed are present");
+        for (byte[] shard : shards)
+        {
+            if (shard != null && shard.length < offset + length)
+                throw new IllegalArgumentException("shard shorter than the range");
+        }
+
+        if (dataMissing)
+        {
+            // The rows of the present shards map the data to them; their
+            // inverse maps the present shards back to the data.
+            byte[][] rows = new byte[this.dataShards][];
+            for (int r = 0 ; r < this.dataShards ; r++) rows[r] = this.row(present[r]);
+            byte[][] inverse = invert(rows);
+            byte[][] inputs = new byte[this.dataShards][];
+            for (int r = 0 ; r < this.dataShards ; r++) inputs[r] = shards[present[r]];
+            for (int j = first ; j < last ; j++)
+            {
+                if (shards[j] != null) continue;
+                byte[] rebuilt = new byte[offset + length];
+                this.combine(inverse[j], inputs, 0, rebuilt, offset, length);
+                shards[j] = rebuilt;
+            }
+        }
+    }
+
+    /** Writes into <code>output</code> the sum of <code>dataShards</code>
+        inputs, starting at <code>first</code>, weighted by
+        <code>coefficients</code>. */
+    private void combine(byte[] coefficients, byte[][] inputs, int first, byte[] output,
+                         int offset, int length)
+    {
+        int end = offset + length;
+        for (int j = 0 ; j < this.dataShards ; j++)
+        {
+            byte[] table = MULTIPLY[coefficients[j] & 0xff];
+            byte[] input = inputs[first + j];
+            if (j == 0)
+            {
+                for (int p = offset ; p < end ; p++) output[p] = table[input[p] & 0xff];
+            }
+            else
+            {
+                for (int p = offset ; p < end ; p++) output[p] ^= table[input[p] & 0xff];
+            }
+        }
+    }
+
+    /** Returns the coefficients that give shard <code>index</code> from the
+        data shards. */
+    private byte[] row(int index)
+    {
+        if (index >= this.dataShards) return this.parity[index - this.dataShards];
+        byte[] identity = new byte[this.dataShards];
+        identity[index] = 1;
+        return identity;
+    }
+
+    private void check(byte[][] shards, int offset, int length)
+    {
+        if (shards.length != this.getTotalShards())
+            throw new IllegalArgumentException("expected " + this.getTotalShards() + " shards");
+        for (byte[] shard : shards)
+        {
+            if (shard == null) throw new NullPointerException("shard is null");
+            if (offset < 0 || length < 0 || shard.length < offset + length)
+                throw new IllegalArgumentException("shard shorter than the range");
+        }
+    }
+
+    /** Inverts a square matrix by Gauss-Jordan elimination. */
+    static byte[][] invert(byte[][] matrix)
+    {
+        int n = matrix.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0 ; r < n ; r++)
+        {
+            System.arraycopy(matrix[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0 ; c < n ; c++)
+        {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("matrix is singular");
+            byte[] swap = work[pivot];
+            work[pivot] = work[c];
+            work[c] = swap;
+            byte[] scale = MULTIPLY[inverse(work[c][c] & 0xff) & 0xff];
+            for (int i = 0 ; i < 2 * n ; i++) work[c][i] = scale[work[c][i] & 0xff];
+            for (int r = 0 ; r < n ; r++)
+            {
+                if (r == c || work[r][c] == 0) continue;
+                byte[] factor = MULTIPLY[work[r][c] & 0xff];
+                for (int i = 0 ; i < 2 * n ; i++) work[r][i] ^= factor[work[c][i] & 0xff];
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0 ; r < n ; r++) System.arraycopy(work[r], n, inverse[r], 0, n);
+        return inverse;
+    }
+
+    /** Returns the multiplicative inverse of a nonzero field element. */
+    static byte inverse(int a)
+    {
+        if (a == 0) throw new ArithmeticException("zero has no inverse");
+        return EXP[255 - LOG[a]];
+    }
+}
@@ -1,9 +1,12 @@
 package fuse;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
+import client.*;
 import naming.*;
 import storage.*;
 
@@ -48,12 +51,38 @@ import storage.*;
     order. All of the methods (except <code>initialize</code>) are guaranteed to
     be thread-safe, so no special locking provisions are needed in the native
     code.
+
+    <p>
+    Directories are listed a page at a time. The attributes returned with each
+    entry are kept for <code>ATTRIBUTE_TTL_MILLIS</code>, so that the
+    <code>directory</code> and <code>size</code> queries which the kernel issues
+    for every entry after listing a directory do not each go to the servers.
  */
 abstract class Fuse
 {
     /** Stub for the naming server to be contacted. */
     private static Service  naming_server = null;
 
+    /** Time for which attributes from a directory listing are used. */
+    static final long       ATTRIBUTE_TTL_MILLIS = 1000;
+
+    /** Attributes from recent directory listings, by path. */
+    private static final Map<Path, CachedEntry>    attributes =
+        new ConcurrentHashMap<>();
+
+    /** Directory entry together with the time at which it expires. */
+    private static class CachedEntry
+    {
+        final DirectoryEntry    entry;
+        final long              expires;
+
+        CachedEntry(DirectoryEntry entry, long expires)
+        {
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+
     /** Prevents any class from derived from <code>Fuse</code>. */
     private Fuse()
     {
@@ -62,17 +91,20 @@ abstract class Fuse
     /** Initializes the Java portion of the FUSE client.
 
         <p>
-        This method simply creates a stub for the naming server with the given
+        This method creates a stub for the naming server with the given
         hostname, and with the default naming server client interface port. The
-        server is not contacted - this method succeeds even if the server is
-        unreachable.
+        server is contacted once, for the mount table of a federated namespace,
+        so that later calls go straight to the naming server owning each
+        path. Metadata queries are answered from a <code>MetadataCache</code>
+        while its leases last.
 
         @param raw_hostname Byte array containing a UTF-8 string representing
                             the hostname of the naming server to be used for all
                             subsequent calls.
      */
     static void initialize(byte[] raw_hostname) throws Throwable {
-        naming_server = NamingStubs.service(decode(raw_hostname));
+        naming_server =
+            new MetadataCache(NamingStubs.federation(decode(raw_hostname)));
     }
 
     /** Checks if the given path refers to a directory.
@@ -90,7 +122,13 @@ abstract class Fuse
     static boolean directory(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.isDirectory(new Path(decode(raw_path)));
+        Path            path = new Path(decode(raw_path));
+        DirectoryEntry  entry = cached(path);
+
+        if(entry != null)
+            return entry.isDirectory();
+
+        return naming_server.isDirectory(path);
     }
 
     /** Returns the size of the given file.
@@ -108,10 +146,22 @@ abstract class Fuse
     static long size(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        Path        path = new Path(decode(raw_path));
-        Storage     storage_server = naming_server.getStorage(path);
+        Path            path = new Path(decode(raw_path));
+        DirectoryEntry  entry = cached(path);
 
-        return storage_server.size(path);
+        if(entry != null && !entry.isDirectory() && entry.getSize() >= 0)
+            return entry.getSize();
+
+        ReplicaSelector replicas = new ReplicaSelector(naming_server, path);
+
+        try
+        {
+            return replicas.call(storage_server -> storage_server.size(path));
+        }
+        catch(IOException e)
+        {
+            throw new RMIException("could not read file size", e);
+        }
     }
 
     /** Creates a file on the remote filesystem.
@@ -133,7 +183,10 @@ abstract class Fuse
     static boolean createFile(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.createFile(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        attributes.remove(path);
+        return naming_server.createFile(path);
     }
 
     /** Creates a directory on the remote filesystem.
@@ -153,7 +206,10 @@ abstract class Fuse
     static boolean createDirectory(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.createDirectory(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        attributes.remove(path);
+        return naming_server.createDirectory(path);
     }
 
     /** Deletes an object on the remote filesystem.
@@ -172,7 +228,51 @@ abstract class Fuse
     static boolean delete(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        return naming_server.delete(new Path(decode(raw_path)));
+        Path        path = new Path(decode(raw_path));
+
+        attributes.remove(path);
+        return naming_server.delete(path);
+    }
+
+    /** Moves an object on the remote filesystem to a new path.
+
+        <p>
+        As with POSIX <code>rename</code>, a file already at the target is
+        replaced. A directory at the target is not.
+
+        @param raw_source Byte array containing a UTF-8 string representing the
+                          path to the object to be moved.
+        @param raw_target Byte array containing a UTF-8 string representing the
+                          path to which it is to be moved.
+        @return <code>true</code> if the object has been moved, and
+                <code>false</code> if a directory is in the way.
+        @throws IllegalArgumentException If either path is not a valid
+                                         filesystem path, or if the target is
+                                         below the source.
+        @throws FileNotFoundException If the object does not exist, or the
+                                      target's parent directory does not.
+        @throws RMIException If the naming server cannot be contacted, or the
+                             storage servers cannot move the object.
+     */
+    static boolean rename(byte[] raw_source, byte[] raw_target)
+        throws FileNotFoundException, RMIException
+    {
+        Path        source = new Path(decode(raw_source));
+        Path        target = new Path(decode(raw_target));
+        String      prefix = source.toString() + "/";
+
+        attributes.keySet().removeIf(path ->
+            path.equals(source) || path.toString().startsWith(prefix));
+        attributes.remove(target);
+
+        if(naming_server.rename(source, target))
+            return true;
+
+        if(naming_server.isDirectory(target))
+            return false;
+
+        naming_server.delete(target);
+        return naming_server.rename(source, target);
     }
 
     /** Reads from a file on the remote filesystem.
@@ -206,9 +306,9 @@ abstract class Fuse
                        long file_length)
         throws FileNotFoundException, RMIException, IOException
     {
-        // Decode the path and obtain a storage server stub.
-        Path        path = new Path(decode(raw_path));
-        Storage     storage_server = naming_server.getStorage(path);
+        // Decode the path and obtain the replicas of the file.
+        Path            path = new Path(decode(raw_path));
+        ReplicaSelector replicas = new ReplicaSelector(naming_server, path);
 
         // Check that the starting offset is within the bounds of the file. If
         // it is beyond the end of the file, return the empty array.
@@ -223,7 +323,10 @@ abstract class Fuse
         if(bytes_to_read > (file_length - offset))
             bytes_to_read = (int)(file_length - offset);
 
-        return storage_server.read(path, offset, bytes_to_read);
+        final int   count = bytes_to_read;
+
+        return replicas.call(storage_server ->
+            storage_server.read(path, offset, count));
     }
 
     /** Writes to a file on the remote filesystem.
@@ -246,6 +349,7 @@ abstract class Fuse
         Path        path = new Path(decode(raw_path));
         Storage     storage_server = naming_server.getStorage(path);
 
+        attributes.remove(path);
         storage_server.write(path, offset, buffer);
     }
 
@@ -264,8 +368,37 @@ abstract class Fuse
     static byte[] list(byte[] raw_path)
         throws FileNotFoundException, RMIException
     {
-        // Decode the path and the list the directory.
-        String[]    children = naming_server.list(new Path(decode(raw_path)));
+        // Decode the path and the list the directory a page at a time,
+        // remembering the attributes of each entry.
+        Path        directory = new Path(decode(raw_path));
+        ArrayList<String>   names = new ArrayList<>();
+        String      cursor = null;
+        long        now = System.currentTimeMillis();
+
+        // Drop expired attributes, so that the cache does not grow with every
+        // directory ever listed.
+        attributes.values().removeIf(cached -> cached.expires < now);
+
+        do
+        {
+            DirectoryListing    page =
+                naming_server.listEntries(directory, cursor,
+                                          DirectoryListing.MAX_ENTRIES);
+            long                expires =
+                System.currentTimeMillis() + ATTRIBUTE_TTL_MILLIS;
+
+            for(DirectoryEntry entry : page.getEntries())
+            {
+                names.add(entry.getName());
+                attributes.put(new Path(directory, entry.getName()),
+                               new CachedEntry(entry, expires));
+            }
+
+            cursor = page.getCursor();
+        }
+        while(cursor != null);
+
+        String[]    children = names.toArray(new String[0]);
         byte[][]    encoded_children = new byte[children.length][];
 
         int         flattened_length = 0;
@@ -313,6 +446,24 @@ abstract class Fuse
         return flattened_children;
     }
 
+    /** Returns the attributes of a path from a recent directory listing, or
+        <code>null</code> if there are none that have not expired. */
+    private static DirectoryEntry cached(Path path)
+    {
+        CachedEntry     cached = attributes.get(path);
+
+        if(cached == null)
+            return null;
+
+        if(cached.expires < System.currentTimeMillis())
+        {
+            attributes.remove(path, cached);
+            return null;
+        }
+
+        return cached.entry;
+    }
+
     /** Decodes a UTF-8 string.
 
         <p>
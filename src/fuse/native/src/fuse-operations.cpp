@@ -380,6 +380,7 @@ static int dfs_getattr(const char *path, struct stat *status);
 static int dfs_mknod(const char *path, mode_t mode, dev_t device);
 static int dfs_mkdir(const char *path, mode_t mode);
 static int dfs_delete(const char *path);
+static int dfs_rename(const char *source, const char *target);
 static int dfs_truncate(const char *path, off_t new_size);
 static int dfs_open(const char *path, fuse_file_info *file_info);
 static int dfs_read(const char *path, char *buffer, size_t length, off_t offset,
@@ -417,6 +418,7 @@ void set_operations(fuse_operations& operations)
     operations.mkdir = dfs_mkdir;
     operations.unlink = dfs_delete;
     operations.rmdir = dfs_delete;
+    operations.rename = dfs_rename;
     operations.truncate = dfs_truncate;
     operations.open = dfs_open;
     operations.read = dfs_read;
@@ -684,6 +686,51 @@ static int dfs_delete(const char *path)
     detach_and_return(SUCCESS);
 }
 
+/** @brief Moves an object in the filesystem to a new path.
+
+    Only the metadata is changed: the storage servers move their copies in
+    place, and no file data passes through the client. A file at the target is
+    replaced.
+
+    @param source Path to the object to be moved.
+    @param target Path to which the object is to be moved.
+    @return A POSIX error code as described in the group documentation for FUSE
+            operations. In addition, the function returns <code>EEXIST</code>
+            if a directory is in the way at the target, and <code>EPERM</code>
+            if either path is the root directory.
+ */
+static int dfs_rename(const char *source, const char *target)
+{
+    // The root directory cannot be moved, and nothing can be moved onto it.
+    if(dfs_is_root(source) || dfs_is_root(target))
+        return -EPERM;
+
+    // Neither path refers to the root directory. Return EACCES if the root
+    // directory cannot be traversed.
+    if(!dfs_traversals_allowed())
+        return -EACCES;
+
+    // Objects cannot be moved if directories are not modifiable.
+    if(!dfs_directory_modification_allowed())
+        return -EACCES;
+
+    jobject     java_source;
+    jobject     java_target;
+    jboolean    result;
+
+    // Attempt to move the object.
+    try_attach();
+    try_encode(source, java_source);
+    try_encode(target, java_target);
+    try_call("rename", "([B[B)Z", result, java_source, java_target);
+    java_detach();
+
+    if(result != JNI_TRUE)
+        return -EEXIST;
+
+    return SUCCESS;
+}
+
 /** @brief Truncates a file to length zero.
 
     This is only a partial implementation of the <code>truncate</code> function.
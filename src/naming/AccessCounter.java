@@ -0,0 +1,55 @@
+package naming;
+
+/**
+ * Exponentially decaying read counter.
+ *
+ * <p>
+ * Every recorded access adds one to the counter, and the counter loses half of
+ * its value every half-life. The value is therefore a count of recent
+ * accesses in which older accesses weigh less, and for a file read at a steady
+ * rate of <em>r</em> accesses per second it settles at about
+ * <em>r</em> &middot; half-life / ln 2. Only a float and a timestamp are
+ * stored, and decay is applied lazily whenever the counter is read or updated.
+ */
+public class AccessCounter
+{
+    float value = 0;
+    long stamp = 0;
+
+    /**
+     * Records one access at time <code>now</code>, in milliseconds, and returns
+     * the updated value.
+     */
+    public synchronized double record(long now, long halfLifeMillis)
+    {
+        return this.record(now, halfLifeMillis, 1);
+    }
+
+    /**
+     * Records a fraction of an access, as when it is only known how likely a
+     * client is to send the access here, and returns the updated value.
+     */
+    public synchronized double record(long now, long halfLifeMillis, double weight)
+    {
+        this.decay(now, halfLifeMillis);
+        this.value += weight;
+        return this.value;
+    }
+
+    /** Returns the value of the counter at time <code>now</code>. */
+    public synchronized double get(long now, long halfLifeMillis)
+    {
+        this.decay(now, halfLifeMillis);
+        return this.value;
+    }
+
+    private void decay(long now, long halfLifeMillis)
+    {
+        if (now > this.stamp && this.value != 0)
+        {
+            double halfLives = (now - this.stamp) / (double) halfLifeMillis;
+            this.value = (float) (this.value * Math.pow(0.5, halfLives));
+        }
+        if (now > this.stamp) this.stamp = now;
+    }
+}
@@ -0,0 +1,25 @@
+package naming;
+
+/**
+ * Outcome for one path of a bulk namespace operation.
+ *
+ * <p>
+ * The outcomes mirror the results and exceptions of the single-path
+ * operations, so that each path of a batch can be handled as if it had been
+ * passed to <code>createFile</code>, <code>createDirectory</code> or
+ * <code>delete</code> on its own.
+ */
+public enum BatchStatus
+{
+    /** The path was created or deleted. */
+    DONE,
+    /** The path already existed and was not created again, or is the root
+        directory and cannot be deleted. */
+    UNCHANGED,
+    /** The parent of a path to be created is not an existing directory, or
+        a path to be deleted does not exist. */
+    NOT_FOUND,
+    /** A storage server could not be reached or did not complete the
+        operation. */
+    FAILED
+}
@@ -0,0 +1,29 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+
+/**
+ * Callback interface of a client that caches naming server metadata.
+ *
+ * <p>
+ * A client holding leases on paths, given by <code>Service.lease</code>,
+ * exports this interface so that the naming server can tell it when the
+ * answers it cached are no longer correct.
+ */
+public interface CacheClient
+{
+    /**
+     * Tells the client to drop whatever it cached about the given paths.
+     *
+     * <p>
+     * The naming server makes this call when a path the client holds a lease
+     * on is created or deleted, when a child is added to or removed from it,
+     * or when its replicas change. The leases on the paths end with the call.
+     *
+     * @param paths The paths whose cached answers are stale.
+     * @throws RMIException If the call cannot be completed due to a network
+     *                      error.
+     */
+    public void invalidate(Path[] paths) throws RMIException;
+}
@@ -0,0 +1,100 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Disk usage and I/O rates of a storage server.
+ *
+ * <p>
+ * A storage server sends a report when it registers, and then with every
+ * heartbeat. Space is counted in two ways: the size and free space of the disk
+ * holding the server's root directory, which other programs may share, and
+ * the bytes and files the server itself stores. Rates are averaged over the
+ * time since the previous report.
+ */
+public class CapacityReport
+    implements Serializable
+{
+    long totalBytes;
+    long freeBytes;
+    long usedBytes;
+    long files;
+    double readsPerSecond;
+    double writesPerSecond;
+    double bytesReadPerSecond;
+    double bytesWrittenPerSecond;
+
+    public CapacityReport(long totalBytes, long freeBytes, long usedBytes, long files,
+                          double readsPerSecond, double writesPerSecond,
+                          double bytesReadPerSecond, double bytesWrittenPerSecond)
+    {
+        this.totalBytes = totalBytes;
+        this.freeBytes = freeBytes;
+        this.usedBytes = usedBytes;
+        this.files = files;
+        this.readsPerSecond = readsPerSecond;
+        this.writesPerSecond = writesPerSecond;
+        this.bytesReadPerSecond = bytesReadPerSecond;
+        this.bytesWrittenPerSecond = bytesWrittenPerSecond;
+    }
+
+    /** Returns the size of the disk holding the server's files, in bytes. */
+    public long getTotalBytes()
+    {
+        return this.totalBytes;
+    }
+
+    /** Returns the space left on the disk for the server's use, in bytes. */
+    public long getFreeBytes()
+    {
+        return this.freeBytes;
+    }
+
+    /** Returns the total size of the files stored by the server. */
+    public long getUsedBytes()
+    {
+        return this.usedBytes;
+    }
+
+    /** Returns the number of files stored by the server. */
+    public long getFiles()
+    {
+        return this.files;
+    }
+
+    public double getReadsPerSecond()
+    {
+        return this.readsPerSecond;
+    }
+
+    public double getWritesPerSecond()
+    {
+        return this.writesPerSecond;
+    }
+
+    public double getBytesReadPerSecond()
+    {
+        return this.bytesReadPerSecond;
+    }
+
+    public double getBytesWrittenPerSecond()
+    {
+        return this.bytesWrittenPerSecond;
+    }
+
+    /** Returns the fraction of the disk still free, between 0 and 1. A
+        report without a disk size counts as entirely free. */
+    public double getFreeFraction()
+    {
+        if (this.totalBytes <= 0) return 1;
+        return Math.max(0, Math.min(1, this.freeBytes / (double) this.totalBytes));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[CapacityReport| " + this.freeBytes + " of " + this.totalBytes + " bytes free, "
+            + this.files + " files in " + this.usedBytes + " bytes, "
+            + String.format("%.1f reads/s, %.1f writes/s", this.readsPerSecond, this.writesPerSecond) + "]";
+    }
+}
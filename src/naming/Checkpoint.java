@@ -0,0 +1,606 @@
+package naming;
+
+import common.Path;
+import common.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary image of the directory tree.
+ *
+ * <p>
+ * The image lists the nodes of the tree in preorder. Each node is stored as its
+ * type, the last component of its name, its replicas, and then either its size
+ * (for files) or its number of children (for directories), so full paths are
+ * never written. Replicas are stored as indices into a table of storage
+ * servers at the end of the image, since a handful of servers is shared by
+ * every file. Counts, indices and sizes are written as variable-length
+ * integers; a file's size is stored plus one, with zero standing for a size
+ * that is not known, and is followed by the servers holding a stale copy of
+ * the file, which are deleted or refreshed once the tree is restored. An
+ * erasure-coded file is stored as a file of its own
+ * type, followed by its layout: the numbers of data and parity fragments, the
+ * size the fragments were made from, and the holder of each fragment, as an
+ * index into the table plus one, with zero standing for a lost fragment.
+ *
+ * <p>
+ * Snapshots are stored with the tree. Each node is numbered in the order it
+ * is written, and a directory is followed by the generation of its table of
+ * children and by the copies of the table kept for snapshots, each as its
+ * generation and its children with the names they had then. A child is
+ * written in full where it is first met, and as its number plus one after
+ * that, with zero standing for a child written in full, so that nodes shared
+ * between the live tree and the copies, or deleted and kept only in the
+ * copies, are written once. Nodes whose parent is not the directory they were
+ * written under are listed after the tree with their parents, and then come
+ * the snapshots, by name and generation, and the data kept for them: the
+ * deleted subtrees, and the copies of files pinned before a write, by node
+ * number, with where they are kept, the snapshots reading them and the
+ * servers holding them.
+ *
+ * <p>
+ * The image is taken while clients keep using the tree: directories are
+ * copied one at a time and replica lists are immutable, so no lock is held
+ * across the traversal. Such an image may already reflect some mutations made
+ * after the journal sequence number it is labelled with, but replaying the
+ * journal from that number onwards yields the same tree again, because every
+ * journal record is idempotent. The image is written to a temporary file and
+ * renamed into place, and is loaded through a memory-mapped buffer. The same
+ * image, taken in memory, starts follower naming servers off.
+ */
+public class Checkpoint
+{
+    static final String FILE_NAME = "checkpoint";
+    static final String TEMPORARY_FILE_NAME = "checkpoint.tmp";
+    static final int MAGIC = 0x44465343;
+    static final int FORMAT = 5;
+    /** Format without snapshots, which is still loaded. */
+    static final int STALE_FORMAT = 4;
+    /** Format without stale replicas, which is still loaded. */
+    static final int CODED_FORMAT = 3;
+    /** Format without erasure-coded files, which is still loaded. */
+    static final int REPLICATED_FORMAT = 2;
+    static final byte DIRECTORY = 0;
+    static final byte FILE = 1;
+    static final byte CODED_FILE = 2;
+
+    /**
+     * Writes an image of the tree to <code>directory</code>, replacing the
+     * previous one.
+     *
+     * @param sequence The journal sequence number of the last mutation that is
+     *                 known to be reflected in the tree.
+     */
+    static void write(File directory, FileSystem fileSystem, long sequence)
+        throws IOException
+    {
+        File temporary = new File(directory, TEMPORARY_FILE_NAME);
+        try (FileOutputStream file = new FileOutputStream(temporary))
+        {
+            write(file, fileSystem, sequence);
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), new File(directory, FILE_NAME).toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns an image of the tree, as sent to a follower naming server.
+     *
+     * @param sequence The mutation log sequence number of the last mutation
+     *                 that is known to be reflected in the tree.
+     */
+    static byte[] image(FileSystem fileSystem, long sequence)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, fileSystem, sequence);
+        return bytes.toByteArray();
+    }
+
+    private static void write(OutputStream stream, FileSystem fileSystem, long sequence)
+        throws IOException
+    {
+        Image image = new Image();
+        CheckedOutputStream checked = new CheckedOutputStream(
+            new BufferedOutputStream(stream, 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(sequence);
+        writeNode(out, fileSystem, fileSystem.getRoot(), null, image);
+        writeParents(out, image);
+        writeSnapshots(out, fileSystem.snapshots, image);
+
+        long tableOffset = out.size();
+        writeVarLong(out, image.table.size());
+        for (StorageContainer storageContainer : image.table)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+            objects.writeObject(storageContainer);
+            objects.close();
+            writeVarLong(out, bytes.size());
+            out.write(bytes.toByteArray());
+        }
+        out.writeLong(tableOffset);
+        out.flush();
+        new DataOutputStream(stream).writeInt((int) checked.getChecksum().getValue());
+    }
+
+    /** What is known of an image while it is written. */
+    private static class Image
+    {
+        final HashMap<StorageContainer, Integer> indices = new HashMap<>();
+        final ArrayList<StorageContainer> table = new ArrayList<>();
+        /** Number of each node written. */
+        final HashMap<FileNode, Integer> numbers = new HashMap<>();
+        /** Directory each node was written under. */
+        final HashMap<FileNode, FileNode> writtenUnder = new HashMap<>();
+    }
+
+    private static void writeNode(DataOutputStream out, FileSystem fileSystem, FileNode node, FileNode under,
+                                  Image image)
+        throws IOException
+    {
+        image.numbers.put(node, image.numbers.size());
+        image.writtenUnder.put(node, under);
+        ErasureLayout layout = node.isFile() ? fileSystem.getErasureLayout(node) : null;
+        out.writeByte(layout != null ? CODED_FILE : node.isFile() ? FILE : DIRECTORY);
+        writeString(out, under == null ? "" : node.getName());
+
+        ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
+        writeVarLong(out, storageContainers.size());
+        for (StorageContainer storageContainer : storageContainers)
+            writeVarLong(out, indexOf(storageContainer, image));
+
+        if (node.isFile())
+        {
+            writeVarLong(out, node.isFileSizeKnown() ? node.getFileSize() + 1 : 0);
+            ArrayList<StorageContainer> stale = node.getStaleContainers();
+            writeVarLong(out, stale.size());
+            for (StorageContainer storageContainer : stale)
+                writeVarLong(out, indexOf(storageContainer, image));
+            if (layout == null) return;
+            writeVarLong(out, layout.getDataFragments());
+            writeVarLong(out, layout.getParityFragments());
+            writeVarLong(out, layout.getFileSize());
+            for (int i = 0 ; i < layout.getDataFragments() + layout.getParityFragments() ; i++)
+                writeVarLong(out, layout.getHolder(i) == null ? 0 : indexOf(layout.getHolder(i), image) + 1);
+            return;
+        }
+        // Copying the children and versions takes the table's own lock for a
+        // moment only
+        ChildTable table = node.getChildren();
+        long generation;
+        ArrayList<FileNode> children;
+        ArrayList<ChildTable.Version> versions;
+        synchronized (table)
+        {
+            generation = table.generation;
+            children = table.values();
+            versions = table.versions();
+        }
+        writeVarLong(out, generation);
+        writeVarLong(out, children.size());
+        for (FileNode child : children)
+        {
+            writeChild(out, fileSystem, child, node, image);
+        }
+        writeVarLong(out, versions.size());
+        for (ChildTable.Version version : versions)
+        {
+            writeVarLong(out, version.generation);
+            writeVarLong(out, version.children.length);
+            for (int i = 0 ; i < version.children.length ; i++)
+            {
+                writeString(out, version.names[i]);
+                writeChild(out, fileSystem, version.children[i], node, image);
+            }
+        }
+    }
+
+    /** Writes a child as the number of a node already written plus one, or
+        as zero followed by the node. */
+    private static void writeChild(DataOutputStream out, FileSystem fileSystem, FileNode child, FileNode under,
+                                   Image image)
+        throws IOException
+    {
+        Integer number = image.numbers.get(child);
+        writeVarLong(out, number == null ? 0 : number + 1);
+        if (number == null) writeNode(out, fileSystem, child, under, image);
+    }
+
+    /** Writes the nodes whose parent is not the directory they were written
+        under, such as a node moved out of a directory that a snapshot
+        still lists it in, and then deleted. */
+    private static void writeParents(DataOutputStream out, Image image)
+        throws IOException
+    {
+        ArrayList<FileNode> moved = new ArrayList<>();
+        for (Map.Entry<FileNode, FileNode> entry : image.writtenUnder.entrySet())
+        {
+            FileNode parent = entry.getKey().getParent();
+            if (parent != entry.getValue() && image.numbers.containsKey(parent)) moved.add(entry.getKey());
+        }
+        writeVarLong(out, moved.size());
+        for (FileNode node : moved)
+        {
+            writeVarLong(out, image.numbers.get(node));
+            writeVarLong(out, image.numbers.get(node.getParent()));
+        }
+    }
+
+    /** Writes the snapshots and the data kept for them. */
+    private static void writeSnapshots(DataOutputStream out, SnapshotTable snapshots, Image image)
+        throws IOException
+    {
+        synchronized (snapshots)
+        {
+            writeVarLong(out, snapshots.lastGeneration);
+            writeVarLong(out, snapshots.lastRetained);
+            ArrayList<SnapshotTable.Snapshot> taken = new ArrayList<>(snapshots.snapshots.values());
+            writeVarLong(out, taken.size());
+            for (SnapshotTable.Snapshot snapshot : taken)
+            {
+                writeString(out, snapshot.name);
+                writeVarLong(out, snapshot.generation);
+            }
+            ArrayList<SnapshotTable.Retained> retained = new ArrayList<>();
+            for (SnapshotTable.Retained subtree : snapshots.retained.values())
+            {
+                if (image.numbers.containsKey(subtree.node)) retained.add(subtree);
+            }
+            writeVarLong(out, retained.size());
+            for (SnapshotTable.Retained subtree : retained) writeRetained(out, subtree, image);
+            ArrayList<SnapshotTable.Pin> pins = new ArrayList<>();
+            for (ArrayList<SnapshotTable.Pin> pinned : snapshots.pinned.values())
+            {
+                for (SnapshotTable.Pin pin : pinned)
+                {
+                    if (image.numbers.containsKey(pin.node)) pins.add(pin);
+                }
+            }
+            writeVarLong(out, pins.size());
+            for (SnapshotTable.Pin pin : pins)
+            {
+                writeRetained(out, pin, image);
+                writeString(out, pin.path.toString());
+                writeVarLong(out, indexOf(pin.source, image));
+            }
+        }
+    }
+
+    /** Writes kept data as its node's number, its location, its readers, and
+        its holders plus one, with zero standing for holders not known
+        yet. */
+    private static void writeRetained(DataOutputStream out, SnapshotTable.Retained retained, Image image)
+        throws IOException
+    {
+        writeVarLong(out, image.numbers.get(retained.node));
+        writeString(out, retained.location.toString());
+        writeVarLong(out, retained.readers.size());
+        for (long reader : retained.readers) writeVarLong(out, reader);
+        Set<StorageContainer> holders = retained.holders;
+        writeVarLong(out, holders == null ? 0 : holders.size() + 1);
+        if (holders == null) return;
+        for (StorageContainer holder : holders) writeVarLong(out, indexOf(holder, image));
+    }
+
+    /** Returns the index of a server in the table, adding it if it is not
+        there yet. */
+    private static int indexOf(StorageContainer storageContainer, Image image)
+    {
+        Integer index = image.indices.get(storageContainer);
+        if (index == null)
+        {
+            index = image.table.size();
+            image.indices.put(storageContainer, index);
+            image.table.add(storageContainer);
+        }
+        return index;
+    }
+
+    /**
+     * Loads the image in <code>directory</code>, if there is one, into an
+     * empty tree.
+     *
+     * @return The journal sequence number the image is labelled with, or
+     *         <code>0</code> if there is no image.
+     * @throws IOException If the image cannot be read or is damaged.
+     */
+    static long load(File directory, FileSystem fileSystem)
+        throws IOException
+    {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists()) return 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), fileSystem);
+        }
+    }
+
+    /**
+     * Loads an image held in a buffer, mapped from a checkpoint file or
+     * received by a follower, into an empty tree.
+     *
+     * @return The sequence number the image is labelled with.
+     * @throws IOException If the image is damaged.
+     */
+    static long load(ByteBuffer buffer, FileSystem fileSystem)
+        throws IOException
+    {
+        int end = buffer.limit() - 4;
+        int format = buffer.getInt(4);
+        if (end < 24 || buffer.getInt(0) != MAGIC
+            || (format != FORMAT && format != STALE_FORMAT && format != CODED_FORMAT
+                && format != REPLICATED_FORMAT))
+            throw new IOException("checkpoint has an unknown format");
+        CRC32 crc = new CRC32();
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(end);
+        crc.update(covered);
+        if ((int) crc.getValue() != buffer.getInt(end))
+            throw new IOException("checkpoint is damaged");
+
+        long sequence = buffer.getLong(8);
+        buffer.position((int) buffer.getLong(end - 8));
+        int tableSize = (int) readVarLong(buffer);
+        StorageContainer[] table = new StorageContainer[tableSize];
+        for (int i = 0 ; i < tableSize ; i++)
+        {
+            byte[] bytes = new byte[(int) readVarLong(buffer)];
+            buffer.get(bytes);
+            try
+            {
+                table[i] = (StorageContainer) new ObjectInputStream(
+                    new ByteArrayInputStream(bytes)).readObject();
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException("cannot decode checkpoint", e);
+            }
+        }
+
+        buffer.position(16);
+        ArrayList<FileNode> nodes = new ArrayList<>();
+        readNode(buffer, null, true, fileSystem, table, format, nodes);
+        if (format == FORMAT)
+        {
+            long moved = readVarLong(buffer);
+            for (long i = 0 ; i < moved ; i++)
+                nodes.get((int) readVarLong(buffer)).parent = nodes.get((int) readVarLong(buffer));
+            // The tree is in place before the snapshots, so that restoring it
+            // copied no table
+            readSnapshots(buffer, fileSystem.snapshots, table, nodes);
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads a node and everything below it, under a directory that lists it
+     * in its live table, or only in a copy kept for snapshots if
+     * <code>live</code> is not set.
+     */
+    private static FileNode readNode(ByteBuffer buffer, FileNode parent, boolean live, FileSystem fileSystem,
+                                     StorageContainer[] table, int format, ArrayList<FileNode> nodes)
+    {
+        byte type = buffer.get();
+        String name = readString(buffer);
+        int replicas = (int) readVarLong(buffer);
+        ArrayList<StorageContainer> storageContainers = new ArrayList<>(replicas);
+        for (int i = 0 ; i < replicas ; i++)
+        {
+            storageContainers.add(table[(int) readVarLong(buffer)]);
+        }
+
+        FileNode node;
+        if (parent == null)
+        {
+            node = fileSystem.getRoot();
+        }
+        else
+        {
+            node = new FileNode(name, type == DIRECTORY ? Type.DIRECTORY : Type.FILE);
+            if (live) parent.getChildren().put(node);
+            else node.parent = parent;
+        }
+        nodes.add(node);
+        node.setStorageContainers(storageContainers);
+
+        if (type != DIRECTORY)
+        {
+            long size = readVarLong(buffer) - 1;
+            node.setFileSize(size);
+            if (size < 0) node.markFileSizeStale();
+            // Replicated files are visited by the reclaim pass
+            if (live && storageContainers.size() > 1) fileSystem.replicatedFiles.add(node.getPath());
+            int stale = format >= STALE_FORMAT ? (int) readVarLong(buffer) : 0;
+            for (int i = 0 ; i < stale ; i++)
+                node.addStaleContainer(table[(int) readVarLong(buffer)]);
+            if (type == CODED_FILE)
+            {
+                int dataFragments = (int) readVarLong(buffer);
+                int parityFragments = (int) readVarLong(buffer);
+                long fileSize = readVarLong(buffer);
+                StorageContainer[] holders = new StorageContainer[dataFragments + parityFragments];
+                for (int i = 0 ; i < holders.length ; i++)
+                {
+                    int index = (int) readVarLong(buffer);
+                    holders[i] = index == 0 ? null : table[index - 1];
+                }
+                fileSystem.erasureCoded.put(node,
+                    new ErasureLayout(dataFragments, parityFragments, fileSize, holders));
+            }
+            return node;
+        }
+        if (format != FORMAT)
+        {
+            long children = readVarLong(buffer);
+            for (long i = 0 ; i < children ; i++)
+            {
+                readNode(buffer, node, true, fileSystem, table, format, nodes);
+            }
+            return node;
+        }
+        long generation = readVarLong(buffer);
+        long children = readVarLong(buffer);
+        for (long i = 0 ; i < children ; i++)
+        {
+            readChild(buffer, node, true, fileSystem, table, format, nodes);
+        }
+        ChildTable.Version[] versions = new ChildTable.Version[(int) readVarLong(buffer)];
+        for (int i = 0 ; i < versions.length ; i++)
+        {
+            long labelled = readVarLong(buffer);
+            FileNode[] listed = new FileNode[(int) readVarLong(buffer)];
+            String[] names = new String[listed.length];
+            for (int j = 0 ; j < listed.length ; j++)
+            {
+                names[j] = readString(buffer);
+                listed[j] = readChild(buffer, node, false, fileSystem, table, format, nodes);
+            }
+            versions[i] = new ChildTable.Version(labelled, listed, names, null);
+        }
+        for (int i = 0 ; i < versions.length - 1 ; i++) versions[i].older = versions[i + 1];
+        ChildTable childTable = node.getChildren();
+        synchronized (childTable)
+        {
+            childTable.generation = generation;
+            childTable.versions = versions.length == 0 ? null : versions[0];
+        }
+        return node;
+    }
+
+    /** Reads a child written in full or as the number of a node already
+        read. */
+    private static FileNode readChild(ByteBuffer buffer, FileNode parent, boolean live, FileSystem fileSystem,
+                                      StorageContainer[] table, int format, ArrayList<FileNode> nodes)
+    {
+        long number = readVarLong(buffer);
+        if (number == 0) return readNode(buffer, parent, live, fileSystem, table, format, nodes);
+        FileNode node = nodes.get((int) number - 1);
+        if (!live) return node;
+        parent.getChildren().put(node);
+        if (node.isFile() && node.getStorageContainers().size() > 1)
+            fileSystem.replicatedFiles.add(node.getPath());
+        return node;
+    }
+
+    /** Restores the snapshots and the data kept for them. */
+    private static void readSnapshots(ByteBuffer buffer, SnapshotTable snapshots, StorageContainer[] table,
+                                      ArrayList<FileNode> nodes)
+    {
+        long lastGeneration = readVarLong(buffer);
+        long lastRetained = readVarLong(buffer);
+        long taken = readVarLong(buffer);
+        for (long i = 0 ; i < taken ; i++)
+        {
+            String name = readString(buffer);
+            snapshots.restore(name, readVarLong(buffer));
+        }
+        long retained = readVarLong(buffer);
+        for (long i = 0 ; i < retained ; i++)
+        {
+            FileNode node = nodes.get((int) readVarLong(buffer));
+            Path location = new Path(readString(buffer));
+            HashSet<Long> readers = readReaders(buffer);
+            SnapshotTable.Retained subtree = new SnapshotTable.Retained(node, location, readers);
+            subtree.holders = readHolders(buffer, table);
+            snapshots.restore(subtree);
+        }
+        long pins = readVarLong(buffer);
+        for (long i = 0 ; i < pins ; i++)
+        {
+            FileNode node = nodes.get((int) readVarLong(buffer));
+            Path location = new Path(readString(buffer));
+            HashSet<Long> readers = readReaders(buffer);
+            Set<StorageContainer> holders = readHolders(buffer, table);
+            Path path = new Path(readString(buffer));
+            StorageContainer source = table[(int) readVarLong(buffer)];
+            SnapshotTable.Pin pin = new SnapshotTable.Pin(node, path, location, readers, source, false);
+            // A copy still being made when the image was taken is taken to
+            // have been made, as when the journal is replayed
+            pin.holders = holders != null ? holders : new HashSet<>(Collections.singleton(source));
+            snapshots.restore(pin);
+        }
+        synchronized (snapshots)
+        {
+            snapshots.lastGeneration = Math.max(snapshots.lastGeneration, lastGeneration);
+            snapshots.lastRetained = Math.max(snapshots.lastRetained, lastRetained);
+        }
+    }
+
+    private static HashSet<Long> readReaders(ByteBuffer buffer)
+    {
+        HashSet<Long> readers = new HashSet<>();
+        long count = readVarLong(buffer);
+        for (long i = 0 ; i < count ; i++) readers.add(readVarLong(buffer));
+        return readers;
+    }
+
+    private static Set<StorageContainer> readHolders(ByteBuffer buffer, StorageContainer[] table)
+    {
+        long count = readVarLong(buffer) - 1;
+        if (count < 0) return null;
+        HashSet<StorageContainer> holders = new HashSet<>();
+        for (long i = 0 ; i < count ; i++) holders.add(table[(int) readVarLong(buffer)]);
+        return holders;
+    }
+
+    /** Writes a string as its length in bytes and its UTF-8 encoding. */
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[(int) readVarLong(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value)
+        throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+}
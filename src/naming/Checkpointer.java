@@ -0,0 +1,84 @@
+package naming;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a <code>Checkpoint</code> of the directory tree in the
+ * background, so that the journal replayed at startup stays short.
+ *
+ * <p>
+ * Each checkpoint rolls the journal over to a new segment first. Every record
+ * in the earlier segments has already been applied to the tree, so once the
+ * image is on disk those segments are deleted. A checkpoint is skipped when
+ * nothing has been appended to the journal since the previous one.
+ */
+public class Checkpointer
+{
+    public static final long DEFAULT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    File directory;
+    FileSystem fileSystem;
+    Journal journal;
+    ScheduledExecutorService executor;
+    long lastSequence;
+
+    Checkpointer(File directory, FileSystem fileSystem, Journal journal, long intervalMillis)
+    {
+        this.directory = directory;
+        this.fileSystem = fileSystem;
+        this.journal = journal;
+        this.lastSequence = journal.getCheckpointSequence();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(() -> {
+            try
+            {
+                this.checkpoint();
+            }
+            catch (Throwable t)
+            {
+                // The journal still holds everything; try again next time. An
+                // exception escaping the task would cancel the schedule.
+                t.printStackTrace();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a checkpoint now and deletes the journal segments it covers.
+     *
+     * @return <code>false</code> if the journal had not grown since the last
+     *         checkpoint, so none was written.
+     */
+    public synchronized boolean checkpoint()
+        throws IOException
+    {
+        if (this.journal.getLastSequence() == this.lastSequence) return false;
+        long sequence = this.journal.roll();
+        Checkpoint.write(this.directory, this.fileSystem, sequence);
+        this.journal.discardThrough(sequence);
+        this.lastSequence = sequence;
+        return true;
+    }
+
+    /** Stops taking checkpoints. A checkpoint being written is finished. */
+    public void shutdown()
+    {
+        this.executor.shutdown();
+        try
+        {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
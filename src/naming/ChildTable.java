@@ -0,0 +1,431 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NavigableSet;
+
+/**
+ * Children of a directory node, by name.
+ *
+ * <p>
+ * The table is an open-addressing hash table of the child nodes themselves,
+ * keyed by the name each node stores, so that a child costs one array slot
+ * instead of a map entry and a key object. Collisions are resolved by linear
+ * probing, and removals shift the following entries back instead of leaving
+ * markers behind. The table starts small, since most directories hold few
+ * entries, and doubles when it is three quarters full. The children are
+ * sorted by name only when a listing asks for them in order, and the sorted
+ * array is dropped on the next change.
+ *
+ * <p>
+ * Every method is synchronized on the table, as those of a
+ * <code>Hashtable</code> are, so callers can also hold the table's monitor
+ * to make several calls atomically.
+ *
+ * <p>
+ * The table also keeps what snapshots of the tree need of it, copy on write.
+ * When the table is about to change for the first time since the latest
+ * snapshot was taken, its contents are copied into a <code>Version</code>
+ * labelled with that snapshot's generation, and later changes go ahead in
+ * place. A snapshot reads the oldest version labelled at or after its own
+ * generation, or the live table if there is none, since the table has not
+ * changed since the snapshot was taken. Tables that do not change are never
+ * copied, and every node below them is shared with the live tree. The
+ * snapshots are found through the root's table.
+ */
+public class ChildTable
+{
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** Table shared by all files, which have no children. */
+    static final ChildTable EMPTY = new ChildTable(null);
+
+    FileNode owner;
+    FileNode[] slots;
+    int size = 0;
+    /** Copies kept for snapshots, newest first, or <code>null</code>. */
+    Version versions;
+    /** Generation of the latest snapshot for which the table's contents are
+        kept, or before which the table was created. */
+    long generation = 0;
+    /** Snapshots of the tree, on the root's table only. */
+    SnapshotTable snapshots;
+    /** Live children sorted by name, kept until the table next changes, or
+        <code>null</code>. */
+    private FileNode[] sorted;
+
+    ChildTable(FileNode owner)
+    {
+        this.owner = owner;
+    }
+
+    /** Returns the child with the given name, or <code>null</code>. */
+    public synchronized FileNode get(String name)
+    {
+        if (this.slots == null) return null;
+        int mask = this.slots.length - 1;
+        for (int i = index(name, mask) ; this.slots[i] != null ; i = (i + 1) & mask)
+        {
+            if (this.slots[i].name.equals(name)) return this.slots[i];
+        }
+        return null;
+    }
+
+    public synchronized boolean containsKey(String name)
+    {
+        return this.get(name) != null;
+    }
+
+    /**
+     * Adds a child, replacing any child with the same name, and makes the
+     * table's directory its parent.
+     *
+     * @return The child replaced, or <code>null</code>.
+     */
+    public synchronized FileNode put(FileNode child)
+    {
+        return this.insert(child, true);
+    }
+
+    /**
+     * Adds a child unless one with the same name is present.
+     *
+     * @return The child already present, or <code>null</code> if the new one
+     *         was added.
+     */
+    public synchronized FileNode putIfAbsent(FileNode child)
+    {
+        return this.insert(child, false);
+    }
+
+    private FileNode insert(FileNode child, boolean replace)
+    {
+        if (this.owner == null)
+            throw new UnsupportedOperationException("a file has no children");
+        if (this.slots == null)
+            this.slots = new FileNode[INITIAL_CAPACITY];
+        int mask = this.slots.length - 1;
+        int i = index(child.name, mask);
+        for ( ; this.slots[i] != null ; i = (i + 1) & mask)
+        {
+            if (this.slots[i].name.equals(child.name))
+            {
+                FileNode previous = this.slots[i];
+                if (replace)
+                {
+                    this.adopt(child, this.preserve());
+                    this.slots[i] = child;
+                    this.sorted = null;
+                }
+                return previous;
+            }
+        }
+        this.adopt(child, this.preserve());
+        this.slots[i] = child;
+        this.sorted = null;
+        this.size++;
+        if (this.size * 4 > this.slots.length * 3) this.resize(this.slots.length * 2);
+        return null;
+    }
+
+    /**
+     * Removes the child with the given name.
+     *
+     * @return The removed child, or <code>null</code> if there was none.
+     */
+    public synchronized FileNode remove(String name)
+    {
+        if (this.slots == null) return null;
+        int mask = this.slots.length - 1;
+        int i = index(name, mask);
+        while (this.slots[i] != null && !this.slots[i].name.equals(name))
+            i = (i + 1) & mask;
+        FileNode removed = this.slots[i];
+        if (removed == null) return null;
+        this.preserve();
+        this.slots[i] = null;
+        this.sorted = null;
+        this.size--;
+        // Move back the entries of the run that follows, unless they already
+        // sit between their home slot and the hole
+        for (int j = (i + 1) & mask ; this.slots[j] != null ; j = (j + 1) & mask)
+        {
+            int home = index(this.slots[j].name, mask);
+            if (((j - home) & mask) >= ((j - i) & mask))
+            {
+                this.slots[i] = this.slots[j];
+                this.slots[j] = null;
+                i = j;
+            }
+        }
+        if (this.size == 0) this.slots = null;
+        return removed;
+    }
+
+    public synchronized int size()
+    {
+        return this.size;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /** Returns a copy of the children, in no particular order. */
+    public synchronized ArrayList<FileNode> values()
+    {
+        ArrayList<FileNode> values = new ArrayList<>(this.size);
+        if (this.slots == null) return values;
+        for (FileNode child : this.slots)
+        {
+            if (child != null) values.add(child);
+        }
+        return values;
+    }
+
+    /** Returns the names of the children, in no particular order. */
+    public synchronized ArrayList<String> names()
+    {
+        ArrayList<String> names = new ArrayList<>(this.size);
+        if (this.slots == null) return names;
+        for (FileNode child : this.slots)
+        {
+            if (child != null) names.add(child.name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns up to <code>limit</code> children whose names sort after the
+     * given name, in name order. The children are sorted once and the sorted
+     * array kept until the table changes, so that paging through a directory
+     * that does not change costs one sort and then a binary search per page.
+     *
+     * @param after The name after which the page starts, or <code>null</code>
+     *              to start at the first child.
+     */
+    public synchronized ArrayList<FileNode> after(String after, int limit)
+    {
+        FileNode[] children = this.contents();
+        int start = 0;
+        if (after != null)
+        {
+            int low = 0;
+            int high = children.length;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (children[middle].name.compareTo(after) <= 0) low = middle + 1;
+                else high = middle;
+            }
+            start = low;
+        }
+        int end = (int) Math.min(children.length, (long) start + limit);
+        return new ArrayList<>(Arrays.asList(children).subList(start, end));
+    }
+
+    /** Makes the table's directory the parent of a child being added. A
+        directory created since the latest snapshot needs no copy for it. */
+    private void adopt(FileNode child, long latest)
+    {
+        if (child.parent == null && child.children != null)
+            child.children.generation = latest;
+        child.parent = this.owner;
+    }
+
+    /**
+     * Copies the contents of the table before it changes, if the latest
+     * snapshot has not had them copied yet, dropping the copies no snapshot
+     * reads any more.
+     *
+     * @return The generation of the latest snapshot, or <code>0</code> if
+     *         there is none.
+     */
+    private long preserve()
+    {
+        SnapshotTable snapshots = this.snapshotTable();
+        if (snapshots == null) return 0;
+        long latest = snapshots.latest;
+        if (latest <= this.generation) return latest;
+        Version older = prune(this.versions, snapshots.generations());
+        this.versions = new Version(latest, this.contents(), older);
+        this.generation = latest;
+        return latest;
+    }
+
+    /** Returns the snapshots of the tree the table is in, or
+        <code>null</code> if the table is not in a tree yet. */
+    private SnapshotTable snapshotTable()
+    {
+        FileNode top = this.owner;
+        while (top.parent != null) top = top.parent;
+        return top.children == null ? null : top.children.snapshots;
+    }
+
+    /** Returns the live children, sorted by name. The array is shared and
+        must not be changed. */
+    private FileNode[] contents()
+    {
+        if (this.sorted != null) return this.sorted;
+        FileNode[] children = new FileNode[this.size];
+        int count = 0;
+        if (this.slots != null)
+        {
+            for (FileNode child : this.slots)
+            {
+                if (child != null) children[count++] = child;
+            }
+        }
+        Arrays.sort(children, (a, b) -> a.name.compareTo(b.name));
+        this.sorted = children;
+        return children;
+    }
+
+    /** Returns the version a snapshot of the given generation reads, or
+        <code>null</code> if it reads the live table. */
+    private Version versionAt(long generation)
+    {
+        Version found = null;
+        for (Version version = this.versions ; version != null && version.generation >= generation ;
+             version = version.older)
+        {
+            found = version;
+        }
+        return found;
+    }
+
+    /** Returns the child with the given name in the snapshot of the given
+        generation, or <code>null</code>. */
+    synchronized FileNode getAt(String name, long generation)
+    {
+        Version version = this.versionAt(generation);
+        return version == null ? this.get(name) : version.get(name);
+    }
+
+    /** Returns the children in the snapshot of the given generation, sorted
+        by name. */
+    synchronized FileNode[] contentsAt(long generation)
+    {
+        Version version = this.versionAt(generation);
+        return version == null ? this.contents().clone() : version.children.clone();
+    }
+
+    /** Returns the names of the children in the snapshot of the given
+        generation, which may differ from the names they have now. */
+    synchronized String[] namesAt(long generation)
+    {
+        Version version = this.versionAt(generation);
+        if (version != null) return version.names.clone();
+        ArrayList<String> names = this.names();
+        return names.toArray(new String[names.size()]);
+    }
+
+    /** Returns <code>true</code> if a node is a child in the snapshot of the
+        given generation, under any name. */
+    synchronized boolean containsAt(FileNode child, long generation)
+    {
+        Version version = this.versionAt(generation);
+        if (version == null)
+        {
+            if (this.get(child.name) == child) return true;
+            for (FileNode node : this.values())
+            {
+                if (node == child) return true;
+            }
+            return false;
+        }
+        if (version.get(child.name) == child) return true;
+        for (FileNode node : version.children)
+        {
+            if (node == child) return true;
+        }
+        return false;
+    }
+
+    /** Returns the copies kept for snapshots, newest first. */
+    synchronized ArrayList<Version> versions()
+    {
+        ArrayList<Version> versions = new ArrayList<>();
+        for (Version version = this.versions ; version != null ; version = version.older) versions.add(version);
+        return versions;
+    }
+
+    /** Drops the copies no snapshot of the given generations reads. */
+    synchronized void prune(NavigableSet<Long> generations)
+    {
+        this.versions = prune(this.versions, generations);
+    }
+
+    /**
+     * Returns a chain of versions without those no snapshot reads. A version
+     * is read by the snapshots taken after the version below it and no later
+     * than its own generation.
+     */
+    private static Version prune(Version versions, NavigableSet<Long> generations)
+    {
+        if (versions == null) return null;
+        Version older = prune(versions.older, generations);
+        long after = versions.older == null ? 0 : versions.older.generation;
+        Long reader = generations.higher(after);
+        if (reader == null || reader > versions.generation) return older;
+        versions.older = older;
+        return versions;
+    }
+
+    private void resize(int capacity)
+    {
+        FileNode[] old = this.slots;
+        this.slots = new FileNode[capacity];
+        int mask = capacity - 1;
+        for (FileNode child : old)
+        {
+            if (child == null) continue;
+            int i = index(child.name, mask);
+            while (this.slots[i] != null) i = (i + 1) & mask;
+            this.slots[i] = child;
+        }
+    }
+
+    private static int index(String name, int mask)
+    {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /** Contents of a table as a snapshot saw them. */
+    static class Version
+    {
+        final long generation;
+        /** Children, sorted by name. */
+        final FileNode[] children;
+        /** Names the children had, in the same order. */
+        final String[] names;
+        Version older;
+
+        Version(long generation, FileNode[] children, Version older)
+        {
+            this.generation = generation;
+            this.children = children;
+            this.names = new String[children.length];
+            for (int i = 0 ; i < children.length ; i++) this.names[i] = children[i].name;
+            this.older = older;
+        }
+
+        /** Creates a version restored from a checkpoint, with the names the
+            children had. */
+        Version(long generation, FileNode[] children, String[] names, Version older)
+        {
+            this.generation = generation;
+            this.children = children;
+            this.names = names;
+            this.older = older;
+        }
+
+        FileNode get(String name)
+        {
+            int i = Arrays.binarySearch(this.names, name);
+            return i < 0 ? null : this.children[i];
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * One entry of a directory listing, with the attributes clients usually need
+ * next, so that they do not have to ask for each entry separately.
+ */
+public class DirectoryEntry
+    implements Serializable
+{
+    String name;
+    boolean directory;
+    long size;
+    int replicaCount;
+
+    DirectoryEntry(String name, boolean directory, long size, int replicaCount)
+    {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.replicaCount = replicaCount;
+    }
+
+    /** Returns the last component of the entry's path. */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public boolean isDirectory()
+    {
+        return this.directory;
+    }
+
+    /** Returns the size of a file in bytes, <code>0</code> for a directory,
+        or <code>-1</code> if the size could not be determined. */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    /** Returns the number of storage servers serving a file, or
+        <code>0</code> for a directory. */
+    public int getReplicaCount()
+    {
+        return this.replicaCount;
+    }
+
+    public String toString()
+    {
+        return "[DirectoryEntry| " + this.name + (this.directory ? "/" : "")
+            + " " + this.size + " bytes, " + this.replicaCount + " replicas]";
+    }
+}
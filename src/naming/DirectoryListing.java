@@ -0,0 +1,45 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * One page of a directory listing.
+ *
+ * <p>
+ * Entries are in name order. If the directory has more entries than fit in a
+ * page, <code>getCursor</code> returns the name of the last entry, to pass as
+ * <code>after</code> to the next call of <code>Service.listEntries</code>;
+ * otherwise it returns <code>null</code>.
+ */
+public class DirectoryListing
+    implements Serializable
+{
+    /** Largest number of entries the naming server returns in one page. */
+    public static final int MAX_ENTRIES = 4096;
+
+    DirectoryEntry[] entries;
+    String cursor;
+
+    DirectoryListing(DirectoryEntry[] entries, String cursor)
+    {
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+
+    public DirectoryEntry[] getEntries()
+    {
+        return this.entries;
+    }
+
+    /** Returns the cursor for the next page, or <code>null</code> if this is
+        the last page. */
+    public String getCursor()
+    {
+        return this.cursor;
+    }
+
+    public boolean hasMore()
+    {
+        return this.cursor != null;
+    }
+}
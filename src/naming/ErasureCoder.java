@@ -0,0 +1,413 @@
+package naming;
+
+import common.Path;
+import common.ReedSolomon;
+import rmi.RMIException;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Converts cold files between full replicas and Reed-Solomon fragments.
+ *
+ * <p>
+ * Encoding a file reads it from one of its replicas a chunk at a time, cuts
+ * each chunk into <code>dataFragments</code> pieces, computes
+ * <code>parityFragments</code> parity pieces, and writes every piece to its
+ * own storage server, all servers in parallel. The servers are the least
+ * loaded ones holding no copy of the file, since each fragment is stored
+ * under the file's own path. Once every fragment is written the file is
+ * switched to its layout and the full replicas are deleted, so that the file
+ * takes <code>(dataFragments + parityFragments) / dataFragments</code> times
+ * its size instead of one full size per replica, and survives the loss of
+ * any <code>parityFragments</code> servers.
+ *
+ * <p>
+ * A coded file is restored to a full replica when a client needs one, to
+ * write the file. Fragments lost with their servers are rebuilt on other
+ * servers by <code>repair</code>. Files are only encoded once encoding has
+ * been enabled, but coded files found in the journal are always restored and
+ * repaired. Work on one file is never done concurrently: it is serialized by
+ * a lock striped over the files.
+ */
+public class ErasureCoder
+{
+    public static final int DEFAULT_DATA_FRAGMENTS = 6;
+    public static final int DEFAULT_PARITY_FRAGMENTS = 3;
+    public static final int DEFAULT_THREADS = 16;
+    /** Bytes of each fragment coded at a time. */
+    static final int CHUNK_BYTES = 1 << 20;
+    /** Times a restore is tried again when the layout changes under it. */
+    static final int RESTORE_ATTEMPTS = 3;
+    static final int STRIPES = 64;
+
+    final FileSystem fileSystem;
+    /** Code new layouts are made with, or <code>null</code> while encoding
+        is disabled. */
+    volatile ReedSolomon encoding;
+    final ThreadPoolExecutor executor;
+    final Object[] stripes = new Object[STRIPES];
+    /** Copies and fragments left on servers that could not be reached to
+        delete them. */
+    final LongAdder failedDeletes = new LongAdder();
+
+    ErasureCoder(FileSystem fileSystem, int threads)
+    {
+        this.fileSystem = fileSystem;
+        for (int i = 0 ; i < STRIPES ; i++) this.stripes[i] = new Object();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "erasure-coder-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Starts encoding files into the given numbers of data and parity
+        fragments. */
+    void enable(int dataFragments, int parityFragments)
+    {
+        if (parityFragments < 1)
+            throw new IllegalArgumentException("at least one parity fragment needed");
+        this.encoding = new ReedSolomon(dataFragments, parityFragments);
+    }
+
+    boolean isEnabled()
+    {
+        return this.encoding != null;
+    }
+
+    private Object stripe(FileNode node)
+    {
+        return this.stripes[Math.floorMod(System.identityHashCode(node), STRIPES)];
+    }
+
+    /**
+     * Replaces the full replicas of a file with fragments. Nothing is done to
+     * a file that is empty, locked for writing or already coded, or if there
+     * are not enough servers to hold the fragments. The fragments are deleted
+     * again if the file is locked, written or deleted while they are made.
+     *
+     * @return <code>true</code> if the file was switched to fragments.
+     */
+    boolean encode(Path path)
+        throws IOException, RMIException
+    {
+        ReedSolomon code = this.encoding;
+        FileNode node = this.fileSystem.get(path);
+        if (code == null || !node.isFile()) return false;
+        synchronized (this.stripe(node))
+        {
+            ArrayList<StorageContainer> exclude;
+            StorageContainer source;
+            long version;
+            synchronized (node)
+            {
+                if (node.hasExclusiveLock() || this.fileSystem.getErasureLayout(node) != null
+                    || node.getStorageContainers().isEmpty())
+                {
+                    return false;
+                }
+                source = node.getStorageContainers().get(0);
+                exclude = new ArrayList<>(node.getStorageContainers());
+                exclude.addAll(node.getStaleContainers());
+                version = node.getVersion();
+            }
+            long size = this.fileSystem.resolveFileSize(node);
+            // Fragments are read and written with int offsets
+            if (size <= 0 || size / code.getDataShards() >= Integer.MAX_VALUE - CHUNK_BYTES) return false;
+
+            StorageContainer[] holders = new StorageContainer[code.getTotalShards()];
+            StorageRegistry registry = this.fileSystem.getStorageRegistry();
+            for (int i = 0 ; i < holders.length ; i++)
+            {
+                holders[i] = registry.leastLoaded(exclude, false);
+                if (holders[i] == null) return false;
+                exclude.add(holders[i]);
+            }
+            ErasureLayout layout = new ErasureLayout(code.getDataShards(), code.getParityShards(), size, holders);
+
+            boolean written = false;
+            try
+            {
+                this.writeFragments(path, source.getStorage(), layout, code);
+                written = true;
+            }
+            finally
+            {
+                if (!written) this.deleteQuietly(path, layout.getLiveHolders());
+            }
+            ArrayList<StorageContainer> removed = this.fileSystem.switchToErasure(path, node, version, layout);
+            if (removed == null)
+            {
+                this.deleteQuietly(path, layout.getLiveHolders());
+                return false;
+            }
+            // No client is sent to the replicas any more
+            this.deleteQuietly(path, removed);
+            return true;
+        }
+    }
+
+    /** Creates the fragments of a file on their servers and fills them from
+        a full replica, a chunk of each fragment at a time. */
+    private void writeFragments(Path path, Storage source, ErasureLayout layout, ReedSolomon code)
+        throws IOException, RMIException
+    {
+        ArrayList<Callable<Boolean>> creates = new ArrayList<>();
+        for (StorageContainer holder : layout.getLiveHolders())
+            creates.add(() -> holder.getCommand().create(path));
+        for (Boolean created : this.all(creates))
+        {
+            if (!created) throw new IOException("fragment already exists on storage server");
+        }
+
+        int fragmentSize = layout.getFragmentSize();
+        long fileSize = layout.getFileSize();
+        for (int offset = 0 ; offset < fragmentSize ; offset += CHUNK_BYTES)
+        {
+            int length = Math.min(CHUNK_BYTES, fragmentSize - offset);
+            byte[][] shards = new byte[layout.holders.length][length];
+            ArrayList<Callable<Void>> reads = new ArrayList<>();
+            for (int j = 0 ; j < layout.getDataFragments() ; j++)
+            {
+                long start = (long) j * fragmentSize + offset;
+                int available = (int) Math.max(0, Math.min(length, fileSize - start));
+                byte[] shard = shards[j];
+                // The part past the end of the file stays zero
+                if (available > 0)
+                {
+                    reads.add(() -> {
+                        System.arraycopy(source.read(path, start, available), 0, shard, 0, available);
+                        return null;
+                    });
+                }
+            }
+            this.all(reads);
+            code.encode(shards, 0, length);
+            this.writeShards(path, layout.holders, shards, offset);
+        }
+    }
+
+    /**
+     * Restores a coded file to a single full replica, written to the least
+     * loaded server holding none of its fragments, and deletes the
+     * fragments. A file that already has a replica is left as it is.
+     *
+     * @return The server holding the full replica.
+     * @throws FileNotFoundException If the file is not in the tree, has no
+     *                               replica and is not coded, or has lost too
+     *                               many fragments.
+     */
+    StorageContainer restore(Path path)
+        throws IOException, RMIException
+    {
+        FileNode node = this.fileSystem.get(path);
+        for (int attempt = 0 ; attempt < RESTORE_ATTEMPTS ; attempt++)
+        {
+            synchronized (this.stripe(node))
+            {
+                ArrayList<StorageContainer> replicas = node.getStorageContainers();
+                if (!replicas.isEmpty()) return replicas.get(0);
+                ErasureLayout layout = this.fileSystem.getErasureLayout(node);
+                if (layout == null) throw new FileNotFoundException("no live replica of file");
+                StorageContainer target = this.fileSystem.getStorageRegistry().leastLoaded(
+                    layout.getLiveHolders(), true);
+                if (target == null) throw new FileNotFoundException("no storage server to restore file to");
+
+                boolean written = false;
+                try
+                {
+                    this.writeFile(path, layout, target);
+                    written = true;
+                }
+                finally
+                {
+                    if (!written) this.deleteQuietly(path, List.of(target));
+                }
+                if (this.fileSystem.switchToReplica(path, node, layout, target))
+                {
+                    // No client is sent to the fragments any more
+                    this.deleteQuietly(path, layout.getLiveHolders());
+                    return target;
+                }
+                // The layout changed, as when a holder failed: start over
+                this.deleteQuietly(path, List.of(target));
+            }
+        }
+        throw new FileNotFoundException("coded file changed while being restored");
+    }
+
+    /** Writes a full copy of a coded file to <code>target</code>. */
+    private void writeFile(Path path, ErasureLayout layout, StorageContainer target)
+        throws IOException, RMIException
+    {
+        if (!target.getCommand().create(path))
+            throw new IOException("file already exists on storage server");
+        FragmentReader reader = this.reader(layout);
+        Storage storage = target.getStorage();
+        long fileSize = layout.getFileSize();
+        for (long offset = 0 ; offset < fileSize ; offset += CHUNK_BYTES)
+        {
+            int length = (int) Math.min(CHUNK_BYTES, fileSize - offset);
+            storage.write(path, offset, reader.read(path, offset, length));
+        }
+    }
+
+    /**
+     * Rebuilds the lost fragments of a coded file on servers holding none of
+     * its fragments. Fragments for which there is no such server stay lost.
+     *
+     * @return <code>true</code> if any fragment was rebuilt.
+     */
+    boolean repair(Path path)
+        throws IOException, RMIException
+    {
+        FileNode node = this.fileSystem.get(path);
+        synchronized (this.stripe(node))
+        {
+            ErasureLayout layout = this.fileSystem.getErasureLayout(node);
+            if (layout == null || layout.getLostCount() == 0) return false;
+            ArrayList<StorageContainer> exclude = layout.getLiveHolders();
+            StorageContainer[] rebuilt = new StorageContainer[layout.holders.length];
+            ErasureLayout updated = layout;
+            for (int i = 0 ; i < rebuilt.length ; i++)
+            {
+                if (layout.getHolder(i) != null) continue;
+                rebuilt[i] = this.fileSystem.getStorageRegistry().leastLoaded(exclude, false);
+                if (rebuilt[i] == null) break;
+                exclude.add(rebuilt[i]);
+                updated = updated.with(i, rebuilt[i]);
+            }
+            if (updated == layout) return false;
+            ArrayList<StorageContainer> targets = new ArrayList<>(updated.getLiveHolders());
+            targets.removeAll(layout.getLiveHolders());
+
+            boolean written = false;
+            try
+            {
+                ArrayList<Callable<Boolean>> creates = new ArrayList<>();
+                for (StorageContainer target : targets)
+                    creates.add(() -> target.getCommand().create(path));
+                for (Boolean created : this.all(creates))
+                {
+                    if (!created) throw new IOException("fragment already exists on storage server");
+                }
+                FragmentReader reader = this.reader(layout);
+                int fragmentSize = layout.getFragmentSize();
+                for (int offset = 0 ; offset < fragmentSize ; offset += CHUNK_BYTES)
+                {
+                    int length = Math.min(CHUNK_BYTES, fragmentSize - offset);
+                    this.writeShards(path, rebuilt, reader.readFragments(path, offset, length), offset);
+                }
+                written = true;
+            }
+            finally
+            {
+                if (!written) this.deleteQuietly(path, targets);
+            }
+            if (this.fileSystem.replaceErasureLayout(path, node, layout, updated)) return true;
+            this.deleteQuietly(path, targets);
+            return false;
+        }
+    }
+
+    private FragmentReader reader(ErasureLayout layout)
+    {
+        Storage[] holders = new Storage[layout.holders.length];
+        for (int i = 0 ; i < holders.length ; i++)
+        {
+            if (layout.getHolder(i) != null) holders[i] = layout.getHolder(i).getStorage();
+        }
+        return new FragmentReader(holders, layout.getDataFragments(), layout.getParityFragments(),
+                                  layout.getFileSize(), this.executor);
+    }
+
+    /** Writes each shard to its server, skipping servers given as
+        <code>null</code>, all in parallel. */
+    private void writeShards(Path path, StorageContainer[] holders, byte[][] shards, int offset)
+        throws IOException, RMIException
+    {
+        ArrayList<Callable<Void>> writes = new ArrayList<>();
+        for (int i = 0 ; i < holders.length ; i++)
+        {
+            StorageContainer holder = holders[i];
+            byte[] shard = shards[i];
+            if (holder == null) continue;
+            writes.add(() -> {
+                holder.getStorage().write(path, offset, shard);
+                return null;
+            });
+        }
+        this.all(writes);
+    }
+
+    /** Deletes a file from each server. Servers that cannot be reached are
+        counted in <code>failedDeletes</code>: they delete their copy as a
+        duplicate when they next register. */
+    private void deleteQuietly(Path path, List<StorageContainer> storageContainers)
+    {
+        for (StorageContainer storageContainer : storageContainers)
+        {
+            try
+            {
+                storageContainer.getCommand().delete(path);
+            }
+            catch (RMIException e)
+            {
+                this.failedDeletes.increment();
+            }
+        }
+    }
+
+    /** Makes the calls in parallel and waits for all of them, rethrowing the
+        first failure. */
+    private <T> ArrayList<T> all(List<Callable<T>> calls)
+        throws IOException, RMIException
+    {
+        ArrayList<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> call : calls) futures.add(this.executor.submit(call));
+        ArrayList<T> results = new ArrayList<>();
+        Throwable failure = null;
+        for (Future<T> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                for (Future<T> pending : futures) pending.cancel(true);
+                throw new InterruptedIOException("interrupted while calling storage servers");
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null) failure = e.getCause();
+            }
+        }
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RMIException) throw (RMIException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure != null) throw new IOException(failure);
+        return results;
+    }
+
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,127 @@
+package naming;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Placement of an erasure-coded file: the storage server holding each of its
+ * fragments.
+ *
+ * <p>
+ * The file is cut into <code>dataFragments</code> contiguous pieces of
+ * <code>getFragmentSize()</code> bytes, the last one padded with zeros, and
+ * <code>parityFragments</code> Reed-Solomon parity fragments of the same size
+ * are added. Each fragment is stored under the file's own path on its own
+ * storage server. A fragment whose server has failed has no holder until it
+ * is rebuilt elsewhere. Layouts are immutable; a change of holder makes a new
+ * layout.
+ */
+public class ErasureLayout
+    implements Serializable
+{
+    private static final long serialVersionUID = -2882685222557434474L;
+
+    final int dataFragments;
+    final int parityFragments;
+    final long fileSize;
+    final StorageContainer[] holders;
+
+    ErasureLayout(int dataFragments, int parityFragments, long fileSize, StorageContainer[] holders)
+    {
+        if (holders.length != dataFragments + parityFragments)
+            throw new IllegalArgumentException("one holder needed per fragment");
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.fileSize = fileSize;
+        this.holders = holders.clone();
+    }
+
+    public int getDataFragments()
+    {
+        return this.dataFragments;
+    }
+
+    public int getParityFragments()
+    {
+        return this.parityFragments;
+    }
+
+    public long getFileSize()
+    {
+        return this.fileSize;
+    }
+
+    public int getFragmentSize()
+    {
+        return fragmentSize(this.fileSize, this.dataFragments);
+    }
+
+    /** Returns the server holding a fragment, or <code>null</code> if the
+        fragment is lost. */
+    public StorageContainer getHolder(int index)
+    {
+        return this.holders[index];
+    }
+
+    /** Returns the servers holding fragments, in fragment order, without the
+        lost ones. */
+    ArrayList<StorageContainer> getLiveHolders()
+    {
+        ArrayList<StorageContainer> live = new ArrayList<>();
+        for (StorageContainer holder : this.holders)
+        {
+            if (holder != null) live.add(holder);
+        }
+        return live;
+    }
+
+    int getLostCount()
+    {
+        return this.holders.length - this.getLiveHolders().size();
+    }
+
+    boolean isHolder(StorageContainer storageContainer)
+    {
+        return Arrays.asList(this.holders).contains(storageContainer);
+    }
+
+    /** Returns the layout with the fragment held by
+        <code>storageContainer</code> lost, or this layout if it holds none. */
+    ErasureLayout without(StorageContainer storageContainer)
+    {
+        StorageContainer[] holders = this.holders.clone();
+        boolean changed = false;
+        for (int i = 0 ; i < holders.length ; i++)
+        {
+            if (storageContainer.equals(holders[i]))
+            {
+                holders[i] = null;
+                changed = true;
+            }
+        }
+        return changed ? new ErasureLayout(this.dataFragments, this.parityFragments, this.fileSize, holders) : this;
+    }
+
+    /** Returns the layout with fragment <code>index</code> held by
+        <code>storageContainer</code>. */
+    ErasureLayout with(int index, StorageContainer storageContainer)
+    {
+        StorageContainer[] holders = this.holders.clone();
+        holders[index] = storageContainer;
+        return new ErasureLayout(this.dataFragments, this.parityFragments, this.fileSize, holders);
+    }
+
+    /** Returns the size of each fragment of a file of the given size. */
+    static int fragmentSize(long fileSize, int dataFragments)
+    {
+        return (int) ((fileSize + dataFragments - 1) / dataFragments);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[ErasureLayout| " + this.dataFragments + "+" + this.parityFragments + ", "
+            + this.fileSize + " bytes, " + this.getLostCount() + " lost]";
+    }
+}
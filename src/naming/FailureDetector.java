@@ -0,0 +1,136 @@
+package naming;
+
+import java.util.*;
+
+/**
+ * Accrual failure detector for storage servers.
+ *
+ * <p>
+ * Instead of declaring a server dead after a fixed timeout, the detector keeps
+ * the recent intervals between the server's heartbeats and expresses the time
+ * since the last one as a suspicion level <i>phi</i>: the negative base-10
+ * logarithm of the probability that a heartbeat would still arrive this late,
+ * were the intervals normally distributed with the observed mean and standard
+ * deviation. A phi of 8 thus means odds of about one in a hundred million that
+ * the server is merely slow. Servers on jittery networks are automatically
+ * given more slack than servers whose heartbeats arrive like clockwork.
+ *
+ * <p>
+ * An acceptable pause is added to the mean interval, so that a garbage
+ * collection or a burst of disk activity on the server does not get it
+ * declared dead. Servers that have never sent a heartbeat are not watched.
+ */
+public class FailureDetector
+{
+    public static final double DEFAULT_THRESHOLD = 8.0;
+    public static final int DEFAULT_WINDOW = 100;
+    public static final long DEFAULT_MIN_STD_DEVIATION_MILLIS = 100;
+    public static final long DEFAULT_ACCEPTABLE_PAUSE_MILLIS = 3 * 1000;
+
+    double threshold;
+    int window;
+    long minStdDeviationMillis;
+    long acceptablePauseMillis;
+    HashMap<StorageContainer, History> histories = new HashMap<>();
+
+    /** Heartbeat arrival history of one server. */
+    static class History
+    {
+        ArrayDeque<Long> intervals = new ArrayDeque<>();
+        double sum = 0;
+        double squares = 0;
+        long last;
+
+        void add(long interval, int window)
+        {
+            this.intervals.addLast(interval);
+            this.sum += interval;
+            this.squares += (double) interval * interval;
+            if (this.intervals.size() > window)
+            {
+                long dropped = this.intervals.removeFirst();
+                this.sum -= dropped;
+                this.squares -= (double) dropped * dropped;
+            }
+        }
+    }
+
+    public FailureDetector()
+    {
+        this(DEFAULT_THRESHOLD, DEFAULT_WINDOW, DEFAULT_MIN_STD_DEVIATION_MILLIS,
+             DEFAULT_ACCEPTABLE_PAUSE_MILLIS);
+    }
+
+    public FailureDetector(double threshold, int window, long minStdDeviationMillis,
+                           long acceptablePauseMillis)
+    {
+        if (threshold <= 0 || window <= 0 || minStdDeviationMillis <= 0 || acceptablePauseMillis < 0)
+            throw new IllegalArgumentException("failure detector parameters must be positive");
+        this.threshold = threshold;
+        this.window = window;
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+    }
+
+    /**
+     * Records a heartbeat. The first heartbeat of a server seeds its history
+     * with the interval the server announces, so that it is judged sensibly
+     * before any interval has been observed.
+     */
+    public synchronized void heartbeat(StorageContainer storageContainer, long now,
+                                       long expectedIntervalMillis)
+    {
+        History history = this.histories.get(storageContainer);
+        if (history == null)
+        {
+            history = new History();
+            long interval = Math.max(1, expectedIntervalMillis);
+            history.add(interval - interval / 4, this.window);
+            history.add(interval + interval / 4, this.window);
+            history.last = now;
+            this.histories.put(storageContainer, history);
+            return;
+        }
+        history.add(Math.max(0, now - history.last), this.window);
+        history.last = now;
+    }
+
+    /** Returns the suspicion level of a server, or <code>0</code> if it has
+        never sent a heartbeat. */
+    public synchronized double phi(StorageContainer storageContainer, long now)
+    {
+        History history = this.histories.get(storageContainer);
+        if (history == null) return 0;
+        int count = history.intervals.size();
+        double mean = history.sum / count;
+        double variance = Math.max(0, history.squares / count - mean * mean);
+        double deviation = Math.max(Math.sqrt(variance), this.minStdDeviationMillis);
+        double elapsed = now - history.last;
+        // Logistic approximation of the normal tail, as used by Hayashibara
+        // et al. and by Akka, which stays finite far out in the tail
+        double y = (elapsed - mean - this.acceptablePauseMillis) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0)
+            return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /** Returns the servers whose suspicion level has reached the
+        threshold. */
+    public synchronized ArrayList<StorageContainer> suspects(long now)
+    {
+        ArrayList<StorageContainer> suspects = new ArrayList<>();
+        for (StorageContainer storageContainer : this.histories.keySet())
+        {
+            if (this.phi(storageContainer, now) >= this.threshold)
+                suspects.add(storageContainer);
+        }
+        return suspects;
+    }
+
+    /** Stops watching a server. */
+    public synchronized void remove(StorageContainer storageContainer)
+    {
+        this.histories.remove(storageContainer);
+    }
+}
@@ -0,0 +1,291 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Client side of a federated namespace.
+ *
+ * <p>
+ * Calls are sent straight to the naming server owning their path, as given by
+ * a <code>MountTable</code>. Batches are split by owner, sent to each owner in
+ * turn, and their results put back in the order of the original batch. Locks
+ * need no special handling here: the owner of a mounted subtree locks its
+ * mount point in the enclosing subtree itself.
+ */
+public class FederatedService
+    implements Service
+{
+    final MountTable mountTable;
+
+    public FederatedService(MountTable mountTable)
+    {
+        if (mountTable == null) throw new NullPointerException("mountTable is null");
+        this.mountTable = mountTable;
+    }
+
+    private Service owner(Path path)
+    {
+        if (path == null) throw new NullPointerException("path is null");
+        return this.mountTable.serviceFor(path);
+    }
+
+    @Override
+    public void lock(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        this.owner(path).lock(path, exclusive);
+    }
+
+    @Override
+    public void unlock(Path path, boolean exclusive)
+        throws RMIException
+    {
+        this.owner(path).unlock(path, exclusive);
+    }
+
+    @Override
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(path).isDirectory(path);
+    }
+
+    @Override
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(directory).list(directory);
+    }
+
+    @Override
+    public DirectoryListing listEntries(Path path, String after, int limit)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(path).listEntries(path, after, limit);
+    }
+
+    @Override
+    public boolean createFile(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(file).createFile(file);
+    }
+
+    @Override
+    public boolean createDirectory(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(directory).createDirectory(directory);
+    }
+
+    @Override
+    public boolean delete(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(path).delete(path);
+    }
+
+    /** Renames within one subtree; the owner rejects a target in another. */
+    @Override
+    public boolean rename(Path source, Path target)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(source).rename(source, target);
+    }
+
+    @Override
+    public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+        throws RMIException
+    {
+        if (paths == null || directories == null)
+            throw new NullPointerException("paths or directories is null");
+        if (paths.length != directories.length)
+            throw new IllegalArgumentException("paths and directories differ in length");
+        BatchStatus[] results = new BatchStatus[paths.length];
+        for (Map.Entry<InetSocketAddress, ArrayList<Integer>> group : this.groupByOwner(paths).entrySet())
+        {
+            ArrayList<Integer> indices = group.getValue();
+            Path[] ownedPaths = new Path[indices.size()];
+            boolean[] ownedDirectories = new boolean[indices.size()];
+            for (int i = 0 ; i < ownedPaths.length ; i++)
+            {
+                ownedPaths[i] = paths[indices.get(i)];
+                ownedDirectories[i] = directories[indices.get(i)];
+            }
+            BatchStatus[] ownedResults = this.mountTable.service(group.getKey())
+                .createAll(ownedPaths, ownedDirectories);
+            for (int i = 0 ; i < ownedResults.length ; i++)
+                results[indices.get(i)] = ownedResults[i];
+        }
+        return results;
+    }
+
+    @Override
+    public BatchStatus[] deleteAll(Path[] paths)
+        throws RMIException
+    {
+        if (paths == null) throw new NullPointerException("paths is null");
+        BatchStatus[] results = new BatchStatus[paths.length];
+        for (Map.Entry<InetSocketAddress, ArrayList<Integer>> group : this.groupByOwner(paths).entrySet())
+        {
+            ArrayList<Integer> indices = group.getValue();
+            Path[] ownedPaths = new Path[indices.size()];
+            for (int i = 0 ; i < ownedPaths.length ; i++)
+                ownedPaths[i] = paths[indices.get(i)];
+            BatchStatus[] ownedResults = this.mountTable.service(group.getKey()).deleteAll(ownedPaths);
+            for (int i = 0 ; i < ownedResults.length ; i++)
+                results[indices.get(i)] = ownedResults[i];
+        }
+        return results;
+    }
+
+    /** Returns the indices of the paths owned by each naming server, owners
+        in the order their first path appears. */
+    private LinkedHashMap<InetSocketAddress, ArrayList<Integer>> groupByOwner(Path[] paths)
+    {
+        LinkedHashMap<InetSocketAddress, ArrayList<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0 ; i < paths.length ; i++)
+        {
+            if (paths[i] == null) throw new NullPointerException("path is null");
+            groups.computeIfAbsent(this.mountTable.ownerOf(paths[i]), k -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    @Override
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(file).getStorage(file);
+    }
+
+    @Override
+    public Replica[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(file).getReplicas(file);
+    }
+
+    @Override
+    public MetadataLease lease(Path path, CacheClient client)
+        throws RMIException
+    {
+        return this.owner(path).lease(path, client);
+    }
+
+    @Override
+    public WatchBatch watch(Path path, boolean subtree, long sequence, int limit, long waitMillis)
+        throws RMIException
+    {
+        return this.owner(path).watch(path, subtree, sequence, limit, waitMillis);
+    }
+
+    @Override
+    public LockReport getLockReport(Path prefix, int limit)
+        throws RMIException
+    {
+        return this.owner(prefix).getLockReport(prefix, limit);
+    }
+
+    /** Returns the client service addresses of the naming servers owning
+        some part of the namespace, the owner of the root first. */
+    private ArrayList<InetSocketAddress> owners()
+    {
+        LinkedHashSet<InetSocketAddress> addresses = new LinkedHashSet<>();
+        addresses.add(this.mountTable.ownerOf(new Path("/")));
+        for (Path prefix : this.mountTable.prefixes()) addresses.add(this.mountTable.ownerOf(prefix));
+        return new ArrayList<>(addresses);
+    }
+
+    // Snapshots are taken and deleted by every owner, each of its own
+    // partition, under the same name. A snapshot is taken by all owners or by
+    // none: if one owner already has the name, or cannot be reached, the
+    // snapshot is deleted again from the owners that took it. If that fails
+    // too, the exception names the partitions left holding it.
+    @Override
+    public boolean createSnapshot(String name)
+        throws RMIException
+    {
+        ArrayList<InetSocketAddress> owners = this.owners();
+        ArrayList<InetSocketAddress> taken = new ArrayList<>();
+        RMIException failure = null;
+        for (InetSocketAddress address : owners)
+        {
+            try
+            {
+                if (!this.mountTable.service(address).createSnapshot(name)) break;
+            }
+            catch (RMIException e)
+            {
+                failure = e;
+                break;
+            }
+            taken.add(address);
+        }
+
+        if (taken.size() == owners.size()) return true;
+
+        ArrayList<Path> left = new ArrayList<>();
+        for (InetSocketAddress address : taken)
+        {
+            try
+            {
+                this.mountTable.service(address).deleteSnapshot(name);
+            }
+            catch (RMIException e)
+            {
+                if (failure == null) failure = e;
+                left.addAll(this.mountTable.prefixesOf(address));
+            }
+        }
+
+        if (!left.isEmpty())
+        {
+            throw new RMIException("snapshot " + name + " only partly taken, and left on the partitions at " + left,
+                                   failure);
+        }
+        if (failure != null) throw failure;
+        return false;
+    }
+
+    @Override
+    public boolean deleteSnapshot(String name)
+        throws RMIException
+    {
+        boolean deleted = false;
+        for (InetSocketAddress address : this.owners())
+        {
+            deleted = this.mountTable.service(address).deleteSnapshot(name) || deleted;
+        }
+        return deleted;
+    }
+
+    @Override
+    public String[] listSnapshots()
+        throws RMIException
+    {
+        return this.owner(new Path("/")).listSnapshots();
+    }
+
+    @Override
+    public SnapshotEntry readSnapshot(String name, Path path)
+        throws RMIException, FileNotFoundException
+    {
+        return this.owner(path).readSnapshot(name, path);
+    }
+
+    @Override
+    public MountTable getMountTable()
+    {
+        return this.mountTable;
+    }
+}
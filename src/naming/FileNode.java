@@ -6,46 +6,141 @@ import storage.Command;
 import storage.Storage;
 
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by anthonyaltieri on 2/24/17.
+ *
+ * <p>
+ * The namespace may hold tens of millions of nodes, so a node keeps only what
+ * it needs at rest. It stores its own name and a link to its parent, from
+ * which its path is rebuilt on demand. Its replica list is interned and
+ * shared with every other node on the same servers. Directories keep their
+ * children in a compact <code>ChildTable</code>, and files have none. The
+ * mutex, wait queue and lock counts are held in a <code>LockState</code> that
+ * exists only while the node is locked or being locked.
  */
 public class FileNode
 {
-    Path path;
-    ArrayList<StorageContainer> storageContainers = new ArrayList<>();
+    /** Last component of the node's path, or <code>/</code> for the root. */
+    String name;
     FileNode parent;
+    volatile ArrayList<StorageContainer> storageContainers = ReplicaSets.EMPTY;
     Type type;
-    Status status = Status.OPEN;
-    Hashtable<Path, FileNode> children = new Hashtable<>();
-    Lock lock = new ReentrantLock(true);
-    Condition inUse = lock.newCondition();
-    Queue<Status> waitQueue = new LinkedList<>();
-    public Stack<Status> activeLocks = new Stack<>();
-    int sharedLocks = 0;
-    int exclusiveLocks = 0;
-    int numberReads = 0;
+    ChildTable children;
+    volatile LockState lockState;
+    AccessCounter accessCounter;
+    long version = 0;
+    ArrayList<StorageContainer> staleContainers;
     long fileSize;
+    volatile boolean fileSizeStale = false;
+
+    /**
+     * Lock bookkeeping of a node. It is created when the node's mutex is first
+     * taken, and dropped when the mutex is released with the node unlocked and
+     * nobody waiting.
+     */
+    static class LockState
+    {
+        /** Guards the fields below for a few instructions at a time. The
+            order in which locks are granted is that of the wait queue, which
+            arrivals cannot pass, so the mutex need not be fair; a fair mutex
+            would hand off on every one of these short sections. */
+        ReentrantLock mutex = new ReentrantLock();
+        Status status = Status.OPEN;
+        ArrayDeque<LockWaiter> waitQueue;
+        int sharedLocks = 0;
+        int exclusiveLocks = 0;
+        /** Time at which a request sampled by the lock profiler was granted,
+            or <code>0</code>. */
+        long sampledAt = 0;
+
+        boolean isIdle()
+        {
+            return this.status == Status.OPEN && (this.waitQueue == null || this.waitQueue.isEmpty());
+        }
+    }
 
     FileNode(Path path, Storage storage, Command command, Type type)
     {
-        this.path = path;
-        storageContainers.add(new StorageContainer(storage, command));
+        this(path, new StorageContainer(storage, command), type);
+    }
+
+    /** Creates a node stored on one storage server. */
+    FileNode(Path path, StorageContainer storageContainer, Type type)
+    {
+        this(path, type);
+        this.storageContainers = ReplicaSets.of(storageContainer);
+    }
+
+    /** Creates a node that is not yet stored on any storage server. */
+    FileNode(Path path, Type type)
+    {
+        this(path.toString().equals("/") ? "/" : path.last(), type);
+    }
+
+    /** Creates a node with the given name that is not yet stored on any
+        storage server. */
+    FileNode(String name, Type type)
+    {
+        this.name = name;
         this.type = type;
+        if (type != Type.FILE) this.children = new ChildTable(this);
+    }
+
+    public long getFileSize()
+    {
+        return this.fileSize;
+    }
+
+    public void setFileSize(long fileSize)
+    {
         this.fileSize = fileSize;
+        this.fileSizeStale = false;
+    }
+
+    /** Records that the file may have been written since its size was
+        last learned. */
+    public void markFileSizeStale()
+    {
+        this.fileSizeStale = true;
+    }
+
+    /** Returns <code>true</code> if the recorded size is the file's current
+        size. */
+    public boolean isFileSizeKnown()
+    {
+        return !this.fileSizeStale && this.fileSize >= 0;
     }
 
+    /** Returns the last component of the node's path, or <code>/</code> for
+        the root. */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public FileNode getParent()
+    {
+        return this.parent;
+    }
+
+    /** Returns the node's path, rebuilt from the names of the node and its
+        ancestors. A detached node keeps the path it had. */
     public Path getPath()
     {
-        return this.path;
+        if (this.parent == null) return new Path(this.name.equals("/") ? "/" : "/" + this.name);
+        ArrayDeque<String> names = new ArrayDeque<>();
+        for (FileNode node = this ; node.parent != null ; node = node.parent)
+            names.push(node.name);
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) builder.append('/').append(name);
+        return new Path(builder.toString());
     }
 
     private StorageContainer getFirstStorageContainer()
     {
-       return this.storageContainers.get(0);
+       return this.storageContainers.isEmpty() ? null : this.storageContainers.get(0);
     }
 
     public boolean hasStorageContainer()
@@ -53,38 +148,44 @@ public class FileNode
         return !this.storageContainers.isEmpty();
     }
 
+    /** Returns the servers holding current replicas. The list is shared with
+        other nodes and must not be modified; use
+        <code>setStorageContainers</code> instead. */
     public ArrayList<StorageContainer> getStorageContainers()
     {
         return this.storageContainers;
     }
 
+    /** Returns the storage server holding the first replica, or
+        <code>null</code> if no replica is left. */
     public Storage getStorage()
     {
-        return getFirstStorageContainer().getStorage();
+        StorageContainer first = getFirstStorageContainer();
+        return first == null ? null : first.getStorage();
     }
 
     public Command getCommand()
     {
-        return getFirstStorageContainer().getCommand();
+        StorageContainer first = getFirstStorageContainer();
+        return first == null ? null : first.getCommand();
     }
 
-    public Hashtable<Path, FileNode> getChildren()
+    /** Returns the children of a directory. Files share an empty table that
+        cannot be added to. */
+    public ChildTable getChildren()
     {
-        return this.children;
-    }
-    public Status getStatus()
-    {
-        return this.status;
+        return this.children == null ? ChildTable.EMPTY : this.children;
     }
 
-    public void setStatus(Status status)
+    public Status getStatus()
     {
-        this.status = status;
+        LockState state = this.lockState;
+        return state == null ? Status.OPEN : state.status;
     }
 
-    public void addChild(Path path, FileNode fileNode)
+    public void addChild(FileNode fileNode)
     {
-        this.children.put(path, fileNode);
+        this.getChildren().put(fileNode);
     }
 
     public boolean isDirectory()
@@ -97,81 +198,208 @@ public class FileNode
         return this.type == Type.FILE;
     }
 
+    /**
+     * Takes the node mutex, creating the node's lock state if it has none.
+     * A thread that was waiting for the mutex of a state that has since been
+     * dropped tries again with the current one.
+     */
     public void lock()
     {
-        this.lock.lock();
+        while (true)
+        {
+            LockState state = this.lockState;
+            if (state == null)
+            {
+                synchronized (this)
+                {
+                    if (this.lockState == null) this.lockState = new LockState();
+                    state = this.lockState;
+                }
+            }
+            state.mutex.lock();
+            if (this.lockState == state) return;
+            state.mutex.unlock();
+        }
     }
 
+    /** Releases the node mutex, dropping the lock state if the node is
+        neither locked nor waited for. */
     public void unlock()
     {
-        this.lock.unlock();
-    }
-
-    public Condition getInUse()
-    {
-        return this.inUse;
-    }
-    
-    public void addSharedLock()
-    {
-        this.sharedLocks += 1;
-    }
-
-    public void removeSharedLock()
-    {
-        this.sharedLocks -= 1;
+        LockState state = this.lockState;
+        if (state.mutex.getHoldCount() == 1 && state.isIdle())
+            this.lockState = null;
+        state.mutex.unlock();
     }
 
     public int getSharedLocks()
     {
-        return this.sharedLocks;
+        LockState state = this.lockState;
+        return state == null ? 0 : state.sharedLocks;
     }
 
-    public void addExclusiveLock()
+    public String getLockStatus()
     {
-        this.exclusiveLocks += 1;
+        LockState state = this.lockState;
+        int exclusive = state == null ? 0 : state.exclusiveLocks;
+        int shared = state == null ? 0 : state.sharedLocks;
+        return "NumExclusive: " + exclusive + " | NumShared: " + shared;
+    }
+
+    /**
+     * Attempts to take the lock without queueing. A request is only granted
+     * immediately when nobody is queued ahead of it, so that arrivals cannot
+     * barge past parked waiters. Must be called with the node mutex held.
+     */
+    public boolean tryGrant(Status status)
+    {
+        LockState state = this.lockState;
+        if (state.waitQueue != null && !state.waitQueue.isEmpty()) return false;
+        if (status == Status.EXCLUSIVE && state.status != Status.OPEN) return false;
+        if (status == Status.SHARED && state.status == Status.EXCLUSIVE) return false;
+        this.grant(status);
+        return true;
+    }
+
+    /**
+     * Queues the calling thread behind the current waiters. The returned waiter
+     * is parked with <code>LockWaiter.await</code> after the node mutex has
+     * been released. Must be called with the node mutex held.
+     */
+    public LockWaiter enqueue(Status status)
+    {
+        LockState state = this.lockState;
+        LockWaiter waiter = new LockWaiter(status, Thread.currentThread());
+        if (state.waitQueue == null) state.waitQueue = new ArrayDeque<>(4);
+        state.waitQueue.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * Withdraws a waiter whose thread was interrupted. If the lock had already
+     * been handed to it, the lock is released again. Must be called with the
+     * node mutex held.
+     */
+    public void cancel(LockWaiter waiter)
+    {
+        if (waiter.isGranted())
+        {
+            this.release(waiter.getStatus());
+        }
+        else
+        {
+            this.lockState.waitQueue.remove(waiter);
+            this.admitWaiters();
+        }
     }
 
-    public void removeExclusiveLock()
+    /**
+     * Releases one hold of the lock and hands it to the waiters at the head of
+     * the queue. Must be called with the node mutex held.
+     */
+    public void release(Status status)
     {
-        this.exclusiveLocks -= 1;
+        LockState state = this.lockState;
+        if (status == Status.EXCLUSIVE)
+        {
+            state.exclusiveLocks -= 1;
+            state.status = Status.OPEN;
+        }
+        else
+        {
+            state.sharedLocks -= 1;
+            if (state.sharedLocks == 0)
+                state.status = Status.OPEN;
+        }
+        this.admitWaiters();
     }
 
-    public String getLockStatus()
+    /**
+     * Grants the lock to as many waiters at the head of the queue as the
+     * current state allows: either a single exclusive waiter, or the whole run
+     * of shared waiters up to the next exclusive one. All of them are woken in
+     * this one pass.
+     */
+    private void admitWaiters()
     {
-        String string = "NumExclusive: " + this.exclusiveLocks + " | NumShared: " + this.sharedLocks;
-        return string;
+        LockState state = this.lockState;
+        ArrayDeque<LockWaiter> waitQueue = state.waitQueue;
+        while (waitQueue != null && !waitQueue.isEmpty())
+        {
+            LockWaiter head = waitQueue.peek();
+            if (head.getStatus() == Status.EXCLUSIVE)
+            {
+                if (state.status != Status.OPEN) return;
+                waitQueue.remove();
+                this.grant(Status.EXCLUSIVE);
+                head.wake();
+                return;
+            }
+            if (state.status == Status.EXCLUSIVE) return;
+            waitQueue.remove();
+            this.grant(Status.SHARED);
+            head.wake();
+        }
+        state.waitQueue = null;
     }
 
-    public Status peekWaitQueue()
+    private void grant(Status status)
     {
-        try
+        LockState state = this.lockState;
+        if (status == Status.EXCLUSIVE)
         {
-            return this.waitQueue.peek();
+            state.exclusiveLocks += 1;
         }
-        catch (NoSuchElementException e)
+        else
         {
-            return null;
+            state.sharedLocks += 1;
         }
+        state.status = status;
     }
 
-    public void addWaitQueue(Status status)
+    /**
+     * Starts timing how long the node stays locked, for a request sampled by
+     * the lock profiler, unless a sampled request is already being timed.
+     * Must be called with the node mutex held.
+     */
+    void markSampled(long now)
     {
-        this.waitQueue.add(status);
+        LockState state = this.lockState;
+        if (state.sampledAt == 0) state.sampledAt = now;
     }
 
-    public void removeWaitQueue()
+    /**
+     * Returns how long the node has been locked since a sampled request, and
+     * stops timing, if the node is now open; returns <code>-1</code>
+     * otherwise. The clock is only read in the first case. Must be called
+     * with the node mutex held.
+     */
+    long takeSampledHold()
     {
-        this.waitQueue.remove();
+        LockState state = this.lockState;
+        if (state.sampledAt == 0 || state.status != Status.OPEN) return -1;
+        long held = System.nanoTime() - state.sampledAt;
+        state.sampledAt = 0;
+        return held;
+    }
+
+    public int getWaitQueueLength()
+    {
+        LockState state = this.lockState;
+        return state == null || state.waitQueue == null ? 0 : state.waitQueue.size();
     }
 
     public String waitQueueString()
     {
         String string = "[";
-        for (Status status : this.waitQueue)
+        LockState state = this.lockState;
+        if (state != null && state.waitQueue != null)
         {
-            string += status;
-            string += ", ";
+            for (LockWaiter waiter : state.waitQueue)
+            {
+                string += waiter.getStatus();
+                string += ", ";
+            }
         }
         string += "]";
         return string;
@@ -179,36 +407,116 @@ public class FileNode
 
     public boolean hasExclusiveLock()
     {
-        return this.status == Status.EXCLUSIVE;
+        return this.getStatus() == Status.EXCLUSIVE;
     }
 
     public boolean hasActiveShared()
     {
-        return this.status == Status.SHARED;
+        return this.getStatus() == Status.SHARED;
     }
 
     public boolean hasActiveLocks()
     {
-        return this.status != Status.OPEN;
+        return this.getStatus() != Status.OPEN;
     }
 
     public void setStorageContainers(ArrayList<StorageContainer> storageContainers)
     {
-        this.storageContainers = storageContainers;
+        this.storageContainers = ReplicaSets.intern(storageContainers);
     }
 
-    public ArrayList<StorageContainer> shouldReplicate()
+    /**
+     * Returns the data version of the file. The version is advanced every time
+     * the file is locked for writing; the replicas in the replica list all hold
+     * the current version.
+     */
+    public synchronized long getVersion()
     {
-        this.numberReads += 1;
-        if (this.numberReads == 20)
-        {
-            this.numberReads = 0;
-            return this.storageContainers;
-        }
-        else
-        {
-            return null;
-        }
+        return this.version;
+    }
+
+    /**
+     * Starts a new data version of the file. All replicas but one are moved
+     * to the stale list, since only the remaining one will receive the
+     * upcoming writes.
+     *
+     * @return <code>true</code> if any replica became stale.
+     */
+    public synchronized boolean advanceVersion()
+    {
+        this.version += 1;
+        ArrayList<StorageContainer> current = this.storageContainers;
+        if (current.size() <= 1) return false;
+        ArrayList<StorageContainer> stale = new ArrayList<>(this.getStaleContainers());
+        stale.addAll(current.subList(0, current.size() - 1));
+        this.storageContainers = ReplicaSets.of(current.get(current.size() - 1));
+        this.staleContainers = stale;
+        return true;
+    }
+
+    /** Returns the storage servers holding an outdated copy of the file. */
+    public synchronized ArrayList<StorageContainer> getStaleContainers()
+    {
+        return this.staleContainers == null ? new ArrayList<>() : this.staleContainers;
+    }
+
+    /** Removes and returns every stale replica of the file. */
+    public synchronized ArrayList<StorageContainer> takeStaleContainers()
+    {
+        ArrayList<StorageContainer> stale = this.getStaleContainers();
+        this.staleContainers = null;
+        return stale;
+    }
+
+    /** Moves a replica to the stale list, as when a journaled invalidation is
+        replayed. Nothing is done if the server does not hold a current
+        replica. */
+    public synchronized void markStale(StorageContainer storageContainer)
+    {
+        if (!this.containsStorageContainer(storageContainer)) return;
+        ArrayList<StorageContainer> current = new ArrayList<>(this.storageContainers);
+        current.remove(storageContainer);
+        this.setStorageContainers(current);
+        this.addStaleContainer(storageContainer);
+    }
+
+    /** Lists a server as holding an outdated copy of the file. */
+    public synchronized void addStaleContainer(StorageContainer storageContainer)
+    {
+        ArrayList<StorageContainer> stale = new ArrayList<>(this.getStaleContainers());
+        if (!stale.contains(storageContainer)) stale.add(storageContainer);
+        this.staleContainers = stale;
+    }
+
+    /** Removes one stale replica, returning <code>false</code> if it was not
+        stale. */
+    public synchronized boolean removeStaleContainer(StorageContainer storageContainer)
+    {
+        if (this.staleContainers == null) return false;
+        ArrayList<StorageContainer> stale = new ArrayList<>(this.staleContainers);
+        boolean removed = stale.remove(storageContainer);
+        this.staleContainers = stale.isEmpty() ? null : stale;
+        return removed;
+    }
+
+    /** Returns the read counter of the node, creating it on first use. */
+    public synchronized AccessCounter getAccessCounter()
+    {
+        if (this.accessCounter == null)
+            this.accessCounter = new AccessCounter();
+        return this.accessCounter;
+    }
+
+    /** Returns the read counter of the node, or <code>null</code> if the node
+        has never been read. */
+    public synchronized AccessCounter peekAccessCounter()
+    {
+        return this.accessCounter;
+    }
+
+    public int getReplicaCount()
+    {
+        return this.storageContainers.size();
     }
 
     public boolean containsStorageContainer(StorageContainer storageContainer)
@@ -1,5 +1,6 @@
 package naming;
 
+import common.Fingerprint;
 import common.Path;
 import common.Type;
 import rmi.RMIException;
@@ -9,6 +10,7 @@ import storage.Storage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by anthonyaltieri on 2/24/17.
@@ -22,215 +24,1549 @@ import java.util.*;
 public class FileSystem
 {
     FileNode root;
-    ArrayList<StorageContainer> emptyServers = new ArrayList<>();
+    StorageRegistry storageRegistry = new StorageRegistry();
+    Set<Path> replicatedFiles = ConcurrentHashMap.newKeySet();
+    /** Layouts of the files that are erasure-coded instead of replicated.
+        Such files have no full replica. Kept here rather than on the nodes,
+        since few files are coded. */
+    Map<FileNode, ErasureLayout> erasureCoded = new ConcurrentHashMap<>();
+    /** Callbacks telling clients that replicas of a file went stale, which
+        the job collecting the stale replicas waits for before deleting
+        them. Kept here rather than on the nodes, since few files have stale
+        replicas at any time. */
+    Map<FileNode, LeaseTable.Invalidations> staleCallbacks = new ConcurrentHashMap<>();
+    ReplicationScheduler replicationScheduler;
+    Journal journal;
+    MutationLog mutationLog;
+    LeaseTable leaseTable;
+    LockProfiler lockProfiler;
+    final SnapshotTable snapshots = new SnapshotTable();
 
     FileSystem()
     {
         this.root = new FileNode(new Path("/"), null, null, Type.ROOT);
+        this.root.getChildren().snapshots = this.snapshots;
     }
 
     public FileNode get(Path path)
         throws FileNotFoundException
     {
         FileNode focus = this.root;
+        for (String name : path)
+        {
+            FileNode next = focus.getChildren().get(name);
+            if (next == null)
+                throw new FileNotFoundException("path not found");
+            focus = next;
+        }
+        return focus;
+    }
+
+    public boolean remove(Path path)
+        throws FileNotFoundException
+    {
+        FileNode parent = this.get(path.parent());
+        FileNode removed = parent.getChildren().remove(path.last());
+        if (removed == null) return false;
+        this.log(JournalRecord.Kind.DELETE, path, null);
+        if (removed.isFile())
+        {
+            for (StorageContainer storageContainer : removed.getStorageContainers())
+                this.storageRegistry.recordFileRemoved(storageContainer, removed.getFileSize());
+            ErasureLayout layout = this.erasureCoded.remove(removed);
+            if (layout != null)
+            {
+                for (StorageContainer holder : layout.getLiveHolders())
+                    this.storageRegistry.recordFileRemoved(holder, layout.getFragmentSize());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a file or directory to the tree. Files are placed on the given
+     * storage server, which is also recorded on every directory above the
+     * file. Directories take the storage servers of their parent.
+     *
+     * @return The callbacks to clients caching the new path or its parent.
+     */
+    public LeaseTable.Invalidations add(Path path, Type type, StorageContainer storageContainer)
+        throws FileNotFoundException
+    {
+        FileNode parent = this.get(path.parent());
+        FileNode toAdd;
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        if (type == Type.FILE)
+        {
+            toAdd = new FileNode(path, storageContainer, type);
+            toAdd.setFileSize(0);
+            this.addToAncestors(path, storageContainer);
+            this.storageRegistry.recordFileAdded(storageContainer, 0);
+            parent.getChildren().put(toAdd);
+            invalidations.add(this.log(JournalRecord.Kind.CREATE_FILE, path, null));
+            invalidations.add(this.log(JournalRecord.Kind.REPLICA_ADD, path, storageContainer));
+        }
+        else
+        {
+            toAdd = new FileNode(path, parent.getStorage(), parent.getCommand(), type);
+            parent.getChildren().put(toAdd);
+            invalidations.add(this.log(JournalRecord.Kind.CREATE_DIRECTORY, path, null));
+        }
+        return invalidations;
+    }
+
+    /**
+     * Records a storage server on every directory above <code>path</code>, so
+     * that deleting any of those directories reaches the server.
+     */
+    private void addToAncestors(Path path, StorageContainer storageContainer)
+        throws FileNotFoundException
+    {
         ArrayList<Path> subPaths = path.getSubPaths();
-        // Remove the root path
+        subPaths.remove(subPaths.size() - 1);
+        // Remove the root
         subPaths.remove(0);
-        while (!subPaths.isEmpty())
+        for (Path subPath : subPaths)
+        {
+            FileNode directory = this.get(subPath);
+            synchronized (directory)
+            {
+                if (!directory.containsStorageContainer(storageContainer))
+                {
+                    ArrayList<StorageContainer> updated = new ArrayList<>(directory.getStorageContainers());
+                    updated.add(storageContainer);
+                    directory.setStorageContainers(updated);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Records that a storage server holds a file it reported at registration.
+     *
+     * <p>
+     * A file that is not yet in the tree is added. A file that is already
+     * known on this storage server, such as one restored from the journal,
+     * stays as it is. A file none of whose replicas is on a registered storage
+     * server is adopted by the registering server. In every other case, and
+     * when the path names a directory, the file is a duplicate.
+     *
+     * @return <code>false</code> if the file is a duplicate and should be
+     *         deleted from the storage server.
+     */
+    public boolean register(Path path, Storage storage, Command command)
+    {
+        if (path.toString().equals("/")) return false;
+        return this.registerAll(
+            path.parent(),
+            new String[] { path.last() },
+            new long[] { path.getFileSize() },
+            new StorageContainer(storage, command)
+        ).isEmpty();
+    }
+
+    /**
+     * Records several files a storage server reported in the same directory,
+     * following the same rules as <code>register</code>. The directory is
+     * looked up, or created, once for all of the files, and the new files are
+     * inserted while holding the directory's table of children only once.
+     *
+     * @return The files that are duplicates.
+     */
+    public ArrayList<Path> registerAll(Path directory, String[] names, long[] sizes,
+                                       StorageContainer storageContainer)
+    {
+        return this.registerAll(directory, names, sizes, storageContainer, null);
+    }
+
+    /**
+     * Records several files as <code>registerAll</code> does, except that
+     * duplicates of the same size as the existing file are added to
+     * <code>sameSize</code> instead of returned, if it is given, so that
+     * their content can be compared with <code>adoptIdentical</code>.
+     */
+    ArrayList<Path> registerAll(Path directory, String[] names, long[] sizes,
+                                StorageContainer storageContainer, List<Path> sameSize)
+    {
+        ArrayList<Path> duplicates = new ArrayList<>();
+        FileNode parent = this.registerDirectory(directory, storageContainer);
+        ArrayList<Path> added = new ArrayList<>();
+        long addedBytes = 0;
+        if (parent == null)
+        {
+            // A file stands where the directory should be
+            for (String name : names)
+                duplicates.add(new Path(directory, name));
+            return duplicates;
+        }
+        ArrayList<StorageContainer> replicas = ReplicaSets.of(storageContainer);
+        ChildTable children = parent.getChildren();
+        synchronized (children)
+        {
+            for (int i = 0 ; i < names.length ; i++)
+            {
+                FileNode node = new FileNode(names[i], Type.FILE);
+                node.setStorageContainers(replicas);
+                node.setFileSize(sizes[i]);
+                FileNode existing = children.putIfAbsent(node);
+                if (existing == null)
+                {
+                    added.add(new Path(directory, names[i]));
+                    addedBytes += Math.max(sizes[i], 0);
+                }
+                else if (!existing.isFile() || !this.adopt(existing, storageContainer, sizes[i]))
+                {
+                    if (sameSize != null && existing.isFile() && sizes[i] >= 0
+                        && existing.getFileSize() == sizes[i])
+                        sameSize.add(new Path(directory, names[i]));
+                    else
+                        duplicates.add(new Path(directory, names[i]));
+                }
+            }
+        }
+        this.storageRegistry.recordFilesAdded(storageContainer, added.size(), addedBytes);
+        for (Path path : added)
+        {
+            this.log(JournalRecord.Kind.CREATE_FILE, path, null);
+            this.log(JournalRecord.Kind.REPLICA_ADD, path, storageContainer);
+        }
+        return duplicates;
+    }
+
+    /**
+     * Walks to a directory reported by a registering storage server, creating
+     * the directories that are missing and recording the server on every
+     * directory on the way.
+     *
+     * @return The directory, or <code>null</code> if a file is in the way.
+     */
+    private FileNode registerDirectory(Path directory, StorageContainer storageContainer)
+    {
+        FileNode focus = this.root;
+        for (String name : directory)
+        {
+            ChildTable children = focus.getChildren();
+            FileNode next = children.get(name);
+            if (next == null)
+            {
+                FileNode created = new FileNode(name, Type.DIRECTORY);
+                created.setStorageContainers(ReplicaSets.of(storageContainer));
+                next = children.putIfAbsent(created);
+                if (next == null)
+                {
+                    focus = created;
+                    continue;
+                }
+            }
+            if (next.isFile())
+                return null;
+            if (!next.containsStorageContainer(storageContainer))
+            {
+                synchronized (next)
+                {
+                    ArrayList<StorageContainer> updated = new ArrayList<>(next.getStorageContainers());
+                    updated.add(storageContainer);
+                    next.setStorageContainers(updated);
+                }
+            }
+            focus = next;
+        }
+        return focus;
+    }
+
+    /**
+     * Decides whether an existing file reported by a registering storage
+     * server is kept on that server.
+     */
+    private boolean adopt(FileNode node, StorageContainer storageContainer, long fileSize)
+    {
+        ErasureLayout layout = this.erasureCoded.get(node);
+        if (layout != null)
+        {
+            // The copy is a fragment, kept only where the layout places one
+            if (!layout.isHolder(storageContainer)) return false;
+            this.storageRegistry.recordFileAdded(storageContainer, layout.getFragmentSize());
+            return true;
+        }
+        synchronized (node)
+        {
+            // An outdated copy left by a write is never taken back: the server
+            // deletes it as a duplicate, so it is no longer listed as stale
+            if (node.removeStaleContainer(storageContainer))
+            {
+                this.log(JournalRecord.Kind.STALE_REMOVE, node.getPath(), storageContainer);
+                return false;
+            }
+            if (!node.containsStorageContainer(storageContainer))
+            {
+                for (StorageContainer replica : node.getStorageContainers())
+                {
+                    if (this.storageRegistry.contains(replica.getStorage()))
+                        return false;
+                }
+                ArrayList<StorageContainer> updated = new ArrayList<>();
+                updated.add(storageContainer);
+                updated.addAll(node.getStorageContainers());
+                node.setStorageContainers(updated);
+                node.setFileSize(fileSize);
+                this.log(JournalRecord.Kind.REPLICA_ADD, node.getPath(), storageContainer);
+            }
+            else if (!node.isFileSizeKnown() && fileSize >= 0)
+            {
+                // A file restored from the journal learns its size from the
+                // first of its servers to register
+                node.setFileSize(fileSize);
+            }
+        }
+        this.storageRegistry.recordFileAdded(storageContainer, node.getFileSize());
+        return true;
+    }
+
+    /**
+     * Keeps the copies a registering storage server holds of existing files
+     * as replicas, where they are identical to the copies already in the
+     * tree. The fingerprints of each file are asked of the registering server
+     * and of one live replica, a call per server for all of the files. As for
+     * replication, a copy is only added if the file was not locked for
+     * writing, written or deleted while the fingerprints were taken.
+     *
+     * @return The files whose copies differ, or could not be compared, and
+     *         are duplicates.
+     */
+    ArrayList<Path> adoptIdentical(List<Path> paths, StorageContainer storageContainer)
+    {
+        ArrayList<Path> duplicates = new ArrayList<>();
+        HashMap<Path, FileNode> nodes = new HashMap<>();
+        HashMap<Path, Long> versions = new HashMap<>();
+        LinkedHashMap<StorageContainer, ArrayList<Path>> byReplica = new LinkedHashMap<>();
+        for (Path path : paths)
+        {
+            FileNode node;
+            try
+            {
+                node = this.get(path);
+            }
+            catch (FileNotFoundException e)
+            {
+                duplicates.add(path);
+                continue;
+            }
+            StorageContainer replica = null;
+            if (node.isFile())
+            {
+                synchronized (node)
+                {
+                    if (!node.hasExclusiveLock())
+                    {
+                        versions.put(path, node.getVersion());
+                        for (StorageContainer sc : node.getStorageContainers())
+                        {
+                            if (this.storageRegistry.contains(sc.getStorage()) && !sc.equals(storageContainer))
+                            {
+                                replica = sc;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (replica == null)
+            {
+                duplicates.add(path);
+                continue;
+            }
+            nodes.put(path, node);
+            byReplica.computeIfAbsent(replica, k -> new ArrayList<>()).add(path);
+        }
+        if (nodes.isEmpty()) return duplicates;
+
+        HashMap<Path, Fingerprint> theirs = new HashMap<>();
+        HashMap<Path, Fingerprint> ours = new HashMap<>();
+        try
+        {
+            ArrayList<Path> candidates = new ArrayList<>();
+            for (Map.Entry<StorageContainer, ArrayList<Path>> group : byReplica.entrySet())
+            {
+                Path[] files = group.getValue().toArray(new Path[0]);
+                Fingerprint[] fingerprints;
+                try
+                {
+                    fingerprints = group.getKey().getCommand().fingerprint(files);
+                }
+                catch (RMIException e)
+                {
+                    // The replica cannot vouch for these files
+                    duplicates.addAll(group.getValue());
+                    nodes.keySet().removeAll(group.getValue());
+                    continue;
+                }
+                for (int i = 0 ; i < files.length ; i++) theirs.put(files[i], fingerprints[i]);
+                candidates.addAll(group.getValue());
+            }
+            if (!candidates.isEmpty())
+            {
+                Path[] files = candidates.toArray(new Path[0]);
+                Fingerprint[] fingerprints = storageContainer.getCommand().fingerprint(files);
+                for (int i = 0 ; i < files.length ; i++) ours.put(files[i], fingerprints[i]);
+            }
+        }
+        catch (UnsupportedOperationException | RMIException e)
+        {
+            // Without fingerprints, every copy is a duplicate as before
+            return new ArrayList<>(paths);
+        }
+
+        for (Map.Entry<Path, FileNode> entry : nodes.entrySet())
+        {
+            Path path = entry.getKey();
+            FileNode node = entry.getValue();
+            Fingerprint fingerprint = ours.get(path);
+            if (fingerprint == null || !fingerprint.equals(theirs.get(path)))
+            {
+                duplicates.add(path);
+                continue;
+            }
+            boolean adopted = false;
+            synchronized (node)
+            {
+                if (node.getVersion() == versions.get(path) && !node.hasExclusiveLock()
+                    && this.hasNode(path, node) && !node.containsStorageContainer(storageContainer))
+                {
+                    ArrayList<StorageContainer> updated = new ArrayList<>(node.getStorageContainers());
+                    updated.add(storageContainer);
+                    node.setStorageContainers(updated);
+                    this.replicatedFiles.add(path);
+                    this.log(JournalRecord.Kind.REPLICA_ADD, path, storageContainer);
+                    adopted = true;
+                }
+            }
+            if (adopted)
+                this.storageRegistry.recordFileAdded(storageContainer, node.getFileSize());
+            else
+                duplicates.add(path);
+        }
+        return duplicates;
+    }
+
+    /**
+     * Applies one journal record to the tree while the journal is replayed.
+     * Records are idempotent: creating a path that exists, deleting one that
+     * does not, adding a replica that is already listed, and renaming a path
+     * that is gone or whose target exists all do nothing. Missing parent
+     * directories are created. Files left with several replicas are recorded
+     * as replicated, so that the reclaim pass visits them; the load of each
+     * storage server is learned again from the files it reports when it
+     * registers.
+     */
+    void apply(JournalRecord record)
+        throws FileNotFoundException
+    {
+        Path path = record.getPath();
+        if (this.applySnapshot(record)) return;
+        if (path.toString().equals("/")) return;
+        switch (record.getKind())
+        {
+            case CREATE_FILE:
+            case CREATE_DIRECTORY:
+                FileNode parent = this.ensureDirectory(path.parent());
+                if (!parent.getChildren().containsKey(path.last()))
+                {
+                    FileNode node = record.getKind() == JournalRecord.Kind.CREATE_FILE
+                        ? new FileNode(path, Type.FILE)
+                        : new FileNode(path, null, null, Type.DIRECTORY);
+                    // Writes are not journaled, so the size is learned anew
+                    node.markFileSizeStale();
+                    parent.getChildren().put(node);
+                }
+                break;
+            case DELETE:
+                if (this.hasPath(path.parent()))
+                    this.get(path.parent()).getChildren().remove(path.last());
+                break;
+            case REPLICA_ADD:
+                if (!this.hasPath(path)) break;
+                FileNode added = this.get(path);
+                if (!added.isFile() || added.containsStorageContainer(record.getStorageContainer())) break;
+                ArrayList<StorageContainer> updated = new ArrayList<>(added.getStorageContainers());
+                updated.add(record.getStorageContainer());
+                added.setStorageContainers(updated);
+                // A refreshed stale replica is current again
+                added.removeStaleContainer(record.getStorageContainer());
+                if (updated.size() > 1) this.replicatedFiles.add(path);
+                this.addToAncestors(path, record.getStorageContainer());
+                break;
+            case REPLICA_REMOVE:
+                if (!this.hasPath(path)) break;
+                FileNode removed = this.get(path);
+                ArrayList<StorageContainer> remaining = new ArrayList<>(removed.getStorageContainers());
+                remaining.remove(record.getStorageContainer());
+                removed.setStorageContainers(remaining);
+                if (remaining.size() <= 1) this.replicatedFiles.remove(path);
+                break;
+            case REPLICA_STALE:
+                if (!this.hasPath(path)) break;
+                FileNode invalidated = this.get(path);
+                invalidated.markStale(record.getStorageContainer());
+                if (invalidated.getReplicaCount() <= 1) this.replicatedFiles.remove(path);
+                break;
+            case STALE_REMOVE:
+                if (this.hasPath(path)) this.get(path).removeStaleContainer(record.getStorageContainer());
+                break;
+            case RENAME:
+                Path target = record.getTarget();
+                if (!this.hasPath(path) || this.hasPath(target)) break;
+                FileNode moved = this.get(path);
+                FileNode destination = this.ensureDirectory(target.parent());
+                this.snapshots.moveLock.readLock().lock();
+                try
+                {
+                    this.get(path.parent()).getChildren().remove(path.last());
+                    moved.name = target.last();
+                    destination.getChildren().put(moved);
+                }
+                finally
+                {
+                    this.snapshots.moveLock.readLock().unlock();
+                }
+                this.addSubtreeToAncestors(target, moved);
+                this.moveReplicatedFiles(path, target);
+                break;
+            case ERASURE:
+                if (!this.hasPath(path) || !this.get(path).isFile()) break;
+                FileNode coded = this.get(path);
+                ErasureLayout layout = record.getErasureLayout();
+                if (layout == null)
+                {
+                    this.erasureCoded.remove(coded);
+                    break;
+                }
+                this.erasureCoded.put(coded, layout);
+                for (StorageContainer holder : layout.getLiveHolders())
+                    this.addToAncestors(path, holder);
+                break;
+        }
+    }
+
+    /**
+     * Applies a journal record of snapshots or the data kept for them. Data
+     * is found by the path of its file or subtree, which is still in the tree
+     * when the record is replayed. A pinned copy whose outcome was not
+     * journaled is taken to have been kept by its server. Data that no
+     * snapshot keeps any more is deleted from the storage servers as they
+     * register, as none keeps it.
+     *
+     * @return <code>false</code> if the record concerns no snapshot.
+     */
+    private boolean applySnapshot(JournalRecord record)
+        throws FileNotFoundException
+    {
+        Path path = record.getPath();
+        switch (record.getKind())
+        {
+            case SNAPSHOT_CREATE:
+                this.snapshots.restore(record.getSnapshot(), record.getGeneration());
+                return true;
+            case SNAPSHOT_DELETE:
+                if (this.snapshots.delete(record.getSnapshot()) != null) this.pruneVersions();
+                return true;
+            case SNAPSHOT_RETAIN:
+            case SNAPSHOT_PIN:
+                if (!this.hasPath(path)) return true;
+                FileNode node = this.get(path);
+                HashSet<Long> readers = new HashSet<>();
+                for (long reader : record.getReaders()) readers.add(reader);
+                if (record.getKind() == JournalRecord.Kind.SNAPSHOT_RETAIN)
+                {
+                    this.snapshots.restore(new SnapshotTable.Retained(node, record.getTarget(), readers));
+                    return true;
+                }
+                SnapshotTable.Pin pin = new SnapshotTable.Pin(node, path, record.getTarget(), readers,
+                                                              record.getStorageContainer(), false);
+                pin.holders = new HashSet<>(Collections.singleton(record.getStorageContainer()));
+                this.snapshots.restore(pin);
+                return true;
+            case SNAPSHOT_SETTLE:
+                SnapshotTable.Retained retained = this.snapshots.find(record.getTarget());
+                if (retained != null)
+                    this.snapshots.settle(retained, new HashSet<>(Arrays.asList(record.getHolders())));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Moves a file or directory, with everything below it, to a new path in a
+     * single step. Nodes rebuild their paths from their parents, so only the
+     * moved node changes, however large the subtree below it. The storage
+     * servers holding the subtree are recorded on the directories above the
+     * new path, so that deleting any of them still reaches the servers.
+     *
+     * @return <code>false</code> if something already stands at the target.
+     * @throws FileNotFoundException If the source does not exist, or the
+     *                               target's parent is not a directory.
+     */
+    boolean move(Path source, Path target)
+        throws FileNotFoundException
+    {
+        return this.move(source, target, new LeaseTable.Invalidations());
+    }
+
+    /**
+     * Moves a file or directory as <code>move</code> does, adding the
+     * callbacks to clients caching the source or the target to
+     * <code>invalidations</code>.
+     */
+    boolean move(Path source, Path target, LeaseTable.Invalidations invalidations)
+        throws FileNotFoundException
+    {
+        FileNode from = this.get(source.parent());
+        FileNode to = this.get(target.parent());
+        if (!to.isDirectory())
+            throw new FileNotFoundException("target's parent is not a directory");
+        FileNode node = this.get(source);
+        if (to.getChildren().containsKey(target.last())) return false;
+        // The two tables are never held together, so that two moves in
+        // opposite directions cannot deadlock. No snapshot is taken between
+        // the two changes.
+        this.snapshots.moveLock.readLock().lock();
+        try
+        {
+            from.getChildren().remove(source.last());
+            node.name = target.last();
+            if (to.getChildren().putIfAbsent(node) != null)
+            {
+                node.name = source.last();
+                from.getChildren().put(node);
+                return false;
+            }
+        }
+        finally
+        {
+            this.snapshots.moveLock.readLock().unlock();
+        }
+        this.addSubtreeToAncestors(target, node);
+        this.moveReplicatedFiles(source, target);
+        invalidations.add(this.log(JournalRecord.Kind.RENAME, source, null, target));
+        return true;
+    }
+
+    /** Renames the replicated files at or below a moved path. */
+    private void moveReplicatedFiles(Path source, Path target)
+    {
+        String prefix = source.toString() + "/";
+        for (Path replicated : new ArrayList<>(this.replicatedFiles))
+        {
+            if (replicated.equals(source))
+            {
+                this.replicatedFiles.remove(replicated);
+                this.replicatedFiles.add(target);
+            }
+            else if (replicated.toString().startsWith(prefix))
+            {
+                this.replicatedFiles.remove(replicated);
+                this.replicatedFiles.add(new Path(target.toString() + replicated.toString().substring(prefix.length() - 1)));
+            }
+        }
+    }
+
+    /** Records the storage servers of a moved node, current and stale, on
+        every directory above its new path. */
+    private void addSubtreeToAncestors(Path path, FileNode node)
+        throws FileNotFoundException
+    {
+        LinkedHashSet<StorageContainer> storageContainers = new LinkedHashSet<>(node.getStorageContainers());
+        storageContainers.addAll(node.getStaleContainers());
+        if (node.isFile() && this.erasureCoded.containsKey(node))
+            storageContainers.addAll(this.erasureCoded.get(node).getLiveHolders());
+        for (StorageContainer storageContainer : storageContainers)
+        {
+            if (storageContainer.getCommand() != null)
+                this.addToAncestors(path, storageContainer);
+        }
+    }
+
+    /** Returns the directory at <code>path</code>, creating it and its
+        parents if they do not exist. */
+    private FileNode ensureDirectory(Path path)
+        throws FileNotFoundException
+    {
+        if (path.toString().equals("/")) return this.root;
+        FileNode parent = this.ensureDirectory(path.parent());
+        FileNode node = parent.getChildren().get(path.last());
+        if (node == null)
+        {
+            node = new FileNode(path, null, null, Type.DIRECTORY);
+            parent.getChildren().put(node);
+        }
+        if (!node.isDirectory())
+            throw new FileNotFoundException("journal names a file as a directory");
+        return node;
+    }
+
+    void setJournal(Journal journal)
+    {
+        this.journal = journal;
+    }
+
+    void setMutationLog(MutationLog mutationLog)
+    {
+        this.mutationLog = mutationLog;
+    }
+
+    void setLeaseTable(LeaseTable leaseTable)
+    {
+        this.leaseTable = leaseTable;
+    }
+
+    void setLockProfiler(LockProfiler lockProfiler)
+    {
+        this.lockProfiler = lockProfiler;
+    }
+
+    /**
+     * Appends a mutation to the journal and to the mutation log followers
+     * tail, if there are any, and reports it to the lease table. Mutations are
+     * logged after they have been applied to the tree, so that a checkpoint or
+     * snapshot taken after a record was appended always reflects it, and a
+     * client called back reads the new state.
+     *
+     * @return The callbacks to clients caching the changed paths, which must
+     *         be waited for before any data the mutation took out of the tree
+     *         is deleted.
+     */
+    private LeaseTable.Invalidations log(JournalRecord.Kind kind, Path path, StorageContainer storageContainer)
+    {
+        return this.log(kind, path, storageContainer, null);
+    }
+
+    private LeaseTable.Invalidations log(JournalRecord.Kind kind, Path path, StorageContainer storageContainer,
+                                         Path target)
+    {
+        if (this.journal != null)
+            this.journal.append(kind, path, storageContainer, target);
+        if (this.mutationLog != null)
+            this.mutationLog.append(kind, path, storageContainer, target);
+        if (this.leaseTable == null) return LeaseTable.Invalidations.NONE;
+        return this.leaseTable.changed(kind, path, target);
+    }
+
+    /** Logs the switch of a file to an erasure layout, or back to full
+        replicas if the layout is <code>null</code>. */
+    private LeaseTable.Invalidations log(Path path, ErasureLayout erasureLayout)
+    {
+        if (this.journal != null)
+            this.journal.append(path, erasureLayout);
+        if (this.mutationLog != null)
+            this.mutationLog.append(path, erasureLayout);
+        if (this.leaseTable == null) return LeaseTable.Invalidations.NONE;
+        return this.leaseTable.changed(JournalRecord.Kind.ERASURE, path, null);
+    }
+
+    /** Logs a snapshot taken or deleted, or data kept for snapshots, which
+        no client caches. */
+    private void log(JournalRecord record)
+    {
+        if (this.journal != null)
+            this.journal.append(record);
+        if (this.mutationLog != null)
+            this.mutationLog.append(record);
+    }
+
+    /**
+     * Takes a named snapshot of the tree. Nothing is copied until the tree
+     * changes. The snapshot is logged before any move or deletion made after
+     * it, so that replaying the journal takes it at the same point.
+     *
+     * @return <code>false</code> if a snapshot of that name exists.
+     */
+    boolean createSnapshot(String name)
+    {
+        this.snapshots.moveLock.writeLock().lock();
+        try
+        {
+            long generation = this.snapshots.create(name);
+            if (generation == 0) return false;
+            this.log(JournalRecord.snapshot(name, generation));
+            return true;
+        }
+        finally
+        {
+            this.snapshots.moveLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes a snapshot, and drops the copies of directories that no other
+     * snapshot reads from the whole tree.
+     *
+     * @return The retained subtrees no snapshot reaches any more, whose data
+     *         the storage servers must delete, or <code>null</code> if there
+     *         is no snapshot of that name.
+     */
+    ArrayList<SnapshotTable.Retained> deleteSnapshot(String name)
+    {
+        ArrayList<SnapshotTable.Retained> released = this.snapshots.delete(name);
+        if (released == null) return null;
+        this.log(JournalRecord.snapshot(name, 0));
+        this.pruneVersions();
+        return released;
+    }
+
+    /** Drops the copies of directories no snapshot reads from the whole
+        tree. */
+    private void pruneVersions()
+    {
+        NavigableSet<Long> generations = this.snapshots.generations();
+        ArrayDeque<FileNode> pending = new ArrayDeque<>();
+        pending.push(this.root);
+        while (!pending.isEmpty())
+        {
+            FileNode node = pending.pop();
+            if (!node.isDirectory()) continue;
+            ChildTable children = node.getChildren();
+            children.prune(generations);
+            for (FileNode child : children.values()) pending.push(child);
+        }
+    }
+
+    /**
+     * Returns a file or directory as a snapshot saw it. Only the tables of
+     * children on the way are read, each under its own monitor; no lock of
+     * the live tree is taken.
+     *
+     * @throws FileNotFoundException If there is no snapshot of that name, the
+     *                               path was not in it, or it is a file whose
+     *                               kept copy was lost.
+     */
+    SnapshotEntry readSnapshot(String name, Path path)
+        throws FileNotFoundException
+    {
+        SnapshotTable.Snapshot snapshot = this.snapshots.get(name);
+        if (snapshot == null) throw new FileNotFoundException("snapshot not found");
+        FileNode node = this.root;
+        for (String component : path)
+        {
+            node = node.getChildren().getAt(component, snapshot.generation);
+            if (node == null) throw new FileNotFoundException("path not found in snapshot");
+        }
+        if (node.isDirectory())
+            return new SnapshotEntry(true, node.getChildren().namesAt(snapshot.generation), null, null);
+
+        // A file written since the snapshot was taken is read from the copy
+        // pinned before the write, once its server has made it
+        SnapshotTable.Pin pin = this.snapshots.pinned(node, snapshot.generation);
+        Set<StorageContainer> holders = pin == null ? null : pin.holders;
+        if (holders != null)
+        {
+            if (holders.isEmpty()) throw new FileNotFoundException("copy kept for snapshot was lost");
+            ArrayList<Storage> storage = new ArrayList<>();
+            for (StorageContainer storageContainer : holders) storage.add(storageContainer.getStorage());
+            return new SnapshotEntry(false, null, storage.toArray(new Storage[storage.size()]), pin.location);
+        }
+
+        // A file still in the tree is read where it is now. One that has been
+        // deleted is read where its storage servers moved it.
+        SnapshotTable.Retained retained = this.snapshots.retainedAbove(node);
+        ArrayList<Storage> storage = new ArrayList<>();
+        for (StorageContainer storageContainer : node.getStorageContainers())
+        {
+            if (retained == null || retained.holders == null || retained.holders.contains(storageContainer))
+                storage.add(storageContainer.getStorage());
+        }
+        Path storagePath = node.getPath();
+        if (retained != null)
+        {
+            String below = storagePath.toString().substring(retained.node.getPath().toString().length());
+            storagePath = new Path(retained.location.toString() + below);
+        }
+        return new SnapshotEntry(false, null, storage.toArray(new Storage[storage.size()]), storagePath);
+    }
+
+    public String[] getChildrenStrings(Path path)
+        throws FileNotFoundException
+    {
+        FileNode node = this.get(path);
+        if (!this.isDirectory(path))
+            throw new FileNotFoundException("path is not to a directory");
+        ArrayList<String> children = node.getChildren().names();
+        return children.toArray(new String[children.size()]);
+    }
+
+    public Storage getStorage(Path file)
+        throws FileNotFoundException
+    {
+        return this.get(file).getStorage();
+    }
+
+    /**
+     * Returns up to <code>limit</code> children of a directory whose names sort
+     * after <code>after</code>, in name order, found by a binary search of the
+     * directory's sorted children. A file is its own only entry.
+     */
+    ArrayList<FileNode> listPage(Path path, String after, int limit)
+        throws FileNotFoundException
+    {
+        FileNode node = this.get(path);
+        if (node.isFile())
+        {
+            ArrayList<FileNode> page = new ArrayList<>();
+            page.add(node);
+            return page;
+        }
+        return node.getChildren().after(after, limit);
+    }
+
+    /**
+     * Returns the current size of a file. A size that is not known, because
+     * the file was registered without one or may have been written since, is
+     * asked of a storage server holding the file and remembered, unless a
+     * writer locked the file in the meantime.
+     *
+     * @return The size, or <code>-1</code> if no storage server could tell.
+     */
+    long resolveFileSize(FileNode node)
+    {
+        if (node.isFileSizeKnown()) return node.getFileSize();
+        long version = node.getVersion();
+        ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
+        if (storageContainers.isEmpty()) return -1;
+        long size;
+        try
+        {
+            size = storageContainers.get(0).getStorage().size(node.getPath());
+        }
+        catch (FileNotFoundException | RMIException e)
+        {
+            return -1;
+        }
+        this.rememberFileSize(node, version, size);
+        return size;
+    }
+
+    /**
+     * Records the size a storage server reported for a file, unless the file
+     * changed since <code>version</code> or a writer holds it now.
+     */
+    void rememberFileSize(FileNode node, long version, long size)
+    {
+        if (size < 0) return;
+        synchronized (node)
+        {
+            if (node.getVersion() == version && !node.hasExclusiveLock())
+            {
+                long previous = Math.max(0, node.getFileSize());
+                node.setFileSize(size);
+                for (StorageContainer storageContainer : node.getStorageContainers())
+                    this.storageRegistry.recordFileResized(storageContainer, size - previous);
+            }
+        }
+    }
+
+    public boolean hasPath(Path path)
+    {
+        try {
+            FileNode parent = this.get(path);
+            return true;
+        } catch (FileNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    public String toString()
+    {
+        ArrayList<String> leaves = new ArrayList<>();
+        Stack<FileNode> stack = new Stack<>();
+        stack.push(this.root);
+        while (!stack.isEmpty())
+        {
+            FileNode node = stack.pop();
+            ArrayList<FileNode> children = node.getChildren().values();
+            if (children.isEmpty())
+            {
+                leaves.add(node.getPath().toString());
+            }
+            else
+            {
+                for (FileNode child : children)
+                {
+                    stack.push(child);
+                }
+            }
+        }
+        String toReturn = "[FileSystem]\n";
+        for (String leaf : leaves)
+        {
+            toReturn += (leaf  + "\n");
+        }
+        return toReturn;
+    }
+
+    boolean isDirectory(Path path)
+        throws FileNotFoundException
+    {
+        return get(path).isDirectory();
+    }
+
+    boolean isFile(Path path)
+        throws FileNotFoundException
+    {
+        return get(path).isFile();
+    }
+
+    FileNode getRoot()
+    {
+        return this.root;
+    }
+
+    /**
+     * Copies a file to one more storage server. The new replica is only added
+     * to the file's replica list once the copy has completed, so clients are
+     * never handed a storage server that does not yet hold the file. If the
+     * file is written or deleted while the copy is in flight, the copy is
+     * discarded instead.
+     */
+    boolean attemptReplicate(Path path)
+        throws FileNotFoundException, RMIException
+    {
+        FileNode node = this.get(path);
+        ArrayList<StorageContainer> alreadyIn;
+        ArrayList<StorageContainer> stale;
+        long version;
+        synchronized (node)
+        {
+            if (node.hasExclusiveLock()) return false;
+            alreadyIn = node.getStorageContainers();
+            stale = node.getStaleContainers();
+            version = node.getVersion();
+        }
+        if (alreadyIn.isEmpty()) return false;
+        // Refresh a server holding an outdated copy before using a new one
+        StorageContainer target = stale.isEmpty()
+            ? findReplicaStorageContainer(alreadyIn)
+            : stale.get(0);
+        if (target == null) return false;
+        boolean refresh = !stale.isEmpty();
+        boolean result;
+        try
+        {
+            result = target.getCommand().copy(path, alreadyIn.get(0).getStorage());
+        }
+        catch (IOException e)
+        {
+            throw new RMIException(e.getMessage(), e.getCause());
+        }
+        if (!result) return false;
+        boolean published = false;
+        synchronized (node)
+        {
+            if (node.getVersion() == version && this.hasNode(path, node)
+                && (!refresh || node.removeStaleContainer(target)))
+            {
+                ArrayList<StorageContainer> updated = new ArrayList<>(node.getStorageContainers());
+                updated.add(target);
+                node.setStorageContainers(updated);
+                this.replicatedFiles.add(path);
+                this.log(JournalRecord.Kind.REPLICA_ADD, path, target);
+                published = true;
+            }
+        }
+        if (published)
+        {
+            if (!refresh)
+            {
+                this.addToAncestors(path, target);
+                this.storageRegistry.recordFileAdded(target, node.getFileSize());
+            }
+            return true;
+        }
+        // The copy raced with a write or a delete and must not be served
+        if (!refresh)
+        {
+            target.getCommand().delete(path);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the stale replicas of a file from their storage servers. The
+     * replicas are taken out of the file's stale list, and the clients told
+     * that they went stale have answered, before the remote calls are made.
+     */
+    int collectStaleReplicas(Path path)
+        throws FileNotFoundException, RMIException
+    {
+        FileNode node = this.get(path);
+        LeaseTable.Invalidations invalidations = this.staleCallbacks.remove(node);
+        if (invalidations == null) invalidations = new LeaseTable.Invalidations();
+        ArrayList<StorageContainer> stale = node.takeStaleContainers();
+        for (StorageContainer storageContainer : stale)
+            invalidations.add(this.log(JournalRecord.Kind.STALE_REMOVE, path, storageContainer));
+        invalidations.await();
+        for (StorageContainer storageContainer : stale)
+        {
+            this.storageRegistry.recordFileRemoved(storageContainer, node.getFileSize());
+            storageContainer.getCommand().delete(path);
+        }
+        return stale.size();
+    }
+
+    /**
+     * Removes up to <code>excess</code> replicas of a file, always keeping at
+     * least one. Nothing is removed while the file is locked, so a client
+     * holding the lock never loses the replica it was given. The removed
+     * replicas are deleted from their storage servers after they have been
+     * taken out of the replica list and the clients caching the file told.
+     */
+    ArrayList<StorageContainer> dropReplicas(Path path, int excess)
+        throws FileNotFoundException, RMIException
+    {
+        FileNode node = this.get(path);
+        ArrayList<StorageContainer> removed = new ArrayList<>();
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        node.lock();
+        try
+        {
+            if (node.getStatus() != Status.OPEN) return removed;
+            synchronized (node)
+            {
+                ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
+                int keep = Math.max(1, storageContainers.size() - excess);
+                if (keep >= storageContainers.size()) return removed;
+                removed.addAll(storageContainers.subList(keep, storageContainers.size()));
+                node.setStorageContainers(new ArrayList<>(storageContainers.subList(0, keep)));
+                if (keep == 1) this.replicatedFiles.remove(path);
+                for (StorageContainer storageContainer : removed)
+                    invalidations.add(this.log(JournalRecord.Kind.REPLICA_REMOVE, path, storageContainer));
+            }
+        }
+        finally
+        {
+            node.unlock();
+        }
+        invalidations.await();
+        for (StorageContainer storageContainer : removed)
+        {
+            this.storageRegistry.recordFileRemoved(storageContainer, node.getFileSize());
+            storageContainer.getCommand().delete(path);
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the replica of a file held by <code>source</code> to
+     * <code>target</code>. The file is copied first; the replica list is then
+     * switched in one step, so that clients always see a full set of
+     * replicas, and only once the clients caching the file have been told is
+     * the copy on the source deleted. The move is abandoned, and the new copy
+     * discarded, if the file is locked, written or deleted in the meantime, or
+     * no longer has a replica on the source.
+     *
+     * @return <code>true</code> if the replica was moved.
+     */
+    boolean moveReplica(Path path, StorageContainer source, StorageContainer target)
+        throws FileNotFoundException, RMIException
+    {
+        FileNode node = this.get(path);
+        long version;
+        synchronized (node)
+        {
+            if (node.hasExclusiveLock() || !node.containsStorageContainer(source)
+                || node.containsStorageContainer(target) || node.getStaleContainers().contains(target))
+            {
+                return false;
+            }
+            version = node.getVersion();
+        }
+        boolean result;
+        try
+        {
+            result = target.getCommand().copy(path, source.getStorage());
+        }
+        catch (IOException e)
+        {
+            throw new RMIException(e.getMessage(), e.getCause());
+        }
+        if (!result) return false;
+        boolean switched = false;
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        node.lock();
+        try
+        {
+            // As when dropping replicas, a client holding a lock on the file
+            // keeps the replica it was given
+            if (node.getStatus() == Status.OPEN)
+            {
+                synchronized (node)
+                {
+                    if (node.getVersion() == version && this.hasNode(path, node)
+                        && node.containsStorageContainer(source) && !node.containsStorageContainer(target))
+                    {
+                        ArrayList<StorageContainer> updated = new ArrayList<>(node.getStorageContainers());
+                        updated.set(updated.indexOf(source), target);
+                        node.setStorageContainers(updated);
+                        // A crash between the two records leaves an extra
+                        // replica behind, never a missing one
+                        invalidations.add(this.log(JournalRecord.Kind.REPLICA_ADD, path, target));
+                        invalidations.add(this.log(JournalRecord.Kind.REPLICA_REMOVE, path, source));
+                        switched = true;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            node.unlock();
+        }
+        if (!switched)
         {
-            Path p = subPaths.remove(0);
-            FileNode next = focus.getChildren().get(p);
-            if (next == null)
-                throw new FileNotFoundException("path not found");
-            focus = next;
+            target.getCommand().delete(path);
+            return false;
         }
-        return focus;
+        this.addToAncestors(path, target);
+        this.storageRegistry.recordFileAdded(target, node.getFileSize());
+        this.storageRegistry.recordFileRemoved(source, node.getFileSize());
+        invalidations.await();
+        source.getCommand().delete(path);
+        return true;
     }
 
-    public boolean remove(Path path)
-        throws FileNotFoundException
+    /** Returns the erasure layout of a file, or <code>null</code> if the file
+        is replicated. */
+    ErasureLayout getErasureLayout(FileNode node)
     {
-        FileNode parent = this.get(path.parent());
-        return (parent.getChildren().remove(path) != null);
+        return this.erasureCoded.get(node);
     }
 
-    public void add(Path path, Type type)
+    ErasureLayout getErasureLayout(Path path)
         throws FileNotFoundException
     {
-        FileNode parent = this.get(path.parent());
-        FileNode toAdd = new FileNode(path, parent.getStorage(), parent.getCommand(), type);
-        parent.getChildren().put(path, toAdd);
+        return this.erasureCoded.get(this.get(path));
     }
 
+    /** Returns the paths of the erasure-coded files, forgetting the nodes
+        that are no longer in the tree. */
+    ArrayList<Path> getErasureCodedFiles()
+    {
+        ArrayList<Path> files = new ArrayList<>();
+        for (FileNode node : this.erasureCoded.keySet())
+        {
+            Path path = node.getPath();
+            if (this.hasNode(path, node))
+                files.add(path);
+            else
+                this.erasureCoded.remove(node);
+        }
+        return files;
+    }
 
-    public void register(Path path, Storage storage, Command command)
+    /**
+     * Switches a replicated file to an erasure layout whose fragments have
+     * already been written. As when dropping replicas, nothing is switched
+     * while the file is locked, and the switch is abandoned if the file was
+     * written or deleted since the version the fragments were made from. The
+     * full replicas are taken out of the replica list in the same step, and
+     * this returns once the clients caching the file have been told; the
+     * caller then deletes them from their servers.
+     *
+     * @return The removed replicas, or <code>null</code> if the switch was
+     *         abandoned.
+     */
+    ArrayList<StorageContainer> switchToErasure(Path path, FileNode node, long version, ErasureLayout layout)
         throws FileNotFoundException
     {
-        ArrayList<Path> subPaths = path.getSubPaths();
-        // Remove the root
-        subPaths.remove(0);
-        FileNode focus = this.root;
-        StorageContainer storageContainer = new StorageContainer(storage, command);
-        while (!subPaths.isEmpty())
+        ArrayList<StorageContainer> removed;
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        node.lock();
+        try
         {
-            Path currentPath = subPaths.remove(0);
-            FileNode next = focus.getChildren().get(currentPath);
-            if (next == null)
-            {
-                Type nodeType = (subPaths.isEmpty()) ? Type.FILE : Type.DIRECTORY;
-                FileNode newNode = new FileNode(currentPath, storage, command, nodeType);
-                focus.getChildren().put(currentPath,newNode);
-                focus = newNode;
-                continue;
-            }
-            else if (!next.containsStorageContainer(storageContainer))
+            if (node.getStatus() != Status.OPEN) return null;
+            synchronized (node)
             {
-                next.getStorageContainers().add(storageContainer);
+                if (node.getVersion() != version || !this.hasNode(path, node)
+                    || this.erasureCoded.containsKey(node) || node.getStorageContainers().isEmpty())
+                {
+                    return null;
+                }
+                removed = node.getStorageContainers();
+                this.erasureCoded.put(node, layout);
+                node.setStorageContainers(new ArrayList<>());
+                this.replicatedFiles.remove(path);
+                // A crash between the records leaves the full replicas
+                // listed as well, which are then served as before
+                invalidations.add(this.log(path, layout));
+                for (StorageContainer storageContainer : removed)
+                    invalidations.add(this.log(JournalRecord.Kind.REPLICA_REMOVE, path, storageContainer));
             }
-            focus = next;
         }
+        finally
+        {
+            node.unlock();
+        }
+        invalidations.await();
+        for (StorageContainer storageContainer : removed)
+            this.storageRegistry.recordFileRemoved(storageContainer, node.getFileSize());
+        for (StorageContainer holder : layout.getLiveHolders())
+        {
+            this.addToAncestors(path, holder);
+            this.storageRegistry.recordFileAdded(holder, layout.getFragmentSize());
+        }
+        return removed;
     }
 
-    public String[] getChildrenStrings(Path path)
+    /**
+     * Switches an erasure-coded file back to a full replica, already written
+     * to <code>target</code> from the fragments of <code>layout</code>. The
+     * switch is abandoned if the layout changed or the file was deleted in
+     * the meantime. Once the clients caching the file have been told, the
+     * caller deletes the fragments.
+     *
+     * @return <code>true</code> if the file was switched.
+     */
+    boolean switchToReplica(Path path, FileNode node, ErasureLayout layout, StorageContainer target)
         throws FileNotFoundException
     {
-        FileNode node = this.get(path);
-        if (!this.isDirectory(path))
-            throw new FileNotFoundException("path is not to a directory");
-        ArrayList<String> children = new ArrayList<>();
-        Arrays.asList(this.get(path).getChildren().keySet().toArray())
-            .stream()
-            .forEach(key -> {
-                children.add(((Path) key).getComponent().toString());
-            });
-        return children.toArray(new String[children.size()]);
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        synchronized (node)
+        {
+            if (this.erasureCoded.get(node) != layout || !this.hasNode(path, node)
+                || !node.getStorageContainers().isEmpty())
+            {
+                return false;
+            }
+            node.setStorageContainers(ReplicaSets.of(target));
+            node.setFileSize(layout.getFileSize());
+            this.erasureCoded.remove(node);
+            invalidations.add(this.log(JournalRecord.Kind.REPLICA_ADD, path, target));
+            invalidations.add(this.log(path, null));
+        }
+        invalidations.await();
+        this.addToAncestors(path, target);
+        this.storageRegistry.recordFileAdded(target, layout.getFileSize());
+        for (StorageContainer holder : layout.getLiveHolders())
+            this.storageRegistry.recordFileRemoved(holder, layout.getFragmentSize());
+        return true;
     }
 
-    public Storage getStorage(Path file)
+    /**
+     * Replaces the layout of an erasure-coded file by one in which lost
+     * fragments have been rebuilt on new servers. The replacement is
+     * abandoned if the layout changed or the file was deleted in the
+     * meantime.
+     *
+     * @return <code>true</code> if the layout was replaced.
+     */
+    boolean replaceErasureLayout(Path path, FileNode node, ErasureLayout previous, ErasureLayout updated)
         throws FileNotFoundException
     {
-        return this.get(file).getStorage();
-    }
-
-    public boolean hasPath(Path path)
-    {
-        try {
-            FileNode parent = this.get(path);
-            return true;
-        } catch (FileNotFoundException e)
+        synchronized (node)
         {
-            return false;
+            if (this.erasureCoded.get(node) != previous || !this.hasNode(path, node)) return false;
+            this.erasureCoded.put(node, updated);
+            this.log(path, updated);
+        }
+        for (StorageContainer holder : updated.getLiveHolders())
+        {
+            if (previous.isHolder(holder)) continue;
+            this.addToAncestors(path, holder);
+            this.storageRegistry.recordFileAdded(holder, updated.getFragmentSize());
         }
+        return true;
     }
 
-    public String toString()
+    /**
+     * Returns up to <code>limit</code> files that have a current replica on
+     * <code>source</code> and none, current or stale, on <code>target</code>.
+     * Locked files are skipped.
+     */
+    ArrayList<Path> filesToMove(StorageContainer source, StorageContainer target, int limit)
     {
-        ArrayList<String> leaves = new ArrayList<>();
-        Stack<FileNode> stack = new Stack<>();
-        stack.push(this.root);
-        while (!stack.isEmpty())
+        ArrayList<Path> files = new ArrayList<>();
+        ArrayDeque<FileNode> pending = new ArrayDeque<>();
+        pending.push(this.root);
+        while (!pending.isEmpty() && files.size() < limit)
         {
-            FileNode node = stack.pop();
-            Set<Path> children = node.getChildren().keySet();
-            if (children.isEmpty())
-            {
-                leaves.add(node.getPath().toString());
-            }
-            else
+            FileNode node = pending.pop();
+            if (node.isFile())
             {
-                for (Path path : children)
+                synchronized (node)
                 {
-                    stack.push(node.getChildren().get(path));
+                    if (node.getStatus() == Status.OPEN && node.containsStorageContainer(source)
+                        && !node.containsStorageContainer(target)
+                        && !node.getStaleContainers().contains(target))
+                    {
+                        files.add(node.getPath());
+                    }
                 }
+                continue;
             }
+            for (FileNode child : node.getChildren().values()) pending.push(child);
         }
-        String toReturn = "[FileSystem]\n";
-        for (String leaf : leaves)
-        {
-            toReturn += (leaf  + "\n");
-        }
-        return toReturn;
-    }
-
-    boolean isDirectory(Path path)
-        throws FileNotFoundException
-    {
-        return get(path).isDirectory();
+        return files;
     }
 
-    boolean isFile(Path path)
-        throws FileNotFoundException
+    /** Returns the paths of the files that have stale replicas, as restored
+        from the journal after a restart. */
+    ArrayList<Path> getFilesWithStaleReplicas()
     {
-        return get(path).isFile();
+        ArrayList<Path> files = new ArrayList<>();
+        ArrayDeque<FileNode> pending = new ArrayDeque<>();
+        pending.push(this.root);
+        while (!pending.isEmpty())
+        {
+            FileNode node = pending.pop();
+            if (node.isFile())
+            {
+                if (!node.getStaleContainers().isEmpty()) files.add(node.getPath());
+                continue;
+            }
+            for (FileNode child : node.getChildren().values()) pending.push(child);
+        }
+        return files;
     }
 
-    FileNode getRoot()
+    /** Returns the paths of the files that currently have more than one
+        replica. */
+    ArrayList<Path> getReplicatedFiles()
     {
-        return this.root;
+        ArrayList<Path> files = new ArrayList<>();
+        for (Path path : this.replicatedFiles)
+        {
+            if (this.hasPath(path))
+                files.add(path);
+            else
+                this.replicatedFiles.remove(path);
+        }
+        return files;
     }
 
-    boolean attemptReplicate(Path path, ArrayList<StorageContainer> alreadyIn)
-        throws RMIException
+    private boolean hasNode(Path path, FileNode node)
     {
-        StorageContainer storageContainer = findAvailableStorageContainer(alreadyIn);
-        if (storageContainer == null) return false;
         try
         {
-            boolean result = storageContainer.getCommand().copy(path, alreadyIn.get(0).getStorage());
-            if (result)
-            {
-                this.get(path).getStorageContainers().add(storageContainer);
-            }
-            return result;
+            return this.get(path) == node;
         }
-        catch (IOException e)
+        catch (FileNotFoundException e)
         {
-            throw new RMIException(e.getMessage(), e.getCause());
+            return false;
         }
     }
 
+    /**
+     * Returns the least-loaded storage server that does not already hold the
+     * file, or <code>null</code> if every server holds it. A nearly full
+     * server is only returned if every other server is nearly full too.
+     */
     StorageContainer findAvailableStorageContainer(ArrayList<StorageContainer> alreadyIn)
     {
-        if (this.emptyServers.size() > 0)
-        {
-            return this.emptyServers.remove(0);
-        }
-        Set<StorageContainer> alreadyInSet = alreadyIn == null
-            ? new HashSet<>()
-            : new HashSet<>(alreadyIn);
-        return findStorageContainer(this.root, alreadyInSet);
+        return this.storageRegistry.leastLoaded(alreadyIn);
+    }
+
+    /**
+     * Returns the least-loaded storage server that does not already hold the
+     * file and has room for another replica, or <code>null</code> if there is
+     * none. Extra replicas are optional, so they are never put on a nearly
+     * full server.
+     */
+    StorageContainer findReplicaStorageContainer(ArrayList<StorageContainer> alreadyIn)
+    {
+        return this.storageRegistry.leastLoaded(alreadyIn, false);
     }
 
+    StorageRegistry getStorageRegistry()
+    {
+        return this.storageRegistry;
+    }
 
+    /**
+     * Locks a path. An exclusive lock makes every replica but one of the
+     * files at and below the path stale, for they are about to be written,
+     * and keeps a copy of each of them that a snapshot still reads.
+     *
+     * @return The callbacks to clients caching the stale replicas, which must
+     *         be waited for before the lock is handed to the client.
+     */
+    public LeaseTable.Invalidations lock(Path path, Status status)
+        throws FileNotFoundException, RMIException
+    {
+        ArrayList<SnapshotTable.Pin> pins = new ArrayList<>();
+        LeaseTable.Invalidations invalidations = this.lock(path, status, pins);
+        this.keep(pins);
+        return invalidations;
+    }
 
-    public void lock(Path path, Status status)
+    /**
+     * Locks a path as <code>lock</code> does, but leaves the copies of files
+     * that snapshots still read to be made by <code>keep</code>, once the
+     * callbacks have been waited for. No copy is kept if <code>pins</code> is
+     * <code>null</code>, as for a subtree locked for its deletion, which
+     * snapshots retain whole.
+     */
+    LeaseTable.Invalidations lock(Path path, Status status, ArrayList<SnapshotTable.Pin> pins)
         throws FileNotFoundException, RMIException
     {
-        this.lockHelper(path, status, false);
-        FileNode node = this.get(path);
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        this.lockHelper(path, status, false, true, invalidations, pins);
+        return invalidations;
+    }
+
+    /**
+     * Locks a path for exclusive access in order to change the namespace
+     * alone, as a rename does. Unlike <code>lock</code>, this keeps every
+     * replica of the files below the path, since no data will be written.
+     */
+    void lockNamespace(Path path)
+        throws FileNotFoundException, RMIException
+    {
+        this.lockHelper(path, Status.EXCLUSIVE, false, false, LeaseTable.Invalidations.NONE, null);
     }
 
-    private void lockHelper(Path path, Status status, boolean isRipple)
+    private void lockHelper(Path path, Status status, boolean isRipple, boolean forWrite,
+                            LeaseTable.Invalidations invalidations, ArrayList<SnapshotTable.Pin> pins)
         throws FileNotFoundException, RMIException
     {
+        // Only the requests of clients are profiled, not the locks they
+        // ripple to ancestors and descendants
+        LockProfiler profiler = isRipple ? null : this.lockProfiler;
+        boolean sampled = profiler != null && profiler.sample();
+        // Other requests are only timed where they may wait long: exclusive
+        // requests, which also wait for the subtree, and requests that queue
+        boolean timed = sampled || (profiler != null && status == Status.EXCLUSIVE);
+        long start = timed ? System.nanoTime() : 0;
         FileNode node = get(path);
+        // Take the lock at once if nobody is queued, otherwise park until a
+        // releasing thread hands it over
         node.lock();
+        int queued = sampled ? node.getWaitQueueLength() : 0;
+        LockWaiter waiter = node.tryGrant(status) ? null : node.enqueue(status);
+        node.unlock();
+        if (waiter != null)
+        {
+            if (profiler != null && !timed)
+            {
+                start = System.nanoTime();
+                timed = true;
+            }
+            try
+            {
+                waiter.await();
+            }
+            catch (InterruptedException e)
+            {
+                node.lock();
+                node.cancel(waiter);
+                node.unlock();
+                throw new IllegalStateException("lock interrupted");
+            }
+        }
         if (status == Status.EXCLUSIVE)
         {
+            node.lock();
             try
             {
-                // Wait until there are no locks on the node
-                while (node.getStatus() != Status.OPEN)
-                {
-                    node.waitQueue.add(Status.EXCLUSIVE);
-                    node.getInUse().await();
-                    node.removeWaitQueue();
-                }
-                node.addExclusiveLock();
-                node.setStatus(Status.EXCLUSIVE);
-
-
-                consolidateWriteData(node.getPath());
+                if (forWrite) invalidations.add(this.invalidateReplicas(node.getPath(), pins));
 
                 // Set all of the parent nodes to SHARED
                 if (!isRipple)
@@ -240,47 +1576,33 @@ public class FileSystem
                     for (int i = (subPaths.size() - 1) ; i >= 0 ; i--)
                     {
                         Path p = subPaths.get(i);
-                        this.lockHelper(p, Status.SHARED, true);
+                        this.lockHelper(p, Status.SHARED, true, forWrite, invalidations, pins);
                     }
                     // Set all children nodes to EXCLUSIVE
                     for (FileNode child : this.getChildren(node))
                     {
-                        this.lockHelper(child.getPath(), Status.EXCLUSIVE, true);
+                        this.lockHelper(child.getPath(), Status.EXCLUSIVE, true, forWrite, invalidations, pins);
                     }
 
                 }
-                node.unlock();
             }
-            catch (InterruptedException e)
+            finally
             {
                 node.unlock();
-                throw new IllegalStateException("lock interrupted");
             }
         }
-        else
+        if (timed)
         {
-            try
-            {
-                // Wait until there are no Exclusive locks on the node
-                while (node.getStatus() == Status.EXCLUSIVE || node.peekWaitQueue() == Status.EXCLUSIVE)
-                {
-                    node.addWaitQueue(Status.SHARED);
-                    node.getInUse().await();
-                    node.removeWaitQueue();
-                    if (node.peekWaitQueue() == Status.SHARED)
-                        node.getInUse().signal();
-                }
-                node.addSharedLock();
-                node.setStatus(Status.SHARED);
-                node.unlock();
-            }
-            catch (InterruptedException e)
+            long now = System.nanoTime();
+            profiler.waited(path, status == Status.EXCLUSIVE, now - start);
+            if (sampled)
             {
+                profiler.acquired(path, status == Status.EXCLUSIVE, queued, now - start);
+                node.lock();
+                node.markSampled(now);
                 node.unlock();
-                throw new IllegalStateException("lock interrupted");
             }
         }
-
     }
 
 
@@ -294,13 +1616,14 @@ public class FileSystem
         throws FileNotFoundException
     {
         FileNode node = this.get(path);
+        LockProfiler profiler = isRipple ? null : this.lockProfiler;
+        long held = -1;
         node.lock();
-        if (status == Status.EXCLUSIVE)
+        try
         {
-            node.removeExclusiveLock();
-            node.setStatus(Status.OPEN);
-            node.getInUse().signal();
-            if (!isRipple)
+            node.release(status);
+            if (profiler != null) held = node.takeSampledHold();
+            if (status == Status.EXCLUSIVE && !isRipple)
             {
                 ArrayList<Path> subPaths = path.getSubPaths();
                 subPaths.remove(subPaths.size() - 1);
@@ -317,38 +1640,162 @@ public class FileSystem
                 }
             }
         }
+        finally
+        {
+            node.unlock();
+        }
+        if (held >= 0) profiler.held(path, held);
+    }
+
+    /**
+     * Starts a new data version of a file that is being locked for writing,
+     * and keeps a copy of it for the snapshots that still read it.
+     */
+    public LeaseTable.Invalidations invalidateReplicas(Path path)
+        throws FileNotFoundException, RMIException
+    {
+        ArrayList<SnapshotTable.Pin> pins = new ArrayList<>();
+        LeaseTable.Invalidations invalidations = this.invalidateReplicas(path, pins);
+        this.keep(pins);
+        return invalidations;
+    }
+
+    /**
+     * Starts a new data version of a file that is being locked for writing.
+     * Every replica but one becomes stale and is no longer handed to readers.
+     * No remote calls are made: the stale replicas are refreshed or deleted
+     * later by the replication scheduler, or immediately if there is none.
+     *
+     * <p>
+     * If snapshots that have not seen a write of the file reach it, a copy is
+     * pinned for them and added to <code>pins</code>, unless that is
+     * <code>null</code>: a stale replica, which is taken out of the file's
+     * replicas for good, or else the only replica, which is copied. A file
+     * held only as erasure-coded fragments has no replica to keep.
+     */
+    private LeaseTable.Invalidations invalidateReplicas(Path path, ArrayList<SnapshotTable.Pin> pins)
+        throws FileNotFoundException, RMIException
+    {
+        FileNode node = this.get(path);
+        if (!node.isFile()) return LeaseTable.Invalidations.NONE;
+        node.markFileSizeStale();
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        boolean advanced;
+        synchronized (node)
+        {
+            ArrayList<StorageContainer> before = node.getStorageContainers();
+            advanced = node.advanceVersion();
+            for (StorageContainer storageContainer : before)
+            {
+                if (!node.containsStorageContainer(storageContainer))
+                    invalidations.add(this.log(JournalRecord.Kind.REPLICA_STALE, path, storageContainer));
+            }
+            if (pins != null) this.pin(path, node, before, pins);
+        }
+        if (!advanced) return invalidations;
+        this.replicatedFiles.remove(path);
+        if (!invalidations.started.isEmpty())
+        {
+            this.staleCallbacks.compute(node, (key, previous) -> {
+                LeaseTable.Invalidations all = previous == null ? new LeaseTable.Invalidations() : previous;
+                all.add(invalidations);
+                return all;
+            });
+        }
+        if (this.replicationScheduler != null)
+            this.replicationScheduler.collect(path);
         else
+            this.collectStaleReplicas(path);
+        return invalidations;
+    }
+
+    /**
+     * Pins a copy of a file that is being locked for writing for the
+     * snapshots that still read it, if there are any. A replica that has just
+     * gone stale is kept rather than refreshed or deleted; without one, the
+     * current replica is copied. Called with the file's monitor held.
+     *
+     * @param before The replicas of the file before it went to a new version.
+     */
+    private void pin(Path path, FileNode node, ArrayList<StorageContainer> before,
+                     ArrayList<SnapshotTable.Pin> pins)
+    {
+        SnapshotTable.Pin pin;
+        synchronized (this.snapshots)
         {
-            node.removeSharedLock();
-            if (node.getSharedLocks() == 0)
+            HashSet<Long> readers = this.snapshots.unpinned(node);
+            ArrayList<StorageContainer> current = node.getStorageContainers();
+            if (readers.isEmpty() || current.isEmpty()) return;
+            StorageContainer stale = null;
+            for (StorageContainer storageContainer : before)
+            {
+                if (!current.contains(storageContainer)) stale = storageContainer;
+            }
+            if (stale != null)
             {
-                node.setStatus(Status.OPEN);
-                node.getInUse().signal();
+                node.removeStaleContainer(stale);
+                this.log(JournalRecord.Kind.STALE_REMOVE, path, stale);
+                this.storageRegistry.recordFileRemoved(stale, node.getFileSize());
             }
+            StorageContainer source = stale != null ? stale : current.get(0);
+            pin = this.snapshots.pin(node, path, readers, source, stale == null);
+            this.log(JournalRecord.kept(pin, path, source));
         }
-        node.unlock();
+        pins.add(pin);
     }
 
-    public ArrayList<StorageContainer> consolidateWriteData(Path path)
+    /**
+     * Has the storage servers make the copies of files pinned by
+     * <code>lock</code>, before the files are written. A server that moves a
+     * stale replica away no longer holds it; one that cannot keeps it as a
+     * stale replica, to be refreshed or deleted as usual. The copy of a file
+     * that no server kept is lost, and the snapshots reading it can no longer
+     * read the file.
+     */
+    void keep(ArrayList<SnapshotTable.Pin> pins)
         throws FileNotFoundException, RMIException
     {
-        FileNode node = this.get(path);
-        ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
-        ArrayList<StorageContainer> invalidStorageContainers = null;
-        if (storageContainers.size() > 1)
+        for (SnapshotTable.Pin pin : pins)
         {
-            invalidStorageContainers = new ArrayList<>();
-            for (int i = 0 ; i < (storageContainers.size() - 1) ; i++)
+            boolean kept;
+            try
+            {
+                Command command = pin.source.getCommand();
+                kept = pin.copy ? command.duplicate(pin.path, pin.location)
+                                : command.rename(pin.path, pin.location);
+            }
+            catch (RMIException e)
             {
-                StorageContainer invalid = storageContainers.remove(0);
-                invalid.getCommand().delete(path);
-                invalidStorageContainers.add(invalid);
+                kept = false;
+            }
+            HashSet<StorageContainer> holders = new HashSet<>();
+            if (kept) holders.add(pin.source);
+            if (!kept && !pin.copy)
+            {
+                pin.node.addStaleContainer(pin.source);
+                this.log(JournalRecord.Kind.REPLICA_STALE, pin.path, pin.source);
+                this.storageRegistry.recordFileAdded(pin.source, pin.node.getFileSize());
+                if (this.replicationScheduler != null)
+                    this.replicationScheduler.collect(pin.path);
+                else
+                    this.collectStaleReplicas(pin.path);
+            }
+            if (this.settle(pin, holders)) continue;
+            // The snapshots were deleted in the meantime
+            try
+            {
+                if (kept) pin.source.getCommand().delete(pin.location);
+            }
+            catch (RMIException e)
+            {
+                // Deleted when the server next registers
             }
-            ArrayList<StorageContainer> consolidated = new ArrayList<>();
-            consolidated.add(storageContainers.get(0));
-            node.setStorageContainers(consolidated);
         }
-        return invalidStorageContainers;
+    }
+
+    void setReplicationScheduler(ReplicationScheduler replicationScheduler)
+    {
+        this.replicationScheduler = replicationScheduler;
     }
 
     private ArrayList<FileNode> getChildren(FileNode node)
@@ -378,92 +1825,204 @@ public class FileSystem
 
     public boolean hasStorageConnected()
     {
-        if (this.root == null) return false;
-        return (this.findStorageContainer(this.root, null) != null);
+        return this.storageRegistry.size() > 0;
     }
 
     public int getNumberStorageContainers()
     {
-        Set<StorageContainer> alreadyIn = new HashSet<>();
-        while (true)
+        return this.storageRegistry.size();
+    }
+
+    /**
+     * Removes a file or directory, with everything below it, from the tree in
+     * a single step. Only the top of the subtree is journaled, since replaying
+     * its removal drops the rest as well. If a snapshot still reaches the
+     * subtree, where its storage servers are to keep it is decided and
+     * journaled with the removal, for the caller to look up in the snapshot
+     * table.
+     *
+     * The callbacks to clients caching the subtree are added to
+     * <code>invalidations</code>, to be waited for before its data is deleted.
+     *
+     * @return The removed node, or <code>null</code> if the path was not in
+     *         the tree.
+     */
+    FileNode detach(Path path, LeaseTable.Invalidations invalidations)
+        throws FileNotFoundException
+    {
+        FileNode parent = this.get(path.parent());
+        // Deciding what snapshots keep of the subtree, removing it and logging
+        // both make one step for snapshots, and replaying the journal finds the
+        // subtree still at its path
+        this.snapshots.moveLock.readLock().lock();
+        try
+        {
+            FileNode removed = parent.getChildren().get(path.last());
+            if (removed == null) return null;
+            SnapshotTable.Retained retained = this.snapshots.retain(removed, path);
+            if (retained != null) this.log(JournalRecord.kept(retained, path, null));
+            parent.getChildren().remove(path.last());
+            invalidations.add(this.log(JournalRecord.Kind.DELETE, path, null));
+            return removed;
+        }
+        finally
         {
-            StorageContainer found = findStorageContainer(this.root, alreadyIn);
-            if (found == null) break;
-            alreadyIn.add(found);
+            this.snapshots.moveLock.readLock().unlock();
         }
-        return alreadyIn.size() + this.emptyServers.size();
     }
 
-    private StorageContainer findStorageContainer(FileNode node, Set<StorageContainer> alreadyIn)
+    /**
+     * Records the storage servers that kept data for snapshots, as decided by
+     * <code>detach</code> or <code>lock</code>.
+     *
+     * @return <code>false</code> if no snapshot reads the data any more, in
+     *         which case the servers must delete it.
+     */
+    boolean settle(SnapshotTable.Retained retained, Set<StorageContainer> holders)
     {
-        boolean result;
-        Stack<FileNode> children = new Stack<>();
-        children.push(node);
-        while (children.size() > 0)
+        this.log(JournalRecord.settled(retained.location, holders));
+        return this.snapshots.settle(retained, holders);
+    }
+
+    /**
+     * Settles the accounts of a subtree removed by <code>detach</code> and adds
+     * its storage-side deletion to a bulk deletion: the top of the subtree is
+     * deleted once from every storage server holding anything below it, since
+     * storage servers delete directories recursively. The walk does not lock
+     * anything, as no other thread can reach the detached nodes.
+     *
+     * @return The servers whose deletion decides whether the subtree is
+     *         deleted. Servers holding only stale replicas are sent the
+     *         deletion as well, but their outcome is not awaited.
+     */
+    ArrayList<StorageContainer> releaseSubtree(FileNode root,
+                                               Map<StorageContainer, ArrayList<Path>> groups)
+    {
+        LinkedHashSet<StorageContainer> deciding = new LinkedHashSet<>();
+        LinkedHashSet<StorageContainer> stale = new LinkedHashSet<>();
+        ArrayDeque<FileNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty())
         {
-            FileNode popped = children.pop();
-            ArrayList<StorageContainer> storageContainers = popped.getStorageContainers();
-            for (StorageContainer sc : storageContainers)
+            FileNode node = pending.pop();
+            if (node.isFile())
             {
-                 if (sc.getCommand() != null)
-                 {
-                     if(alreadyIn == null)
-                     {
-                         return sc;
-                     }
-                     else if(!alreadyIn.contains(sc))
-                     {
-                         return sc;
-                     }
-                 }
+                for (StorageContainer sc : node.getStorageContainers())
+                {
+                    this.storageRegistry.recordFileRemoved(sc, node.getFileSize());
+                    deciding.add(sc);
+                }
+                // Locking the subtree for its deletion waited for the callbacks
+                // that its replicas went stale
+                this.staleCallbacks.remove(node);
+                for (StorageContainer sc : node.takeStaleContainers())
+                {
+                    this.storageRegistry.recordFileRemoved(sc, node.getFileSize());
+                    stale.add(sc);
+                }
+                ErasureLayout layout = this.erasureCoded.remove(node);
+                if (layout != null)
+                {
+                    for (StorageContainer sc : layout.getLiveHolders())
+                    {
+                        this.storageRegistry.recordFileRemoved(sc, layout.getFragmentSize());
+                        deciding.add(sc);
+                    }
+                }
+                continue;
             }
-            for (FileNode child : popped.getChildren().values())
+            for (StorageContainer sc : node.getStorageContainers())
             {
-                children.push(child);
+                // Directories made before any file was placed below them carry
+                // a container without stubs, which stands for no server at all
+                if (sc.getCommand() != null) deciding.add(sc);
             }
+            for (FileNode child : node.getChildren().values()) pending.push(child);
         }
-        return null;
+        stale.addAll(deciding);
+        for (StorageContainer sc : stale)
+            groups.computeIfAbsent(sc, k -> new ArrayList<>()).add(root.getPath());
+        return new ArrayList<>(deciding);
     }
 
     /**
-     * Removes children directory and its children references from the naming server
-     * @param path
-     * @return
-     * @throws FileNotFoundException
-     * @throws RMIException
+     * Forgets a storage server that has failed. The server is taken out of the
+     * replica lists of every file and directory, so that it is never handed to
+     * a client again. A file whose only replica it held keeps an empty replica
+     * list until a server with a copy registers and the copy is adopted.
+     * Fragments of erasure-coded files held by the server are marked lost in
+     * their layouts. Nothing is sent to the failed server. The call returns
+     * once the clients caching the affected files have been told, so that
+     * the repairs that follow never replace what a client is still sent to.
+     *
+     * @return The files that lost a replica or a fragment.
      */
-    public boolean childDelete(Path path)
-        throws FileNotFoundException, RMIException
+    ArrayList<FileNode> removeStorageServer(StorageContainer storageContainer)
     {
-        FileNode node = this.get(path);
-        ArrayList<FileNode> children = new ArrayList<>(node.getChildren().values());
-        boolean childResult = true;
-        if (children.size() > 0)
+        ArrayList<FileNode> affected = new ArrayList<>();
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        ArrayDeque<FileNode> pending = new ArrayDeque<>();
+        pending.push(this.root);
+        while (!pending.isEmpty())
         {
-            for (int i = 0 ; i < children.size() ; i++)
+            FileNode node = pending.pop();
+            synchronized (node)
             {
-                FileNode child = children.get(i);
-                childResult = childResult && this.childDelete(child.getPath());
+                if (node.removeStaleContainer(storageContainer))
+                    invalidations.add(this.log(JournalRecord.Kind.STALE_REMOVE, node.getPath(), storageContainer));
+                if (node.containsStorageContainer(storageContainer))
+                {
+                    ArrayList<StorageContainer> remaining = new ArrayList<>(node.getStorageContainers());
+                    remaining.remove(storageContainer);
+                    node.setStorageContainers(remaining);
+                    if (node.isFile())
+                    {
+                        if (remaining.size() <= 1) this.replicatedFiles.remove(node.getPath());
+                        invalidations.add(this.log(JournalRecord.Kind.REPLICA_REMOVE, node.getPath(), storageContainer));
+                        affected.add(node);
+                    }
+                }
+                ErasureLayout layout = node.isFile() ? this.erasureCoded.get(node) : null;
+                if (layout != null && layout.isHolder(storageContainer))
+                {
+                    this.erasureCoded.put(node, layout.without(storageContainer));
+                    invalidations.add(this.log(node.getPath(), this.erasureCoded.get(node)));
+                    affected.add(node);
+                }
             }
+            if (node.isFile()) continue;
+            for (FileNode child : node.getChildren().values()) pending.push(child);
         }
-        return childResult && this.remove(path);
+        invalidations.await();
+        return affected;
     }
 
     /**
-     * Calls delete on storage server that contains path
-     * @param path
-     * @return
-     * @throws FileNotFoundException
-     * @throws RMIException
+     * Releases the shared locks that an exclusive lock on <code>path</code>
+     * took on its ancestors, once the path itself has been deleted.
      */
-    public boolean delete(Path path)
-        throws FileNotFoundException, RMIException
+    void unlockDeleted(Path path)
+        throws FileNotFoundException
     {
-        boolean result = true;
-        for (StorageContainer sc : this.get(path).getStorageContainers())
-        {
-            result = result && sc.getCommand().delete(path);
-        }
-        return result;
+        ArrayList<Path> subPaths = path.getSubPaths();
+        subPaths.remove(subPaths.size() - 1);
+        for (int i = (subPaths.size() - 1) ; i >= 0 ; i--)
+            this.unlockHelper(subPaths.get(i), Status.SHARED, true);
+    }
+
+    /**
+     * Releases an exclusive lock taken on <code>source</code> once the locked
+     * object has been moved to <code>target</code>: the object and everything
+     * below it are unlocked where they now are, and the shared locks on the
+     * ancestors of the old path where those still are.
+     */
+    void unlockMoved(Path source, Path target)
+        throws FileNotFoundException
+    {
+        FileNode node = this.get(target);
+        this.unlockHelper(target, Status.EXCLUSIVE, true);
+        for (FileNode child : this.getChildren(node))
+            this.unlockHelper(child.getPath(), Status.EXCLUSIVE, true);
+        this.unlockDeleted(source);
     }
 }
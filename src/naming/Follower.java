@@ -0,0 +1,430 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only copy of a naming server, for spreading metadata reads.
+ *
+ * <p>
+ * A follower loads a snapshot of the primary naming server's directory tree
+ * when it starts, and then tails the primary's mutation stream, applying each
+ * mutation as the primary's journal replay would. It serves the calls that
+ * only read the tree - <code>isDirectory</code>, <code>list</code>,
+ * <code>getStorage</code> and <code>getReplicas</code> - from its own copy, and
+ * forwards everything else to the primary. Directory listings with sizes are
+ * forwarded too, since the sizes of written files are not part of the
+ * mutation stream.
+ *
+ * <p>
+ * Reads from a follower have bounded staleness: they reflect every mutation
+ * the primary had made at most <code>maxStalenessMillis</code> before. A
+ * follower that cannot show it is that fresh, because it has lost contact
+ * with the primary or fallen behind, forwards reads to the primary until it
+ * catches up again. A mutation a client makes through a follower is visible
+ * in the follower's own reads as soon as the call returns.
+ *
+ * <p>
+ * Clients choose their consistency by choosing the server they talk to: a
+ * stub for a follower gives follower reads, and a stub for the primary gives
+ * strongly consistent reads, which also respect the locks held at the
+ * primary. The two can be used side by side, reading from the follower what
+ * may be slightly out of date and from the primary what may not.
+ */
+public class Follower
+    implements Service, Serializable
+{
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 1000;
+    /** Largest number of mutations asked for in one call. */
+    static final int BATCH_LIMIT = 4096;
+    /** Time to wait before calling an unreachable primary again. */
+    static final long RETRY_MILLIS = 100;
+
+    Service primary;
+    int servicePort;
+    long maxStalenessMillis;
+    volatile FileSystem fileSystem;
+    /** Guards the application of mutations and the sequence number below. */
+    final Object applyLock = new Object();
+    long appliedSequence;
+    /** Time as of which the copy is known to hold every mutation. */
+    volatile long freshAt = 0;
+    /** Number of snapshots loaded, including the first. */
+    volatile int snapshots = 0;
+    AtomicInteger nextReplica = new AtomicInteger();
+    volatile boolean stopped = false;
+    Thread tailer;
+    Skeleton<Service> serviceSkeleton;
+
+    /**
+     * Creates a follower of the naming server reached through
+     * <code>primary</code>, which will serve clients on
+     * <code>servicePort</code>.
+     *
+     * <p>
+     * The follower is not started.
+     */
+    public Follower(Service primary, int servicePort, long maxStalenessMillis)
+    {
+        if (primary == null) throw new NullPointerException("primary is null");
+        this.primary = primary;
+        this.servicePort = servicePort;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Loads a snapshot from the primary, starts tailing its mutations, and
+     * makes the follower accessible to clients.
+     *
+     * @throws RMIException If the primary cannot be reached or the client
+     *                      interface cannot be started.
+     */
+    public synchronized void start()
+        throws RMIException
+    {
+        synchronized (this.applyLock)
+        {
+            this.loadSnapshot();
+        }
+        this.tailer = new Thread(this::tail, "follower-tailer");
+        this.tailer.setDaemon(true);
+        this.tailer.start();
+        try
+        {
+            this.serviceSkeleton = new Skeleton<Service>(
+                Service.class,
+                this,
+                new InetSocketAddress("127.0.0.1", this.servicePort)
+            );
+            this.serviceSkeleton.start();
+        }
+        catch (Exception e)
+        {
+            this.stopped = true;
+            this.tailer.interrupt();
+            throw new RMIException("Service Skeleton could not start", e.getCause());
+        }
+    }
+
+    /** Stops serving clients and tailing the primary. */
+    public void stop()
+    {
+        this.stopped = true;
+        if (this.tailer != null) this.tailer.interrupt();
+        if (this.serviceSkeleton != null) this.serviceSkeleton.stop();
+    }
+
+    /** Replaces the copy of the tree with a new snapshot from the primary.
+        Called holding <code>applyLock</code>. */
+    private void loadSnapshot()
+        throws RMIException
+    {
+        FileSystem loaded = new FileSystem();
+        try
+        {
+            this.appliedSequence = Checkpoint.load(ByteBuffer.wrap(this.primary.snapshot()), loaded);
+        }
+        catch (IOException e)
+        {
+            throw new RMIException("cannot load snapshot", e);
+        }
+        this.fileSystem = loaded;
+        this.snapshots++;
+    }
+
+    /** Applies the primary's mutations as they are made, until stopped. */
+    private void tail()
+    {
+        while (!this.stopped)
+        {
+            try
+            {
+                this.pull(this.maxStalenessMillis / 2);
+            }
+            catch (RMIException | RuntimeException e)
+            {
+                try
+                {
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                catch (InterruptedException interrupted)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the primary for one batch of mutations and applies it, waiting up
+     * to <code>waitMillis</code> for a mutation if there is none.
+     *
+     * @return <code>true</code> if the copy held every mutation of the primary
+     *         as of the call.
+     */
+    private boolean pull(long waitMillis)
+        throws RMIException
+    {
+        long asked = System.currentTimeMillis();
+        long sequence;
+        synchronized (this.applyLock)
+        {
+            sequence = this.appliedSequence;
+        }
+        MutationBatch batch = this.primary.mutationsSince(sequence, BATCH_LIMIT, waitMillis);
+        synchronized (this.applyLock)
+        {
+            if (batch.isTruncated())
+            {
+                this.loadSnapshot();
+                return false;
+            }
+            for (JournalRecord record : batch.getRecords())
+            {
+                // Another pull may have applied the same records meanwhile
+                if (record.getSequence() <= this.appliedSequence) continue;
+                try
+                {
+                    this.fileSystem.apply(record);
+                }
+                catch (FileNotFoundException e)
+                {
+                    // A file stands where the record needs a directory;
+                    // start again from the primary's tree
+                    this.loadSnapshot();
+                    return false;
+                }
+                this.appliedSequence = record.getSequence();
+            }
+            if (this.appliedSequence < batch.getLastSequence()) return false;
+        }
+        this.freshAt = Math.max(this.freshAt, asked);
+        return true;
+    }
+
+    /** Applies every mutation the primary has made so far. */
+    private void catchUp()
+        throws RMIException
+    {
+        while (!this.pull(0))
+        {
+            if (this.stopped) return;
+        }
+    }
+
+    /** Returns <code>true</code> if reads may be served from the copy. */
+    boolean isFresh()
+    {
+        return System.currentTimeMillis() - this.freshAt <= this.maxStalenessMillis;
+    }
+
+    // Reads served from the copy while it is fresh.
+    @Override
+    public boolean isDirectory(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        if (!this.isFresh()) return this.primary.isDirectory(path);
+        return this.fileSystem.isDirectory(path);
+    }
+
+    @Override
+    public String[] list(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        if (!this.isFresh()) return this.primary.list(directory);
+        FileSystem fileSystem = this.fileSystem;
+        if (!fileSystem.hasPath(directory))
+            throw new FileNotFoundException("directory does not exist");
+        return fileSystem.getChildrenStrings(directory);
+    }
+
+    @Override
+    public Storage getStorage(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        if (!this.isFresh() || this.isErasureCoded(file)) return this.primary.getStorage(file);
+        return this.storageContainers(file).get(0).getStorage();
+    }
+
+    /**
+     * Returns the replicas of a file in the primary's order, rotated at each
+     * call: the follower does not know the loads of the storage servers, and
+     * so spreads its clients over all of them instead.
+     */
+    @Override
+    public Replica[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        if (!this.isFresh() || this.isErasureCoded(file)) return this.primary.getReplicas(file);
+        ArrayList<StorageContainer> storageContainers = this.storageContainers(file);
+        int first = Math.floorMod(this.nextReplica.getAndIncrement(), storageContainers.size());
+        Replica[] replicas = new Replica[storageContainers.size()];
+        for (int i = 0 ; i < replicas.length ; i++)
+        {
+            Storage storage = storageContainers.get((first + i) % replicas.length).getStorage();
+            InetSocketAddress address = Stub.address(storage);
+            replicas[i] = new Replica(storage,
+                address == null ? null : address.getAddress().getHostAddress(), 0);
+        }
+        return replicas;
+    }
+
+    /** Returns <code>true</code> if the file is erasure-coded: the primary
+        hands out its fragments and restores it, which the follower cannot. */
+    private boolean isErasureCoded(Path file)
+    {
+        try
+        {
+            return file != null && this.fileSystem.getErasureLayout(file) != null;
+        }
+        catch (FileNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    private ArrayList<StorageContainer> storageContainers(Path file)
+        throws FileNotFoundException
+    {
+        FileSystem fileSystem = this.fileSystem;
+        if (file == null) throw new NullPointerException("path is null");
+        if (!fileSystem.hasPath(file) || file.toString().equals("/"))
+            throw new FileNotFoundException("path does not exist");
+        if (fileSystem.isDirectory(file))
+            throw new FileNotFoundException("cannot pass in directory");
+        ArrayList<StorageContainer> storageContainers = fileSystem.get(file).getStorageContainers();
+        if (storageContainers.isEmpty())
+            throw new FileNotFoundException("no live replica of file");
+        return storageContainers;
+    }
+
+    // Everything else goes to the primary. Mutations are followed by a pull,
+    // so that the client's next read from this follower sees them.
+    @Override
+    public void lock(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException
+    {
+        this.primary.lock(path, exclusive);
+    }
+
+    @Override
+    public void unlock(Path path, boolean exclusive)
+        throws RMIException
+    {
+        this.primary.unlock(path, exclusive);
+    }
+
+    @Override
+    public DirectoryListing listEntries(Path path, String after, int limit)
+        throws RMIException, FileNotFoundException
+    {
+        return this.primary.listEntries(path, after, limit);
+    }
+
+    @Override
+    public boolean createFile(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        boolean created = this.primary.createFile(file);
+        this.catchUp();
+        return created;
+    }
+
+    @Override
+    public boolean createDirectory(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        boolean created = this.primary.createDirectory(directory);
+        this.catchUp();
+        return created;
+    }
+
+    @Override
+    public boolean delete(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        boolean deleted = this.primary.delete(path);
+        this.catchUp();
+        return deleted;
+    }
+
+    @Override
+    public boolean rename(Path source, Path target)
+        throws RMIException, FileNotFoundException
+    {
+        boolean renamed = this.primary.rename(source, target);
+        this.catchUp();
+        return renamed;
+    }
+
+    @Override
+    public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+        throws RMIException
+    {
+        BatchStatus[] results = this.primary.createAll(paths, directories);
+        this.catchUp();
+        return results;
+    }
+
+    @Override
+    public BatchStatus[] deleteAll(Path[] paths)
+        throws RMIException
+    {
+        BatchStatus[] results = this.primary.deleteAll(paths);
+        this.catchUp();
+        return results;
+    }
+
+    @Override
+    public WatchBatch watch(Path path, boolean subtree, long sequence, int limit, long waitMillis)
+        throws RMIException
+    {
+        return this.primary.watch(path, subtree, sequence, limit, waitMillis);
+    }
+
+    @Override
+    public LockReport getLockReport(Path prefix, int limit)
+        throws RMIException
+    {
+        return this.primary.getLockReport(prefix, limit);
+    }
+
+    @Override
+    public boolean createSnapshot(String name)
+        throws RMIException
+    {
+        return this.primary.createSnapshot(name);
+    }
+
+    @Override
+    public boolean deleteSnapshot(String name)
+        throws RMIException
+    {
+        return this.primary.deleteSnapshot(name);
+    }
+
+    @Override
+    public String[] listSnapshots()
+        throws RMIException
+    {
+        return this.primary.listSnapshots();
+    }
+
+    @Override
+    public SnapshotEntry readSnapshot(String name, Path path)
+        throws RMIException, FileNotFoundException
+    {
+        return this.primary.readSnapshot(name, path);
+    }
+}
@@ -0,0 +1,65 @@
+package naming;
+
+import storage.Storage;
+
+/**
+ * One fragment of an erasure-coded file, as handed to clients by
+ * <code>Service.getReplicas</code> in place of full replicas.
+ *
+ * <p>
+ * Fragment <code>getIndex()</code> of a file of <code>getFileSize()</code>
+ * bytes is stored under the file's path on the fragment's storage server.
+ * Data fragment <code>i</code> holds bytes <code>i * getFragmentSize()</code>
+ * onwards of the file, the last one padded with zeros; the others are parity.
+ * Any <code>getDataFragments()</code> of the fragments are enough to rebuild
+ * the file. Lost fragments are not returned.
+ */
+public class Fragment
+    extends Replica
+{
+    int index;
+    int dataFragments;
+    int parityFragments;
+    long fileSize;
+
+    Fragment(Storage storage, String host, double load, int index, ErasureLayout layout)
+    {
+        super(storage, host, load);
+        this.index = index;
+        this.dataFragments = layout.getDataFragments();
+        this.parityFragments = layout.getParityFragments();
+        this.fileSize = layout.getFileSize();
+    }
+
+    public int getIndex()
+    {
+        return this.index;
+    }
+
+    public int getDataFragments()
+    {
+        return this.dataFragments;
+    }
+
+    public int getParityFragments()
+    {
+        return this.parityFragments;
+    }
+
+    public long getFileSize()
+    {
+        return this.fileSize;
+    }
+
+    public int getFragmentSize()
+    {
+        return ErasureLayout.fragmentSize(this.fileSize, this.dataFragments);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[Fragment| " + this.index + " of " + this.dataFragments + "+" + this.parityFragments
+            + ", " + this.host + ", load " + String.format("%.1f", this.load) + "]";
+    }
+}
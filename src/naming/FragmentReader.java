@@ -0,0 +1,215 @@
+package naming;
+
+import common.Path;
+import common.ReedSolomon;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads an erasure-coded file from its fragments.
+ *
+ * <p>
+ * A range of the file is read from the data fragments that hold it, one call
+ * per fragment, all in parallel. Only if one of those fragments is lost or
+ * cannot be read is the range rebuilt: the same range of fragment offsets is
+ * then read from as many live fragments as there are data fragments, again in
+ * parallel, falling back on the remaining fragments as reads fail, and the
+ * data is decoded. Up to <code>parityFragments</code> fragments may be lost.
+ *
+ * <p>
+ * The naming server uses the reader to restore and repair coded files, and
+ * clients use it to read them. Readers are safe to share between threads.
+ */
+public class FragmentReader
+{
+    final Storage[] holders;
+    final int dataFragments;
+    final long fileSize;
+    final int fragmentSize;
+    final ReedSolomon code;
+    final Executor executor;
+
+    /**
+     * Creates a reader for a file with the given fragments.
+     *
+     * @param holders The storage server holding each fragment, in fragment
+     *                order, with <code>null</code> for a lost fragment.
+     * @param executor Executor making the calls to the storage servers.
+     */
+    public FragmentReader(Storage[] holders, int dataFragments, int parityFragments, long fileSize,
+                          Executor executor)
+    {
+        if (holders.length != dataFragments + parityFragments)
+            throw new IllegalArgumentException("one holder needed per fragment");
+        this.holders = holders.clone();
+        this.dataFragments = dataFragments;
+        this.fileSize = fileSize;
+        this.fragmentSize = ErasureLayout.fragmentSize(fileSize, dataFragments);
+        this.code = new ReedSolomon(dataFragments, parityFragments);
+        this.executor = executor;
+    }
+
+    /** Creates a reader for the fragments handed out by
+        <code>Service.getReplicas</code>. */
+    public FragmentReader(Fragment[] fragments, Executor executor)
+    {
+        this(holdersOf(fragments), fragments[0].getDataFragments(), fragments[0].getParityFragments(),
+             fragments[0].getFileSize(), executor);
+    }
+
+    private static Storage[] holdersOf(Fragment[] fragments)
+    {
+        Storage[] holders = new Storage[fragments[0].getDataFragments() + fragments[0].getParityFragments()];
+        for (Fragment fragment : fragments) holders[fragment.getIndex()] = fragment.getStorage();
+        return holders;
+    }
+
+    public long getFileSize()
+    {
+        return this.fileSize;
+    }
+
+    /**
+     * Reads <code>length</code> bytes of the file from <code>offset</code>.
+     *
+     * @throws IndexOutOfBoundsException If the range is not within the file.
+     * @throws FileNotFoundException If too many fragments are lost or
+     *                               missing to rebuild the range.
+     * @throws IOException If the read is interrupted.
+     */
+    public byte[] read(Path file, long offset, int length)
+        throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > this.fileSize)
+            throw new IndexOutOfBoundsException("range not within file");
+        byte[] data = new byte[length];
+        if (length == 0) return data;
+        int first = (int) (offset / this.fragmentSize);
+        int last = (int) ((offset + length - 1) / this.fragmentSize);
+
+        HashMap<Integer, FutureTask<byte[]>> reads = new HashMap<>();
+        int low = this.fragmentSize;
+        int high = 0;
+        for (int j = first ; j <= last ; j++)
+        {
+            long base = (long) j * this.fragmentSize;
+            int start = (int) (Math.max(offset, base) - base);
+            int end = (int) (Math.min(offset + length, base + this.fragmentSize) - base);
+            low = Math.min(low, start);
+            high = Math.max(high, end);
+            if (this.holders[j] != null) reads.put(j, this.submit(this.holders[j], file, start, end - start));
+        }
+        boolean complete = reads.size() == last - first + 1;
+        for (Map.Entry<Integer, FutureTask<byte[]>> read : reads.entrySet())
+        {
+            byte[] piece = this.await(read.getValue());
+            if (piece == null)
+            {
+                complete = false;
+                continue;
+            }
+            long base = (long) read.getKey() * this.fragmentSize;
+            System.arraycopy(piece, 0, data, (int) (Math.max(offset, base) - offset), piece.length);
+        }
+        if (complete) return data;
+
+        // Rebuild the whole range of fragment offsets the pieces span
+        byte[][] shards = this.gather(file, low, high - low);
+        this.code.decodeData(shards, 0, high - low, first, last + 1);
+        for (int j = first ; j <= last ; j++)
+        {
+            long base = (long) j * this.fragmentSize;
+            int start = (int) (Math.max(offset, base) - base);
+            int end = (int) (Math.min(offset + length, base + this.fragmentSize) - base);
+            System.arraycopy(shards[j], start - low, data, (int) (base + start - offset), end - start);
+        }
+        return data;
+    }
+
+    /**
+     * Reads <code>length</code> bytes from <code>offset</code> of every
+     * fragment, reading from only as many live fragments as there are data
+     * fragments and decoding the rest.
+     *
+     * @return The range of each fragment, in fragment order.
+     * @throws FileNotFoundException If too many fragments are lost or
+     *                               missing.
+     */
+    public byte[][] readFragments(Path file, int offset, int length)
+        throws IOException
+    {
+        byte[][] shards = this.gather(file, offset, length);
+        this.code.decode(shards, 0, length);
+        return shards;
+    }
+
+    /** Reads a range of as many live fragments as there are data fragments,
+        leaving the others <code>null</code>. */
+    private byte[][] gather(Path file, int offset, int length)
+        throws IOException
+    {
+        byte[][] shards = new byte[this.holders.length][];
+        ArrayDeque<Integer> candidates = new ArrayDeque<>();
+        for (int i = 0 ; i < this.holders.length ; i++)
+        {
+            if (this.holders[i] != null) candidates.add(i);
+        }
+        int found = 0;
+        while (found < this.dataFragments)
+        {
+            int wanted = this.dataFragments - found;
+            if (candidates.size() < wanted)
+                throw new FileNotFoundException("too many fragments of file lost");
+            HashMap<Integer, FutureTask<byte[]>> reads = new HashMap<>();
+            for (int i = 0 ; i < wanted ; i++)
+            {
+                int index = candidates.poll();
+                reads.put(index, this.submit(this.holders[index], file, offset, length));
+            }
+            for (Map.Entry<Integer, FutureTask<byte[]>> read : reads.entrySet())
+            {
+                byte[] shard = this.await(read.getValue());
+                if (shard == null) continue;
+                shards[read.getKey()] = shard;
+                found++;
+            }
+        }
+        return shards;
+    }
+
+    private FutureTask<byte[]> submit(Storage storage, Path file, int offset, int length)
+    {
+        FutureTask<byte[]> task = new FutureTask<>(() -> storage.read(file, offset, length));
+        this.executor.execute(task);
+        return task;
+    }
+
+    /** Waits for a read, returning <code>null</code> if it failed. */
+    private byte[] await(FutureTask<byte[]> read)
+        throws InterruptedIOException
+    {
+        try
+        {
+            return read.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("interrupted while reading fragments");
+        }
+        catch (ExecutionException e)
+        {
+            // The fragment is missing or its server cannot be reached;
+            // another fragment is read instead
+            return null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Periodic report sent by a storage server to show that it is alive.
+ *
+ * <p>
+ * Besides its arrival, which is what the naming server's failure detector
+ * watches, a heartbeat carries the interval at which the server sends them
+ * and the server's current <code>CapacityReport</code>.
+ */
+public class Heartbeat
+    implements Serializable
+{
+    long intervalMillis;
+    CapacityReport capacity;
+
+    public Heartbeat(long intervalMillis, CapacityReport capacity)
+    {
+        this.intervalMillis = intervalMillis;
+        this.capacity = capacity;
+    }
+
+    /** Returns the time between two heartbeats of the server. */
+    public long getIntervalMillis()
+    {
+        return this.intervalMillis;
+    }
+
+    /** Returns the server's disk usage and I/O rates, or <code>null</code> if
+        the heartbeat does not carry them. */
+    public CapacityReport getCapacity()
+    {
+        return this.capacity;
+    }
+
+    public String toString()
+    {
+        return "[Heartbeat| every " + this.intervalMillis + " ms, " + this.capacity + "]";
+    }
+}
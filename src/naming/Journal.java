@@ -0,0 +1,603 @@
+package naming;
+
+import common.Path;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of namespace mutations.
+ *
+ * <p>
+ * Every change to the directory tree - file and directory creation, deletion,
+ * renaming, the addition or removal of a replica, and the snapshots taken
+ * with the data kept for them - is appended to the journal as a
+ * <code>JournalRecord</code>. After a restart, replaying the
+ * journal restores the namespace without waiting for storage servers to
+ * register, and restores empty directories, which no storage server reports.
+ *
+ * <p>
+ * Appending only queues a record in memory. A single writer thread collects
+ * the queued records into batches and writes each batch with one write and
+ * one <code>fsync</code>: this is group commit. A batch is flushed when
+ * <code>maxBatch</code> records are queued or <code>fsyncIntervalMillis</code>
+ * after its first record was queued, whichever comes first. Callers that must
+ * not acknowledge a mutation before it is durable call <code>sync</code>,
+ * which waits for the batch containing their records.
+ *
+ * <p>
+ * On disk, each record is framed as its length, the record itself, and a CRC32
+ * of the record. A torn write at the end of the file is detected on replay and
+ * truncated away.
+ *
+ * <p>
+ * The journal is split into segments, each named after the sequence number of
+ * its first record. When a <code>Checkpoint</code> is taken the journal is
+ * rolled over to a new segment, and the segments the checkpoint covers are
+ * deleted once it has been written. At startup the checkpoint is loaded first
+ * and only the records after it are replayed.
+ */
+public class Journal
+{
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 5;
+    public static final int DEFAULT_MAX_BATCH = 1024;
+    static final String SEGMENT_PREFIX = "journal.";
+
+    File directory;
+    FileChannel channel;
+    long fsyncIntervalMillis;
+    int maxBatch;
+
+    ArrayList<JournalRecord> queued = new ArrayList<>();
+    long nextSequence = 1;
+    long durableSequence = 0;
+    long checkpointSequence = 0;
+    long rollAt = 0;
+    boolean closed = false;
+    IOException failure;
+    Thread writer;
+    HashMap<StorageContainer, byte[]> encodedContainers = new HashMap<>();
+
+    /**
+     * Opens the journal in the given directory, creating it if necessary, and
+     * restores <code>fileSystem</code> from the latest checkpoint and the
+     * records appended after it.
+     */
+    public Journal(File directory, FileSystem fileSystem, long fsyncIntervalMillis, int maxBatch)
+        throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new FileNotFoundException("cannot create journal directory " + directory);
+        this.directory = directory;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.checkpointSequence = Checkpoint.load(directory, fileSystem);
+        long lastSequence = this.checkpointSequence;
+        ArrayList<File> segments = segments(directory);
+        for (int i = 0 ; i < segments.size() ; i++)
+        {
+            FileChannel segment = open(segments.get(i));
+            lastSequence = Math.max(lastSequence, replay(segment, fileSystem, this.checkpointSequence));
+            if (i == segments.size() - 1)
+                this.channel = segment;
+            else
+                segment.close();
+        }
+        if (this.channel == null)
+            this.channel = open(segmentFile(directory, lastSequence + 1));
+        this.nextSequence = lastSequence + 1;
+        this.durableSequence = lastSequence;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a mutation and returns its sequence number. The record is not
+     * durable until a later call to <code>sync</code> returns.
+     */
+    public synchronized long append(JournalRecord.Kind kind, Path path, StorageContainer storageContainer,
+                                    Path target)
+    {
+        long sequence = this.nextSequence++;
+        this.queued.add(new JournalRecord(sequence, kind, path, storageContainer, target));
+        if (this.queued.size() == 1 || this.queued.size() >= this.maxBatch)
+            this.notifyAll();
+        return sequence;
+    }
+
+    /** Queues the switch of a file to or from an erasure layout and returns
+        its sequence number. */
+    public synchronized long append(Path path, ErasureLayout erasureLayout)
+    {
+        long sequence = this.nextSequence++;
+        this.queued.add(new JournalRecord(sequence, path, erasureLayout));
+        if (this.queued.size() == 1 || this.queued.size() >= this.maxBatch)
+            this.notifyAll();
+        return sequence;
+    }
+
+    /** Queues a record of snapshots and the data kept for them, made
+        without a sequence number, and returns its sequence number. */
+    public synchronized long append(JournalRecord record)
+    {
+        long sequence = this.nextSequence++;
+        this.queued.add(record.at(sequence));
+        if (this.queued.size() == 1 || this.queued.size() >= this.maxBatch)
+            this.notifyAll();
+        return sequence;
+    }
+
+    /** Waits until every record appended so far is on disk. */
+    public synchronized void sync()
+        throws IOException
+    {
+        long target = this.nextSequence - 1;
+        while (this.durableSequence < target)
+        {
+            if (this.failure != null) throw this.failure;
+            if (this.closed) throw new IOException("journal closed");
+            try
+            {
+                this.wait();
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("journal sync interrupted");
+            }
+        }
+    }
+
+    /** Returns the sequence number of the last record appended. */
+    public synchronized long getLastSequence()
+    {
+        return this.nextSequence - 1;
+    }
+
+    /** Returns the sequence number of the last record covered by the
+        checkpoint the journal was restored from. */
+    public synchronized long getCheckpointSequence()
+    {
+        return this.checkpointSequence;
+    }
+
+    /**
+     * Starts a new segment for the records appended from now on, and waits
+     * until the writer has switched to it.
+     *
+     * @return The sequence number of the last record in the earlier segments.
+     */
+    synchronized long roll()
+        throws IOException
+    {
+        long sequence = this.nextSequence - 1;
+        this.rollAt = this.nextSequence;
+        this.notifyAll();
+        while (this.rollAt != 0)
+        {
+            if (this.failure != null) throw this.failure;
+            if (this.closed) throw new IOException("journal closed");
+            try
+            {
+                this.wait();
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("journal roll interrupted");
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Deletes the segments that only hold records up to
+     * <code>sequence</code>, once a checkpoint covering them is on disk.
+     */
+    synchronized void discardThrough(long sequence)
+    {
+        this.checkpointSequence = sequence;
+        ArrayList<File> segments = segments(this.directory);
+        for (int i = 0 ; i < segments.size() - 1 ; i++)
+        {
+            // A segment ends where the next one starts
+            if (firstSequence(segments.get(i + 1)) <= sequence + 1)
+                segments.get(i).delete();
+        }
+    }
+
+    /** Flushes the queued records and closes the journal file. */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (this.closed) return;
+            this.closed = true;
+            this.notifyAll();
+        }
+        try
+        {
+            this.writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        try
+        {
+            this.channel.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing more can be done about it on shutdown
+        }
+    }
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            ArrayList<JournalRecord> batch;
+            long rollAt;
+            synchronized (this)
+            {
+                while (this.queued.isEmpty() && this.rollAt == 0 && !this.closed)
+                {
+                    try
+                    {
+                        this.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                if (this.queued.isEmpty() && this.rollAt == 0) return;
+                // Give more records a chance to join the batch
+                long deadline = System.currentTimeMillis() + this.fsyncIntervalMillis;
+                long remaining;
+                while (!this.closed && !this.queued.isEmpty() && this.queued.size() < this.maxBatch
+                    && (remaining = deadline - System.currentTimeMillis()) > 0)
+                {
+                    try
+                    {
+                        this.wait(remaining);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                batch = this.queued;
+                this.queued = new ArrayList<>();
+                rollAt = this.rollAt;
+            }
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (JournalRecord record : batch)
+                {
+                    if (rollAt != 0 && record.getSequence() >= rollAt)
+                    {
+                        this.write(bytes);
+                        this.switchSegment(rollAt);
+                        rollAt = 0;
+                    }
+                    this.encode(record, bytes);
+                }
+                this.write(bytes);
+                // Every record before the roll is written by now
+                if (rollAt != 0)
+                {
+                    this.switchSegment(rollAt);
+                }
+                if (!batch.isEmpty())
+                {
+                    synchronized (this)
+                    {
+                        this.durableSequence = batch.get(batch.size() - 1).getSequence();
+                        this.notifyAll();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                synchronized (this)
+                {
+                    this.failure = e;
+                    this.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void switchSegment(long firstSequence)
+        throws IOException
+    {
+        this.channel.close();
+        this.channel = open(segmentFile(this.directory, firstSequence));
+        synchronized (this)
+        {
+            this.rollAt = 0;
+            this.notifyAll();
+        }
+    }
+
+    /** Writes and forces the encoded records to the current segment. */
+    private void write(ByteArrayOutputStream bytes)
+        throws IOException
+    {
+        if (bytes.size() == 0) return;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        bytes.reset();
+        while (buffer.hasRemaining())
+        {
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+    }
+
+    private static FileChannel open(File segment)
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(segment.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    static File segmentFile(File directory, long firstSequence)
+    {
+        return new File(directory, SEGMENT_PREFIX + String.format("%020d", firstSequence));
+    }
+
+    private static long firstSequence(File segment)
+    {
+        return Long.parseLong(segment.getName().substring(SEGMENT_PREFIX.length()));
+    }
+
+    /** Returns the journal segments in a directory, oldest first. */
+    static ArrayList<File> segments(File directory)
+    {
+        ArrayList<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) return segments;
+        for (File file : files)
+        {
+            if (file.getName().startsWith(SEGMENT_PREFIX))
+            {
+                try
+                {
+                    firstSequence(file);
+                    segments.add(file);
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not a segment
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(Journal::firstSequence));
+        return segments;
+    }
+
+    private void encode(JournalRecord record, ByteArrayOutputStream out)
+        throws IOException
+    {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(record.getSequence());
+        payload.writeByte(record.getKind().ordinal());
+        payload.writeUTF(record.getPath().toString());
+        byte[] container = record.getStorageContainer() == null
+            ? new byte[0]
+            : this.encodeContainer(record.getStorageContainer());
+        payload.writeInt(container.length);
+        payload.write(container);
+        // Only renames and records of kept data carry a second path, so older
+        // records read as before
+        if (record.getTarget() != null)
+            payload.writeUTF(record.getTarget().toString());
+        // Erasure switches carry the layout, a lost fragment as an empty
+        // holder
+        if (record.getKind() == JournalRecord.Kind.ERASURE)
+        {
+            ErasureLayout layout = record.getErasureLayout();
+            payload.writeBoolean(layout != null);
+            if (layout != null)
+            {
+                payload.writeInt(layout.getDataFragments());
+                payload.writeInt(layout.getParityFragments());
+                payload.writeLong(layout.getFileSize());
+                for (int i = 0 ; i < layout.getDataFragments() + layout.getParityFragments() ; i++)
+                {
+                    byte[] holder = layout.getHolder(i) == null
+                        ? new byte[0]
+                        : this.encodeContainer(layout.getHolder(i));
+                    payload.writeInt(holder.length);
+                    payload.write(holder);
+                }
+            }
+        }
+        // Snapshot records carry their name and generation, and kept data
+        // its readers and holders, a holder list still unknown as -1
+        if (isSnapshotKind(record.getKind()))
+        {
+            payload.writeUTF(record.getSnapshot() == null ? "" : record.getSnapshot());
+            payload.writeLong(record.getGeneration());
+            long[] readers = record.getReaders() == null ? new long[0] : record.getReaders();
+            payload.writeInt(readers.length);
+            for (long reader : readers) payload.writeLong(reader);
+            StorageContainer[] holders = record.getHolders();
+            payload.writeInt(holders == null ? -1 : holders.length);
+            for (int i = 0 ; holders != null && i < holders.length ; i++)
+            {
+                byte[] holder = this.encodeContainer(holders[i]);
+                payload.writeInt(holder.length);
+                payload.write(holder);
+            }
+        }
+        payload.flush();
+
+        byte[] body = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        DataOutputStream frame = new DataOutputStream(out);
+        frame.writeInt(body.length);
+        frame.write(body);
+        frame.writeInt((int) crc.getValue());
+        frame.flush();
+    }
+
+    private byte[] encodeContainer(StorageContainer storageContainer)
+        throws IOException
+    {
+        byte[] encoded = this.encodedContainers.get(storageContainer);
+        if (encoded == null)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+            objects.writeObject(storageContainer);
+            objects.close();
+            encoded = bytes.toByteArray();
+            this.encodedContainers.put(storageContainer, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Applies every intact record in a journal segment with a sequence number
+     * above <code>afterSequence</code> to the file system. A damaged or
+     * incomplete record ends the replay, and the file is truncated just before
+     * it.
+     *
+     * @return The sequence number of the last intact record.
+     */
+    static long replay(FileChannel channel, FileSystem fileSystem, long afterSequence)
+        throws IOException
+    {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            java.nio.channels.Channels.newInputStream(channel), 1 << 16));
+        long offset = 0;
+        long lastSequence = afterSequence;
+        HashMap<ByteBuffer, StorageContainer> decoded = new HashMap<>();
+        while (true)
+        {
+            JournalRecord record;
+            int length;
+            try
+            {
+                length = in.readInt();
+                if (length <= 0 || offset + 8 + length > channel.size()) break;
+                byte[] body = new byte[length];
+                in.readFully(body);
+                int storedCrc = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != storedCrc) break;
+                record = decode(body, decoded);
+            }
+            catch (EOFException e)
+            {
+                break;
+            }
+            offset += 8 + length;
+            if (record.getSequence() <= afterSequence) continue;
+            fileSystem.apply(record);
+            lastSequence = record.getSequence();
+        }
+        if (offset < channel.size())
+        {
+            channel.truncate(offset);
+        }
+        channel.position(channel.size());
+        return lastSequence;
+    }
+
+    private static JournalRecord decode(byte[] body, HashMap<ByteBuffer, StorageContainer> decoded)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long sequence = in.readLong();
+        JournalRecord.Kind kind = JournalRecord.Kind.values()[in.readByte()];
+        Path path = new Path(in.readUTF());
+        StorageContainer storageContainer = decodeContainer(in, decoded);
+        if (kind == JournalRecord.Kind.ERASURE)
+        {
+            if (!in.readBoolean()) return new JournalRecord(sequence, path, null);
+            int dataFragments = in.readInt();
+            int parityFragments = in.readInt();
+            long fileSize = in.readLong();
+            StorageContainer[] holders = new StorageContainer[dataFragments + parityFragments];
+            for (int i = 0 ; i < holders.length ; i++) holders[i] = decodeContainer(in, decoded);
+            return new JournalRecord(sequence, path,
+                new ErasureLayout(dataFragments, parityFragments, fileSize, holders));
+        }
+        Path target = kind == JournalRecord.Kind.RENAME || kind == JournalRecord.Kind.SNAPSHOT_RETAIN
+                      || kind == JournalRecord.Kind.SNAPSHOT_PIN || kind == JournalRecord.Kind.SNAPSHOT_SETTLE
+            ? new Path(in.readUTF())
+            : null;
+        JournalRecord record = new JournalRecord(sequence, kind, path, storageContainer, target);
+        if (!isSnapshotKind(kind)) return record;
+        String snapshot = in.readUTF();
+        record.snapshot = snapshot.isEmpty() ? null : snapshot;
+        record.generation = in.readLong();
+        record.readers = new long[in.readInt()];
+        for (int i = 0 ; i < record.readers.length ; i++) record.readers[i] = in.readLong();
+        int holders = in.readInt();
+        if (holders < 0) return record;
+        record.holders = new StorageContainer[holders];
+        for (int i = 0 ; i < holders ; i++) record.holders[i] = decodeContainer(in, decoded);
+        return record;
+    }
+
+    private static boolean isSnapshotKind(JournalRecord.Kind kind)
+    {
+        switch (kind)
+        {
+            case SNAPSHOT_CREATE:
+            case SNAPSHOT_DELETE:
+            case SNAPSHOT_RETAIN:
+            case SNAPSHOT_PIN:
+            case SNAPSHOT_SETTLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Reads a storage server written as its length and serialized form, or
+        <code>null</code> for a length of zero. Servers already decoded are
+        shared. */
+    private static StorageContainer decodeContainer(DataInputStream in,
+                                                    HashMap<ByteBuffer, StorageContainer> decoded)
+        throws IOException
+    {
+        byte[] container = new byte[in.readInt()];
+        in.readFully(container);
+        if (container.length == 0) return null;
+        ByteBuffer key = ByteBuffer.wrap(container);
+        StorageContainer storageContainer = decoded.get(key);
+        if (storageContainer == null)
+        {
+            try
+            {
+                storageContainer = (StorageContainer) new ObjectInputStream(
+                    new ByteArrayInputStream(container)).readObject();
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException("cannot decode journal record", e);
+            }
+            decoded.put(key, storageContainer);
+        }
+        return storageContainer;
+    }
+}
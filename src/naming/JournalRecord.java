@@ -0,0 +1,201 @@
+package naming;
+
+import common.Path;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * One namespace mutation recorded in the naming server journal.
+ *
+ * <p>
+ * Records are replayed in sequence order to rebuild the directory tree after a
+ * restart. Applying a record is idempotent, so replaying a record whose effect
+ * is already present does no harm. Records are also sent to follower naming
+ * servers, which apply them the same way to keep a copy of the tree.
+ */
+public class JournalRecord
+    implements Serializable
+{
+    private static final long serialVersionUID = 3860983647205581911L;
+
+    public enum Kind
+    {
+        CREATE_FILE,
+        CREATE_DIRECTORY,
+        DELETE,
+        REPLICA_ADD,
+        REPLICA_REMOVE,
+        RENAME,
+        ERASURE,
+        /** A replica made stale by a write: it leaves the replica list for
+            the file's stale list until it is refreshed or deleted. */
+        REPLICA_STALE,
+        /** A stale replica deleted or forgotten. */
+        STALE_REMOVE,
+        /** A snapshot taken. */
+        SNAPSHOT_CREATE,
+        /** A snapshot deleted. */
+        SNAPSHOT_DELETE,
+        /** A subtree about to be deleted, kept for snapshots instead. */
+        SNAPSHOT_RETAIN,
+        /** A copy of a file about to be written, kept for snapshots. */
+        SNAPSHOT_PIN,
+        /** The servers that kept data for snapshots. */
+        SNAPSHOT_SETTLE,
+    }
+
+    long sequence;
+    Kind kind;
+    Path path;
+    StorageContainer storageContainer;
+    Path target;
+    ErasureLayout erasureLayout;
+    /** Name of the snapshot taken or deleted. */
+    String snapshot;
+    /** Generation of the snapshot taken. */
+    long generation;
+    /** Generations of the snapshots data is kept for. */
+    long[] readers;
+    /** Servers that kept data for snapshots. */
+    StorageContainer[] holders;
+
+    JournalRecord(long sequence, Kind kind, Path path, StorageContainer storageContainer)
+    {
+        this(sequence, kind, path, storageContainer, null);
+    }
+
+    /** Creates a record of a file switched to the given erasure layout, or
+        back to full replicas if the layout is <code>null</code>. */
+    JournalRecord(long sequence, Path path, ErasureLayout erasureLayout)
+    {
+        this(sequence, Kind.ERASURE, path, null, null);
+        this.erasureLayout = erasureLayout;
+    }
+
+    JournalRecord(long sequence, Kind kind, Path path, StorageContainer storageContainer, Path target)
+    {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.path = path;
+        this.storageContainer = storageContainer;
+        this.target = target;
+    }
+
+    /** Creates a record of a snapshot taken, or deleted if
+        <code>generation</code> is <code>0</code>. */
+    static JournalRecord snapshot(String name, long generation)
+    {
+        JournalRecord record = new JournalRecord(0, generation == 0 ? Kind.SNAPSHOT_DELETE : Kind.SNAPSHOT_CREATE,
+                                                 new Path("/"), null);
+        record.snapshot = name;
+        record.generation = generation;
+        return record;
+    }
+
+    /** Creates a record of data kept for snapshots: a pinned copy of a file,
+        or a subtree retained if there is no source server. */
+    static JournalRecord kept(SnapshotTable.Retained retained, Path path, StorageContainer source)
+    {
+        JournalRecord record = new JournalRecord(0, source == null ? Kind.SNAPSHOT_RETAIN : Kind.SNAPSHOT_PIN,
+                                                 path, source, retained.location);
+        record.readers = new long[retained.readers.size()];
+        int i = 0;
+        for (long reader : retained.readers) record.readers[i++] = reader;
+        return record;
+    }
+
+    /** Creates a record of the servers that kept data for snapshots at a
+        location. */
+    static JournalRecord settled(Path location, Set<StorageContainer> holders)
+    {
+        JournalRecord record = new JournalRecord(0, Kind.SNAPSHOT_SETTLE, new Path("/"), null, location);
+        record.holders = holders.toArray(new StorageContainer[holders.size()]);
+        return record;
+    }
+
+    /** Returns a copy of a record with a sequence number. */
+    JournalRecord at(long sequence)
+    {
+        JournalRecord record = new JournalRecord(sequence, this.kind, this.path, this.storageContainer, this.target);
+        record.erasureLayout = this.erasureLayout;
+        record.snapshot = this.snapshot;
+        record.generation = this.generation;
+        record.readers = this.readers;
+        record.holders = this.holders;
+        return record;
+    }
+
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    public Kind getKind()
+    {
+        return this.kind;
+    }
+
+    public Path getPath()
+    {
+        return this.path;
+    }
+
+    /** Returns the replica added, removed or made stale, or the server
+        keeping a pinned copy, or <code>null</code> for records that do not
+        concern a replica. */
+    public StorageContainer getStorageContainer()
+    {
+        return this.storageContainer;
+    }
+
+    /** Returns the path a renamed object was moved to, or where data was
+        kept for snapshots, or <code>null</code> for other records. */
+    public Path getTarget()
+    {
+        return this.target;
+    }
+
+    /** Returns the erasure layout a file was switched to, or
+        <code>null</code> for records other than erasure switches and for
+        files switched back to full replicas. */
+    public ErasureLayout getErasureLayout()
+    {
+        return this.erasureLayout;
+    }
+
+    /** Returns the name of the snapshot taken or deleted, or
+        <code>null</code> for other records. */
+    public String getSnapshot()
+    {
+        return this.snapshot;
+    }
+
+    /** Returns the generation of the snapshot taken, or <code>0</code> for
+        other records. */
+    public long getGeneration()
+    {
+        return this.generation;
+    }
+
+    /** Returns the generations of the snapshots data is kept for, or
+        <code>null</code> for records that keep no data. */
+    public long[] getReaders()
+    {
+        return this.readers;
+    }
+
+    /** Returns the servers that kept data for snapshots, or
+        <code>null</code> for records other than settlements. */
+    public StorageContainer[] getHolders()
+    {
+        return this.holders;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[JournalRecord| " + this.sequence + " " + this.kind + " " + this.path
+            + (this.target == null ? "" : " -> " + this.target) + "]";
+    }
+}
@@ -0,0 +1,248 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records which clients cache which paths, and calls them back when the
+ * paths change.
+ *
+ * <p>
+ * A lease is granted to a client for one path, for a fixed time. The file
+ * system reports every mutation it logs to the table, which works out the
+ * paths whose cached answers the mutation changes: the path itself and its
+ * parent directory for a creation, the whole subtree and the parent for a
+ * deletion, the same and the new path and its parent for a rename, and the
+ * file for a change of replicas. The leases on those paths are ended and
+ * their holders called back, one call per client, on a pool of callback
+ * threads, so that no callback is made while the mutation holds a lock.
+ *
+ * <p>
+ * Reporting a mutation returns an <code>Invalidations</code> handle on the
+ * callbacks it started. Whoever made the mutation waits on the handle until
+ * every holder called back has answered, or its lease has run out, whichever
+ * comes first: the naming server before acknowledging a mutation to its
+ * client, and any thread, client request or background job alike, before
+ * deleting data the mutation took out of the tree, so that no client is
+ * still sent to a replica that is gone. A client that cannot be reached
+ * therefore delays mutations of the paths it cached by at most one lease.
+ * Additions of replicas at registration are not waited for, since a client
+ * that has not heard of a new replica only misses a choice.
+ *
+ * <p>
+ * Leases are kept in a map sorted by path string, so that the leases under a
+ * deleted directory are found without walking the tree.
+ */
+public class LeaseTable
+{
+    public static final long DEFAULT_LEASE_MILLIS = 10 * 1000;
+
+    long leaseMillis;
+    /** Expiry time of each lease, by path and client. */
+    final ConcurrentSkipListMap<String, ConcurrentHashMap<CacheClient, Long>> leases =
+        new ConcurrentSkipListMap<>();
+    final ExecutorService callbacks;
+
+    LeaseTable(long leaseMillis)
+    {
+        this.leaseMillis = leaseMillis;
+        this.callbacks = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "lease-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Grants a client a lease on a path. The lease must be granted before the
+     * answers it covers are read from the tree, so that a mutation made while
+     * they are read calls the client back.
+     *
+     * @return The duration of the lease.
+     */
+    long grant(Path path, CacheClient client)
+    {
+        this.leases.computeIfAbsent(path.toString(), k -> new ConcurrentHashMap<>())
+            .put(client, System.currentTimeMillis() + this.leaseMillis);
+        return this.leaseMillis;
+    }
+
+    /**
+     * Ends the leases a mutation invalidates and calls their holders back.
+     * <code>target</code> is the new path of a renamed object, and
+     * <code>null</code> for other mutations.
+     *
+     * @return The callbacks started, to be waited for.
+     */
+    Invalidations changed(JournalRecord.Kind kind, Path path, Path target)
+    {
+        if (this.leases.isEmpty() || path.toString().equals("/")) return Invalidations.NONE;
+        HashMap<CacheClient, Invalidation> targets = new HashMap<>();
+        long now = System.currentTimeMillis();
+        switch (kind)
+        {
+            case CREATE_FILE:
+            case CREATE_DIRECTORY:
+                this.collect(path.toString(), now, targets);
+                this.collect(path.parent().toString(), now, targets);
+                break;
+            case DELETE:
+                this.collectSubtree(path, now, targets);
+                this.collect(path.parent().toString(), now, targets);
+                break;
+            case RENAME:
+                this.collectSubtree(path, now, targets);
+                this.collect(path.parent().toString(), now, targets);
+                // The target can only be leased as missing
+                this.collect(target.toString(), now, targets);
+                this.collect(target.parent().toString(), now, targets);
+                break;
+            case REPLICA_ADD:
+            case REPLICA_REMOVE:
+            case REPLICA_STALE:
+            case ERASURE:
+                this.collect(path.toString(), now, targets);
+                break;
+        }
+        if (targets.isEmpty()) return Invalidations.NONE;
+
+        Invalidations started = new Invalidations();
+        for (Invalidation invalidation : targets.values())
+        {
+            this.callbacks.execute(invalidation);
+            started.started.add(invalidation);
+        }
+        return started;
+    }
+
+    /** Removes the live leases on a path and everything below it. */
+    private void collectSubtree(Path path, long now, HashMap<CacheClient, Invalidation> targets)
+    {
+        this.collect(path.toString(), now, targets);
+        // '0' follows '/', so the range holds exactly the subtree
+        String prefix = path.toString();
+        for (String key : new ArrayList<>(this.leases.subMap(prefix + "/", prefix + "0").keySet()))
+            this.collect(key, now, targets);
+    }
+
+    /** Removes the live leases on a path, adding them to the callbacks to
+        make. */
+    private void collect(String key, long now, HashMap<CacheClient, Invalidation> targets)
+    {
+        ConcurrentHashMap<CacheClient, Long> holders = this.leases.remove(key);
+        if (holders == null) return;
+        for (Map.Entry<CacheClient, Long> holder : holders.entrySet())
+        {
+            if (holder.getValue() <= now) continue;
+            Invalidation invalidation = targets.computeIfAbsent(holder.getKey(), Invalidation::new);
+            invalidation.paths.add(new Path(key));
+            invalidation.deadline = Math.max(invalidation.deadline, holder.getValue());
+        }
+    }
+
+    /** Returns the number of paths on which leases are held. */
+    int size()
+    {
+        return this.leases.size();
+    }
+
+    void shutdown()
+    {
+        this.callbacks.shutdownNow();
+    }
+
+    /**
+     * Callbacks started by one or more mutations. A handle returned by
+     * <code>changed</code> is only waited on; the callbacks of several
+     * mutations are gathered by adding their handles to a new one.
+     */
+    static class Invalidations
+    {
+        /** Handle of mutations that called nobody back. */
+        static final Invalidations NONE = new Invalidations(Collections.emptyList());
+
+        final List<Invalidation> started;
+
+        Invalidations()
+        {
+            this(new ArrayList<>());
+        }
+
+        private Invalidations(List<Invalidation> started)
+        {
+            this.started = started;
+        }
+
+        /** Adds the callbacks of another handle to this one. */
+        void add(Invalidations other)
+        {
+            if (other.started.isEmpty()) return;
+            this.started.removeIf(invalidation -> invalidation.done.getCount() == 0);
+            this.started.addAll(other.started);
+        }
+
+        /**
+         * Waits until every client called back has answered, or its lease has
+         * run out.
+         */
+        void await()
+        {
+            try
+            {
+                for (Invalidation invalidation : this.started)
+                {
+                    long remaining = invalidation.deadline - System.currentTimeMillis();
+                    if (remaining > 0) invalidation.done.await(remaining, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** One callback to a client, for all the paths of one mutation. */
+    static class Invalidation
+        implements Runnable
+    {
+        final CacheClient client;
+        final ArrayList<Path> paths = new ArrayList<>();
+        /** Time at which the last of the client's leases on the paths ends. */
+        long deadline = 0;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Invalidation(CacheClient client)
+        {
+            this.client = client;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                this.client.invalidate(this.paths.toArray(new Path[this.paths.size()]));
+            }
+            catch (Throwable t)
+            {
+                // The client is unreachable; its leases run out on their own
+            }
+            finally
+            {
+                this.done.countDown();
+            }
+        }
+    }
+}
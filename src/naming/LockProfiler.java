@@ -0,0 +1,257 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Samples lock acquisitions to find the paths clients contend for.
+ *
+ * <p>
+ * One lock request in <code>sampleEvery</code> is sampled when it arrives.
+ * For a sampled request the profiler records, under the path's prefix of
+ * <code>prefixDepth</code> components, whether it was exclusive, the number of
+ * requests queued ahead of it, and how long it waited, in a histogram with
+ * one bucket per power of two microseconds. The time the node then stays
+ * locked, until it is next open, is recorded as its hold time. A shared
+ * request that is not sampled and is granted at once costs one random number
+ * and reads no clock; the counts in a report are scaled up by the sampling
+ * rate.
+ *
+ * <p>
+ * Every wait of at least <code>longWaitNanos</code> is offered to a short
+ * list of the longest waits, sampled or not, so that rare stalls are not
+ * missed. To find them, requests that are not sampled are still timed, with
+ * two clock readings, if they queue or are exclusive, since an exclusive
+ * request also waits for the nodes below it. The list itself is only
+ * touched by requests that already waited long.
+ *
+ * <p>
+ * The number of prefixes tracked is bounded; once the bound is reached, new
+ * prefixes are counted together under <code>OTHER</code>.
+ */
+public class LockProfiler
+{
+    public static final int DEFAULT_SAMPLE_EVERY = 16;
+    public static final int DEFAULT_PREFIX_DEPTH = 3;
+    public static final int DEFAULT_MAX_PREFIXES = 4096;
+    public static final long DEFAULT_LONG_WAIT_NANOS = 10 * 1000 * 1000;
+    /** Number of longest waits kept. */
+    public static final int LONGEST_WAITS = 32;
+    /** Prefix under which requests are counted once the bound is reached. */
+    public static final String OTHER = "(other)";
+    /** Prefix under which waits for the naming server's exclusive admission
+        lock are counted. */
+    public static final String ADMISSION = "(exclusive admission)";
+    /** Number of wait histogram buckets. The last holds every longer wait. */
+    static final int BUCKETS = 32;
+
+    final int sampleEvery;
+    final int prefixDepth;
+    final int maxPrefixes;
+    final long longWaitNanos;
+    final ConcurrentHashMap<String, PrefixStats> prefixes = new ConcurrentHashMap<>();
+    /** Longest waits seen, shortest first, guarded by itself. */
+    final PriorityQueue<LockReport.Wait> longest =
+        new PriorityQueue<>(Comparator.comparingLong(LockReport.Wait::getWaitMicros));
+    volatile long sinceMillis = System.currentTimeMillis();
+
+    public LockProfiler()
+    {
+        this(DEFAULT_SAMPLE_EVERY, DEFAULT_PREFIX_DEPTH, DEFAULT_MAX_PREFIXES, DEFAULT_LONG_WAIT_NANOS);
+    }
+
+    public LockProfiler(int sampleEvery, int prefixDepth, int maxPrefixes, long longWaitNanos)
+    {
+        if (sampleEvery < 1 || prefixDepth < 1 || maxPrefixes < 1)
+            throw new IllegalArgumentException("sampling rate, depth and bound must be positive");
+        this.sampleEvery = sampleEvery;
+        this.prefixDepth = prefixDepth;
+        this.maxPrefixes = maxPrefixes;
+        this.longWaitNanos = longWaitNanos;
+    }
+
+    /** Decides whether the request arriving now is sampled. */
+    boolean sample()
+    {
+        return this.sampleEvery == 1 || ThreadLocalRandom.current().nextInt(this.sampleEvery) == 0;
+    }
+
+    /** Records a sampled request once it has been granted. */
+    void acquired(Path path, boolean exclusive, int queued, long waitNanos)
+    {
+        PrefixStats stats = this.statsFor(this.prefixOf(path));
+        stats.acquisitions.increment();
+        if (exclusive) stats.exclusive.increment();
+        stats.queued.add(queued);
+        stats.maxQueued.accumulateAndGet(queued, Math::max);
+        stats.record(waitNanos);
+    }
+
+    /** Records the time a node stayed locked after a sampled request. */
+    void held(Path path, long holdNanos)
+    {
+        PrefixStats stats = this.statsFor(this.prefixOf(path));
+        stats.holds.increment();
+        stats.holdNanos.add(holdNanos);
+        stats.maxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+    }
+
+    /** Offers a wait of any request to the list of the longest waits. */
+    void waited(Path path, boolean exclusive, long waitNanos)
+    {
+        if (waitNanos < this.longWaitNanos) return;
+        LockReport.Wait wait = new LockReport.Wait(path, exclusive, waitNanos / 1000,
+            System.currentTimeMillis(), Thread.currentThread().getName());
+        synchronized (this.longest)
+        {
+            this.longest.add(wait);
+            if (this.longest.size() > LONGEST_WAITS) this.longest.poll();
+        }
+    }
+
+    /** Records a sampled wait for the naming server's exclusive admission
+        lock. */
+    void admitted(long waitNanos)
+    {
+        PrefixStats stats = this.statsFor(ADMISSION);
+        stats.acquisitions.increment();
+        stats.exclusive.increment();
+        stats.record(waitNanos);
+    }
+
+    /** Returns the prefix of at most <code>prefixDepth</code> components
+        under which a path is counted. */
+    String prefixOf(Path path)
+    {
+        String string = path.toString();
+        int slashes = 0;
+        for (int i = 0 ; i < string.length() ; i++)
+        {
+            if (string.charAt(i) == '/' && ++slashes > this.prefixDepth) return string.substring(0, i);
+        }
+        return string;
+    }
+
+    private PrefixStats statsFor(String prefix)
+    {
+        PrefixStats stats = this.prefixes.get(prefix);
+        if (stats != null) return stats;
+        if (this.prefixes.size() >= this.maxPrefixes && !prefix.equals(ADMISSION))
+            return this.prefixes.computeIfAbsent(OTHER, k -> new PrefixStats());
+        return this.prefixes.computeIfAbsent(prefix, k -> new PrefixStats());
+    }
+
+    /**
+     * Returns the prefixes at or below <code>under</code> with the most total
+     * waiting, at most <code>limit</code> of them, most contended first, and
+     * the longest waits below it.
+     */
+    LockReport report(Path under, int limit)
+    {
+        if (limit < 1) throw new IllegalArgumentException("limit must be positive");
+        String root = under.toString();
+        String prefix = root.equals("/") ? "/" : root + "/";
+        ArrayList<LockReport.Entry> entries = new ArrayList<>();
+        LockReport.Entry admission = null;
+        for (Map.Entry<String, PrefixStats> stats : this.prefixes.entrySet())
+        {
+            String name = stats.getKey();
+            LockReport.Entry entry = stats.getValue().entry(name, this.sampleEvery);
+            if (name.equals(ADMISSION))
+                admission = entry;
+            else if (name.equals(root) || name.startsWith(prefix) || name.equals(OTHER))
+                entries.add(entry);
+        }
+        entries.sort(Comparator.comparingLong(LockReport.Entry::getTotalWaitMicros).reversed()
+            .thenComparing(LockReport.Entry::getPrefix));
+        if (entries.size() > limit) entries = new ArrayList<>(entries.subList(0, limit));
+
+        ArrayList<LockReport.Wait> waits = new ArrayList<>();
+        synchronized (this.longest)
+        {
+            for (LockReport.Wait wait : this.longest)
+            {
+                String path = wait.getPath().toString();
+                if (path.equals(root) || path.startsWith(prefix)) waits.add(wait);
+            }
+        }
+        waits.sort(Comparator.comparingLong(LockReport.Wait::getWaitMicros).reversed());
+        return new LockReport(this.sampleEvery, this.sinceMillis, System.currentTimeMillis(),
+            entries.toArray(new LockReport.Entry[0]), admission,
+            waits.toArray(new LockReport.Wait[0]));
+    }
+
+    /** Forgets everything recorded so far. */
+    void reset()
+    {
+        this.prefixes.clear();
+        synchronized (this.longest)
+        {
+            this.longest.clear();
+        }
+        this.sinceMillis = System.currentTimeMillis();
+    }
+
+    /** Returns the histogram bucket of a wait: bucket <code>i</code> holds
+        waits of less than <code>2<sup>i</sup></code> microseconds and at
+        least half that. */
+    static int bucketOf(long waitNanos)
+    {
+        long micros = waitNanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /** Counters of one prefix. */
+    static class PrefixStats
+    {
+        final LongAdder acquisitions = new LongAdder();
+        final LongAdder exclusive = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final LongAdder queued = new LongAdder();
+        final AtomicInteger maxQueued = new AtomicInteger();
+        final LongAdder holds = new LongAdder();
+        final LongAdder holdNanos = new LongAdder();
+        final AtomicLong maxHoldNanos = new AtomicLong();
+
+        void record(long waitNanos)
+        {
+            this.waitNanos.add(waitNanos);
+            this.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            this.histogram.incrementAndGet(bucketOf(waitNanos));
+        }
+
+        /** Summarizes the counters, scaling counts up by the sampling
+            rate. */
+        LockReport.Entry entry(String prefix, int sampleEvery)
+        {
+            long sampled = this.acquisitions.sum();
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0 ; i < BUCKETS ; i++) histogram[i] = this.histogram.get(i);
+            long holds = this.holds.sum();
+            return new LockReport.Entry(
+                prefix,
+                sampled * sampleEvery,
+                this.exclusive.sum() * sampleEvery,
+                this.waitNanos.sum() / 1000 * sampleEvery,
+                this.maxWaitNanos.get() / 1000,
+                histogram,
+                sampled == 0 ? 0 : (double) this.queued.sum() / sampled,
+                this.maxQueued.get(),
+                holds == 0 ? 0 : this.holdNanos.sum() / holds / 1000,
+                this.maxHoldNanos.get() / 1000
+            );
+        }
+    }
+}
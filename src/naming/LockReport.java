@@ -0,0 +1,266 @@
+package naming;
+
+import common.Path;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Lock contention recorded by a naming server, as returned by
+ * <code>Service.getLockReport</code>.
+ *
+ * <p>
+ * Counts and total waits are estimates, scaled up from the sampled requests
+ * by the sampling rate. Maximums are those of the sampled requests, except in
+ * the list of longest waits, which every request is considered for. Times are
+ * in microseconds.
+ */
+public class LockReport
+    implements Serializable
+{
+    int sampleEvery;
+    long sinceMillis;
+    long atMillis;
+    Entry[] entries;
+    Entry admission;
+    Wait[] longestWaits;
+
+    LockReport(int sampleEvery, long sinceMillis, long atMillis, Entry[] entries, Entry admission,
+               Wait[] longestWaits)
+    {
+        this.sampleEvery = sampleEvery;
+        this.sinceMillis = sinceMillis;
+        this.atMillis = atMillis;
+        this.entries = entries;
+        this.admission = admission;
+        this.longestWaits = longestWaits;
+    }
+
+    /** Returns the number of requests of which one was sampled. */
+    public int getSampleEvery()
+    {
+        return this.sampleEvery;
+    }
+
+    /** Returns the time at which recording started. */
+    public long getSinceMillis()
+    {
+        return this.sinceMillis;
+    }
+
+    /** Returns the path prefixes with the most total waiting, most contended
+        first. */
+    public Entry[] getEntries()
+    {
+        return this.entries;
+    }
+
+    /** Returns the waits for the naming server's exclusive admission lock,
+        which every exclusive request takes, or <code>null</code> if none was
+        sampled. */
+    public Entry getAdmission()
+    {
+        return this.admission;
+    }
+
+    /** Returns the longest single waits, longest first. */
+    public Wait[] getLongestWaits()
+    {
+        return this.longestWaits;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("lock contention over %.1f s, 1 in %d requests sampled%n",
+            (this.atMillis - this.sinceMillis) / 1000.0, this.sampleEvery));
+        builder.append(String.format("%-40s %10s %6s %12s %10s %10s %10s %7s %6s %10s%n",
+            "prefix", "requests", "excl", "wait us", "p50 us", "p99 us", "max us", "queue", "maxq",
+            "hold us"));
+        for (Entry entry : this.entries) builder.append(entry.row());
+        if (this.admission != null) builder.append(this.admission.row());
+        if (this.longestWaits.length > 0)
+        {
+            builder.append(String.format("%nlongest waits%n"));
+            for (Wait wait : this.longestWaits) builder.append(wait).append(String.format("%n"));
+        }
+        return builder.toString();
+    }
+
+    /** Contention on the paths under one prefix. */
+    public static class Entry
+        implements Serializable
+    {
+        String prefix;
+        long acquisitions;
+        long exclusive;
+        long totalWaitMicros;
+        long maxWaitMicros;
+        long[] waitHistogram;
+        double meanQueued;
+        int maxQueued;
+        long meanHoldMicros;
+        long maxHoldMicros;
+
+        Entry(String prefix, long acquisitions, long exclusive, long totalWaitMicros, long maxWaitMicros,
+              long[] waitHistogram, double meanQueued, int maxQueued, long meanHoldMicros,
+              long maxHoldMicros)
+        {
+            this.prefix = prefix;
+            this.acquisitions = acquisitions;
+            this.exclusive = exclusive;
+            this.totalWaitMicros = totalWaitMicros;
+            this.maxWaitMicros = maxWaitMicros;
+            this.waitHistogram = waitHistogram;
+            this.meanQueued = meanQueued;
+            this.maxQueued = maxQueued;
+            this.meanHoldMicros = meanHoldMicros;
+            this.maxHoldMicros = maxHoldMicros;
+        }
+
+        public String getPrefix()
+        {
+            return this.prefix;
+        }
+
+        /** Returns the estimated number of lock requests. */
+        public long getAcquisitions()
+        {
+            return this.acquisitions;
+        }
+
+        /** Returns the estimated number of exclusive lock requests. */
+        public long getExclusive()
+        {
+            return this.exclusive;
+        }
+
+        /** Returns the estimated time spent waiting by all requests. */
+        public long getTotalWaitMicros()
+        {
+            return this.totalWaitMicros;
+        }
+
+        public long getMaxWaitMicros()
+        {
+            return this.maxWaitMicros;
+        }
+
+        /** Returns the number of sampled requests in each wait bucket:
+            bucket <code>i</code> counts waits of less than
+            <code>2<sup>i</sup></code> microseconds and at least half that. */
+        public long[] getWaitHistogram()
+        {
+            return this.waitHistogram;
+        }
+
+        /** Returns the wait below which the given fraction of the sampled
+            requests fell, rounded up to the top of its bucket. */
+        public long getWaitPercentileMicros(double fraction)
+        {
+            long total = 0;
+            for (long count : this.waitHistogram) total += count;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0 ; i < this.waitHistogram.length ; i++)
+            {
+                seen += this.waitHistogram[i];
+                if (seen >= Math.max(1, rank)) return i == 0 ? 1 : 1L << i;
+            }
+            return this.maxWaitMicros;
+        }
+
+        /** Returns the mean number of requests queued ahead of a request. */
+        public double getMeanQueued()
+        {
+            return this.meanQueued;
+        }
+
+        public int getMaxQueued()
+        {
+            return this.maxQueued;
+        }
+
+        /** Returns the mean time a node stayed locked after a request. */
+        public long getMeanHoldMicros()
+        {
+            return this.meanHoldMicros;
+        }
+
+        public long getMaxHoldMicros()
+        {
+            return this.maxHoldMicros;
+        }
+
+        String row()
+        {
+            return String.format("%-40s %10d %6d %12d %10d %10d %10d %7.2f %6d %10d%n",
+                this.prefix, this.acquisitions, this.exclusive, this.totalWaitMicros,
+                this.getWaitPercentileMicros(0.5), this.getWaitPercentileMicros(0.99),
+                this.maxWaitMicros, this.meanQueued, this.maxQueued, this.meanHoldMicros);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[LockReport.Entry| " + this.prefix + " " + this.acquisitions + " requests, "
+                + this.totalWaitMicros + " us waited]";
+        }
+    }
+
+    /** One long wait for a lock. */
+    public static class Wait
+        implements Serializable
+    {
+        Path path;
+        boolean exclusive;
+        long waitMicros;
+        long atMillis;
+        String thread;
+
+        Wait(Path path, boolean exclusive, long waitMicros, long atMillis, String thread)
+        {
+            this.path = path;
+            this.exclusive = exclusive;
+            this.waitMicros = waitMicros;
+            this.atMillis = atMillis;
+            this.thread = thread;
+        }
+
+        public Path getPath()
+        {
+            return this.path;
+        }
+
+        public boolean isExclusive()
+        {
+            return this.exclusive;
+        }
+
+        public long getWaitMicros()
+        {
+            return this.waitMicros;
+        }
+
+        /** Returns the time at which the lock was granted. */
+        public long getAtMillis()
+        {
+            return this.atMillis;
+        }
+
+        /** Returns the name of the naming server thread that waited. */
+        public String getThread()
+        {
+            return this.thread;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%10d us  %s %s  at %s on %s", this.waitMicros,
+                this.exclusive ? "exclusive" : "shared   ", this.path, new Date(this.atMillis), this.thread);
+        }
+    }
+}
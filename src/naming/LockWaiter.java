@@ -0,0 +1,78 @@
+package naming;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread parked in the lock queue of a <code>FileNode</code>.
+ *
+ * <p>
+ * Every waiter parks its own thread. The thread releasing the lock marks the
+ * waiter as granted before unparking it, so the woken thread already owns the
+ * lock: it never has to re-check the node state, re-acquire the node mutex or
+ * compete with threads that arrived later. A whole batch of shared waiters can
+ * therefore be woken at once and run in parallel.
+ */
+public class LockWaiter
+{
+    Status status;
+    Thread thread;
+    volatile boolean granted = false;
+    volatile long grantedAt;
+
+    LockWaiter(Status status, Thread thread)
+    {
+        this.status = status;
+        this.thread = thread;
+    }
+
+    public Status getStatus()
+    {
+        return this.status;
+    }
+
+    public boolean isGranted()
+    {
+        return this.granted;
+    }
+
+    /**
+     * Returns the time, from <code>System.nanoTime</code>, at which the lock
+     * was handed to this waiter.
+     */
+    public long getGrantedAt()
+    {
+        return this.grantedAt;
+    }
+
+    /**
+     * Parks the calling thread until the lock has been handed to it. Must be
+     * called without holding the node mutex. An interrupt that arrives once
+     * the lock has been handed over does not abandon it; the thread's
+     * interrupt status is set again instead.
+     *
+     * @throws InterruptedException If the thread is interrupted before the
+     *                              lock is handed to it.
+     */
+    public void await()
+        throws InterruptedException
+    {
+        boolean interrupted = false;
+        while (!this.granted)
+        {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+            {
+                if (!this.granted) throw new InterruptedException("lock wait interrupted");
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    void wake()
+    {
+        this.grantedAt = System.nanoTime();
+        this.granted = true;
+        LockSupport.unpark(this.thread);
+    }
+}
@@ -0,0 +1,95 @@
+package naming;
+
+import common.Path;
+import storage.Storage;
+
+import java.io.Serializable;
+
+/**
+ * What the naming server knows about one path, together with a lease allowing
+ * a client to reuse it.
+ *
+ * <p>
+ * A lease answers the metadata queries of <code>Service</code> for its path:
+ * whether the path exists and is a directory, the children of a directory,
+ * and the storage servers of a file. Until the lease runs out, the naming
+ * server calls back the client that holds it before changing any of these,
+ * so the client can answer the queries itself in the meantime. The duration
+ * is counted by the client from the moment it asked for the lease.
+ */
+public class MetadataLease
+    implements Serializable
+{
+    Path path;
+    boolean exists;
+    boolean directory;
+    String[] children;
+    Storage storage;
+    Replica[] replicas;
+    long durationMillis;
+
+    MetadataLease(Path path, boolean exists, boolean directory, String[] children,
+                  Storage storage, Replica[] replicas, long durationMillis)
+    {
+        this.path = path;
+        this.exists = exists;
+        this.directory = directory;
+        this.children = children;
+        this.storage = storage;
+        this.replicas = replicas;
+        this.durationMillis = durationMillis;
+    }
+
+    public Path getPath()
+    {
+        return this.path;
+    }
+
+    /** Returns <code>true</code> if the path exists. A lease on a missing
+        path ends when the path is created. */
+    public boolean exists()
+    {
+        return this.exists;
+    }
+
+    public boolean isDirectory()
+    {
+        return this.directory;
+    }
+
+    /** Returns the names of the children of a directory, or
+        <code>null</code> for a file. */
+    public String[] getChildren()
+    {
+        return this.children;
+    }
+
+    /** Returns the storage server <code>Service.getStorage</code> gives for
+        the file, or <code>null</code> if it has no live replica or is a
+        directory. */
+    public Storage getStorage()
+    {
+        return this.storage;
+    }
+
+    /** Returns the replicas <code>Service.getReplicas</code> gives for the
+        file, or <code>null</code> if it has no live replica or is a
+        directory. */
+    public Replica[] getReplicas()
+    {
+        return this.replicas;
+    }
+
+    /** Returns the time for which the answers may be reused. */
+    public long getDurationMillis()
+    {
+        return this.durationMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        String kind = !this.exists ? "missing" : this.directory ? "directory" : "file";
+        return "[MetadataLease| " + this.path + " " + kind + " for " + this.durationMillis + " ms]";
+    }
+}
@@ -0,0 +1,162 @@
+package naming;
+
+import common.Path;
+import rmi.Stub;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps subtrees of a federated namespace to the naming servers that own them.
+ *
+ * <p>
+ * Each entry, or <em>mount</em>, gives the client service address of the
+ * naming server owning the subtree under a path prefix. A path is owned by the
+ * mount with the longest prefix of it, so a mount below another one carves a
+ * subtree out of it. The table must mount the root, so that every path has an
+ * owner.
+ *
+ * <p>
+ * The naming server owning the subtree around a mount keeps the mount point
+ * itself as an ordinary directory, so that it is listed with its siblings and
+ * can be locked there. Locking anything in a mounted subtree takes a shared
+ * lock on its mount point in the enclosing subtree first, so that exclusive
+ * locks on directories above the mount point cover the mounted subtree as
+ * they would in a single tree.
+ *
+ * <p>
+ * Tables are sent to clients as they are; the stubs made for their owners are
+ * not.
+ */
+public class MountTable
+    implements Serializable
+{
+    private static final Path ROOT = new Path("/");
+
+    final HashMap<Path, InetSocketAddress> mounts = new HashMap<>();
+    private transient ConcurrentHashMap<InetSocketAddress, Service> stubs;
+
+    /**
+     * Creates a table giving the whole namespace to one naming server.
+     *
+     * @param root Client service address of the naming server owning the root.
+     */
+    public MountTable(InetSocketAddress root)
+    {
+        this.mount(ROOT, root);
+    }
+
+    /**
+     * Gives the subtree under <code>prefix</code> to a naming server,
+     * replacing any owner it had.
+     *
+     * @return This table.
+     */
+    public MountTable mount(Path prefix, InetSocketAddress owner)
+    {
+        if (prefix == null || owner == null) throw new NullPointerException("prefix or owner is null");
+        this.mounts.put(prefix, owner);
+        return this;
+    }
+
+    /** Returns the prefix of the mount owning a path. */
+    public Path mountOf(Path path)
+    {
+        for (Path current = path ; ; current = current.parent())
+        {
+            if (this.mounts.containsKey(current)) return current;
+            if (current.toString().equals("/")) throw new IllegalStateException("root is not mounted");
+        }
+    }
+
+    /** Returns the client service address of the naming server owning a
+        path. */
+    public InetSocketAddress ownerOf(Path path)
+    {
+        return this.mounts.get(this.mountOf(path));
+    }
+
+    /**
+     * Returns the mount point to lock in the enclosing subtree before locking
+     * a path: the prefix of the mount owning the path, if the directory above
+     * that prefix belongs to another naming server, or <code>null</code> if
+     * it does not.
+     */
+    Path boundaryOf(Path path)
+    {
+        Path mount = this.mountOf(path);
+        if (mount.toString().equals("/")) return null;
+        if (this.ownerOf(mount.parent()).equals(this.mounts.get(mount))) return null;
+        return mount;
+    }
+
+    /**
+     * Returns <code>true</code> if a path is a mount point other than the
+     * root, or a directory above one. Such paths cannot be deleted, since the
+     * subtrees mounted on them live on other servers.
+     */
+    public boolean coversMount(Path path)
+    {
+        String prefix = path.toString().equals("/") ? "/" : path.toString() + "/";
+        for (Path mount : this.mounts.keySet())
+        {
+            String string = mount.toString();
+            if (string.equals("/")) continue;
+            if (mount.equals(path) || string.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /** Returns the prefixes of the mounts owned by a naming server. */
+    public ArrayList<Path> prefixesOf(InetSocketAddress owner)
+    {
+        ArrayList<Path> prefixes = new ArrayList<>();
+        for (Map.Entry<Path, InetSocketAddress> entry : this.mounts.entrySet())
+        {
+            if (entry.getValue().equals(owner)) prefixes.add(entry.getKey());
+        }
+        return prefixes;
+    }
+
+    /** Returns the prefixes of all mounts. */
+    public ArrayList<Path> prefixes()
+    {
+        return new ArrayList<>(this.mounts.keySet());
+    }
+
+    /** Returns a stub for the naming server owning a path. */
+    public Service serviceFor(Path path)
+    {
+        return this.service(this.ownerOf(path));
+    }
+
+    /** Returns a stub for the naming server at a client service address,
+        made once per table. */
+    Service service(InetSocketAddress owner)
+    {
+        synchronized (this)
+        {
+            if (this.stubs == null) this.stubs = new ConcurrentHashMap<>();
+        }
+        return this.stubs.computeIfAbsent(owner, address -> {
+            try
+            {
+                return Stub.create(Service.class, address);
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalArgumentException("cannot make stub for " + address, t);
+            }
+        });
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[MountTable| " + this.mounts + "]";
+    }
+}
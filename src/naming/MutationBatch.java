@@ -0,0 +1,55 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Consecutive records of a naming server's mutation stream, as sent to a
+ * follower.
+ *
+ * <p>
+ * Besides the records, a batch carries the sequence number of the last
+ * mutation made on the primary when it was sent, so that a follower can tell
+ * whether it has caught up. A <em>truncated</em> batch has no records: the
+ * ones the follower asked for are no longer kept, and it must load a new
+ * snapshot of the tree.
+ */
+public class MutationBatch
+    implements Serializable
+{
+    JournalRecord[] records;
+    long lastSequence;
+    boolean truncated;
+
+    MutationBatch(JournalRecord[] records, long lastSequence, boolean truncated)
+    {
+        this.records = records;
+        this.lastSequence = lastSequence;
+        this.truncated = truncated;
+    }
+
+    /** Returns the records, oldest first. */
+    public JournalRecord[] getRecords()
+    {
+        return this.records;
+    }
+
+    /** Returns the sequence number of the last mutation on the primary. */
+    public long getLastSequence()
+    {
+        return this.lastSequence;
+    }
+
+    /** Returns <code>true</code> if the records asked for have been dropped,
+        so that the follower must start again from a snapshot. */
+    public boolean isTruncated()
+    {
+        return this.truncated;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[MutationBatch| " + this.records.length + " records, primary at "
+            + this.lastSequence + (this.truncated ? ", truncated" : "") + "]";
+    }
+}
@@ -0,0 +1,151 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+
+/**
+ * Recent namespace mutations, kept in memory for followers to tail.
+ *
+ * <p>
+ * The file system appends every mutation it journals here as well, whether
+ * or not a journal is kept on disk, under a sequence number of its own. The
+ * log holds the last <code>capacity</code> records in a ring; a follower that
+ * falls further behind than that is told so, and starts again from a
+ * snapshot of the tree.
+ *
+ * <p>
+ * Followers ask for the records after the last one they applied. When there
+ * are none yet, the call waits a little for the next mutation instead of
+ * returning at once, so that idle followers neither poll the primary hard nor
+ * lag behind it by a polling interval.
+ *
+ * <p>
+ * Clients watching part of the tree read the same records, filtered down to
+ * the paths they watch.
+ */
+public class MutationLog
+{
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    /** Number of records a watch copies out of the ring at a time. */
+    static final int WATCH_SCAN = 4096;
+
+    final JournalRecord[] ring;
+    long nextSequence = 1;
+
+    MutationLog(int capacity)
+    {
+        this.ring = new JournalRecord[Math.max(1, capacity)];
+    }
+
+    /** Appends a mutation and returns its sequence number. */
+    synchronized long append(JournalRecord.Kind kind, Path path, StorageContainer storageContainer, Path target)
+    {
+        long sequence = this.nextSequence++;
+        this.ring[(int) (sequence % this.ring.length)] =
+            new JournalRecord(sequence, kind, path, storageContainer, target);
+        this.notifyAll();
+        return sequence;
+    }
+
+    /** Appends a switch of a file to or from an erasure layout and returns
+        its sequence number. */
+    synchronized long append(Path path, ErasureLayout erasureLayout)
+    {
+        long sequence = this.nextSequence++;
+        this.ring[(int) (sequence % this.ring.length)] = new JournalRecord(sequence, path, erasureLayout);
+        this.notifyAll();
+        return sequence;
+    }
+
+    /** Appends a record of snapshots and the data kept for them, made
+        without a sequence number, and returns its sequence number. */
+    synchronized long append(JournalRecord record)
+    {
+        long sequence = this.nextSequence++;
+        this.ring[(int) (sequence % this.ring.length)] = record.at(sequence);
+        this.notifyAll();
+        return sequence;
+    }
+
+    /** Returns the sequence number of the last record appended, or
+        <code>0</code> if there is none. */
+    synchronized long getLastSequence()
+    {
+        return this.nextSequence - 1;
+    }
+
+    /**
+     * Returns the records after <code>sequence</code>, at most
+     * <code>limit</code> of them, waiting up to <code>waitMillis</code> for
+     * one to be appended if there are none yet.
+     *
+     * @return The records, or a truncated batch if some of those records have
+     *         already been dropped from the ring.
+     */
+    synchronized MutationBatch since(long sequence, int limit, long waitMillis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        long remaining;
+        while (this.nextSequence - 1 <= sequence && (remaining = deadline - System.currentTimeMillis()) > 0)
+            this.wait(remaining);
+
+        long last = this.nextSequence - 1;
+        long oldest = Math.max(1, this.nextSequence - this.ring.length);
+        if (sequence + 1 < oldest)
+            return new MutationBatch(new JournalRecord[0], last, true);
+        int count = (int) Math.max(0, Math.min(limit, last - sequence));
+        JournalRecord[] records = new JournalRecord[count];
+        for (int i = 0 ; i < count ; i++)
+            records[i] = this.ring[(int) ((sequence + 1 + i) % this.ring.length)];
+        return new MutationBatch(records, last, false);
+    }
+
+    /**
+     * Returns the events for the watched paths among the records after
+     * <code>sequence</code>, at most <code>limit</code> of them, waiting up to
+     * <code>waitMillis</code> for one if there are none yet. Records of paths
+     * that are not watched are skipped while waiting, without returning to
+     * the client. A negative <code>sequence</code> starts after the last
+     * record appended.
+     *
+     * <p>
+     * The records are copied out of the ring a slice at a time and filtered
+     * without the log's monitor, so that a watch far behind does not hold up
+     * the mutations appending to the log.
+     *
+     * @return The events, or a truncated batch if some of the records after
+     *         <code>sequence</code> have already been dropped from the ring.
+     */
+    WatchBatch watch(Path path, boolean subtree, long sequence, int limit, long waitMillis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        if (sequence < 0) sequence = this.getLastSequence();
+        ArrayList<WatchEvent> events = new ArrayList<>();
+        while (true)
+        {
+            MutationBatch batch = this.since(sequence, WATCH_SCAN,
+                Math.max(0, deadline - System.currentTimeMillis()));
+            if (batch.isTruncated())
+                return new WatchBatch(new WatchEvent[0], batch.getLastSequence(), true);
+            for (JournalRecord record : batch.getRecords())
+            {
+                if (events.size() >= limit) break;
+                sequence = record.getSequence();
+                WatchEvent event = WatchEvent.of(record, path, subtree);
+                if (event != null) events.add(event);
+            }
+            if (!events.isEmpty() || System.currentTimeMillis() >= deadline)
+                return new WatchBatch(events.toArray(new WatchEvent[0]), sequence, false);
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "[MutationLog| " + (this.nextSequence - 1) + " records, last "
+            + Math.min(this.ring.length, this.nextSequence - 1) + " kept]";
+    }
+}
@@ -3,6 +3,8 @@ package naming;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,14 +42,47 @@ public class NamingServer
     private final boolean IS_DIRECTORY = false;
 
     FileSystem fileSystem = new FileSystem();
-    HashSet<Storage> registry = new HashSet<>();
+    int servicePort = NamingStubs.SERVICE_PORT;
+    int registrationPort = NamingStubs.REGISTRATION_PORT;
     InetSocketAddress serviceSocketAddress;
     InetSocketAddress registrationSocketAddress;
+    volatile MountTable mountTable;
     Skeleton<Service> serviceSkeleton;
     Skeleton<Registration> registrationSkeleton;
     boolean isServiceSkeletonStarted;
     boolean isRegistrationSkeletonStarted;
     Lock lock = new ReentrantLock(true);
+    ReplicationPolicy replicationPolicy = new ReplicationPolicy();
+    ReplicationScheduler replicationScheduler = new ReplicationScheduler(
+        fileSystem,
+        replicationPolicy,
+        ReplicationScheduler.DEFAULT_CONCURRENT_COPIES,
+        ReplicationScheduler.DEFAULT_PENDING_LIMIT,
+        ReplicationScheduler.DEFAULT_RECLAIM_INTERVAL_MILLIS
+    );
+    StorageFanout storageFanout = new StorageFanout(StorageFanout.DEFAULT_THREADS);
+    ErasureCoder erasureCoder = new ErasureCoder(fileSystem, ErasureCoder.DEFAULT_THREADS);
+    MutationLog mutationLog = new MutationLog(MutationLog.DEFAULT_CAPACITY);
+    LeaseTable leaseTable = new LeaseTable(LeaseTable.DEFAULT_LEASE_MILLIS);
+    LockProfiler lockProfiler = new LockProfiler();
+    FailureDetector failureDetector = new FailureDetector();
+    RepairQueue repairQueue = new RepairQueue(fileSystem, replicationScheduler);
+    StorageMonitor storageMonitor = new StorageMonitor(
+        fileSystem,
+        failureDetector,
+        replicationPolicy,
+        repairQueue,
+        StorageMonitor.DEFAULT_CHECK_INTERVAL_MILLIS
+    );
+    Rebalancer rebalancer = new Rebalancer(
+        fileSystem,
+        replicationScheduler,
+        Rebalancer.DEFAULT_BYTES_PER_SECOND,
+        Rebalancer.DEFAULT_INTERVAL_MILLIS
+    );
+    ConcurrentHashMap<Path, CountDownLatch> storageDeletes = new ConcurrentHashMap<>();
+    Journal journal;
+    Checkpointer checkpointer;
 
     /** Creates the naming server object.
 
@@ -56,13 +91,114 @@ public class NamingServer
      */
     public NamingServer()
     {
+        this.fileSystem.setReplicationScheduler(this.replicationScheduler);
+        this.replicationScheduler.setErasureCoder(this.erasureCoder);
+        this.fileSystem.setMutationLog(this.mutationLog);
+        this.fileSystem.setLeaseTable(this.leaseTable);
+        this.fileSystem.setLockProfiler(this.lockProfiler);
+    }
+
+    /** Creates a naming server listening on the given ports instead of those
+        in <code>NamingStubs</code>, so that several naming servers can run on
+        the same machine.
+
+        <p>
+        The naming server is not started.
+     */
+    public NamingServer(int servicePort, int registrationPort)
+    {
+        this();
+        this.servicePort = servicePort;
+        this.registrationPort = registrationPort;
+    }
+
+    /** Creates a naming server whose directory tree is kept in a journal.
+
+        <p>
+        The journal in <code>journalDirectory</code> is replayed to restore the
+        directory tree left by the previous run, and every later change to the
+        tree is appended to it. Changes are acknowledged to clients only once
+        they are on disk; <code>fsyncIntervalMillis</code> and
+        <code>maxBatch</code> bound how long, and for how many changes, the
+        journal waits to write them with a single <code>fsync</code>. A
+        checkpoint of the tree is written to the same directory in the
+        background every <code>checkpointIntervalMillis</code>, and startup
+        loads the latest checkpoint before replaying the journal after it.
+
+        <p>
+        The naming server is not started.
+
+        @throws IOException If the journal cannot be opened or read.
+     */
+    public NamingServer(File journalDirectory, long fsyncIntervalMillis, int maxBatch,
+                        long checkpointIntervalMillis)
+        throws IOException
+    {
+        this(NamingStubs.SERVICE_PORT, NamingStubs.REGISTRATION_PORT, journalDirectory,
+             fsyncIntervalMillis, maxBatch, checkpointIntervalMillis);
+    }
+
+    /** Creates a naming server whose directory tree is kept in a journal, and
+        which listens on the given ports.
+
+        <p>
+        The naming server is not started.
+
+        @throws IOException If the journal cannot be opened or read.
+     */
+    public NamingServer(int servicePort, int registrationPort, File journalDirectory,
+                        long fsyncIntervalMillis, int maxBatch, long checkpointIntervalMillis)
+        throws IOException
+    {
+        this(servicePort, registrationPort);
+        this.journal = new Journal(journalDirectory, this.fileSystem, fsyncIntervalMillis, maxBatch);
+        this.fileSystem.setJournal(this.journal);
+        // Stale copies left by writes before the restart are still on storage
+        for (Path path : this.fileSystem.getFilesWithStaleReplicas())
+            this.replicationScheduler.collect(path);
+        this.checkpointer = new Checkpointer(journalDirectory, this.fileSystem, this.journal,
+            checkpointIntervalMillis);
+    }
+
+    /** Erasure-codes files that have gone cold instead of dropping them to
+        a single full replica.
+
+        <p>
+        Once a file with several replicas is read so rarely that a single
+        replica would do, it is cut into <code>dataFragments</code>
+        fragments, and <code>parityFragments</code> Reed-Solomon parity
+        fragments are added, each stored on a different storage server. The
+        file then survives the loss of any <code>parityFragments</code>
+        servers while taking <code>(dataFragments + parityFragments) /
+        dataFragments</code> times its size. A file that already has a single
+        replica is left as it is. Clients read coded files from their fragments through
+        <code>getReplicas</code>; <code>getStorage</code>, which writers use,
+        first restores a full replica.
+
+        <p>
+        Only the journal tells fragments apart from full copies, so coding
+        requires the naming server to keep one.
+
+        @throws IllegalStateException If the naming server keeps no journal.
+        @throws IllegalArgumentException If there is no parity fragment, or
+                                         more than 256 fragments in all.
+     */
+    public void enableErasureCoding(int dataFragments, int parityFragments)
+    {
+        if (this.journal == null)
+            throw new IllegalStateException("erasure coding requires a journal");
+        this.erasureCoder.enable(dataFragments, parityFragments);
     }
 
     /** Starts the naming server.
 
         <p>
         After this method is called, it is possible to access the client and
-        registration interfaces of the naming server remotely.
+        registration interfaces of the naming server remotely. The background
+        pass reclaiming unneeded replicas, the monitor removing failed storage
+        servers, the worker re-replicating their files and the rebalancer are
+        started as well; a naming server object that is never started runs
+        replication jobs as they are asked for, but no periodic work.
 
         @throws RMIException If either of the two skeletons, for the client or
                              registration server interfaces, could not be
@@ -73,6 +209,10 @@ public class NamingServer
         throws RMIException
     {
         this.initializeSkeletons();
+        this.replicationScheduler.start();
+        this.repairQueue.start();
+        this.storageMonitor.start();
+        this.rebalancer.start();
     }
 
     private void initializeSkeletons()
@@ -80,11 +220,11 @@ public class NamingServer
     {
         this.serviceSocketAddress = new InetSocketAddress(
             "127.0.0.1",
-            NamingStubs.SERVICE_PORT
+            this.servicePort
         );
         this.registrationSocketAddress = new InetSocketAddress(
             "127.0.0.1",
-            NamingStubs.REGISTRATION_PORT
+            this.registrationPort
         );
         try
         {
@@ -133,6 +273,15 @@ public class NamingServer
         this.isServiceSkeletonStarted = false;
         this.registrationSkeleton.stop();
         this.isRegistrationSkeletonStarted = false;
+        this.replicationScheduler.shutdown();
+        this.storageFanout.shutdown();
+        this.erasureCoder.shutdown();
+        this.storageMonitor.shutdown();
+        this.rebalancer.shutdown();
+        this.repairQueue.shutdown();
+        this.leaseTable.shutdown();
+        if (this.checkpointer != null) this.checkpointer.shutdown();
+        if (this.journal != null) this.journal.close();
         stopped(null);
     }
 
@@ -149,31 +298,208 @@ public class NamingServer
     {
     }
 
+    /** Makes this naming server one of the owners of a federated namespace.
+
+        <p>
+        The server keeps the subtrees the mount table gives to its client
+        service address, and the mount points of the subtrees mounted inside
+        them, creating those directories if they are missing. Calls on paths
+        owned by other naming servers are forwarded to them, and storage
+        servers registering files outside the server's subtrees have those
+        files ignored rather than deleted, since they belong to another
+        partition. This method should be called before storage servers
+        register, and once only.
+
+        @param mountTable The mount table shared by all the naming servers of
+                          the namespace.
+        @throws IllegalStateException If a file is in the way of one of the
+                                      directories.
+        @throws IOException If the directories cannot be written to the
+                            journal.
+     */
+    public synchronized void federate(MountTable mountTable)
+        throws IOException
+    {
+        if (mountTable == null) throw new NullPointerException("mountTable is null");
+        InetSocketAddress self = this.selfAddress();
+        ArrayList<Path> prefixes = mountTable.prefixes();
+        prefixes.sort(Comparator.comparingInt(NamingServer::depth));
+        for (Path prefix : prefixes)
+        {
+            if (prefix.toString().equals("/")) continue;
+            if (mountTable.mounts.get(prefix).equals(self) || mountTable.ownerOf(prefix.parent()).equals(self))
+                this.createDirectories(prefix);
+        }
+        if (this.journal != null) this.journal.sync();
+        this.mountTable = mountTable;
+    }
+
+    private void createDirectories(Path directory)
+        throws FileNotFoundException
+    {
+        Path current = new Path("/");
+        for (String component : directory)
+        {
+            current = new Path(current, component);
+            if (!this.fileSystem.hasPath(current))
+                this.fileSystem.add(current, Type.DIRECTORY, null);
+            else if (!this.fileSystem.isDirectory(current))
+                throw new IllegalStateException("file in the way of mount point " + current);
+        }
+    }
+
+    /** Returns the address clients reach this server's service interface
+        at, as it appears in mount tables. */
+    private InetSocketAddress selfAddress()
+    {
+        return new InetSocketAddress("127.0.0.1", this.servicePort);
+    }
+
+    /** Returns a stub for the naming server owning a path, or
+        <code>null</code> if this server owns it. */
+    private Service remoteOwner(Path path)
+    {
+        MountTable mountTable = this.mountTable;
+        if (mountTable == null || path == null) return null;
+        InetSocketAddress owner = mountTable.ownerOf(path);
+        return owner.equals(this.selfAddress()) ? null : mountTable.service(owner);
+    }
+
+    /** Returns a stub for the federation if any of the paths is owned by
+        another naming server, or <code>null</code> if this server owns all
+        of them. */
+    private Service remoteOwner(Path[] paths)
+    {
+        MountTable mountTable = this.mountTable;
+        if (mountTable == null) return null;
+        for (Path path : paths)
+        {
+            if (path == null) throw new NullPointerException("path is null");
+            if (this.remoteOwner(path) != null) return new FederatedService(mountTable);
+        }
+        return null;
+    }
+
+    /** Returns <code>true</code> if this server owns a path. */
+    private boolean owns(Path path)
+    {
+        return this.remoteOwner(path) == null;
+    }
+
+    /** Returns the mount point locked in the enclosing subtree while a path
+        owned by this server is locked, or <code>null</code> if there is none. */
+    private Path boundaryOf(Path path)
+    {
+        MountTable mountTable = this.mountTable;
+        return mountTable == null ? null : mountTable.boundaryOf(path);
+    }
+
+    /** Locks the mount point above a path owned by this server, if the path
+        is in a mounted subtree.
+
+        @return The mount point locked, or <code>null</code>.
+     */
+    private Path lockBoundary(Path path)
+        throws RMIException, FileNotFoundException
+    {
+        MountTable mountTable = this.mountTable;
+        Path boundary = this.boundaryOf(path);
+        if (boundary == null) return null;
+        mountTable.serviceFor(boundary.parent()).lockMountPoint(boundary);
+        return boundary;
+    }
+
+    /** Releases a mount point locked by <code>lockBoundary</code>. */
+    private void releaseBoundary(Path boundary)
+        throws RMIException
+    {
+        if (boundary == null) return;
+        this.mountTable.serviceFor(boundary.parent()).unlockMountPoint(boundary);
+    }
+
     // The following public methods are documented in Service.java.
     @Override
     public void lock(Path path, boolean exclusive)
         throws FileNotFoundException, RMIException
+    {
+        this.lock(path, exclusive, true);
+    }
+
+    /**
+     * Locks a path. The files of a path locked for writing are copied for the
+     * snapshots that still read them, unless <code>keep</code> is not set,
+     * as for a path about to be deleted, which the snapshots retain whole.
+     */
+    private void lock(Path path, boolean exclusive, boolean keep)
+        throws FileNotFoundException, RMIException
     {
         Status status = exclusive ? Status.EXCLUSIVE : Status.SHARED;
         if (path == null)
         {
             throw new NullPointerException("path is null");
         }
+        Service owner = this.remoteOwner(path);
+        if (owner != null)
+        {
+            owner.lock(path, exclusive);
+            return;
+        }
         if (!this.fileSystem.hasPath(path))
         {
             throw new FileNotFoundException("path not found for lock");
         }
-        if (exclusive) this.lock.lock();
-        if (!exclusive)
+        // The mount point is locked before anything in its subtree, as the
+        // ancestors of a path are in a single tree
+        Path boundary = this.lockBoundary(path);
+        try
         {
-            ArrayList<StorageContainer> storageContainers = this.fileSystem.get(path).shouldReplicate();
-            if (storageContainers != null)
+            LeaseTable.Invalidations invalidations;
+            ArrayList<SnapshotTable.Pin> pins = keep ? new ArrayList<>() : null;
+            if (exclusive) this.admit();
+            try
             {
-                this.fileSystem.attemptReplicate(path, storageContainers);
+                if (!exclusive)
+                {
+                    FileNode node = this.fileSystem.get(path);
+                    if (node.isFile())
+                    {
+                        int target = this.replicationPolicy.recordRead(node, System.currentTimeMillis());
+                        if (target > node.getReplicaCount())
+                            this.replicationScheduler.schedule(path);
+                    }
+                }
+                invalidations = this.fileSystem.lock(path, status, pins);
+            }
+            finally
+            {
+                if (exclusive) this.lock.unlock();
             }
+            // Locking for writing drops replicas, which clients may cache
+            invalidations.await();
+            // Copies kept for snapshots are made once no client is sent to a
+            // replica moved aside, and before the file is written
+            if (pins != null) this.fileSystem.keep(pins);
+        }
+        catch (FileNotFoundException | RuntimeException e)
+        {
+            this.releaseBoundary(boundary);
+            throw e;
         }
-        this.fileSystem.lock(path, status);
-        if (exclusive) this.lock.unlock();
+    }
+
+    /** Takes the lock that admits exclusive requests one at a time, timing
+        the wait for the lock profiler if the request is sampled. */
+    private void admit()
+    {
+        LockProfiler profiler = this.lockProfiler;
+        if (profiler == null || !profiler.sample())
+        {
+            this.lock.lock();
+            return;
+        }
+        long start = System.nanoTime();
+        this.lock.lock();
+        profiler.admitted(System.nanoTime() - start);
     }
 
     @Override
@@ -183,6 +509,12 @@ public class NamingServer
         Status status = exclusive ? Status.EXCLUSIVE : Status.SHARED;
         if (path == null)
             throw new NullPointerException("path is null");
+        Service owner = this.remoteOwner(path);
+        if (owner != null)
+        {
+            owner.unlock(path, exclusive);
+            return;
+        }
         if (!this.fileSystem.hasPath(path))
             throw new IllegalArgumentException("cannot find path");
         try
@@ -193,28 +525,242 @@ public class NamingServer
         {
             throw new IllegalArgumentException("cannot find path");
         }
+        this.releaseBoundary(this.boundaryOf(path));
+    }
+
+    @Override
+    public MountTable getMountTable()
+    {
+        return this.mountTable;
+    }
+
+    @Override
+    public WatchBatch watch(Path path, boolean subtree, long sequence, int limit, long waitMillis)
+        throws RMIException
+    {
+        if (path == null) throw new NullPointerException("path is null");
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.watch(path, subtree, sequence, limit, waitMillis);
+        try
+        {
+            return this.mutationLog.watch(path, subtree, sequence, limit, Math.max(0, waitMillis));
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("interrupted while waiting for changes");
+        }
+    }
+
+    @Override
+    public LockReport getLockReport(Path prefix, int limit)
+        throws RMIException
+    {
+        if (prefix == null) throw new NullPointerException("prefix is null");
+        Service owner = this.remoteOwner(prefix);
+        if (owner != null) return owner.getLockReport(prefix, limit);
+        return this.lockProfiler.report(prefix, limit);
+    }
+
+    @Override
+    public MetadataLease lease(Path path, CacheClient client)
+        throws RMIException
+    {
+        if (path == null || client == null)
+            throw new NullPointerException("path or client is null");
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.lease(path, client);
+        long duration = this.leaseTable.grant(path, client);
+        FileNode node;
+        try
+        {
+            node = this.fileSystem.get(path);
+        }
+        catch (FileNotFoundException e)
+        {
+            return new MetadataLease(path, false, false, null, null, null, duration);
+        }
+        if (!node.isFile())
+        {
+            ArrayList<String> children = node.getChildren().names();
+            return new MetadataLease(path, true, true, children.toArray(new String[children.size()]),
+                                     null, null, duration);
+        }
+        Storage storage = null;
+        Replica[] replicas = null;
+        try
+        {
+            // A coded file is leased with its fragments and no storage server,
+            // so that leasing never restores it
+            if (this.fileSystem.getErasureLayout(node) == null) storage = this.getStorage(path, false);
+            replicas = this.getReplicas(path);
+        }
+        catch (FileNotFoundException e)
+        {
+            // No live replica, or deleted meanwhile, which calls the client back
+        }
+        return new MetadataLease(path, true, false, null, storage, replicas, duration);
+    }
+
+    @Override
+    public byte[] snapshot()
+        throws RMIException
+    {
+        // Mutations logged from here on are applied again by the follower,
+        // which is harmless for those the image already reflects
+        long sequence = this.mutationLog.getLastSequence();
+        try
+        {
+            return Checkpoint.image(this.fileSystem, sequence);
+        }
+        catch (IOException e)
+        {
+            throw new RMIException("cannot take snapshot", e);
+        }
+    }
+
+    @Override
+    public MutationBatch mutationsSince(long sequence, int limit, long waitMillis)
+    {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        try
+        {
+            return this.mutationLog.since(sequence, limit, Math.max(0, waitMillis));
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("interrupted while waiting for mutations");
+        }
+    }
+
+    @Override
+    public void lockMountPoint(Path mount)
+        throws RMIException, FileNotFoundException
+    {
+        if (this.mountTable == null)
+            throw new UnsupportedOperationException("naming server is not federated");
+        if (mount == null || mount.toString().equals("/"))
+            throw new IllegalArgumentException("not a mount point: " + mount);
+        if (!this.fileSystem.hasPath(mount))
+            throw new FileNotFoundException("mount point not found");
+        Path boundary = this.lockBoundary(mount.parent());
+        try
+        {
+            this.fileSystem.lock(mount, Status.SHARED);
+        }
+        catch (FileNotFoundException | RuntimeException e)
+        {
+            this.releaseBoundary(boundary);
+            throw e;
+        }
+    }
+
+    @Override
+    public void unlockMountPoint(Path mount)
+        throws RMIException
+    {
+        if (this.mountTable == null)
+            throw new UnsupportedOperationException("naming server is not federated");
+        if (mount == null || mount.toString().equals("/"))
+            throw new IllegalArgumentException("not a mount point: " + mount);
+        try
+        {
+            this.fileSystem.unlock(mount, Status.SHARED);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new IllegalArgumentException("cannot find mount point");
+        }
+        this.releaseBoundary(this.boundaryOf(mount.parent()));
     }
 
     @Override
     public boolean isDirectory(Path path)
-        throws FileNotFoundException
+        throws FileNotFoundException, RMIException
     {
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.isDirectory(path);
         return this.fileSystem.isDirectory(path);
     }
 
     @Override
     public String[] list(Path directory)
-        throws FileNotFoundException
+        throws FileNotFoundException, RMIException
     {
+        Service owner = this.remoteOwner(directory);
+        if (owner != null) return owner.list(directory);
         if (!this.fileSystem.hasPath(directory))
             throw new FileNotFoundException("directory does not exist");
         return this.fileSystem.getChildrenStrings(directory);
     }
 
+    @Override
+    public DirectoryListing listEntries(Path path, String after, int limit)
+        throws FileNotFoundException, RMIException
+    {
+        if (path == null) throw new NullPointerException("path is null");
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.listEntries(path, after, limit);
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        limit = Math.min(limit, DirectoryListing.MAX_ENTRIES);
+        // One entry past the page tells whether another page follows
+        ArrayList<FileNode> nodes = this.fileSystem.listPage(path, after, limit + 1);
+        boolean more = nodes.size() > limit;
+        int count = Math.min(nodes.size(), limit);
+
+        // Sizes that are not known are asked of the storage servers, a batch
+        // per server and all servers at once
+        HashMap<StorageContainer, ArrayList<Path>> unknown = new HashMap<>();
+        long[] versions = new long[count];
+        for (int i = 0 ; i < count ; i++)
+        {
+            FileNode node = nodes.get(i);
+            versions[i] = node.getVersion();
+            ArrayList<StorageContainer> holders = node.getStorageContainers();
+            if (node.isFile() && !node.isFileSizeKnown() && !holders.isEmpty())
+                unknown.computeIfAbsent(holders.get(0), k -> new ArrayList<>()).add(node.getPath());
+        }
+        HashMap<Path, Long> sizes = new HashMap<>();
+        if (!unknown.isEmpty())
+        {
+            try
+            {
+                sizes = this.storageFanout.sizes(unknown);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RMIException("interrupted while asking for file sizes");
+            }
+        }
+
+        DirectoryEntry[] entries = new DirectoryEntry[count];
+        for (int i = 0 ; i < count ; i++)
+        {
+            FileNode node = nodes.get(i);
+            if (node.isDirectory())
+            {
+                entries[i] = new DirectoryEntry(node.getName(), true, 0, 0);
+                continue;
+            }
+            long size = node.isFileSizeKnown() ? node.getFileSize() : -1;
+            Long reported = sizes.get(node.getPath());
+            if (reported != null)
+            {
+                this.fileSystem.rememberFileSize(node, versions[i], reported);
+                size = reported;
+            }
+            entries[i] = new DirectoryEntry(node.getName(), false, size, node.getReplicaCount());
+        }
+        return new DirectoryListing(entries, more ? entries[count - 1].getName() : null);
+    }
+
     @Override
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
+        Service owner = this.remoteOwner(file);
+        if (owner != null) return owner.createFile(file);
         return this.create(file, IS_FILE);
     }
 
@@ -223,28 +769,38 @@ public class NamingServer
     public boolean createDirectory(Path directory)
         throws  RMIException, FileNotFoundException
     {
+        Service owner = this.remoteOwner(directory);
+        if (owner != null) return owner.createDirectory(directory);
         return this.create(directory, IS_DIRECTORY);
     }
 
     private boolean create(Path path, boolean isFile)
         throws RMIException, FileNotFoundException, IllegalStateException
     {
-        if (!path.toString().equals("/") && !this.fileSystem.hasPath(path.parent()))
+        if (!path.toString().equals("/") && (!this.fileSystem.hasPath(path.parent())
+            || !this.fileSystem.isDirectory(path.parent())))
             throw new FileNotFoundException("path's parent does not exist");
         if (!this.fileSystem.hasStorageConnected())
             throw new IllegalStateException("no storage connected");
-        if (this.fileSystem.hasPath(path))
+        if (this.fileSystem.hasPath(path) || SnapshotTable.isReserved(path))
             return false;
         try
         {
-            Command command = this.fileSystem.get(path.parent()).getCommand();
-            if (command == null)
+            LeaseTable.Invalidations invalidations;
+            if (isFile)
             {
-                command = this.fileSystem.findAvailableStorageContainer(null).getCommand();
+                this.awaitStorageDeletes(path);
+                // Place the new file on the least-loaded storage server
+                StorageContainer storageContainer = this.fileSystem.findAvailableStorageContainer(null);
+                storageContainer.getCommand().create(path);
+                invalidations = this.fileSystem.add(path, Type.FILE, storageContainer);
             }
-            if (isFile)
-                command.create(path);
-            this.fileSystem.add(path, (isFile ? Type.FILE : Type.DIRECTORY));
+            else
+            {
+                invalidations = this.fileSystem.add(path, Type.DIRECTORY, null);
+            }
+            invalidations.await();
+            this.syncJournal();
             return true;
         }
         catch (IllegalStateException e)
@@ -261,54 +817,715 @@ public class NamingServer
     public boolean delete(Path path)
         throws FileNotFoundException, RMIException
     {
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.delete(path);
         if (!this.fileSystem.hasPath(path))
             throw new FileNotFoundException("path does not exist");
+        if (path.toString().equals("/")) return false;
+        BatchStatus status = this.deleteAll(new Path[] {path})[0];
+        if (status == BatchStatus.NOT_FOUND)
+            throw new FileNotFoundException("path does not exist");
+        return status == BatchStatus.DONE;
+    }
 
-        this.lock(path, true);
+    @Override
+    public boolean rename(Path source, Path target)
+        throws FileNotFoundException, RMIException
+    {
+        if (source == null || target == null)
+            throw new NullPointerException("source or target is null");
+        if (source.toString().equals("/") || target.toString().equals("/"))
+            return false;
+        if (isAncestor(source, target))
+            throw new IllegalArgumentException("cannot move a path below itself");
+        MountTable mountTable = this.mountTable;
+        if (mountTable != null && (mountTable.coversMount(source)
+            || !mountTable.mountOf(source).equals(mountTable.mountOf(target))))
+        {
+            throw new IllegalArgumentException("cannot move across mounted subtrees");
+        }
+        Service owner = this.remoteOwner(source);
+        if (owner != null) return owner.rename(source, target);
+        if (!this.fileSystem.hasPath(source))
+            throw new FileNotFoundException("source does not exist");
+
+        // The exclusive lock on the source holds its ancestors shared, so the
+        // target's parent is only locked on its own if it is not one of them.
+        // Two locks are taken in increasing order, as in deleteAll.
+        Path targetParent = target.parent();
+        boolean lockParent = !isAncestor(targetParent, source);
+        boolean parentFirst = lockParent && targetParent.toString().compareTo(source.toString()) < 0;
+        // A copy of the source, or of any file below it, to a new replica is
+        // waited out before the locks are taken, so that they are never held
+        // across a copy
         try
         {
-            boolean result = true;
-            if (path.isFile())
+            if (!this.replicationScheduler.awaitIdle(source, ReplicationScheduler.DEFAULT_DELETE_WAIT_MILLIS))
+                throw new RMIException("source is still being replicated: " + source);
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("rename interrupted");
+        }
+        Path boundary = this.lockBoundary(source);
+        boolean sourceLocked = false;
+        boolean parentLocked = false;
+        boolean moved = false;
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        try
+        {
+            if (parentFirst)
             {
-                result = result && this.fileSystem.delete(path);
+                this.fileSystem.lock(targetParent, Status.SHARED);
+                parentLocked = true;
             }
-            else
+            this.admit();
+            try
+            {
+                this.fileSystem.lockNamespace(source);
+                sourceLocked = true;
+            }
+            finally
             {
-                result = result && this.fileSystem.delete(path);
-                result = result && this.fileSystem.childDelete(path);
+                this.lock.unlock();
+            }
+            if (lockParent && !parentFirst)
+            {
+                this.fileSystem.lock(targetParent, Status.SHARED);
+                parentLocked = true;
+            }
+            if (!this.fileSystem.isDirectory(targetParent))
+                throw new FileNotFoundException("target's parent is not a directory");
+            if (this.fileSystem.hasPath(target) || SnapshotTable.isReserved(target))
+                return false;
+
+            // Nothing may still be deleting the target on the storage side.
+            // A job that started copying the source after the wait above
+            // could publish its copy under the old path, so the rename fails.
+            this.awaitStorageDeletes(target);
+            if (this.replicationScheduler.isPending(source))
+                throw new RMIException("source is still being replicated: " + source);
+            FileNode node = this.fileSystem.get(source);
+            LinkedHashSet<StorageContainer> holders = new LinkedHashSet<>(node.getStorageContainers());
+            holders.addAll(node.getStaleContainers());
+            ErasureLayout layout = node.isFile() ? this.fileSystem.getErasureLayout(node) : null;
+            if (layout != null) holders.addAll(layout.getLiveHolders());
+            // Directories made before any file was placed below them carry a
+            // container without stubs, which stands for no server at all
+            holders.removeIf(storageContainer -> storageContainer.getCommand() == null);
+            HashSet<StorageContainer> renamed = this.storageFanout.rename(holders, source, target);
+            if (renamed.size() < holders.size())
+            {
+                this.storageFanout.rename(renamed, target, source);
+                throw new RMIException("storage servers could not move " + source);
+            }
+            moved = this.fileSystem.move(source, target, invalidations);
+            if (!moved)
+            {
+                this.storageFanout.rename(renamed, target, source);
+                return false;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("rename interrupted");
+        }
+        finally
+        {
+            try
+            {
+                if (sourceLocked && moved)
+                    this.fileSystem.unlockMoved(source, target);
+                else if (sourceLocked)
+                    this.fileSystem.unlock(source, Status.EXCLUSIVE);
+                if (parentLocked)
+                    this.fileSystem.unlock(targetParent, Status.SHARED);
+            }
+            catch (FileNotFoundException e) { }
+            this.releaseBoundary(boundary);
+        }
+        invalidations.await();
+        this.syncJournal();
+        return true;
+    }
+
+    /** Returns <code>true</code> if <code>path</code> is
+        <code>ancestor</code> or below it. */
+    static boolean isAncestor(Path ancestor, Path path)
+    {
+        for (Path current = path ; ; current = current.parent())
+        {
+            if (current.equals(ancestor)) return true;
+            if (current.toString().equals("/")) return false;
+        }
+    }
+
+    @Override
+    public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+        throws RMIException
+    {
+        if (paths == null || directories == null)
+            throw new NullPointerException("paths or directories is null");
+        if (paths.length != directories.length)
+            throw new IllegalArgumentException("paths and directories differ in length");
+        boolean hasFiles = false;
+        for (int i = 0 ; i < paths.length ; i++)
+        {
+            if (paths[i] == null) throw new NullPointerException("path is null");
+            hasFiles = hasFiles || !directories[i];
+        }
+        Service federation = this.remoteOwner(paths);
+        if (federation != null) return federation.createAll(paths, directories);
+        if (hasFiles && !this.fileSystem.hasStorageConnected())
+            throw new IllegalStateException("no storage connected");
+
+        // The existing directories the batch creates under are locked for
+        // exclusive access, as a client locks the parent before create, and
+        // in increasing order, as deleteAll locks its targets. A path below
+        // another directory of the batch is covered by that directory's lock.
+        HashSet<Path> batch = new HashSet<>(Arrays.asList(paths));
+        HashMap<Path, Path> parentOf = new HashMap<>();
+        TreeSet<Path> parents = new TreeSet<>(Comparator.comparing(Path::toString));
+        for (Path path : paths)
+        {
+            if (path.toString().equals("/")) continue;
+            Path parent = path.parent();
+            while (batch.contains(parent) && !parent.toString().equals("/")) parent = parent.parent();
+            parentOf.put(path, parent);
+            parents.add(parent);
+        }
+        HashSet<Path> locked = new HashSet<>();
+        BatchStatus[] results = new BatchStatus[paths.length];
+        try
+        {
+            for (Path parent : parents)
+            {
+                if (coveringTarget(parent, parents) != null) continue;
+                try
+                {
+                    this.lock(parent, true);
+                    locked.add(parent);
+                }
+                catch (FileNotFoundException e)
+                {
+                    // Its paths are reported not found below
+                }
+            }
+
+            // Shallower paths first, so that directories created by the batch
+            // exist by the time their children are checked
+            Integer[] order = new Integer[paths.length];
+            for (int i = 0 ; i < order.length ; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> depth(paths[i])));
+
+            StorageRegistry registry = this.fileSystem.getStorageRegistry();
+            HashMap<StorageContainer, ArrayList<Path>> placement = new HashMap<>();
+            HashMap<Path, Integer> placed = new HashMap<>();
+            LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+            for (int i : order)
+            {
+                Path path = paths[i];
+                try
+                {
+                    if (path.toString().equals("/") || placed.containsKey(path) || this.fileSystem.hasPath(path))
+                    {
+                        results[i] = BatchStatus.UNCHANGED;
+                    }
+                    else if (!this.fileSystem.hasPath(path.parent()) || !this.fileSystem.isDirectory(path.parent())
+                             || (!locked.contains(parentOf.get(path))
+                                 && coveringTarget(parentOf.get(path), locked) == null))
+                    {
+                        results[i] = BatchStatus.NOT_FOUND;
+                    }
+                    else if (SnapshotTable.isReserved(path))
+                    {
+                        results[i] = BatchStatus.FAILED;
+                    }
+                    else if (directories[i])
+                    {
+                        invalidations.add(this.fileSystem.add(path, Type.DIRECTORY, null));
+                        results[i] = BatchStatus.DONE;
+                    }
+                    else
+                    {
+                        this.awaitStorageDeletes(path);
+                        // Count each file against its server as it is placed, so
+                        // that the batch is spread over the servers rather than
+                        // landing on whichever was least loaded at the start
+                        StorageContainer storageContainer = this.fileSystem.findAvailableStorageContainer(null);
+                        registry.recordFileAdded(storageContainer, 0);
+                        placement.computeIfAbsent(storageContainer, k -> new ArrayList<>()).add(path);
+                        placed.put(path, i);
+                    }
+                }
+                catch (FileNotFoundException e)
+                {
+                    results[i] = BatchStatus.NOT_FOUND;
+                }
+            }
+
+            HashMap<StorageContainer, HashSet<Path>> created;
+            try
+            {
+                created = this.storageFanout.create(placement);
+            }
+            catch (InterruptedException e)
+            {
+                created = new HashMap<>();
+            }
+            for (Map.Entry<StorageContainer, ArrayList<Path>> group : placement.entrySet())
+            {
+                StorageContainer storageContainer = group.getKey();
+                HashSet<Path> succeeded = created.getOrDefault(storageContainer, new HashSet<>());
+                for (Path path : group.getValue())
+                {
+                    // Undo the placement count; adding the file counts it again
+                    registry.recordFileRemoved(storageContainer, 0);
+                    int i = placed.get(path);
+                    if (!succeeded.contains(path))
+                    {
+                        results[i] = BatchStatus.FAILED;
+                        continue;
+                    }
+                    try
+                    {
+                        invalidations.add(this.fileSystem.add(path, Type.FILE, storageContainer));
+                        results[i] = BatchStatus.DONE;
+                    }
+                    catch (FileNotFoundException e)
+                    {
+                        results[i] = BatchStatus.NOT_FOUND;
+                    }
+                }
+            }
+            invalidations.await();
+            this.syncJournal();
+        }
+        finally
+        {
+            for (Path parent : locked)
+            {
+                try
+                {
+                    this.fileSystem.unlock(parent, Status.EXCLUSIVE);
+                }
+                catch (FileNotFoundException e) { }
+                this.releaseBoundary(this.boundaryOf(parent));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public BatchStatus[] deleteAll(Path[] paths)
+        throws RMIException
+    {
+        if (paths == null) throw new NullPointerException("paths is null");
+        Service federation = this.remoteOwner(paths);
+        if (federation != null) return federation.deleteAll(paths);
+        MountTable mountTable = this.mountTable;
+        // Lock in increasing order, which string order respects, so that two
+        // batches cannot deadlock each other
+        TreeSet<Path> targets = new TreeSet<>(Comparator.comparing(Path::toString));
+        for (Path path : paths)
+        {
+            if (path == null) throw new NullPointerException("path is null");
+            if (!path.toString().equals("/")) targets.add(path);
+        }
+
+        HashMap<Path, BatchStatus> outcomes = new HashMap<>();
+        ArrayList<Path> locked = new ArrayList<>();
+        HashMap<Path, FileNode> detached = new HashMap<>();
+        LeaseTable.Invalidations invalidations = new LeaseTable.Invalidations();
+        try
+        {
+            for (Path path : targets)
+            {
+                // A path below another target is deleted with it, and locking
+                // both would deadlock
+                if (coveringTarget(path, targets) != null) continue;
+                // Removing a mount point would orphan the subtree mounted there
+                if (mountTable != null && mountTable.coversMount(path))
+                {
+                    outcomes.put(path, BatchStatus.FAILED);
+                    continue;
+                }
+                try
+                {
+                    this.lock(path, true, false);
+                    locked.add(path);
+                }
+                catch (FileNotFoundException e)
+                {
+                    outcomes.put(path, BatchStatus.NOT_FOUND);
+                }
+            }
+            // Cutting each subtree off the tree is all that is done under the
+            // locks: from here on no client can reach anything below the
+            // targets, and the storage servers are contacted without them.
+            // Creations at or below a target wait for its storage-side
+            // deletion from the moment it is cut off.
+            for (Path path : locked)
+            {
+                FileNode node = this.fileSystem.detach(path, invalidations);
+                if (node == null)
+                {
+                    outcomes.put(path, BatchStatus.NOT_FOUND);
+                    continue;
+                }
+                detached.put(path, node);
+                this.storageDeletes.put(path, new CountDownLatch(1));
             }
-            this.unlock(path.parent(), true);
-            return result;
         }
         catch (FileNotFoundException e)
         {
-            this.unlock(path.parent(), true);
-            throw e;
+            for (Path path : detached.keySet())
+                this.storageDeletes.remove(path).countDown();
+            throw new IllegalStateException("locked path disappeared", e);
         }
-        catch (RMIException e)
+        finally
         {
-            this.unlock(path.parent(), true);
-            throw e;
+            for (Path path : locked)
+            {
+                try
+                {
+                    if (detached.containsKey(path))
+                        this.fileSystem.unlockDeleted(path);
+                    else if (this.fileSystem.hasPath(path))
+                        this.fileSystem.unlock(path, Status.EXCLUSIVE);
+                }
+                catch (FileNotFoundException e) { }
+                this.releaseBoundary(this.boundaryOf(path));
+            }
+        }
+        try
+        {
+            // The deletions are made durable, and the clients caching the
+            // paths told, before any data is removed, so that neither a
+            // restart nor a cached location brings back files that are gone
+            invalidations.await();
+            this.syncJournal();
+
+            HashMap<StorageContainer, ArrayList<Path>> groups = new HashMap<>();
+            HashMap<Path, ArrayList<StorageContainer>> deciding = new HashMap<>();
+            HashSet<Path> busy = new HashSet<>();
+            for (Map.Entry<Path, FileNode> entry : detached.entrySet())
+            {
+                // Let replication jobs on the path and every file below it
+                // finish, or discard a copy in flight, so that nothing is
+                // written back after the delete. A job still running after the
+                // wait may yet leave a copy behind, so the delete is not
+                // reported done.
+                if (!this.replicationScheduler.awaitIdle(entry.getKey(),
+                                                         ReplicationScheduler.DEFAULT_DELETE_WAIT_MILLIS))
+                {
+                    busy.add(entry.getKey());
+                }
+                HashMap<StorageContainer, ArrayList<Path>> subtree = new HashMap<>();
+                ArrayList<StorageContainer> servers = this.fileSystem.releaseSubtree(entry.getValue(), subtree);
+                this.retainForSnapshots(entry.getKey(), entry.getValue(), subtree, servers, groups);
+                for (Map.Entry<StorageContainer, ArrayList<Path>> group : subtree.entrySet())
+                    groups.computeIfAbsent(group.getKey(), k -> new ArrayList<>()).addAll(group.getValue());
+                deciding.put(entry.getKey(), servers);
+            }
+            HashMap<StorageContainer, HashSet<Path>> deleted = this.storageFanout.delete(groups);
+            for (Path path : detached.keySet())
+            {
+                boolean result = !busy.contains(path);
+                for (StorageContainer storageContainer : deciding.get(path))
+                    result = result && deleted.get(storageContainer).contains(path);
+                outcomes.put(path, result ? BatchStatus.DONE : BatchStatus.FAILED);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("delete interrupted");
+        }
+        finally
+        {
+            for (Path path : detached.keySet())
+                this.storageDeletes.remove(path).countDown();
+        }
+
+        BatchStatus[] results = new BatchStatus[paths.length];
+        for (int i = 0 ; i < paths.length ; i++)
+        {
+            Path covering = coveringTarget(paths[i], targets);
+            BatchStatus status = outcomes.get(covering != null ? covering : paths[i]);
+            results[i] = status != null ? status : BatchStatus.UNCHANGED;
+        }
+        return results;
+    }
+
+    /**
+     * Moves a deleted subtree that snapshots still reach aside on its storage
+     * servers, instead of deleting it, to where <code>detach</code> decided.
+     * The servers that moved it are taken out of <code>subtree</code> and
+     * <code>servers</code>, so that only the others delete it.
+     */
+    private void retainForSnapshots(Path path, FileNode node, Map<StorageContainer, ArrayList<Path>> subtree,
+                                    ArrayList<StorageContainer> servers,
+                                    Map<StorageContainer, ArrayList<Path>> groups)
+        throws InterruptedException
+    {
+        SnapshotTable.Retained retained = this.fileSystem.snapshots.retained.get(node);
+        if (retained == null) return;
+        HashSet<StorageContainer> moved = this.storageFanout.rename(subtree.keySet(), path, retained.location);
+        if (!this.fileSystem.settle(retained, moved))
+        {
+            // The snapshots were deleted in the meantime
+            for (StorageContainer storageContainer : moved)
+                groups.computeIfAbsent(storageContainer, k -> new ArrayList<>()).add(retained.location);
+        }
+        subtree.keySet().removeAll(moved);
+        servers.removeAll(moved);
+    }
+
+    /** Deletes the data kept for snapshots from its storage servers. */
+    private void deleteRetained(Collection<SnapshotTable.Retained> released)
+    {
+        HashMap<StorageContainer, ArrayList<Path>> groups = new HashMap<>();
+        for (SnapshotTable.Retained retained : released)
+        {
+            for (StorageContainer storageContainer : retained.holders)
+                groups.computeIfAbsent(storageContainer, k -> new ArrayList<>()).add(retained.location);
+        }
+        if (groups.isEmpty()) return;
+        try
+        {
+            this.storageFanout.delete(groups);
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException("delete interrupted");
         }
     }
 
+    @Override
+    public boolean createSnapshot(String name)
+    {
+        if (name == null) throw new NullPointerException("name is null");
+        if (name.isEmpty()) throw new IllegalArgumentException("name is empty");
+        return this.fileSystem.createSnapshot(name);
+    }
 
+    @Override
+    public boolean deleteSnapshot(String name)
+    {
+        if (name == null) throw new NullPointerException("name is null");
+        ArrayList<SnapshotTable.Retained> released = this.fileSystem.deleteSnapshot(name);
+        if (released == null) return false;
+        this.deleteRetained(released);
+        return true;
+    }
+
+    @Override
+    public String[] listSnapshots()
+    {
+        return this.fileSystem.snapshots.names();
+    }
+
+    @Override
+    public SnapshotEntry readSnapshot(String name, Path path)
+        throws RMIException, FileNotFoundException
+    {
+        if (name == null || path == null) throw new NullPointerException("name or path is null");
+        Service owner = this.remoteOwner(path);
+        if (owner != null) return owner.readSnapshot(name, path);
+        return this.fileSystem.readSnapshot(name, path);
+    }
+
+    /**
+     * Waits until no storage-side deletion is running for the path or any of
+     * its ancestors. A path is detached from the tree before its storage
+     * servers are told to delete it, and a file created at or below it in the
+     * meantime would otherwise be deleted along with it.
+     */
+    private void awaitStorageDeletes(Path path)
+    {
+        for (Path current = path ; ; current = current.parent())
+        {
+            CountDownLatch pending = this.storageDeletes.get(current);
+            if (pending != null)
+            {
+                try
+                {
+                    pending.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IllegalStateException("create interrupted");
+                }
+            }
+            if (current.toString().equals("/")) return;
+        }
+    }
+
+    /** Returns the number of components of a path. */
+    private static int depth(Path path)
+    {
+        String string = path.toString();
+        int depth = 0;
+        for (int i = 0 ; i < string.length() ; i++)
+        {
+            if (string.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    /** Returns the highest proper ancestor of a path that is one of the
+        targets, or <code>null</code> if there is none. */
+    private static Path coveringTarget(Path path, Set<Path> targets)
+    {
+        Path covering = null;
+        for (Path ancestor = path ; !ancestor.toString().equals("/") ; )
+        {
+            ancestor = ancestor.parent();
+            if (targets.contains(ancestor)) covering = ancestor;
+        }
+        return covering;
+    }
 
     @Override
     public Storage getStorage(Path file)
-        throws FileNotFoundException
+        throws FileNotFoundException, RMIException
+    {
+        Service owner = this.remoteOwner(file);
+        if (owner != null) return owner.getStorage(file);
+        return this.getStorage(file, true);
+    }
+
+    /** Returns the storage server of the least-loaded replica of a file,
+        which is charged with the I/O. A file that is erasure-coded is first
+        restored to a full replica if <code>restore</code> is set. */
+    private Storage getStorage(Path file, boolean restore)
+        throws FileNotFoundException, RMIException
     {
         if (!this.fileSystem.hasPath(file) || file.toString().equals("/"))
             throw new FileNotFoundException("path does not exist");
         if (this.fileSystem.isDirectory(file))
             throw new FileNotFoundException("cannot pass in directory");
-        return this.fileSystem.get(file).getStorage();
+        FileNode node = this.fileSystem.get(file);
+        ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        StorageContainer storageContainer;
+        if (!storageContainers.isEmpty())
+        {
+            storageContainer = storageContainers.get(0);
+            for (StorageContainer replica : storageContainers)
+            {
+                if (score(registry, replica) < score(registry, storageContainer))
+                    storageContainer = replica;
+            }
+        }
+        else if (restore && this.fileSystem.getErasureLayout(node) != null)
+        {
+            try
+            {
+                storageContainer = this.erasureCoder.restore(file);
+            }
+            catch (FileNotFoundException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                throw new RMIException("cannot restore erasure-coded file", e);
+            }
+        }
+        else
+        {
+            throw new FileNotFoundException("no live replica of file");
+        }
+        registry.recordIo(storageContainer);
+        return storageContainer.getStorage();
+    }
+
+    /** Returns the load score of a server, or zero if it is not
+        registered. */
+    private static double score(StorageRegistry registry, StorageContainer storageContainer)
+    {
+        ServerLoad load = registry.getLoad(storageContainer);
+        return load == null ? 0 : load.getScore();
+    }
+
+    @Override
+    public Replica[] getReplicas(Path file)
+        throws FileNotFoundException, RMIException
+    {
+        Service owner = this.remoteOwner(file);
+        if (owner != null) return owner.getReplicas(file);
+        if (!this.fileSystem.hasPath(file) || file.toString().equals("/"))
+            throw new FileNotFoundException("path does not exist");
+        if (this.fileSystem.isDirectory(file))
+            throw new FileNotFoundException("cannot pass in directory");
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        FileNode node = this.fileSystem.get(file);
+        ArrayList<StorageContainer> storageContainers = node.getStorageContainers();
+        ErasureLayout layout = this.fileSystem.getErasureLayout(node);
+        if (storageContainers.isEmpty() && layout != null)
+            return this.getFragments(layout);
+        if (storageContainers.isEmpty())
+            throw new FileNotFoundException("no live replica of file");
+        Replica[] replicas = new Replica[storageContainers.size()];
+        for (int i = 0 ; i < replicas.length ; i++)
+        {
+            StorageContainer storageContainer = storageContainers.get(i);
+            ServerLoad load = registry.getLoad(storageContainer);
+            InetSocketAddress address = Stub.address(storageContainer.getStorage());
+            replicas[i] = new Replica(
+                storageContainer.getStorage(),
+                address == null ? null : address.getAddress().getHostAddress(),
+                load == null ? 0 : load.getScore()
+            );
+        }
+        Arrays.sort(replicas, Comparator.comparingDouble(Replica::getLoad));
+        // Clients pick a replica at random, with odds inversely proportional
+        // to one plus its load (see ReplicaSelector), so each replica is
+        // charged its odds of being picked
+        double total = 0;
+        for (Replica replica : replicas)
+            total += 1 / (1 + Math.max(0, replica.getLoad()));
+        for (Replica replica : replicas)
+        {
+            registry.recordIo(registry.get(replica.getStorage()),
+                              1 / (1 + Math.max(0, replica.getLoad())) / total);
+        }
+        return replicas;
+    }
+
+    /** Returns the live fragments of an erasure-coded file, in fragment
+        order. */
+    private Replica[] getFragments(ErasureLayout layout)
+        throws FileNotFoundException
+    {
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        ArrayList<Replica> fragments = new ArrayList<>();
+        for (int i = 0 ; i < layout.getDataFragments() + layout.getParityFragments() ; i++)
+        {
+            StorageContainer holder = layout.getHolder(i);
+            if (holder == null) continue;
+            ServerLoad load = registry.getLoad(holder);
+            InetSocketAddress address = Stub.address(holder.getStorage());
+            fragments.add(new Fragment(
+                holder.getStorage(),
+                address == null ? null : address.getAddress().getHostAddress(),
+                load == null ? 0 : load.getScore(),
+                i,
+                layout
+            ));
+            // Reads go to the data fragments unless some are lost
+            if (i < layout.getDataFragments()) registry.recordIo(holder);
+        }
+        if (fragments.size() < layout.getDataFragments())
+            throw new FileNotFoundException("too many fragments of file lost");
+        return fragments.toArray(new Fragment[0]);
     }
 
     // The method register is documented in Registration.java.
     @Override
     public Path[] register(Storage client_stub, Command command_stub, Path[] files)
-        throws IllegalStateException, NullPointerException
+        throws IllegalStateException, NullPointerException, RMIException
     {
         if (client_stub == null)
             throw new NullPointerException("Storage is null");
@@ -317,44 +1534,158 @@ public class NamingServer
         if (files == null)
             throw new NullPointerException("Path[] is null");
 
-        if (this.registry.contains(client_stub))
+        StorageContainer storageContainer = new StorageContainer(client_stub, command_stub);
+        if (!this.fileSystem.getStorageRegistry().register(storageContainer))
             throw new IllegalStateException("storage server already registered");
 
-
-        this.registry.add(client_stub);
-
         if (files.length == 0)
         {
-            this.fileSystem.emptyServers.add(new StorageContainer(client_stub, command_stub));
             return new Path[0];
         }
 
         HashSet<Path> allPaths = new HashSet<>();
         ArrayList<Path> duplicatePaths = new ArrayList<Path>();
+        ArrayList<Path> sameSize = new ArrayList<>();
         for (Path path : files)
         {
-            if (path.toString().equals("/"))
+            // Files of other partitions are left alone, not reported as
+            // duplicates to be deleted
+            if (path.toString().equals("/") || !this.owns(path))
                 continue;
-            try
+            // Data kept for snapshots is not part of the tree, and data no
+            // snapshot keeps any more is deleted
+            if (SnapshotTable.isReserved(path))
             {
-                if (this.fileSystem.hasPath(path))
-                {
+                if (!this.fileSystem.snapshots.isRetained(path, storageContainer))
                     duplicatePaths.add(path);
-                }
-                else
+                continue;
+            }
+            duplicatePaths.addAll(this.fileSystem.registerAll(
+                path.parent(),
+                new String[] { path.last() },
+                new long[] { path.getFileSize() },
+                storageContainer,
+                sameSize
+            ));
+        }
+        // Copies identical to those already in the tree are kept as replicas
+        duplicatePaths.addAll(this.fileSystem.adoptIdentical(sameSize, storageContainer));
+        this.syncJournal();
+        return duplicatePaths.toArray(new Path[duplicatePaths.size()]);
+    }
+
+    // The chunked registration methods are documented in Registration.java.
+    @Override
+    public void beginRegistration(Storage client_stub, Command command_stub)
+    {
+        if (client_stub == null)
+            throw new NullPointerException("Storage is null");
+        if (command_stub == null)
+            throw new NullPointerException("Command is null");
+        StorageContainer storageContainer = new StorageContainer(client_stub, command_stub);
+        if (!this.fileSystem.getStorageRegistry().register(storageContainer))
+            throw new IllegalStateException("storage server already registered");
+    }
+
+    @Override
+    public void heartbeat(Storage client_stub, Heartbeat heartbeat)
+    {
+        if (client_stub == null || heartbeat == null)
+            throw new NullPointerException("Storage or Heartbeat is null");
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        StorageContainer storageContainer = registry.get(client_stub);
+        if (storageContainer == null)
+            throw new IllegalStateException("storage server not registered");
+        registry.recordCapacity(storageContainer, heartbeat.getCapacity());
+        this.failureDetector.heartbeat(storageContainer, System.currentTimeMillis(),
+                                       heartbeat.getIntervalMillis());
+    }
+
+    @Override
+    public void reportCapacity(Storage client_stub, CapacityReport capacity)
+    {
+        if (client_stub == null || capacity == null)
+            throw new NullPointerException("Storage or CapacityReport is null");
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        StorageContainer storageContainer = registry.get(client_stub);
+        if (storageContainer == null)
+            throw new IllegalStateException("storage server not registered");
+        registry.recordCapacity(storageContainer, capacity);
+    }
+
+    @Override
+    public Path[] registerBatch(Storage client_stub, RegistrationBatch batch)
+        throws RMIException
+    {
+        if (client_stub == null)
+            throw new NullPointerException("Storage is null");
+        if (batch == null)
+            throw new NullPointerException("batch is null");
+        StorageContainer storageContainer = this.fileSystem.getStorageRegistry().get(client_stub);
+        if (storageContainer == null)
+            throw new IllegalStateException("storage server not registered");
+
+        ArrayList<Path> duplicatePaths = new ArrayList<>();
+        ArrayList<Path> sameSize = new ArrayList<>();
+        for (int i = 0 ; i < batch.getDirectoryCount() ; i++)
+        {
+            Path directory = batch.getDirectory(i);
+            String[] names = batch.getNames(i);
+            long[] sizes = batch.getSizes(i);
+            if (SnapshotTable.isReserved(directory))
+            {
+                // As in register, data kept for snapshots stays out of the tree
+                for (String name : names)
                 {
-                    this.fileSystem.register(path, client_stub, command_stub);
+                    Path path = new Path(directory, name);
+                    if (!this.fileSystem.snapshots.isRetained(path, storageContainer))
+                        duplicatePaths.add(path);
                 }
+                continue;
             }
-            catch (FileNotFoundException e)
+            if (this.mountTable != null)
             {
-                // This should NEVER happen
-                e.printStackTrace();
+                // As in register, files of other partitions are left alone
+                ArrayList<String> ownedNames = new ArrayList<>();
+                ArrayList<Long> ownedSizes = new ArrayList<>();
+                for (int j = 0 ; j < names.length ; j++)
+                {
+                    if (!this.owns(new Path(directory, names[j]))) continue;
+                    ownedNames.add(names[j]);
+                    ownedSizes.add(sizes[j]);
+                }
+                if (ownedNames.isEmpty()) continue;
+                names = ownedNames.toArray(new String[ownedNames.size()]);
+                sizes = ownedSizes.stream().mapToLong(Long::longValue).toArray();
             }
-
+            duplicatePaths.addAll(this.fileSystem.registerAll(
+                directory,
+                names,
+                sizes,
+                storageContainer,
+                sameSize
+            ));
         }
+        duplicatePaths.addAll(this.fileSystem.adoptIdentical(sameSize, storageContainer));
+        this.syncJournal();
         return duplicatePaths.toArray(new Path[duplicatePaths.size()]);
     }
+
+    /** Waits until the changes made so far are in the journal, if there is
+        one. */
+    private void syncJournal()
+        throws RMIException
+    {
+        if (this.journal == null) return;
+        try
+        {
+            this.journal.sync();
+        }
+        catch (IOException e)
+        {
+            throw new RMIException("journal write failed", e);
+        }
+    }
 //    private boolean isAnyStorageConnected()
 //    {
 //        return this.fileSystem.getRoot().getChildren().size() > 0;
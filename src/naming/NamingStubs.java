@@ -34,6 +34,36 @@ public abstract class NamingStubs
         return service(hostname, SERVICE_PORT);
     }
 
+    /** Returns a client service interface for a possibly federated namespace.
+
+        <p>
+        The naming server at the given address is asked for its mount table.
+        If it owns the whole namespace, a plain stub for it is returned.
+        Otherwise, the returned object sends each call straight to the naming
+        server owning its path.
+
+        @param hostname Hostname of any of the naming servers.
+        @param port Client service interface port.
+     */
+    public static Service federation(String hostname, int port) throws Throwable {
+        Service             service = service(hostname, port);
+        MountTable          mountTable = service.getMountTable();
+        if (mountTable == null)
+            return service;
+        return new FederatedService(mountTable);
+    }
+
+    /** Returns a client service interface for a possibly federated namespace.
+
+        <p>
+        The default port is used.
+
+        @param hostname Hostname of any of the naming servers.
+     */
+    public static Service federation(String hostname) throws Throwable {
+        return federation(hostname, SERVICE_PORT);
+    }
+
     /** Returns a stub for a naming server registration interface.
 
         @param hostname Naming server hostname.
@@ -0,0 +1,220 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evens out the data held by the storage servers in the background.
+ *
+ * <p>
+ * Files stay on the server that first registered or created them, so a
+ * server added to a running cluster only receives new files, and the old
+ * servers stay as full as they were. Once started, at a fixed interval, the
+ * rebalancer compares the load scores kept by the
+ * <code>StorageRegistry</code>, which account for the files, bytes and recent
+ * I/O of each server and for how full its disk is, and moves files from the
+ * most loaded server to the least loaded one until their scores are within a
+ * tolerance of each other, or until a move would no longer narrow the gap.
+ *
+ * <p>
+ * Each file is copied to the new server with <code>Command.copy</code>, and
+ * the replica list is switched from the old server to the new one in a single
+ * step before the old copy is deleted. Moves run one at a time, holding the
+ * file's slot in the <code>ReplicationScheduler</code>, and the bytes copied
+ * are throttled to a fixed rate so that rebalancing does not compete with
+ * client traffic for the servers' disks and network.
+ */
+public class Rebalancer
+{
+    public static final long DEFAULT_INTERVAL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_BYTES_PER_SECOND = 16 * 1024 * 1024;
+    /** Relative difference between two scores considered balanced. */
+    static final double TOLERANCE = 0.1;
+    /** Largest number of moves attempted in one pass. */
+    static final int MAX_MOVES_PER_PASS = 256;
+    /** Number of candidate files gathered by each walk of the tree. */
+    static final int CANDIDATES_PER_WALK = 32;
+
+    FileSystem fileSystem;
+    ReplicationScheduler replicationScheduler;
+    long bytesPerSecond;
+    ScheduledExecutorService executor;
+    long intervalMillis;
+    /** Time before which the throttle lets no more bytes through. */
+    long throttledUntil = 0;
+
+    Rebalancer(FileSystem fileSystem, ReplicationScheduler replicationScheduler,
+               long bytesPerSecond, long intervalMillis)
+    {
+        this.fileSystem = fileSystem;
+        this.replicationScheduler = replicationScheduler;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = intervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Starts rebalancing periodically. */
+    void start()
+    {
+        this.executor.scheduleWithFixedDelay(
+            this::rebalance,
+            this.intervalMillis,
+            this.intervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Moves files from the most loaded server to the least loaded one until
+     * the two are balanced, the pass has attempted
+     * <code>MAX_MOVES_PER_PASS</code> moves, or no file is worth moving.
+     *
+     * @return The number of files moved.
+     */
+    synchronized int rebalance()
+    {
+        StorageRegistry registry = this.fileSystem.getStorageRegistry();
+        int moved = 0;
+        int attempts = 0;
+        ArrayList<Path> candidates = new ArrayList<>();
+        StorageContainer lastSource = null;
+        StorageContainer lastTarget = null;
+        try
+        {
+            while (attempts < MAX_MOVES_PER_PASS)
+            {
+                ArrayList<ServerLoad> loads = registry.getLoads();
+                if (loads.size() < 2) break;
+                ServerLoad target = null;
+                for (ServerLoad load : loads)
+                {
+                    if (!load.isNearlyFull())
+                    {
+                        target = load;
+                        break;
+                    }
+                }
+                ServerLoad source = loads.get(loads.size() - 1);
+                if (target == null || target == source || isBalanced(source, target)) break;
+
+                if (source.getStorageContainer() != lastSource || target.getStorageContainer() != lastTarget)
+                {
+                    candidates.clear();
+                    lastSource = source.getStorageContainer();
+                    lastTarget = target.getStorageContainer();
+                }
+                if (candidates.isEmpty())
+                {
+                    candidates = this.fileSystem.filesToMove(lastSource, lastTarget, CANDIDATES_PER_WALK);
+                    if (candidates.isEmpty()) break;
+                }
+                Path path = candidates.remove(candidates.size() - 1);
+                if (!this.worthMoving(path, source, target)) break;
+                attempts++;
+                if (this.move(path, lastSource, lastTarget)) moved++;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return moved;
+    }
+
+    /** Returns <code>true</code> if the two scores are within the tolerance of
+        each other. */
+    static boolean isBalanced(ServerLoad source, ServerLoad target)
+    {
+        return source.getScore() - target.getScore() <= TOLERANCE * source.getScore();
+    }
+
+    /**
+     * Returns <code>true</code> if moving the file would leave the source at
+     * least as loaded as the target, so that the move narrows the gap between
+     * them instead of reversing it.
+     */
+    private boolean worthMoving(Path path, ServerLoad source, ServerLoad target)
+    {
+        long size;
+        try
+        {
+            size = Math.max(0, this.fileSystem.get(path).getFileSize());
+        }
+        catch (Exception e)
+        {
+            // Deleted since the walk; the next candidate is tried instead
+            return true;
+        }
+        double weight = 1 + size / (double) ServerLoad.BYTES_PER_FILE;
+        double sourceAfter = source.getScore() - weight / freeFraction(source);
+        double targetAfter = target.getScore() + weight / freeFraction(target);
+        return sourceAfter >= targetAfter;
+    }
+
+    private static double freeFraction(ServerLoad load)
+    {
+        CapacityReport capacity = load.getCapacity();
+        double free = capacity == null ? 1 : capacity.getFreeFraction();
+        return Math.max(free, ServerLoad.MIN_FREE_FRACTION);
+    }
+
+    /**
+     * Moves one file, waiting first for the throttle to allow its bytes
+     * through.
+     *
+     * @return <code>true</code> if the file was moved.
+     */
+    private boolean move(Path path, StorageContainer source, StorageContainer target)
+        throws InterruptedException
+    {
+        FileNode node;
+        try
+        {
+            node = this.fileSystem.get(path);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+        this.throttle(Math.max(0, this.fileSystem.resolveFileSize(node)));
+        boolean[] moved = new boolean[1];
+        this.replicationScheduler.runExclusively(path, () -> {
+            try
+            {
+                moved[0] = this.fileSystem.moveReplica(path, source, target);
+            }
+            catch (Throwable t)
+            {
+                // The file was deleted or a server could not be reached; the
+                // next pass will look again
+            }
+        });
+        return moved[0];
+    }
+
+    /** Waits until copying <code>bytes</code> more bytes keeps the copy rate
+        within the limit. */
+    private void throttle(long bytes)
+        throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        long start = Math.max(now, this.throttledUntil);
+        this.throttledUntil = start + bytes * 1000 / this.bytesPerSecond;
+        if (start > now) Thread.sleep(start - now);
+    }
+
+    /** Stops the rebalancer, abandoning the pass in progress after its
+        current move. */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+}
@@ -24,6 +24,14 @@ public interface Registration
         to the storage server with a subset of these files that the storage
         server must delete from its local storage.
 
+        <p>
+        A file that already exists in the tree with the same size is not
+        necessarily a duplicate: the naming server asks the storage server and
+        a live replica for the file's fingerprint with
+        <code>Command.fingerprint</code>, and keeps an identical copy as a
+        replica of the file instead of having it deleted. The storage server
+        must therefore answer commands while it registers.
+
         <p>
         After the storage server has deleted the files as commanded, it must
         prune its directory tree by removing all directories under which no
@@ -55,4 +63,119 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Starts a chunked registration of a storage server.
+
+        <p>
+        Chunked registration reports the same files as <code>register</code>,
+        but in a sequence of <code>registerBatch</code> calls following this
+        one, so that neither side has to hold the full list of files at once.
+        The storage server is registered, and may be given to clients, as soon
+        as this method returns.
+
+        <p>
+        Naming servers that do not support chunked registration throw
+        <code>UnsupportedOperationException</code>, in which case the storage
+        server should fall back to <code>register</code>.
+
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @throws IllegalStateException If the storage server is already
+                                      registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support chunked registration.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void beginRegistration(Storage client_stub,
+                                          Command command_stub)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("chunked registration not " +
+                                                "supported");
+    }
+
+    /** Reports one chunk of the files hosted by a storage server.
+
+        <p>
+        The files of a directory should be reported together, and directories
+        in sorted order, so that each directory is looked up once. Duplicates
+        are returned for each chunk as soon as it has been merged, and should
+        be deleted by the storage server as for <code>register</code>.
+
+        @param client_stub Storage server client service stub, as passed to
+                           <code>beginRegistration</code>.
+        @param batch The files in this chunk.
+        @return The files in this chunk that the storage server must delete.
+        @throws IllegalStateException If <code>beginRegistration</code> has not
+                                      been called for the storage server.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerBatch(Storage client_stub,
+                                        RegistrationBatch batch)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("chunked registration not " +
+                                                "supported");
+    }
+
+    /** Reports the disk usage and I/O rates of a registered storage server.
+
+        <p>
+        Storage servers send a report as soon as they have registered; later
+        reports arrive with their heartbeats. The naming server prefers
+        emptier servers when placing new files and replicas, and avoids
+        servers that are nearly full.
+
+        @param client_stub Storage server client service stub, as passed to
+                           <code>register</code>.
+        @param capacity The server's report.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws UnsupportedOperationException If the naming server does not
+                                              use capacity reports.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void reportCapacity(Storage client_stub,
+                                       CapacityReport capacity)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("capacity reports not " +
+                                                "supported");
+    }
+
+    /** Reports that a registered storage server is alive.
+
+        <p>
+        Storage servers send heartbeats at a fixed interval once registered.
+        A server that stops sending them is eventually declared dead: it is
+        forgotten by the naming server, and the files it held are copied again
+        from their other replicas. A server that has never sent a heartbeat is
+        never declared dead.
+
+        @param client_stub Storage server client service stub, as passed to
+                           <code>register</code>.
+        @param heartbeat The server's report.
+        @throws IllegalStateException If the storage server is not registered,
+                                      for instance because it was declared
+                                      dead. The server should register again.
+        @throws UnsupportedOperationException If the naming server does not
+                                              watch heartbeats.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void heartbeat(Storage client_stub, Heartbeat heartbeat)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("heartbeats not supported");
+    }
 }
@@ -0,0 +1,67 @@
+package naming;
+
+import common.Path;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * One chunk of the files a storage server reports during chunked
+ * registration.
+ *
+ * <p>
+ * Files are grouped by the directory that contains them, and each group holds
+ * the directory once followed by the last components and sizes of its files.
+ * This keeps a chunk far smaller than the equivalent array of full paths, and
+ * lets the naming server insert each group under its directory in one step.
+ */
+public class RegistrationBatch
+    implements Serializable
+{
+    ArrayList<String> directories = new ArrayList<>();
+    ArrayList<String[]> names = new ArrayList<>();
+    ArrayList<long[]> sizes = new ArrayList<>();
+    int files = 0;
+
+    /** Adds files contained in <code>directory</code> to the batch. */
+    public void add(Path directory, String[] names, long[] sizes)
+    {
+        if (names.length != sizes.length)
+            throw new IllegalArgumentException("every file needs a size");
+        this.directories.add(directory.toString());
+        this.names.add(names);
+        this.sizes.add(sizes);
+        this.files += names.length;
+    }
+
+    /** Returns the number of files in the batch. */
+    public int size()
+    {
+        return this.files;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.files == 0;
+    }
+
+    public int getDirectoryCount()
+    {
+        return this.directories.size();
+    }
+
+    public Path getDirectory(int index)
+    {
+        return new Path(this.directories.get(index));
+    }
+
+    public String[] getNames(int index)
+    {
+        return this.names.get(index);
+    }
+
+    public long[] getSizes(int index)
+    {
+        return this.sizes.get(index);
+    }
+}
@@ -0,0 +1,111 @@
+package naming;
+
+import common.Path;
+
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores the replicas of files that lost some to a failed storage server.
+ *
+ * <p>
+ * Files are repaired most endangered first: those with the fewest surviving
+ * replicas, and among those the ones furthest below their target replica
+ * count. A single worker thread, once started, takes them from a priority queue and copies
+ * each from a surviving replica until its target is reached, through the
+ * <code>ReplicationScheduler</code>, so that a file is never worked on by a
+ * repair and a replication job at once. A file queued twice is repaired once.
+ */
+public class RepairQueue
+{
+    FileSystem fileSystem;
+    ReplicationScheduler replicationScheduler;
+    PriorityBlockingQueue<Repair> queue = new PriorityBlockingQueue<>(64,
+        Comparator.comparingInt((Repair repair) -> repair.replicas)
+            .thenComparing(Comparator.comparingInt((Repair repair) -> repair.deficit).reversed())
+            .thenComparingLong(repair -> repair.sequence));
+    Set<Path> queued = ConcurrentHashMap.newKeySet();
+    AtomicLong nextSequence = new AtomicLong();
+    Thread worker;
+
+    /** One file waiting for repair. */
+    static class Repair
+    {
+        Path path;
+        int replicas;
+        int deficit;
+        long sequence;
+
+        Repair(Path path, int replicas, int deficit, long sequence)
+        {
+            this.path = path;
+            this.replicas = replicas;
+            this.deficit = deficit;
+            this.sequence = sequence;
+        }
+    }
+
+    RepairQueue(FileSystem fileSystem, ReplicationScheduler replicationScheduler)
+    {
+        this.fileSystem = fileSystem;
+        this.replicationScheduler = replicationScheduler;
+        this.worker = new Thread(this::work, "re-replication");
+        this.worker.setDaemon(true);
+    }
+
+    /** Starts the worker thread repairing the queued files. */
+    void start()
+    {
+        this.worker.start();
+    }
+
+    /**
+     * Queues a file that has <code>replicas</code> surviving replicas of the
+     * <code>target</code> it should have. Files without a surviving replica
+     * cannot be repaired and are not queued.
+     *
+     * @return <code>true</code> if the file was queued.
+     */
+    public boolean add(Path path, int replicas, int target)
+    {
+        if (replicas == 0 || replicas >= target) return false;
+        if (!this.queued.add(path)) return false;
+        this.queue.add(new Repair(path, replicas, target - replicas, this.nextSequence.getAndIncrement()));
+        return true;
+    }
+
+    public int size()
+    {
+        return this.queue.size();
+    }
+
+    private void work()
+    {
+        while (true)
+        {
+            Repair repair;
+            try
+            {
+                repair = this.queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            this.queued.remove(repair.path);
+            if (this.fileSystem.hasPath(repair.path))
+                this.replicationScheduler.replicateNow(repair.path);
+        }
+    }
+
+    /** Stops the worker thread, abandoning the files still queued. */
+    public void shutdown()
+    {
+        this.worker.interrupt();
+        this.queue.clear();
+        this.queued.clear();
+    }
+}
@@ -0,0 +1,53 @@
+package naming;
+
+import storage.Storage;
+
+import java.io.Serializable;
+
+/**
+ * One replica of a file, as handed to clients by
+ * <code>Service.getReplicas</code>.
+ *
+ * <p>
+ * Besides the stub for the storage server holding the replica, each replica
+ * carries the host the server listens on, so that clients can prefer a
+ * replica on their own machine, and the server's load score as last seen by
+ * the naming server, so that they can prefer lightly loaded servers. Scores
+ * are only comparable between replicas returned by the same call.
+ */
+public class Replica
+    implements Serializable
+{
+    Storage storage;
+    String host;
+    double load;
+
+    public Replica(Storage storage, String host, double load)
+    {
+        this.storage = storage;
+        this.host = host;
+        this.load = load;
+    }
+
+    public Storage getStorage()
+    {
+        return this.storage;
+    }
+
+    /** Returns the address of the storage server's host, or
+        <code>null</code> if it is not known. */
+    public String getHost()
+    {
+        return this.host;
+    }
+
+    public double getLoad()
+    {
+        return this.load;
+    }
+
+    public String toString()
+    {
+        return "[Replica| " + this.host + ", load " + String.format("%.1f", this.load) + "]";
+    }
+}
@@ -0,0 +1,70 @@
+package naming;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Interns the replica lists of file and directory nodes.
+ *
+ * <p>
+ * Most of the files in a namespace are held by one of a handful of storage
+ * servers, or by one of a small number of combinations of them, so the nodes
+ * share one list per distinct combination instead of carrying their own.
+ * Interned lists are never modified: a node whose replicas change is given
+ * another interned list. Lists no node refers to any more are dropped by the
+ * garbage collector.
+ */
+class ReplicaSets
+{
+    /** The list of no replicas. */
+    static final ArrayList<StorageContainer> EMPTY = new ArrayList<>(0);
+
+    private static final WeakHashMap<List<StorageContainer>, WeakReference<ArrayList<StorageContainer>>>
+        interned = new WeakHashMap<>();
+    /** The last single-server list handed out, which registration asks for
+        once per file. */
+    private static volatile ArrayList<StorageContainer> lastSingle = EMPTY;
+
+    private ReplicaSets()
+    {
+    }
+
+    /** Returns the interned list with the same servers, in the same order, as
+        <code>storageContainers</code>. */
+    static ArrayList<StorageContainer> intern(List<StorageContainer> storageContainers)
+    {
+        if (storageContainers.isEmpty()) return EMPTY;
+        ArrayList<StorageContainer> single = lastSingle;
+        if (storageContainers.size() == 1 && single.size() == 1
+            && single.get(0) == storageContainers.get(0))
+        {
+            return single;
+        }
+        ArrayList<StorageContainer> canonical;
+        synchronized (interned)
+        {
+            WeakReference<ArrayList<StorageContainer>> reference = interned.get(storageContainers);
+            canonical = reference == null ? null : reference.get();
+            if (canonical == null)
+            {
+                canonical = new ArrayList<>(storageContainers);
+                canonical.trimToSize();
+                interned.put(canonical, new WeakReference<>(canonical));
+            }
+        }
+        if (canonical.size() == 1) lastSingle = canonical;
+        return canonical;
+    }
+
+    /** Returns the interned list holding only <code>storageContainer</code>. */
+    static ArrayList<StorageContainer> of(StorageContainer storageContainer)
+    {
+        ArrayList<StorageContainer> single = lastSingle;
+        if (single.size() == 1 && single.get(0) == storageContainer) return single;
+        ArrayList<StorageContainer> list = new ArrayList<>(1);
+        list.add(storageContainer);
+        return intern(list);
+    }
+}
@@ -0,0 +1,57 @@
+package naming;
+
+/**
+ * Decides how many replicas a file should have from its recent read rate.
+ *
+ * <p>
+ * Each file keeps an <code>AccessCounter</code> of its shared lock requests.
+ * A file gets one extra replica for every <code>readsPerReplica</code> units of
+ * decayed read count, up to <code>maxReplicas</code>. Because the counter
+ * decays, a file has to be read at a sustained rate to keep its replicas:
+ * once it goes cold its target falls back to one and the excess replicas are
+ * reclaimed.
+ */
+public class ReplicationPolicy
+{
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 60 * 1000;
+    public static final int DEFAULT_READS_PER_REPLICA = 20;
+    public static final int DEFAULT_MAX_REPLICAS = 8;
+
+    long halfLifeMillis;
+    int readsPerReplica;
+    int maxReplicas;
+
+    public ReplicationPolicy()
+    {
+        this(DEFAULT_HALF_LIFE_MILLIS, DEFAULT_READS_PER_REPLICA, DEFAULT_MAX_REPLICAS);
+    }
+
+    public ReplicationPolicy(long halfLifeMillis, int readsPerReplica, int maxReplicas)
+    {
+        if (halfLifeMillis <= 0 || readsPerReplica <= 0 || maxReplicas <= 0)
+            throw new IllegalArgumentException("replication parameters must be positive");
+        this.halfLifeMillis = halfLifeMillis;
+        this.readsPerReplica = readsPerReplica;
+        this.maxReplicas = maxReplicas;
+    }
+
+    /** Records a read of the file and returns its new target replica count. */
+    public int recordRead(FileNode node, long now)
+    {
+        return this.targetFor(node.getAccessCounter().record(now, this.halfLifeMillis));
+    }
+
+    /** Returns the target replica count of the file at time <code>now</code>. */
+    public int targetReplicas(FileNode node, long now)
+    {
+        AccessCounter counter = node.peekAccessCounter();
+        if (counter == null) return 1;
+        return this.targetFor(counter.get(now, this.halfLifeMillis));
+    }
+
+    int targetFor(double reads)
+    {
+        int target = 1 + (int) (reads / this.readsPerReplica);
+        return Math.min(target, this.maxReplicas);
+    }
+}
@@ -0,0 +1,421 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs file replication in the background.
+ *
+ * <p>
+ * Read requests that find a file below its target replica count only enqueue a
+ * job here and return immediately; the copies between storage servers are
+ * performed by a small pool of worker threads, each job adding replicas until
+ * the target given by the <code>ReplicationPolicy</code> is reached. The number
+ * of copies in flight and the number of jobs waiting are both bounded, and a
+ * file that already has a job pending is not queued a second time. Jobs that
+ * are rejected because the queue is full are simply dropped: later reads of
+ * the file will schedule them again. A rejected job into which other work was
+ * merged meanwhile stays pending and is queued by the next reclaim pass.
+ *
+ * <p>
+ * The same jobs delete the stale replicas left behind when a file is locked
+ * for writing, so that taking a write lock makes no remote calls.
+ *
+ * <p>
+ * A separate thread, once started, periodically visits the files that have more than one
+ * replica and reclaims the replicas of files whose read rate no longer
+ * justifies them. When erasure coding is enabled, a file whose read rate
+ * justifies a single replica is coded instead, falling back on dropping
+ * replicas if it cannot be. Jobs for erasure-coded files rebuild their lost
+ * fragments, and the same thread rebuilds those that lost fragments since its
+ * last visit.
+ *
+ * <p>
+ * Work that fails because a storage server cannot be reached is counted in
+ * <code>failures</code> and done again later: replication is scheduled again
+ * by later reads, the next reclaim pass visits the replicated and coded files
+ * again, and a server that could not delete a stale replica deletes it as a
+ * duplicate when it next registers.
+ */
+public class ReplicationScheduler
+{
+    public static final int DEFAULT_CONCURRENT_COPIES = 4;
+    public static final int DEFAULT_PENDING_LIMIT = 1024;
+    public static final long DEFAULT_RECLAIM_INTERVAL_MILLIS = 30 * 1000;
+    public static final long DEFAULT_DELETE_WAIT_MILLIS = 5 * 1000;
+
+    FileSystem fileSystem;
+    ReplicationPolicy policy;
+    volatile ErasureCoder erasureCoder;
+    ThreadPoolExecutor executor;
+    ScheduledExecutorService reclaimer;
+    long reclaimIntervalMillis;
+    static final int REPLICATE = 1;
+    static final int COLLECT = 2;
+
+    ConcurrentHashMap<Path, Integer> pending = new ConcurrentHashMap<>();
+    Set<Path> deferredCollections = ConcurrentHashMap.newKeySet();
+    /** Paths whose job could not be queued after other work had been merged
+        into it; the job stays pending and is queued by the reclaim pass. */
+    Set<Path> deferredJobs = ConcurrentHashMap.newKeySet();
+    /** Background calls to storage servers that failed, to be done again
+        later. */
+    final LongAdder failures = new LongAdder();
+
+    ReplicationScheduler(FileSystem fileSystem, ReplicationPolicy policy,
+                         int concurrentCopies, int pendingLimit, long reclaimIntervalMillis)
+    {
+        this.fileSystem = fileSystem;
+        this.policy = policy;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            concurrentCopies,
+            concurrentCopies,
+            30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(pendingLimit),
+            runnable -> {
+                Thread thread = new Thread(runnable, "replication-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+        this.reclaimIntervalMillis = reclaimIntervalMillis;
+        this.reclaimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-reclaimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Starts the periodic reclaim pass. Jobs are run whether or not it has
+        been started. */
+    void start()
+    {
+        this.reclaimer.scheduleWithFixedDelay(
+            () -> {
+                try
+                {
+                    this.reclaim();
+                }
+                catch (Throwable t)
+                {
+                    // An exception escaping the task would cancel every later
+                    // pass
+                    t.printStackTrace();
+                }
+            },
+            this.reclaimIntervalMillis,
+            this.reclaimIntervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    void setErasureCoder(ErasureCoder erasureCoder)
+    {
+        this.erasureCoder = erasureCoder;
+    }
+
+    /**
+     * Queues a file for replication.
+     *
+     * @return <code>true</code> if a new job was queued, <code>false</code> if
+     *         one was already pending or the queue is full.
+     */
+    public boolean schedule(Path path)
+    {
+        return this.submit(path, REPLICATE);
+    }
+
+    /**
+     * Queues the stale replicas of a file for deletion. If a replication job
+     * for the file runs first, it refreshes stale replicas instead of copying
+     * to new servers. Collections rejected because the queue is full are
+     * retried by the reclaim pass.
+     */
+    public void collect(Path path)
+    {
+        if (!this.submit(path, COLLECT) && !this.pending.containsKey(path))
+            this.deferredCollections.add(path);
+    }
+
+    /**
+     * Merges the work into the job pending for the path, or queues a new job.
+     * There is at most one job per path, so work on the same file is never
+     * done concurrently.
+     */
+    private boolean submit(Path path, int work)
+    {
+        while (true)
+        {
+            Integer previous = this.pending.putIfAbsent(path, work);
+            if (previous == null) break;
+            // The running job may finish in between, in which case retry
+            if (this.pending.replace(path, previous, previous | work)) return false;
+        }
+        if (this.execute(path)) return true;
+        // Work merged in meanwhile was promised a run, so keep the job
+        if (!this.pending.remove(path, work)) this.deferredJobs.add(path);
+        return false;
+    }
+
+    /** Queues the job pending for a path, returning <code>false</code> if the
+        queue is full. */
+    private boolean execute(Path path)
+    {
+        try
+        {
+            this.executor.execute(() -> this.run(path));
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Replicates a file in the calling thread, exactly as a queued job would.
+     * If a job for the file is already pending, that job does the work
+     * instead, so that work on one file is still never done concurrently.
+     *
+     * @return <code>true</code> if the work was done in the calling thread.
+     */
+    boolean replicateNow(Path path)
+    {
+        if (this.pending.putIfAbsent(path, REPLICATE) != null) return false;
+        this.run(path);
+        return true;
+    }
+
+    /**
+     * Runs a task on a file in the calling thread, holding the file's job slot
+     * so that no replication job works on the file at the same time. Work
+     * requested for the file while the task runs is done right after it.
+     *
+     * @return <code>false</code>, without running the task, if a job for the
+     *         file is already pending.
+     */
+    boolean runExclusively(Path path, Runnable task)
+    {
+        if (this.pending.putIfAbsent(path, 0) != null) return false;
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            this.run(path);
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if a job is pending for the path or for any
+     * file below it. Only a directory costs a walk of the pending jobs, whose
+     * number is bounded by the queue.
+     */
+    public boolean isPending(Path path)
+    {
+        if (this.pending.containsKey(path)) return true;
+        for (Path file : this.pending.keySet())
+        {
+            if (NamingServer.isAncestor(path, file)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits up to <code>timeoutMillis</code> for the jobs pending for a path,
+     * and for every file below it, to finish.
+     *
+     * @return <code>true</code> if no job is pending for the path or below it
+     *         any more.
+     */
+    public synchronized boolean awaitIdle(Path path, long timeoutMillis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining;
+        while (this.isPending(path))
+        {
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            this.wait(remaining);
+        }
+        return true;
+    }
+
+    public int getPendingCount()
+    {
+        return this.pending.size();
+    }
+
+    private void run(Path path)
+    {
+        while (true)
+        {
+            Integer work = this.pending.get(path);
+            if (work == null) return;
+            try
+            {
+                this.perform(path, work);
+            }
+            catch (RuntimeException e)
+            {
+                // Only failures to reach storage servers are expected; the
+                // file's job slot is freed before anything else reaches the
+                // worker thread
+                this.pending.remove(path);
+                synchronized (this)
+                {
+                    this.notifyAll();
+                }
+                throw e;
+            }
+            // Finish unless more work was merged in while this batch ran
+            Integer remaining = this.pending.compute(path,
+                (key, value) -> value == null || value.equals(work) ? null : value & ~work);
+            if (remaining == null) break;
+        }
+        synchronized (this)
+        {
+            this.notifyAll();
+        }
+    }
+
+    private void perform(Path path, int work)
+    {
+        try
+        {
+            FileNode node = this.fileSystem.get(path);
+            ErasureCoder erasureCoder = this.erasureCoder;
+            if ((work & REPLICATE) != 0 && erasureCoder != null && this.fileSystem.getErasureLayout(node) != null)
+            {
+                erasureCoder.repair(path);
+            }
+            else if ((work & REPLICATE) != 0)
+            {
+                while (node.getReplicaCount() < this.policy.targetReplicas(node, System.currentTimeMillis()))
+                {
+                    if (!this.fileSystem.attemptReplicate(path)) break;
+                }
+            }
+            if ((work & COLLECT) != 0)
+            {
+                this.fileSystem.collectStaleReplicas(path);
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            // The file was deleted meanwhile
+        }
+        catch (IOException | RMIException e)
+        {
+            // Later reads schedule the file again, and a server that kept a
+            // stale replica deletes it as a duplicate when it next registers
+            this.failures.increment();
+        }
+    }
+
+    /**
+     * Drops the excess replicas of every replicated file whose target replica
+     * count has fallen below its current count, or, if coding is enabled and
+     * the target is a single replica, codes the file instead, and repairs the
+     * coded files that have lost fragments. A file already down to one
+     * replica is not visited, and so never coded.
+     */
+    void reclaim()
+    {
+        for (Path path : this.deferredJobs)
+        {
+            this.deferredJobs.remove(path);
+            if (!this.execute(path)) this.deferredJobs.add(path);
+        }
+        for (Path path : this.deferredCollections)
+        {
+            this.deferredCollections.remove(path);
+            this.collect(path);
+        }
+        long now = System.currentTimeMillis();
+        ErasureCoder erasureCoder = this.erasureCoder;
+        for (Path path : this.fileSystem.getReplicatedFiles())
+        {
+            if (this.pending.containsKey(path)) continue;
+            try
+            {
+                FileNode node = this.fileSystem.get(path);
+                int target = this.policy.targetReplicas(node, now);
+                int excess = node.getReplicaCount() - target;
+                if (excess > 0 && target == 1 && erasureCoder != null && erasureCoder.isEnabled())
+                {
+                    this.runExclusively(path, () -> this.encodeOrDrop(erasureCoder, path, excess));
+                }
+                else if (excess > 0)
+                {
+                    this.fileSystem.dropReplicas(path, excess);
+                }
+            }
+            catch (FileNotFoundException e)
+            {
+                // Deleted files are forgotten by the file system itself
+            }
+            catch (RMIException e)
+            {
+                // Retried on the next pass
+                this.failures.increment();
+            }
+        }
+        if (erasureCoder == null) return;
+        for (Path path : this.fileSystem.getErasureCodedFiles())
+        {
+            try
+            {
+                ErasureLayout layout = this.fileSystem.getErasureLayout(path);
+                // Switched back to replicas meanwhile if there is no layout
+                if (layout != null && layout.getLostCount() > 0) this.schedule(path);
+            }
+            catch (FileNotFoundException e)
+            {
+                // Deleted meanwhile
+            }
+        }
+    }
+
+    /** Codes a cold file, or drops its excess replicas if it cannot be coded,
+        as when there are too few storage servers. */
+    private void encodeOrDrop(ErasureCoder erasureCoder, Path path, int excess)
+    {
+        try
+        {
+            if (!erasureCoder.encode(path))
+                this.fileSystem.dropReplicas(path, excess);
+        }
+        catch (FileNotFoundException e)
+        {
+            // Deleted meanwhile
+        }
+        catch (IOException | RMIException e)
+        {
+            // Retried on the next pass
+            this.failures.increment();
+        }
+    }
+
+    /** Stops the worker threads, abandoning any jobs that have not started. */
+    public void shutdown()
+    {
+        this.reclaimer.shutdownNow();
+        this.executor.shutdownNow();
+        this.pending.clear();
+        this.deferredCollections.clear();
+        this.deferredJobs.clear();
+    }
+}
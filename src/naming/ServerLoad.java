@@ -0,0 +1,119 @@
+package naming;
+
+/**
+ * Load bookkeeping for one registered storage server.
+ *
+ * <p>
+ * The naming server tracks how many files and bytes each storage server holds,
+ * and how much I/O it has recently been directed to it. These are combined
+ * into a single score by which the <code>StorageRegistry</code> orders
+ * servers. Once the server has sent a <code>CapacityReport</code>, the score
+ * is divided by the fraction of its disk still free, so that of two servers
+ * holding the same files the emptier one is preferred, and a server whose disk
+ * fills up is chosen less and less often. The score is captured whenever the
+ * entry is updated, or the registry re-scores all its entries, so that it
+ * stays fixed while the entry sits in the registry's ordered set.
+ */
+public class ServerLoad
+{
+    /** Number of bytes counted as much as one file when scoring. */
+    static final long BYTES_PER_FILE = 1024 * 1024;
+    /** Half-life of the recent I/O counter, in milliseconds. */
+    static final long IO_HALF_LIFE_MILLIS = 60 * 1000;
+    /** Fraction of its disk below which a server counts as nearly full. */
+    static final double FULL_FRACTION = 0.05;
+    /** Free space below which a server counts as nearly full, whatever the
+        size of its disk. */
+    static final long FULL_RESERVE_BYTES = 64 * 1024 * 1024;
+    /** Smallest free fraction used when scoring, so that a full disk does
+        not make the score infinite. */
+    static final double MIN_FREE_FRACTION = 0.01;
+
+    StorageContainer storageContainer;
+    long id;
+    long files = 0;
+    long bytes = 0;
+    AccessCounter io = new AccessCounter();
+    double ioLoad = 0;
+    double score = 0;
+    CapacityReport capacity;
+
+    ServerLoad(StorageContainer storageContainer, long id)
+    {
+        this.storageContainer = storageContainer;
+        this.id = id;
+    }
+
+    public StorageContainer getStorageContainer()
+    {
+        return this.storageContainer;
+    }
+
+    public long getFiles()
+    {
+        return this.files;
+    }
+
+    public long getBytes()
+    {
+        return this.bytes;
+    }
+
+    /** Returns the decayed count of recent I/O requests sent to the server,
+        as of the last update. */
+    public double getIoLoad()
+    {
+        return this.ioLoad;
+    }
+
+    public double getScore()
+    {
+        return this.score;
+    }
+
+    /** Returns the last capacity report of the server, or <code>null</code>
+        if it has not sent one. */
+    public CapacityReport getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /** Returns the free space last reported by the server, or
+        <code>-1</code> if it has not reported any. */
+    public long getFreeBytes()
+    {
+        return this.capacity == null ? -1 : this.capacity.getFreeBytes();
+    }
+
+    /** Returns the disk size last reported by the server, or <code>-1</code>
+        if it has not reported any. */
+    public long getTotalBytes()
+    {
+        return this.capacity == null ? -1 : this.capacity.getTotalBytes();
+    }
+
+    /** Returns <code>true</code> if the server last reported too little free
+        space to be given new files. */
+    public boolean isNearlyFull()
+    {
+        if (this.capacity == null || this.capacity.getTotalBytes() <= 0) return false;
+        long reserve = Math.min(this.capacity.getTotalBytes(),
+            Math.max(FULL_RESERVE_BYTES, (long) (this.capacity.getTotalBytes() * FULL_FRACTION)));
+        return this.capacity.getFreeBytes() < reserve;
+    }
+
+    void rescore(long now)
+    {
+        this.ioLoad = this.io.get(now, IO_HALF_LIFE_MILLIS);
+        double base = 1 + this.files + (this.bytes / (double) BYTES_PER_FILE) + this.ioLoad;
+        double free = this.capacity == null ? 1 : this.capacity.getFreeFraction();
+        this.score = base / Math.max(free, MIN_FREE_FRACTION);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[ServerLoad| files: " + this.files + ", bytes: " + this.bytes
+            + ", io: " + String.format("%.1f", this.ioLoad) + ", " + this.storageContainer + "]";
+    }
+}
@@ -159,6 +159,41 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists the contents of a directory, with the type, size and replica
+        count of each entry.
+
+        <p>
+        Entries are returned in name order, a page at a time, starting after
+        the name given as <code>after</code>, which need not be the name of an
+        entry. The first call passes <code>null</code>; each following call
+        passes the cursor returned with the previous page, which is the name of
+        its last entry, until a page is returned without one. Entries added or
+        removed between calls may or may not be listed, but no entry present
+        throughout is listed twice or missed.
+
+        <p>
+        Listing a file returns a single page holding the file's own entry,
+        whatever <code>after</code> is.
+
+        <p>
+        The path should be locked for shared access before this operation
+        is performed, as for <code>list</code>.
+
+        @param path The directory or file to be listed.
+        @param after The name after which the page starts, exclusive, or
+                     <code>null</code> to start at the first entry.
+        @param limit The largest number of entries to return. The naming server
+                     may return fewer, up to
+                     <code>DirectoryListing.MAX_ENTRIES</code>.
+        @return The page of entries.
+        @throws FileNotFoundException If the given path does not exist.
+        @throws IllegalArgumentException If <code>limit</code> is not positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public DirectoryListing listEntries(Path path, String after, int limit)
+        throws RMIException, FileNotFoundException;
+
     /** Creates the given file, if it does not exist.
 
         <p>
@@ -201,6 +236,11 @@ public interface Service
         The parent directory should be locked for exclusive access before this
         operation is performed.
 
+        <p>
+        The object, with everything below it, leaves the directory tree at once.
+        The storage servers holding any part of it are then told to delete it
+        in parallel, and the call returns when they have all answered.
+
         @param path Path to the file or directory to be deleted.
         @return <code>true</code> if the file or directory is deleted;
                 <code>false</code> otherwise. The root directory cannot be
@@ -212,6 +252,91 @@ public interface Service
      */
     public boolean delete(Path path) throws RMIException, FileNotFoundException;
 
+    /** Moves a file or directory, with everything below it, to a new path.
+
+        <p>
+        The move changes the directory tree in a single step, whatever the
+        size of the subtree, and each storage server holding any part of it is
+        told to move its own copy in place, with the servers contacted in
+        parallel. No file data passes through the naming server or the client.
+        Files keep all of their replicas. If any storage server cannot move
+        its copy, the servers that did are told to move theirs back, and the
+        tree is left as it was.
+
+        <p>
+        The source is locked for exclusive access, and the target's parent
+        directory for shared access, while the move is made; the client should
+        not hold locks on either.
+
+        @param source Path to the file or directory to be moved.
+        @param target Path to which it is to be moved.
+        @return <code>true</code> if the object is moved; <code>false</code>
+                if a file or directory already exists at the target. The root
+                directory cannot be moved, and nothing can be moved onto it.
+        @throws FileNotFoundException If the source does not exist, or the
+                                      target's parent is not an existing
+                                      directory.
+        @throws IllegalArgumentException If the target is the source or below
+                                         it, or the two are in different
+                                         subtrees of a federated namespace.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or a storage server could not move its
+                             copy.
+     */
+    public boolean rename(Path source, Path target)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates many files and directories in one call.
+
+        <p>
+        Each path is handled as by <code>createFile</code> or
+        <code>createDirectory</code>, and its outcome is reported separately
+        instead of by an exception. Paths may be given in any order: parents
+        are created before their children, so a whole tree can be created in a
+        single call. The new files are spread over the storage servers, and
+        each storage server is asked to create all of its files at once.
+
+        <p>
+        The naming server locks the existing directories the paths are created
+        in for exclusive access, in increasing order, for the duration of the
+        call, so the caller should not hold locks on them.
+
+        @param paths Paths to be created.
+        @param directories For each path, <code>true</code> if a directory is
+                           to be created there, and <code>false</code> for a
+                           file.
+        @return The outcome for each path, in the order of <code>paths</code>.
+        @throws NullPointerException If either argument, or any of the paths,
+                                     is <code>null</code>.
+        @throws IllegalArgumentException If the two arrays differ in length.
+        @throws IllegalStateException If files are to be created and no storage
+                                      servers are connected to the naming
+                                      server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+        throws RMIException;
+
+    /** Deletes many files and directories in one call.
+
+        <p>
+        Each path is handled as by <code>delete</code>, and its outcome is
+        reported separately instead of by an exception. A path below another
+        path of the batch has the outcome of that path. The paths are locked
+        for exclusive access, in increasing order, only while they are removed
+        from the directory tree. Each storage server is then asked to delete all
+        of its paths at once, with the servers contacted in parallel.
+
+        @param paths Paths to be deleted.
+        @return The outcome for each path, in the order of <code>paths</code>.
+        @throws NullPointerException If the array, or any of the paths, is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BatchStatus[] deleteAll(Path[] paths) throws RMIException;
+
     /** Returns a stub for the storage server hosting a file.
 
         <p>
@@ -221,6 +346,11 @@ public interface Service
         to perform calls to <code>write</code>, it should lock the file for
         exclusive access.
 
+        <p>
+        A file the naming server has erasure-coded is first restored to a full
+        replica on one storage server, which may take as long as copying the
+        file.
+
         @param file Path to the file.
         @return A stub for communicating with the storage server.
         @throws FileNotFoundException If the file does not exist.
@@ -229,4 +359,311 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns every current replica of a file.
+
+        <p>
+        Unlike <code>getStorage</code>, which always names the same storage
+        server, this lets clients spread their reads over all the servers
+        holding the file, and move to another replica at once if one cannot be
+        reached. Replicas are returned least loaded first, each with the host
+        and load of its storage server. Only replicas holding the current
+        version of the file are returned, so the file should be locked as for
+        <code>getStorage</code>; a client intending to write should use
+        <code>getStorage</code> instead.
+
+        <p>
+        For a file the naming server has erasure-coded, the live fragments
+        are returned instead, as <code>Fragment</code> objects in fragment
+        order, from which the file is read with a
+        <code>FragmentReader</code>.
+
+        @param file Path to the file.
+        @return The replicas of the file. There is always at least one.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Replica[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the mount table of a federated namespace.
+
+        <p>
+        A naming server that owns only part of the namespace returns the table
+        giving the owner of every path, so that clients can send each call to
+        the right server; <code>NamingStubs.federation</code> does this. A
+        naming server given a path it does not own forwards the call to its
+        owner, so clients that do not route their calls still work, at the
+        cost of an extra hop.
+
+        @return The mount table, or <code>null</code> if the naming server
+                owns the whole namespace.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default MountTable getMountTable() throws RMIException
+    {
+        return null;
+    }
+
+    /** Locks a mount point for shared access on behalf of the naming server
+        owning the subtree mounted there.
+
+        <p>
+        This call is made between naming servers. Before locking anything in
+        its subtree, the owner of a mounted subtree locks the mount point in
+        the enclosing subtree, on the naming server owning the directory above
+        it, so that exclusive locks taken there on the mount point or its
+        ancestors cover the mounted subtree too.
+
+        @param mount The mount point, which must be a directory of the
+                     receiving naming server.
+        @throws FileNotFoundException If the mount point does not exist.
+        @throws UnsupportedOperationException If the naming server is not
+                                              federated.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void lockMountPoint(Path mount)
+        throws RMIException, FileNotFoundException
+    {
+        throw new UnsupportedOperationException("federation not supported");
+    }
+
+    /** Releases a lock taken by <code>lockMountPoint</code>.
+
+        @param mount The mount point.
+        @throws IllegalArgumentException If the mount point does not exist or
+                                         is not locked.
+        @throws UnsupportedOperationException If the naming server is not
+                                              federated.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void unlockMountPoint(Path mount) throws RMIException
+    {
+        throw new UnsupportedOperationException("federation not supported");
+    }
+
+    /** Returns an image of the directory tree, from which a follower naming
+        server starts.
+
+        <p>
+        This call is made by followers. The image is labelled with the
+        sequence number of the last mutation it is known to reflect; the
+        follower then applies the mutations after that number, which it gets
+        from <code>mutationsSince</code>.
+
+        @return The image, in the format of a journal checkpoint.
+        @throws UnsupportedOperationException If the naming server does not
+                                              serve followers.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default byte[] snapshot() throws RMIException
+    {
+        throw new UnsupportedOperationException("followers not supported");
+    }
+
+    /** Returns the mutations made to the directory tree after a given one.
+
+        <p>
+        This call is made by followers. If there are no such mutations yet,
+        the call waits up to <code>waitMillis</code> for one.
+
+        @param sequence Sequence number of the last mutation the follower has
+                        applied.
+        @param limit Largest number of mutations to return.
+        @param waitMillis Longest time to wait for a mutation.
+        @return The mutations, oldest first. The batch is truncated if the
+                naming server no longer keeps all of them, in which case the
+                follower must start again from a new snapshot.
+        @throws UnsupportedOperationException If the naming server does not
+                                              serve followers.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default MutationBatch mutationsSince(long sequence, int limit,
+                                                long waitMillis)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("followers not supported");
+    }
+
+    /** Returns the metadata of a path, with a lease allowing the client to
+        reuse it.
+
+        <p>
+        The answer covers <code>isDirectory</code>, <code>list</code>,
+        <code>getStorage</code> and <code>getReplicas</code> for the path,
+        including the fact that it does not exist. Until the lease runs out,
+        the naming server calls <code>client</code> back, and waits for it to
+        answer, before acknowledging any change to that metadata, so the
+        client can keep answering those calls itself without contacting the
+        server. <code>client.MetadataCache</code> does this.
+
+        @param path The path.
+        @param client Callback interface of the client, on which stale paths
+                      are reported.
+        @return The metadata and the duration of the lease.
+        @throws UnsupportedOperationException If the naming server does not
+                                              grant leases.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default MetadataLease lease(Path path, CacheClient client)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("leases not supported");
+    }
+
+    /** Returns the changes made to part of the directory tree after a given
+        point, waiting for one if there are none yet.
+
+        <p>
+        Changes are the creation, deletion and renaming of files and
+        directories, and the addition and removal of replicas. A watch covers
+        the watched path and its children, or, for a subtree watch,
+        everything below it. A client starts with a negative sequence number,
+        and then passes the number from each batch to the next call. Changes
+        to paths that are not watched do not end the wait, so a client
+        watching a quiet part of the tree costs the naming server little
+        more than one waiting call.
+
+        <p>
+        Only changes made by this naming server are reported; a watch does
+        not extend into subtrees mounted from other naming servers.
+
+        @param path The path watched.
+        @param subtree <code>true</code> to watch everything below the path,
+                       <code>false</code> to watch only the path and its
+                       children.
+        @param sequence Sequence number returned by the previous call, or a
+                        negative number to watch for changes from now on.
+        @param limit Largest number of events to return.
+        @param waitMillis Longest time to wait for an event.
+        @return The events, oldest first, and the sequence number from which
+                to continue. The batch is truncated if the naming server no
+                longer keeps all of the changes asked for, in which case the
+                client must list the watched paths again.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support watches.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default WatchBatch watch(Path path, boolean subtree, long sequence,
+                                    int limit, long waitMillis)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("watches not supported");
+    }
+
+    /** Reports the lock contention seen by the naming server under a path.
+
+        <p>
+        The naming server samples a fraction of lock requests and records,
+        per path prefix, how many there were, how long they waited and how
+        many were queued ahead of them, and how long the nodes then stayed
+        locked. Sampling is cheap enough to be left on at all times.
+
+        @param prefix Path under which contention is reported; the root
+                      reports all of it.
+        @param limit Largest number of prefixes reported. The most contended
+                     are reported first.
+        @return The report.
+        @throws UnsupportedOperationException If the naming server does not
+                                              profile its locks.
+        @throws IllegalArgumentException If <code>limit</code> is not
+                                         positive.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default LockReport getLockReport(Path prefix, int limit)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("lock profiling not supported");
+    }
+
+    /** Takes a named, read-only snapshot of the directory tree.
+
+        <p>
+        Taking a snapshot copies nothing and takes no lock that clients wait
+        for, except that it waits for renames in progress. The snapshot keeps
+        the paths that existed when it was taken: files and directories
+        deleted afterwards are kept on their storage servers until the
+        snapshot is deleted. The contents of files are kept copy-on-write:
+        the first time a file is locked for writing after the snapshot was
+        taken, a replica of its old contents is set aside, or copied if it
+        has only one, and kept until the snapshot is deleted. Snapshots are
+        journaled and survive a restart of the naming server. In a
+        federation, every naming server takes a snapshot of its own
+        partition, and a snapshot that not all of them could take is deleted
+        again.
+
+        @param name The snapshot's name.
+        @return <code>true</code> if the snapshot was taken, and
+                <code>false</code> if one of that name exists.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support snapshots.
+        @throws IllegalArgumentException If the name is empty.
+        @throws RMIException If the call cannot be completed due to a network
+                             error. In a federation, this names the
+                             partitions still holding a partly taken
+                             snapshot, if any.
+     */
+    public default boolean createSnapshot(String name) throws RMIException
+    {
+        throw new UnsupportedOperationException("snapshots not supported");
+    }
+
+    /** Deletes a snapshot, and the data kept only for it.
+
+        @param name The snapshot's name.
+        @return <code>true</code> if the snapshot was deleted, and
+                <code>false</code> if there is none of that name.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support snapshots.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean deleteSnapshot(String name) throws RMIException
+    {
+        throw new UnsupportedOperationException("snapshots not supported");
+    }
+
+    /** Lists the snapshots, oldest first.
+
+        @throws UnsupportedOperationException If the naming server does not
+                                              support snapshots.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default String[] listSnapshots() throws RMIException
+    {
+        throw new UnsupportedOperationException("snapshots not supported");
+    }
+
+    /** Reads a path as a snapshot saw it. No lock is needed.
+
+        @param name The snapshot's name.
+        @param path The path in the snapshot.
+        @return For a directory, its children; for a file, the storage servers
+                holding its data and the path under which they hold it.
+        @throws FileNotFoundException If there is no snapshot of that name,
+                                      the path did not exist when it was
+                                      taken, or it is a file whose copy kept
+                                      for the snapshot was lost.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support snapshots.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default SnapshotEntry readSnapshot(String name, Path path)
+        throws RMIException, FileNotFoundException
+    {
+        throw new UnsupportedOperationException("snapshots not supported");
+    }
 }
@@ -0,0 +1,66 @@
+package naming;
+
+import common.Path;
+import storage.Storage;
+
+import java.io.Serializable;
+
+/**
+ * A file or directory as a snapshot saw it, as returned by
+ * <code>Service.readSnapshot</code>.
+ *
+ * <p>
+ * For a directory, the entry lists its children. For a file, it gives the
+ * storage servers holding the file's data and the path under which they hold
+ * it, which is the file's live path while it exists, and a path under
+ * <code>SnapshotTable.RESERVED</code> once it has been deleted.
+ */
+public class SnapshotEntry
+    implements Serializable
+{
+    boolean directory;
+    String[] children;
+    Storage[] storage;
+    Path storagePath;
+
+    SnapshotEntry(boolean directory, String[] children, Storage[] storage, Path storagePath)
+    {
+        this.directory = directory;
+        this.children = children;
+        this.storage = storage;
+        this.storagePath = storagePath;
+    }
+
+    public boolean isDirectory()
+    {
+        return this.directory;
+    }
+
+    /** Returns the names of a directory's children, or <code>null</code> for
+        a file. */
+    public String[] getChildren()
+    {
+        return this.children;
+    }
+
+    /** Returns the storage servers holding a file's data, or
+        <code>null</code> for a directory. The array is empty if none is left. */
+    public Storage[] getStorage()
+    {
+        return this.storage;
+    }
+
+    /** Returns the path under which the storage servers hold a file's data,
+        or <code>null</code> for a directory. */
+    public Path getStoragePath()
+    {
+        return this.storagePath;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[SnapshotEntry| " + (this.directory ? this.children.length + " children"
+            : this.storage.length + " replicas at " + this.storagePath) + "]";
+    }
+}
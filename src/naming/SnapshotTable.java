@@ -0,0 +1,434 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Named, read-only snapshots of the directory tree.
+ *
+ * <p>
+ * Taking a snapshot only gives it the next generation number: nothing is
+ * copied. Each directory copies its table of children the first time it
+ * changes after a snapshot is taken, as described in
+ * <code>ChildTable</code>, so a snapshot shares every directory that has not
+ * changed since with the live tree, and reading it takes no lock of the live
+ * namespace. Every change to a table is made with the table's monitor held,
+ * so it is either entirely before or entirely after any snapshot. A move
+ * changes two tables, and holds <code>moveLock</code> for reading so that no
+ * snapshot is taken between the two.
+ *
+ * <p>
+ * The contents of files are kept copy on write as well. The first time a
+ * file is locked for writing after a snapshot reaching it was taken, one of
+ * its storage servers moves a stale replica, or copies the only replica,
+ * under <code>RESERVED</code> before the lock is handed out, and the table
+ * pins that copy for every snapshot that had not seen a write of the file.
+ * Such a snapshot reads the pinned copy from then on; a snapshot taken while
+ * the file is locked for writing sees it as it is when the lock is released.
+ * Likewise, when a file or directory that a snapshot still reaches is
+ * deleted, its storage servers move it under <code>RESERVED</code> instead of
+ * deleting it, and the table remembers where it went. Kept data is deleted
+ * once the last snapshot reading it is deleted.
+ *
+ * <p>
+ * Snapshots, and where their data is kept, are journaled and checkpointed
+ * with the tree, so they survive a restart. Data under <code>RESERVED</code>
+ * that no snapshot keeps is deleted as storage servers register.
+ */
+public class SnapshotTable
+{
+    /** Top-level directory under which storage servers keep deleted data that
+        snapshots still reach. Clients cannot create it. */
+    public static final String RESERVED = ".snapshots";
+
+    /** Held for reading by moves and deletions, and for writing while a
+        snapshot is taken. */
+    final ReentrantReadWriteLock moveLock = new ReentrantReadWriteLock();
+    final ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    /** Generations of the snapshots that exist. */
+    final ConcurrentSkipListSet<Long> generations = new ConcurrentSkipListSet<>();
+    /** Generation of the latest snapshot that exists, or <code>0</code>. */
+    volatile long latest = 0;
+    long lastGeneration = 0;
+    long lastRetained = 0;
+    /** Deleted subtrees kept for snapshots, by the node at their top. */
+    final ConcurrentHashMap<FileNode, Retained> retained = new ConcurrentHashMap<>();
+    /** Copies of files from before they were written, oldest first, by the
+        file. Lists are replaced, not changed. */
+    final ConcurrentHashMap<FileNode, ArrayList<Pin>> pinned = new ConcurrentHashMap<>();
+
+    /** One snapshot. */
+    static class Snapshot
+    {
+        final String name;
+        final long generation;
+
+        Snapshot(String name, long generation)
+        {
+            this.name = name;
+            this.generation = generation;
+        }
+    }
+
+    /** Data kept for snapshots: a deleted subtree, or a pinned copy of a
+        file. */
+    static class Retained
+    {
+        final FileNode node;
+        /** Path the storage servers moved the data to. */
+        final Path location;
+        /** Snapshots reading the data. */
+        final HashSet<Long> readers;
+        /** Servers that kept the data, or <code>null</code> while they are
+            still moving it. */
+        Set<StorageContainer> holders;
+        /** Set if the last reader was deleted while the servers were still
+            moving the data. */
+        boolean released = false;
+
+        Retained(FileNode node, Path location, HashSet<Long> readers)
+        {
+            this.node = node;
+            this.location = location;
+            this.readers = readers;
+        }
+    }
+
+    /** The copy of a file from before it was written. */
+    static class Pin
+        extends Retained
+    {
+        /** Path of the file when it was written. */
+        final Path path;
+        /** Server that keeps the copy. */
+        final StorageContainer source;
+        /** Set if the server holds the file's only replica, which it copies
+            instead of moving. */
+        final boolean copy;
+
+        Pin(FileNode node, Path path, Path location, HashSet<Long> readers, StorageContainer source,
+            boolean copy)
+        {
+            super(node, location, readers);
+            this.path = path;
+            this.source = source;
+            this.copy = copy;
+        }
+    }
+
+    /** Returns <code>true</code> if a path is under the reserved
+        directory. */
+    static boolean isReserved(Path path)
+    {
+        for (String name : path) return name.equals(RESERVED);
+        return false;
+    }
+
+    /**
+     * Takes a snapshot of the tree. The caller holds <code>moveLock</code> for
+     * writing, so that it can journal the snapshot before any move or
+     * deletion made after it.
+     *
+     * @return The generation of the snapshot, or <code>0</code> if a snapshot
+     *         of that name exists.
+     */
+    synchronized long create(String name)
+    {
+        if (this.snapshots.containsKey(name)) return 0;
+        long generation = ++this.lastGeneration;
+        this.restore(name, generation);
+        return generation;
+    }
+
+    /** Adds a snapshot taken before a restart, unless one of that name
+        exists. */
+    synchronized void restore(String name, long generation)
+    {
+        if (this.snapshots.containsKey(name)) return;
+        this.snapshots.put(name, new Snapshot(name, generation));
+        this.generations.add(generation);
+        this.lastGeneration = Math.max(this.lastGeneration, generation);
+        this.latest = this.generations.last();
+    }
+
+    /**
+     * Deletes a snapshot. The copies of tables only it read are dropped as
+     * the tables change, or by <code>FileSystem.deleteSnapshot</code>.
+     *
+     * @return The kept data no snapshot reads any more, which is to be
+     *         deleted, or <code>null</code> if there is no snapshot of that
+     *         name.
+     */
+    synchronized ArrayList<Retained> delete(String name)
+    {
+        Snapshot snapshot = this.snapshots.remove(name);
+        if (snapshot == null) return null;
+        this.generations.remove(snapshot.generation);
+        this.latest = this.generations.isEmpty() ? 0 : this.generations.last();
+        ArrayList<Retained> released = new ArrayList<>();
+        for (Iterator<Retained> i = this.retained.values().iterator() ; i.hasNext() ; )
+        {
+            if (this.release(i.next(), snapshot.generation, released)) i.remove();
+        }
+        for (Iterator<Map.Entry<FileNode, ArrayList<Pin>>> i = this.pinned.entrySet().iterator() ; i.hasNext() ; )
+        {
+            Map.Entry<FileNode, ArrayList<Pin>> entry = i.next();
+            ArrayList<Pin> pins = new ArrayList<>(entry.getValue());
+            pins.removeIf(pin -> this.release(pin, snapshot.generation, released));
+            if (pins.isEmpty()) i.remove();
+            else entry.setValue(pins);
+        }
+        return released;
+    }
+
+    /** Takes a deleted snapshot off the readers of kept data, adding the data
+        to <code>released</code> if it is to be deleted now.
+
+        @return <code>true</code> if the data is to be forgotten. */
+    private boolean release(Retained retained, long generation, ArrayList<Retained> released)
+    {
+        retained.readers.remove(generation);
+        if (!retained.readers.isEmpty()) return false;
+        if (retained.holders == null)
+        {
+            retained.released = true;
+            return false;
+        }
+        released.add(retained);
+        return true;
+    }
+
+    Snapshot get(String name)
+    {
+        return this.snapshots.get(name);
+    }
+
+    /** Returns the names of the snapshots, oldest first. */
+    String[] names()
+    {
+        ArrayList<Snapshot> snapshots = new ArrayList<>(this.snapshots.values());
+        snapshots.sort(Comparator.comparingLong(snapshot -> snapshot.generation));
+        String[] names = new String[snapshots.size()];
+        for (int i = 0 ; i < names.length ; i++) names[i] = snapshots.get(i).name;
+        return names;
+    }
+
+    NavigableSet<Long> generations()
+    {
+        return this.generations;
+    }
+
+    /**
+     * Decides where the data of a subtree about to be detached from the tree
+     * goes, if any snapshot still reaches it. The storage servers must then
+     * move it there and report which of them did with <code>settle</code>.
+     *
+     * @return The record of the retained subtree, or <code>null</code> if no
+     *         snapshot reaches it and it can be deleted.
+     */
+    synchronized Retained retain(FileNode node, Path path)
+    {
+        HashSet<Long> readers = new HashSet<>();
+        for (long generation : this.generations)
+        {
+            if (this.reaches(generation, node)) readers.add(generation);
+        }
+        if (readers.isEmpty()) return null;
+        Retained retained = new Retained(node, this.location(path), readers);
+        this.retained.put(node, retained);
+        return retained;
+    }
+
+    /**
+     * Returns the snapshots that reach a file and have not had a copy of it
+     * pinned since they were taken. Their view of the file is lost when it is
+     * next written, unless a copy is pinned for them with <code>pin</code>,
+     * which the caller does holding the table's monitor across both calls.
+     */
+    synchronized HashSet<Long> unpinned(FileNode node)
+    {
+        HashSet<Long> readers = new HashSet<>();
+        if (this.generations.isEmpty()) return readers;
+        ArrayList<Pin> pins = this.pinned.get(node);
+        for (long generation : this.generations)
+        {
+            if (find(pins, generation) == null && this.reaches(generation, node)) readers.add(generation);
+        }
+        return readers;
+    }
+
+    /**
+     * Pins a copy of a file, as it is before it is written, for the given
+     * snapshots. The source server must then move or copy the file there and
+     * report whether it did with <code>settle</code>.
+     */
+    synchronized Pin pin(FileNode node, Path path, HashSet<Long> readers, StorageContainer source,
+                         boolean copy)
+    {
+        Pin pin = new Pin(node, path, this.location(path), readers, source, copy);
+        this.add(pin);
+        return pin;
+    }
+
+    /** Adds a pin to those of its file. */
+    private void add(Pin pin)
+    {
+        ArrayList<Pin> pins = this.pinned.get(pin.node);
+        pins = pins == null ? new ArrayList<>() : new ArrayList<>(pins);
+        pins.add(pin);
+        this.pinned.put(pin.node, pins);
+    }
+
+    /** Returns a new path under the reserved directory for data at a path. */
+    private Path location(Path path)
+    {
+        return new Path("/" + RESERVED + "/" + (++this.lastRetained) + path);
+    }
+
+    /**
+     * Records the storage servers that kept data for snapshots.
+     *
+     * @return <code>false</code> if no snapshot reads the data any more, in
+     *         which case the servers must delete it.
+     */
+    synchronized boolean settle(Retained retained, Set<StorageContainer> holders)
+    {
+        retained.holders = holders;
+        if (!retained.released) return true;
+        this.forget(retained);
+        return false;
+    }
+
+    /** Drops the record of kept data. */
+    private void forget(Retained retained)
+    {
+        if (!(retained instanceof Pin))
+        {
+            this.retained.remove(retained.node);
+            return;
+        }
+        ArrayList<Pin> pins = new ArrayList<>(this.pinned.getOrDefault(retained.node, new ArrayList<>()));
+        pins.remove(retained);
+        if (pins.isEmpty()) this.pinned.remove(retained.node);
+        else this.pinned.put(retained.node, pins);
+    }
+
+    /**
+     * Adds a record of kept data restored after a restart, unless one for the
+     * same location exists. Readers that are no longer snapshots are dropped,
+     * and so is the record if none is left.
+     */
+    synchronized void restore(Retained retained)
+    {
+        if (this.find(retained.location) != null) return;
+        retained.readers.retainAll(this.generations);
+        if (retained.readers.isEmpty()) return;
+        // Locations are numbered from the component after the reserved one
+        Iterator<String> components = retained.location.iterator();
+        components.next();
+        this.lastRetained = Math.max(this.lastRetained, Long.parseLong(components.next()));
+        if (retained instanceof Pin) this.add((Pin) retained);
+        else this.retained.put(retained.node, retained);
+    }
+
+    /** Returns the record of the data kept at a location, or
+        <code>null</code>. */
+    synchronized Retained find(Path location)
+    {
+        for (Retained retained : this.retained.values())
+        {
+            if (retained.location.equals(location)) return retained;
+        }
+        for (ArrayList<Pin> pins : this.pinned.values())
+        {
+            for (Pin pin : pins)
+            {
+                if (pin.location.equals(location)) return pin;
+            }
+        }
+        return null;
+    }
+
+    /** Returns <code>true</code> if the snapshot of a generation reaches a
+        node, following its parents up to the root. */
+    private boolean reaches(long generation, FileNode node)
+    {
+        FileNode child = node;
+        for (FileNode parent = node.parent ; parent != null ; parent = parent.parent)
+        {
+            if (!parent.getChildren().containsAt(child, generation)) return false;
+            child = parent;
+        }
+        return child.children != null && child.children.snapshots == this;
+    }
+
+    /** Returns the retained subtree a node is in, or <code>null</code> if it
+        is still in the tree. */
+    Retained retainedAbove(FileNode node)
+    {
+        if (this.retained.isEmpty()) return null;
+        for ( ; node != null ; node = node.parent)
+        {
+            Retained retained = this.retained.get(node);
+            if (retained != null) return retained;
+        }
+        return null;
+    }
+
+    /** Returns the copy of a file pinned for the snapshot of a generation, or
+        <code>null</code> if the file has not been written since it was
+        taken. */
+    synchronized Pin pinned(FileNode node, long generation)
+    {
+        return find(this.pinned.get(node), generation);
+    }
+
+    /** Returns the pin among <code>pins</code> read by the snapshot of a
+        generation, or <code>null</code>. */
+    private static Pin find(ArrayList<Pin> pins, long generation)
+    {
+        if (pins == null) return null;
+        for (Pin pin : pins)
+        {
+            if (pin.readers.contains(generation)) return pin;
+        }
+        return null;
+    }
+
+    /** Returns <code>true</code> if a storage server keeps a path for a
+        snapshot. */
+    boolean isRetained(Path path, StorageContainer storageContainer)
+    {
+        String string = path.toString();
+        for (Retained retained : this.retained.values())
+        {
+            if (keeps(retained, string, storageContainer)) return true;
+        }
+        for (ArrayList<Pin> pins : this.pinned.values())
+        {
+            for (Pin pin : pins)
+            {
+                if (keeps(pin, string, storageContainer)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean keeps(Retained retained, String path, StorageContainer storageContainer)
+    {
+        String location = retained.location.toString();
+        if (!path.equals(location) && !path.startsWith(location + "/")) return false;
+        Set<StorageContainer> holders = retained.holders;
+        return holders == null || holders.contains(storageContainer);
+    }
+}
@@ -3,11 +3,19 @@ package naming;
 import storage.Command;
 import storage.Storage;
 
+import java.io.Serializable;
+
 /**
  * Created by anthonyaltieri on 2/28/17.
  */
 public class StorageContainer
+    implements Serializable
 {
+    /** Fixed at the value computed for the class when journals and
+        checkpoints started storing it, so that they stay readable when the
+        class changes. */
+    private static final long serialVersionUID = 5994260892179661882L;
+
     Storage storage;
     Command command;
 
@@ -0,0 +1,204 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the storage-side halves of bulk namespace operations.
+ *
+ * <p>
+ * The paths of an operation are grouped by storage server, each server is sent
+ * its whole group in a single <code>Command</code> call, and the calls to
+ * different servers are made in parallel, so that a bulk operation costs about
+ * one round trip to the slowest server involved rather than one round trip per
+ * path. A server that cannot be reached fails every path sent to it.
+ */
+public class StorageFanout
+{
+    public static final int DEFAULT_THREADS = 8;
+
+    ThreadPoolExecutor executor;
+
+    StorageFanout(int threads)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "storage-fanout-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates each group of files on its storage server.
+     *
+     * @return The files that were created, by storage server.
+     */
+    public HashMap<StorageContainer, HashSet<Path>> create(Map<StorageContainer, ArrayList<Path>> groups)
+        throws InterruptedException
+    {
+        return this.run(groups, true);
+    }
+
+    /**
+     * Deletes each group of paths from its storage server.
+     *
+     * @return The paths that were deleted, by storage server.
+     */
+    public HashMap<StorageContainer, HashSet<Path>> delete(Map<StorageContainer, ArrayList<Path>> groups)
+        throws InterruptedException
+    {
+        return this.run(groups, false);
+    }
+
+    /**
+     * Moves a path from <code>source</code> to <code>target</code> on each of
+     * the given storage servers.
+     *
+     * @return The servers on which the path was moved.
+     */
+    public HashSet<StorageContainer> rename(Collection<StorageContainer> storageContainers,
+                                            Path source, Path target)
+        throws InterruptedException
+    {
+        HashMap<StorageContainer, Future<Boolean>> calls = new HashMap<>();
+        for (StorageContainer storageContainer : storageContainers)
+        {
+            calls.put(storageContainer, this.executor.submit(
+                () -> storageContainer.getCommand().rename(source, target)));
+        }
+
+        HashSet<StorageContainer> done = new HashSet<>();
+        for (Map.Entry<StorageContainer, Future<Boolean>> call : calls.entrySet())
+        {
+            try
+            {
+                if (call.getValue().get()) done.add(call.getKey());
+            }
+            catch (ExecutionException e)
+            {
+                // The server could not be reached and moved nothing
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Asks each storage server for the sizes of its group of files. A server
+     * that does not report sizes in batches is asked for each file in turn.
+     *
+     * @return The size of each file a server could report.
+     */
+    public HashMap<Path, Long> sizes(Map<StorageContainer, ArrayList<Path>> groups)
+        throws InterruptedException
+    {
+        HashMap<StorageContainer, Future<long[]>> calls = new HashMap<>();
+        for (Map.Entry<StorageContainer, ArrayList<Path>> group : groups.entrySet())
+        {
+            StorageContainer storageContainer = group.getKey();
+            Path[] paths = group.getValue().toArray(new Path[0]);
+            calls.put(storageContainer, this.executor.submit(() -> sizes(storageContainer, paths)));
+        }
+
+        HashMap<Path, Long> sizes = new HashMap<>();
+        for (Map.Entry<StorageContainer, Future<long[]>> call : calls.entrySet())
+        {
+            long[] results;
+            try
+            {
+                results = call.getValue().get();
+            }
+            catch (ExecutionException e)
+            {
+                // The server could not be reached and reported nothing
+                continue;
+            }
+            ArrayList<Path> paths = groups.get(call.getKey());
+            for (int i = 0 ; i < paths.size() && i < results.length ; i++)
+            {
+                if (results[i] >= 0) sizes.put(paths.get(i), results[i]);
+            }
+        }
+        return sizes;
+    }
+
+    private static long[] sizes(StorageContainer storageContainer, Path[] paths)
+        throws RMIException
+    {
+        try
+        {
+            return storageContainer.getCommand().sizes(paths);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            long[] sizes = new long[paths.length];
+            for (int i = 0 ; i < paths.length ; i++)
+            {
+                try
+                {
+                    sizes[i] = storageContainer.getStorage().size(paths[i]);
+                }
+                catch (FileNotFoundException ex)
+                {
+                    sizes[i] = -1;
+                }
+            }
+            return sizes;
+        }
+    }
+
+    private HashMap<StorageContainer, HashSet<Path>> run(Map<StorageContainer, ArrayList<Path>> groups,
+                                                         boolean create)
+        throws InterruptedException
+    {
+        HashMap<StorageContainer, Future<boolean[]>> calls = new HashMap<>();
+        for (Map.Entry<StorageContainer, ArrayList<Path>> group : groups.entrySet())
+        {
+            StorageContainer storageContainer = group.getKey();
+            Path[] paths = group.getValue().toArray(new Path[0]);
+            calls.put(storageContainer, this.executor.submit(() -> create
+                ? storageContainer.getCommand().createAll(paths)
+                : storageContainer.getCommand().deleteAll(paths)));
+        }
+
+        HashMap<StorageContainer, HashSet<Path>> done = new HashMap<>();
+        for (Map.Entry<StorageContainer, Future<boolean[]>> call : calls.entrySet())
+        {
+            HashSet<Path> succeeded = new HashSet<>();
+            done.put(call.getKey(), succeeded);
+            boolean[] results;
+            try
+            {
+                results = call.getValue().get();
+            }
+            catch (ExecutionException e)
+            {
+                // The server failed as a whole: none of its paths succeeded
+                continue;
+            }
+            ArrayList<Path> paths = groups.get(call.getKey());
+            for (int i = 0 ; i < paths.size() && i < results.length ; i++)
+            {
+                if (results[i]) succeeded.add(paths.get(i));
+            }
+        }
+        return done;
+    }
+
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,109 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the heartbeats of the storage servers and removes the ones that
+ * fail.
+ *
+ * <p>
+ * Once started, at a fixed interval, every server whose suspicion level in the
+ * <code>FailureDetector</code> has reached the threshold is declared dead: it
+ * is unregistered, taken out of the replica lists of the directory tree, and
+ * every file that lost a replica and is now below its target replica count is
+ * handed to the <code>RepairQueue</code>. A server declared dead that is in
+ * fact alive learns so from its next heartbeat and registers again.
+ */
+public class StorageMonitor
+{
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 500;
+
+    FileSystem fileSystem;
+    FailureDetector failureDetector;
+    ReplicationPolicy policy;
+    RepairQueue repairQueue;
+    ScheduledExecutorService executor;
+    long checkIntervalMillis;
+
+    StorageMonitor(FileSystem fileSystem, FailureDetector failureDetector, ReplicationPolicy policy,
+                   RepairQueue repairQueue, long checkIntervalMillis)
+    {
+        this.fileSystem = fileSystem;
+        this.failureDetector = failureDetector;
+        this.policy = policy;
+        this.repairQueue = repairQueue;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Starts checking for failed servers periodically. */
+    void start()
+    {
+        this.executor.scheduleWithFixedDelay(
+            () -> this.check(System.currentTimeMillis()),
+            this.checkIntervalMillis,
+            this.checkIntervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Declares dead every server suspected at time <code>now</code>.
+     *
+     * @return The servers declared dead.
+     */
+    ArrayList<StorageContainer> check(long now)
+    {
+        ArrayList<StorageContainer> suspects = this.failureDetector.suspects(now);
+        for (StorageContainer storageContainer : suspects)
+        {
+            // An exception escaping the scheduled check would cancel every
+            // later one, and the servers after this one would not be removed
+            try
+            {
+                this.declareDead(storageContainer, now);
+            }
+            catch (Throwable t)
+            {
+                t.printStackTrace();
+            }
+        }
+        return suspects;
+    }
+
+    /** Removes a server and hands the files that lost a replica on it to
+        the repair queue. */
+    private void declareDead(StorageContainer storageContainer, long now)
+    {
+        this.failureDetector.remove(storageContainer);
+        // Unregister first, so that no new file or replica is placed on the
+        // server while its old replicas are being removed
+        if (!this.fileSystem.getStorageRegistry().unregister(storageContainer)) return;
+        for (FileNode node : this.fileSystem.removeStorageServer(storageContainer))
+        {
+            ErasureLayout layout = this.fileSystem.getErasureLayout(node);
+            if (layout != null)
+            {
+                // A coded file survives as many more failures as it has
+                // fragments beyond its data fragments
+                int margin = layout.getLiveHolders().size() - layout.getDataFragments() + 1;
+                this.repairQueue.add(node.getPath(), margin, margin + layout.getLostCount());
+                continue;
+            }
+            this.repairQueue.add(node.getPath(), node.getReplicaCount(),
+                                 this.policy.targetReplicas(node, now));
+        }
+    }
+
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+}
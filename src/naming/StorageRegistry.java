@@ -0,0 +1,214 @@
+package naming;
+
+import storage.Storage;
+
+import java.util.*;
+
+/**
+ * Registry of the storage servers known to the naming server.
+ *
+ * <p>
+ * Servers are added when they register and are kept in a set ordered by their
+ * load score, so that the least-loaded server not already holding a file is
+ * found by walking the set from its least-loaded end instead of by searching
+ * the directory tree. The walk takes logarithmic time to reach the first
+ * entry, plus one step for each server it skips because it is excluded or
+ * nearly full. Every change to a server's load removes and re-inserts its
+ * entry to keep the ordering valid, in logarithmic time. The recent I/O in a
+ * score decays with time even while nothing changes, so choosing a server
+ * re-scores every entry first once <code>RESCORE_INTERVAL_MILLIS</code> have
+ * passed since they were last re-scored, and an idle server moves up the
+ * ordering as its load decays.
+ */
+public class StorageRegistry
+{
+    /** Time after which choosing a server re-scores them all, in
+        milliseconds. */
+    static final long RESCORE_INTERVAL_MILLIS = 1000;
+
+    HashMap<StorageContainer, ServerLoad> servers = new HashMap<>();
+    HashMap<Storage, StorageContainer> storageStubs = new HashMap<>();
+    TreeSet<ServerLoad> byLoad = new TreeSet<>(
+        Comparator.comparingDouble(ServerLoad::getScore)
+            .thenComparingLong(load -> load.id)
+    );
+    long nextId = 0;
+    /** Time every entry was last re-scored. */
+    long rescored = 0;
+
+    /**
+     * Adds a storage server to the registry.
+     *
+     * @return <code>false</code> if a server with the same client stub is
+     *         already registered.
+     */
+    public synchronized boolean register(StorageContainer storageContainer)
+    {
+        if (this.storageStubs.containsKey(storageContainer.getStorage())) return false;
+        ServerLoad load = new ServerLoad(storageContainer, this.nextId++);
+        load.rescore(System.currentTimeMillis());
+        this.servers.put(storageContainer, load);
+        this.storageStubs.put(storageContainer.getStorage(), storageContainer);
+        this.byLoad.add(load);
+        return true;
+    }
+
+    /**
+     * Removes a storage server from the registry.
+     *
+     * @return <code>false</code> if the server was not registered.
+     */
+    public synchronized boolean unregister(StorageContainer storageContainer)
+    {
+        ServerLoad load = this.servers.remove(storageContainer);
+        if (load == null) return false;
+        this.byLoad.remove(load);
+        this.storageStubs.remove(storageContainer.getStorage());
+        return true;
+    }
+
+    /** Records the latest capacity report of a server. */
+    public synchronized void recordCapacity(StorageContainer storageContainer, CapacityReport capacity)
+    {
+        ServerLoad load = this.servers.get(storageContainer);
+        if (load == null || capacity == null) return;
+        this.byLoad.remove(load);
+        load.capacity = capacity;
+        load.rescore(System.currentTimeMillis());
+        this.byLoad.add(load);
+    }
+
+    public synchronized boolean contains(Storage storage)
+    {
+        return this.storageStubs.containsKey(storage);
+    }
+
+    /** Returns the registered server with the given client stub, or
+        <code>null</code> if there is none. */
+    public synchronized StorageContainer get(Storage storage)
+    {
+        return this.storageStubs.get(storage);
+    }
+
+    public synchronized int size()
+    {
+        return this.servers.size();
+    }
+
+    public synchronized ServerLoad getLoad(StorageContainer storageContainer)
+    {
+        return this.servers.get(storageContainer);
+    }
+
+    /** Returns the registered servers, least loaded first. */
+    public synchronized ArrayList<ServerLoad> getLoads()
+    {
+        this.rescoreIfDue(System.currentTimeMillis());
+        return new ArrayList<>(this.byLoad);
+    }
+
+    /** Re-scores every server as of <code>now</code>, applying the decay of
+        its recent I/O, and re-orders them. */
+    synchronized void rescore(long now)
+    {
+        ArrayList<ServerLoad> loads = new ArrayList<>(this.byLoad);
+        this.byLoad.clear();
+        for (ServerLoad load : loads)
+        {
+            load.rescore(now);
+            this.byLoad.add(load);
+        }
+        this.rescored = now;
+    }
+
+    private void rescoreIfDue(long now)
+    {
+        if (now - this.rescored >= RESCORE_INTERVAL_MILLIS) this.rescore(now);
+    }
+
+    /**
+     * Returns the least-loaded registered server that is not in
+     * <code>exclude</code>, or <code>null</code> if there is none. Servers
+     * that reported being nearly full are only returned when every other
+     * candidate is nearly full too.
+     */
+    public StorageContainer leastLoaded(Collection<StorageContainer> exclude)
+    {
+        return this.leastLoaded(exclude, true);
+    }
+
+    /**
+     * Returns the least-loaded registered server that is not in
+     * <code>exclude</code>. Servers that reported being nearly full are
+     * skipped; if <code>allowFull</code> is set, the least loaded of them is
+     * returned when no other candidate remains. The servers are visited in
+     * order of load, so the cost grows with the number of servers skipped,
+     * and is linear in the number of servers when nearly all are full, or
+     * when they are due to be re-scored.
+     *
+     * @return The server, or <code>null</code> if there is none.
+     */
+    public synchronized StorageContainer leastLoaded(Collection<StorageContainer> exclude,
+                                                     boolean allowFull)
+    {
+        this.rescoreIfDue(System.currentTimeMillis());
+        StorageContainer full = null;
+        for (ServerLoad load : this.byLoad)
+        {
+            if (exclude != null && exclude.contains(load.storageContainer)) continue;
+            if (!load.isNearlyFull()) return load.storageContainer;
+            if (full == null) full = load.storageContainer;
+        }
+        return allowFull ? full : null;
+    }
+
+    public void recordFileAdded(StorageContainer storageContainer, long bytes)
+    {
+        this.update(storageContainer, 1, Math.max(bytes, 0), 0);
+    }
+
+    /** Records several files added to the server in one update. */
+    public void recordFilesAdded(StorageContainer storageContainer, long files, long bytes)
+    {
+        this.update(storageContainer, files, Math.max(bytes, 0), 0);
+    }
+
+    /** Records that a file on the server grew or shrank by
+        <code>delta</code> bytes. */
+    public void recordFileResized(StorageContainer storageContainer, long delta)
+    {
+        this.update(storageContainer, 0, delta, 0);
+    }
+
+    public void recordFileRemoved(StorageContainer storageContainer, long bytes)
+    {
+        this.update(storageContainer, -1, -Math.max(bytes, 0), 0);
+    }
+
+    /** Records that a client was directed to the server for I/O. */
+    public void recordIo(StorageContainer storageContainer)
+    {
+        this.recordIo(storageContainer, 1);
+    }
+
+    /** Records the share of a client's I/O the server is expected to get,
+        when the client chooses among several servers itself. */
+    public void recordIo(StorageContainer storageContainer, double share)
+    {
+        this.update(storageContainer, 0, 0, share);
+    }
+
+    private synchronized void update(StorageContainer storageContainer,
+                                     long files, long bytes, double io)
+    {
+        ServerLoad load = this.servers.get(storageContainer);
+        if (load == null) return;
+        long now = System.currentTimeMillis();
+        this.byLoad.remove(load);
+        load.files = Math.max(0, load.files + files);
+        load.bytes = Math.max(0, load.bytes + bytes);
+        if (io > 0) load.io.record(now, ServerLoad.IO_HALF_LIFE_MILLIS, io);
+        load.rescore(now);
+        this.byLoad.add(load);
+    }
+}
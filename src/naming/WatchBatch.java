@@ -0,0 +1,57 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Events of a watch on the directory tree, as returned by
+ * <code>Service.watch</code>.
+ *
+ * <p>
+ * Besides the events, a batch carries the sequence number through which the
+ * naming server has looked for them, which the client passes to its next call
+ * to resume where this one stopped. The number moves on even when no event is
+ * returned, past mutations of paths that are not watched. A
+ * <em>truncated</em> batch has no events: some of the mutations after the
+ * client's sequence number are no longer kept, so events may have been
+ * missed, and the client must list the watched paths again.
+ */
+public class WatchBatch
+    implements Serializable
+{
+    WatchEvent[] events;
+    long sequence;
+    boolean truncated;
+
+    WatchBatch(WatchEvent[] events, long sequence, boolean truncated)
+    {
+        this.events = events;
+        this.sequence = sequence;
+        this.truncated = truncated;
+    }
+
+    /** Returns the events, oldest first. */
+    public WatchEvent[] getEvents()
+    {
+        return this.events;
+    }
+
+    /** Returns the sequence number from which to continue watching. */
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /** Returns <code>true</code> if events may have been missed, so that the
+        watched paths must be listed again. */
+    public boolean isTruncated()
+    {
+        return this.truncated;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[WatchBatch| " + this.events.length + " events, through "
+            + this.sequence + (this.truncated ? ", truncated" : "") + "]";
+    }
+}
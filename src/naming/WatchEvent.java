@@ -0,0 +1,130 @@
+package naming;
+
+import common.Path;
+import storage.Storage;
+
+import java.io.Serializable;
+
+/**
+ * One change to a watched part of the directory tree, as returned by
+ * <code>Service.watch</code>.
+ *
+ * <p>
+ * Events carry the sequence number of the mutation in the naming server's
+ * mutation stream, so that a client can resume watching after the last event
+ * it has handled. Sequence numbers increase but are not consecutive: the
+ * mutations of paths that are not watched are skipped.
+ */
+public class WatchEvent
+    implements Serializable
+{
+    public enum Kind
+    {
+        CREATE_FILE,
+        CREATE_DIRECTORY,
+        DELETE,
+        RENAME,
+        REPLICA_ADD,
+        REPLICA_REMOVE,
+    }
+
+    long sequence;
+    Kind kind;
+    Path path;
+    Path target;
+    Storage storage;
+
+    WatchEvent(long sequence, Kind kind, Path path, Path target, Storage storage)
+    {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.path = path;
+        this.target = target;
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the event for a mutation if it concerns a watched path, or
+     * <code>null</code> otherwise. A rename concerns the watch if either its
+     * source or its target is watched, or lies above the watched path.
+     */
+    static WatchEvent of(JournalRecord record, Path watched, boolean subtree)
+    {
+        Kind kind;
+        switch (record.getKind())
+        {
+            case CREATE_FILE: kind = Kind.CREATE_FILE; break;
+            case CREATE_DIRECTORY: kind = Kind.CREATE_DIRECTORY; break;
+            case DELETE: kind = Kind.DELETE; break;
+            case RENAME: kind = Kind.RENAME; break;
+            case REPLICA_ADD: kind = Kind.REPLICA_ADD; break;
+            case REPLICA_REMOVE: kind = Kind.REPLICA_REMOVE; break;
+            // Readers are no longer handed a stale replica
+            case REPLICA_STALE: kind = Kind.REPLICA_REMOVE; break;
+            default: return null;
+        }
+        Path target = record.getTarget();
+        // Deleting or moving a directory takes everything below it along
+        boolean wholeSubtree = kind == Kind.DELETE || kind == Kind.RENAME;
+        if (!covers(watched, subtree, record.getPath(), wholeSubtree)
+            && (target == null || !covers(watched, subtree, target, wholeSubtree)))
+            return null;
+        StorageContainer storageContainer = record.getStorageContainer();
+        return new WatchEvent(record.getSequence(), kind, record.getPath(), target,
+            storageContainer == null ? null : storageContainer.getStorage());
+    }
+
+    /**
+     * Returns <code>true</code> if a watch on <code>watched</code> covers
+     * <code>path</code>: if it is the watched path itself, one of its
+     * children, or, for a subtree watch, anything below it. A change to the
+     * whole subtree at <code>path</code>, as a deletion or rename makes, also
+     * covers the watch if <code>path</code> lies above the watched path.
+     */
+    static boolean covers(Path watched, boolean subtree, Path path, boolean wholeSubtree)
+    {
+        String root = watched.toString();
+        String string = path.toString();
+        if (string.equals(root)) return true;
+        if (wholeSubtree && NamingServer.isAncestor(path, watched)) return true;
+        String prefix = root.equals("/") ? "/" : root + "/";
+        if (!string.startsWith(prefix)) return false;
+        return subtree || string.indexOf('/', prefix.length()) < 0;
+    }
+
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    public Kind getKind()
+    {
+        return this.kind;
+    }
+
+    /** Returns the path changed, or the source of a rename. */
+    public Path getPath()
+    {
+        return this.path;
+    }
+
+    /** Returns the path a renamed object was moved to, or <code>null</code>
+        for events other than renames. */
+    public Path getTarget()
+    {
+        return this.target;
+    }
+
+    /** Returns the storage server whose replica was added or removed, or
+        <code>null</code> for events that do not concern a replica. */
+    public Storage getStorage()
+    {
+        return this.storage;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.sequence + " " + this.kind + " " + this.path + (this.target == null ? "" : " -> " + this.target);
+    }
+}
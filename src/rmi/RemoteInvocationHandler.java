@@ -19,6 +19,9 @@ import java.util.Arrays;
 public class RemoteInvocationHandler<T>
     implements InvocationHandler, Serializable
 {
+    // Stubs are stored in the naming server's journal and checkpoints
+    private static final long serialVersionUID = 8012286285504989322L;
+
     InetSocketAddress socketAddress;
     Class<T> c;
 
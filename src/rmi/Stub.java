@@ -165,6 +165,20 @@ public abstract class Stub
     }
 
 
+    /** Returns the address of the remote skeleton a stub connects to.
+
+     @param stub The stub.
+     @return The network address of the remote skeleton, or
+     <code>null</code> if the object is not a stub.
+     */
+    public static InetSocketAddress address(Object stub)
+    {
+        if (stub == null || !java.lang.reflect.Proxy.isProxyClass(stub.getClass())) return null;
+        InvocationHandler handler = java.lang.reflect.Proxy.getInvocationHandler(stub);
+        if (!(handler instanceof RemoteInvocationHandler)) return null;
+        return ((RemoteInvocationHandler<?>) handler).socketAddress;
+    }
+
     private static <T> T performCreate(Class<T> c, Skeleton<T> skeleton,
                                        InetSocketAddress socketAddress)
         throws InvocationTargetException, Throwable
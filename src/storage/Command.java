@@ -63,4 +63,145 @@ public interface Command
      */
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Moves a file or directory, with everything below it, to a new path on
+        the storage server.
+
+        <p>
+        The move is local to the storage server: no data is copied between
+        servers. Missing parent directories of the target are created. A
+        server that holds nothing at the source has nothing to move, and
+        reports success.
+
+        <p>
+        Storage servers that cannot move files in place do not implement this
+        method, and report every move as failed.
+
+        @param source Path to the file or directory to be moved. The root
+                      directory cannot be moved.
+        @param target Path to which it is to be moved.
+        @return <code>true</code> if the source is now at the target, or was
+                not held by this server; <code>false</code> if it cannot be
+                moved, including when something is already at the target.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean rename(Path source, Path target) throws RMIException
+    {
+        return false;
+    }
+
+    /** Copies a file to a new path on the storage server.
+
+        <p>
+        The copy is local to the storage server: no data is sent between
+        servers. Missing parent directories of the target are created, and the
+        source is left as it is.
+
+        <p>
+        Storage servers that cannot copy files in place do not implement this
+        method, and report every copy as failed.
+
+        @param source Path to the file to be copied.
+        @param target Path to which it is to be copied.
+        @return <code>true</code> if the target now holds a copy of the source;
+                <code>false</code> if it cannot be copied, including when the
+                source is not a file held by this server or something is
+                already at the target.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean duplicate(Path source, Path target) throws RMIException
+    {
+        return false;
+    }
+
+    /** Creates several files on the storage server in one call.
+
+        <p>
+        Each file is created as by <code>create</code>. A file that cannot be
+        created, including because of an I/O error, is reported as not created
+        and does not prevent the remaining files from being created.
+
+        @param files Paths to the files to be created.
+        @return For each file, <code>true</code> if it was created.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean[] createAll(Path[] files) throws RMIException
+    {
+        boolean[]   results = new boolean[files.length];
+
+        for(int index = 0; index < files.length; ++index)
+        {
+            try
+            {
+                results[index] = create(files[index]);
+            }
+            catch(IOException e)
+            {
+                results[index] = false;
+            }
+        }
+
+        return results;
+    }
+
+    /** Deletes several files or directories on the storage server in one call.
+
+        @param paths Paths to be deleted, each as for <code>delete</code>.
+        @return For each path, <code>true</code> if it was deleted.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default boolean[] deleteAll(Path[] paths) throws RMIException
+    {
+        boolean[]   results = new boolean[paths.length];
+
+        for(int index = 0; index < paths.length; ++index)
+            results[index] = delete(paths[index]);
+
+        return results;
+    }
+
+    /** Fingerprints several files on the storage server in one call.
+
+        <p>
+        The naming server compares the fingerprints of the copies two storage
+        servers hold of a file, so that a copy found to be identical when a
+        server registers is kept as a replica rather than deleted. Each file
+        is read through in full.
+
+        @param files Paths to the files.
+        @return For each file, its fingerprint, or <code>null</code> if it is
+                not a file on this server or cannot be read.
+        @throws UnsupportedOperationException If the storage server does not
+                                              fingerprint files.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Fingerprint[] fingerprint(Path[] files) throws RMIException
+    {
+        throw new UnsupportedOperationException("fingerprints not supported");
+    }
+
+    /** Reports the sizes of several files on the storage server in one call.
+
+        <p>
+        The naming server asks for the sizes of the files it lists whose sizes
+        it does not know, a batch per storage server, instead of asking for
+        each file separately.
+
+        @param files Paths to the files.
+        @return For each file, its size in bytes, or <code>-1</code> if it is
+                not a file on this server.
+        @throws UnsupportedOperationException If the storage server does not
+                                              report sizes in batches.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default long[] sizes(Path[] files) throws RMIException
+    {
+        throw new UnsupportedOperationException("batched sizes not supported");
+    }
 }
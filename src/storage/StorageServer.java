@@ -2,10 +2,13 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import common.*;
 import rmi.*;
@@ -22,6 +25,10 @@ public class StorageServer
     implements Storage, Command, Serializable
 {
     static final int SYSTEM_DECIDE_PORT = 0;
+    /** Number of files reported in each chunk of a chunked registration. */
+    static final int REGISTRATION_BATCH_FILES = 4096;
+    /** Time between two heartbeats sent to the naming server. */
+    static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
     File root;
     int clientPort;
     int commandPort;
@@ -34,6 +41,21 @@ public class StorageServer
     boolean isStorageSkeletonStarted;
     boolean isCommandSkeletonStarted;
     Registration registration;
+    Storage storageStub;
+    Command commandStub;
+    Thread heartbeatThread;
+    /** Number and total size of the files under the root directory. */
+    AtomicLong storedFiles = new AtomicLong();
+    AtomicLong storedBytes = new AtomicLong();
+    /** Client I/O since the last capacity report. */
+    AtomicLong reads = new AtomicLong();
+    AtomicLong writes = new AtomicLong();
+    AtomicLong bytesRead = new AtomicLong();
+    AtomicLong bytesWritten = new AtomicLong();
+    long lastReportMillis = System.currentTimeMillis();
+    /** Guards the start of the reporting period. Reports do not lock the
+        server itself, so that heartbeats are not held up by slow I/O. */
+    final Object reportLock = new Object();
 
 
     /** Creates a storage server, given a directory on the local filesystem, and
@@ -123,30 +145,245 @@ public class StorageServer
 
         this.initializeSkeletons(hostname);
 
-        Storage storage = null;
-        Command command = null;
         try
         {
-            storage = Stub.create(Storage.class, this.clientSocketAddress);
-            command = Stub.create(Command.class, this.commandSocketAddress);
+            this.storageStub = Stub.create(Storage.class, this.clientSocketAddress);
+            this.commandStub = Stub.create(Command.class, this.commandSocketAddress);
         }
         catch (Throwable throwable)
         {
             throw new RMIException(throwable.getMessage(), throwable.getCause());
         }
-        Path[] allFiles = Path.list(this.root);
-        for (Path p : allFiles)
+        this.registration = naming_server;
+        this.register(naming_server, this.storageStub, this.commandStub);
+
+        this.heartbeatThread = new Thread(this::sendHeartbeats, "heartbeat");
+        this.heartbeatThread.setDaemon(true);
+        this.heartbeatThread.start();
+    }
+
+    /**
+     * Registers with the naming server, reporting every local file and
+     * deleting the ones the naming server already has from another server,
+     * then sends the naming server a first capacity report.
+     */
+    private void register(Registration naming_server, Storage storage, Command command)
+        throws RMIException, FileNotFoundException
+    {
+        try
         {
-            p.addFileSize(new File(this.getLocalPath(p)).length());
+            naming_server.beginRegistration(storage, command);
+            this.registerInBatches(naming_server, storage);
         }
-        Path[] duplicates = naming_server.register(
-            storage,
-            command,
-            Path.list(this.root)
-        );
+        catch (UnsupportedOperationException e)
+        {
+            // The naming server only accepts the whole list at once
+            Path[] allFiles = Path.list(this.root);
+            for (Path p : allFiles)
+            {
+                p.addFileSize(new File(this.getLocalPath(p)).length());
+            }
+            Path[] duplicates = naming_server.register(
+                storage,
+                command,
+                allFiles
+            );
+            for (Path path : duplicates)
+                this.delete(path);
+        }
+        FileService.deleteEmptyDirectories(this.root.getPath());
+
+        long[] usage = usage(this.root);
+        this.storedFiles.set(usage[0]);
+        this.storedBytes.set(usage[1]);
+        try
+        {
+            naming_server.reportCapacity(storage, this.capacityReport());
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // The naming server does not track capacity
+        }
+    }
+
+    /**
+     * Returns the disk usage of the server and its I/O rates since the
+     * previous report.
+     */
+    private CapacityReport capacityReport()
+    {
+        synchronized (this.reportLock)
+        {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(1, now - this.lastReportMillis) / 1000.0;
+            this.lastReportMillis = now;
+            return new CapacityReport(
+                this.root.getTotalSpace(),
+                this.root.getUsableSpace(),
+                this.storedBytes.get(),
+                this.storedFiles.get(),
+                this.reads.getAndSet(0) / seconds,
+                this.writes.getAndSet(0) / seconds,
+                this.bytesRead.getAndSet(0) / seconds,
+                this.bytesWritten.getAndSet(0) / seconds
+            );
+        }
+    }
+
+    /** Returns the number and total size of the files under a local file or
+        directory. */
+    private static long[] usage(File top)
+    {
+        long[] usage = new long[2];
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.push(top);
+        while (!pending.isEmpty())
+        {
+            File file = pending.pop();
+            if (file.isDirectory())
+            {
+                File[] entries = file.listFiles();
+                if (entries != null)
+                    for (File entry : entries) pending.push(entry);
+            }
+            else if (file.exists())
+            {
+                usage[0]++;
+                usage[1] += file.length();
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Sends a heartbeat to the naming server at a fixed interval until the
+     * server is stopped. If the naming server no longer knows this server,
+     * which happens when it has been declared dead, the server registers
+     * again. Heartbeats stop for good if the naming server does not support
+     * them.
+     */
+    private void sendHeartbeats()
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            Heartbeat heartbeat = new Heartbeat(
+                HEARTBEAT_INTERVAL_MILLIS,
+                this.capacityReport()
+            );
+            try
+            {
+                this.registration.heartbeat(this.storageStub, heartbeat);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                return;
+            }
+            catch (IllegalStateException e)
+            {
+                try
+                {
+                    synchronized (this)
+                    {
+                        this.register(this.registration, this.storageStub, this.commandStub);
+                    }
+                }
+                catch (RMIException | FileNotFoundException | IllegalStateException f)
+                {
+                    // Try again with the next heartbeat
+                }
+            }
+            catch (RMIException e)
+            {
+                // The naming server is unreachable; keep trying
+            }
+        }
+    }
+
+    /**
+     * Reports the local files to the naming server in chunks. Directories are
+     * walked depth first in sorted order, so the files of each directory are
+     * reported together, and only the chunk being filled is held in memory.
+     * The duplicates returned for each chunk are deleted before the walk goes
+     * on.
+     */
+    private void registerInBatches(Registration naming_server, Storage storage)
+        throws RMIException
+    {
+        ArrayDeque<File> directories = new ArrayDeque<>();
+        ArrayDeque<Path> paths = new ArrayDeque<>();
+        directories.push(this.root);
+        paths.push(new Path("/"));
+        RegistrationBatch batch = new RegistrationBatch();
+        while (!directories.isEmpty())
+        {
+            File directory = directories.pop();
+            Path directoryPath = paths.pop();
+            File[] entries = directory.listFiles();
+            if (entries == null) continue;
+            Arrays.sort(entries);
+
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<Long> sizes = new ArrayList<>();
+            ArrayList<File> subdirectories = new ArrayList<>();
+            for (File entry : entries)
+            {
+                if (entry.isDirectory())
+                {
+                    subdirectories.add(entry);
+                }
+                else
+                {
+                    names.add(entry.getName());
+                    sizes.add(entry.length());
+                }
+            }
+            // Push in reverse so that subdirectories are visited in order
+            for (int i = subdirectories.size() - 1 ; i >= 0 ; i--)
+            {
+                directories.push(subdirectories.get(i));
+                paths.push(new Path(directoryPath, subdirectories.get(i).getName()));
+            }
+
+            int offset = 0;
+            while (offset < names.size())
+            {
+                int count = Math.min(names.size() - offset,
+                    REGISTRATION_BATCH_FILES - batch.size());
+                String[] chunkNames = new String[count];
+                long[] chunkSizes = new long[count];
+                for (int i = 0 ; i < count ; i++)
+                {
+                    chunkNames[i] = names.get(offset + i);
+                    chunkSizes[i] = sizes.get(offset + i);
+                }
+                batch.add(directoryPath, chunkNames, chunkSizes);
+                offset += count;
+                if (batch.size() >= REGISTRATION_BATCH_FILES)
+                {
+                    this.sendBatch(naming_server, storage, batch);
+                    batch = new RegistrationBatch();
+                }
+            }
+        }
+        if (!batch.isEmpty())
+            this.sendBatch(naming_server, storage, batch);
+    }
+
+    private void sendBatch(Registration naming_server, Storage storage,
+                           RegistrationBatch batch)
+        throws RMIException
+    {
+        Path[] duplicates = naming_server.registerBatch(storage, batch);
         for (Path path : duplicates)
             this.delete(path);
-        FileService.deleteEmptyDirectories(this.root.getPath());
     }
 
 
@@ -191,6 +428,7 @@ public class StorageServer
     // TODO: maybe synchronized?
     public void stop()
     {
+        if (this.heartbeatThread != null) this.heartbeatThread.interrupt();
         this.commandSkeleton.stop();
         this.isCommandSkeletonStarted = false;
         this.storageSkeleton.stop();
@@ -243,6 +481,8 @@ public class StorageServer
             usedLength = (int) fileSize;
         }
 
+        this.reads.incrementAndGet();
+        this.bytesRead.addAndGet(usedLength);
         FileInputStream fis = new FileInputStream(FileService.getFile(getLocalPath(file)));
         byte[] buffer = new byte[usedLength];
         if (fis.read(buffer, (int) offset, usedLength) != usedLength)
@@ -262,6 +502,23 @@ public class StorageServer
         if (offset < 0)
             throw new IndexOutOfBoundsException("negative offset");
 
+        File local = FileService.getFile(getLocalPath(file));
+        long before = local.length();
+        this.writes.incrementAndGet();
+        this.bytesWritten.addAndGet(data.length);
+        try
+        {
+            this.writeLocal(file, offset, data);
+        }
+        finally
+        {
+            this.storedBytes.addAndGet(local.length() - before);
+        }
+    }
+
+    private void writeLocal(Path file, long offset, byte[] data)
+        throws IOException
+    {
         long fileLength = FileService.getFile(getLocalPath(file)).length();
         if ((offset + data.length) > fileLength)
         {
@@ -319,7 +576,10 @@ public class StorageServer
             throw new NullPointerException("file is null");
         if (file.toString().equals("/"))
             return false;
-        return FileService.createFile(new Path(getLocalPath(file)));
+        if (!FileService.createFile(new Path(getLocalPath(file))))
+            return false;
+        this.storedFiles.incrementAndGet();
+        return true;
     }
 
     @Override
@@ -329,7 +589,56 @@ public class StorageServer
             throw new NullPointerException("file is null");
         if (file.toString().equals("/"))
             return false;
-        return FileService.deleteFile(getLocalPath(file));
+        long[] usage = usage(new File(getLocalPath(file)));
+        if (!FileService.deleteFile(getLocalPath(file)))
+            return false;
+        this.storedFiles.addAndGet(-usage[0]);
+        this.storedBytes.addAndGet(-usage[1]);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean rename(Path source, Path target)
+    {
+        if (source == null || target == null)
+            throw new NullPointerException("source or target is null");
+        if (source.toString().equals("/") || target.toString().equals("/"))
+            return false;
+        File from = new File(getLocalPath(source));
+        File to = new File(getLocalPath(target));
+        if (!from.exists())
+            return true;
+        if (to.exists())
+            return false;
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            return false;
+        return from.renameTo(to);
+    }
+
+    @Override
+    public synchronized boolean duplicate(Path source, Path target)
+    {
+        if (source == null || target == null)
+            throw new NullPointerException("source or target is null");
+        File from = new File(getLocalPath(source));
+        File to = new File(getLocalPath(target));
+        if (!from.isFile() || to.exists())
+            return false;
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            return false;
+        try
+        {
+            Files.copy(from.toPath(), to.toPath());
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        this.storedFiles.incrementAndGet();
+        this.storedBytes.addAndGet(to.length());
+        return true;
     }
 
     @Override
@@ -357,13 +666,56 @@ public class StorageServer
 
         long fileSize = server.size(file);
         byte[] data = server.read(file, 0, (int) fileSize);
+        long[] replaced = usage(new File(getLocalPath(file)));
         FileOutputStream fos = new FileOutputStream(getLocalPath(file));
         fos.write(data);
         fos.flush();
         fos.close();
+        this.storedFiles.addAndGet(1 - replaced[0]);
+        this.storedBytes.addAndGet(data.length - replaced[1]);
         return true;
     }
 
+    // Not synchronized: the naming server asks for fingerprints while this
+    // server is registering, from within start. The naming server only adopts
+    // a copy if the file was not written in the meantime.
+    @Override
+    public Fingerprint[] fingerprint(Path[] files)
+    {
+        if (files == null)
+            throw new NullPointerException("files is null");
+        Fingerprint[] fingerprints = new Fingerprint[files.length];
+        for (int i = 0 ; i < files.length ; i++)
+        {
+            File local = new File(getLocalPath(files[i]));
+            if (!local.isFile()) continue;
+            try
+            {
+                fingerprints[i] = Fingerprint.of(local);
+            }
+            catch (IOException e)
+            {
+                // Reported as unreadable
+            }
+        }
+        return fingerprints;
+    }
+
+    @Override
+    public synchronized long[] sizes(Path[] files)
+    {
+        if (files == null)
+            throw new NullPointerException("files is null");
+        long[] sizes = new long[files.length];
+        for (int i = 0 ; i < files.length ; i++)
+        {
+            String local = getLocalPath(files[i]);
+            sizes[i] = FileService.doesExist(local) && !FileService.isDirectory(local)
+                ? FileService.getSize(local) : -1;
+        }
+        return sizes;
+    }
+
     private String getLocalPath(Path path)
     {
         return this.root.getPath() + path;
@@ -5,7 +5,32 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link naming.LockQueueTest}</li>
+    <li>{@link naming.ReplicationSchedulerTest}</li>
+    <li>{@link naming.AccessCounterTest}</li>
+    <li>{@link naming.StorageRegistryTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.CheckpointTest}</li>
+    <li>{@link naming.ChunkedRegistrationTest}</li>
+    <li>{@link naming.DirectoryListingTest}</li>
+    <li>{@link naming.BulkMutationTest}</li>
+    <li>{@link naming.ReplicaSelectionTest}</li>
+    <li>{@link naming.RecursiveDeleteTest}</li>
+    <li>{@link naming.FailureDetectionTest}</li>
+    <li>{@link naming.RebalancerTest}</li>
+    <li>{@link naming.ChildTableTest}</li>
+    <li>{@link naming.FederationTest}</li>
+    <li>{@link naming.FollowerTest}</li>
+    <li>{@link naming.MetadataCacheTest}</li>
+    <li>{@link naming.RenameTest}</li>
+    <li>{@link naming.LockProfilerTest}</li>
+    <li>{@link naming.WatchTest}</li>
+    <li>{@link naming.SnapshotTest}</li>
+    <li>{@link naming.IdenticalReplicaTest}</li>
+    <li>{@link naming.ErasureCodingTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +43,31 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {
+                naming.LockQueueTest.class,
+                naming.ReplicationSchedulerTest.class,
+                naming.AccessCounterTest.class,
+                naming.StorageRegistryTest.class,
+                naming.JournalTest.class,
+                naming.CheckpointTest.class,
+                naming.ChunkedRegistrationTest.class,
+                naming.DirectoryListingTest.class,
+                naming.BulkMutationTest.class,
+                naming.ReplicaSelectionTest.class,
+                naming.RecursiveDeleteTest.class,
+                naming.FailureDetectionTest.class,
+                naming.RebalancerTest.class,
+                naming.ChildTableTest.class,
+                naming.FederationTest.class,
+                naming.FollowerTest.class,
+                naming.MetadataCacheTest.class,
+                naming.RenameTest.class,
+                naming.LockProfilerTest.class,
+                naming.WatchTest.class,
+                naming.SnapshotTest.class,
+                naming.IdenticalReplicaTest.class,
+                naming.ErasureCodingTest.class
+            };
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
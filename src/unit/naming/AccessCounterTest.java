@@ -0,0 +1,78 @@
+package naming;
+
+import test.*;
+
+/** Checks <code>AccessCounter</code> and <code>ReplicationPolicy</code>.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Accesses recorded at the same instant add up.</li>
+    <li>The counter loses half of its value every half-life.</li>
+    <li>The target replica count grows with the read rate and falls back to one
+        once the file has gone cold.</li>
+    </ul>
+ */
+public class AccessCounterTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking decaying access counters and replica targets";
+
+    /** Half-life used throughout the test, in milliseconds. */
+    private static final long   HALF_LIFE = 1000;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        AccessCounter   counter = new AccessCounter();
+
+        for(int access = 0; access < 40; ++access)
+            counter.record(0, HALF_LIFE);
+
+        expect(counter.get(0, HALF_LIFE), 40, "immediately after recording");
+        expect(counter.get(HALF_LIFE, HALF_LIFE), 20, "after one half-life");
+        expect(counter.get(3 * HALF_LIFE, HALF_LIFE), 5,
+               "after three half-lives");
+
+        // A policy granting one extra replica per ten reads, capped at four.
+        ReplicationPolicy   policy = new ReplicationPolicy(HALF_LIFE, 10, 4);
+        FileNode            node = new FileNode(new common.Path("/file"), null,
+                                                null, common.Type.FILE);
+
+        if(policy.targetReplicas(node, 0) != 1)
+            throw new TestFailed("unread file should have one replica");
+
+        int                 target = 0;
+        for(int access = 0; access < 25; ++access)
+            target = policy.recordRead(node, 0);
+
+        if(target != 3)
+        {
+            throw new TestFailed("25 reads should give 3 replicas, got " +
+                                 target);
+        }
+
+        for(int access = 0; access < 100; ++access)
+            target = policy.recordRead(node, 0);
+
+        if(target != 4)
+            throw new TestFailed("replica target not capped, got " + target);
+
+        if(policy.targetReplicas(node, 10 * HALF_LIFE) != 1)
+            throw new TestFailed("cold file should fall back to one replica");
+    }
+
+    /** Checks that a counter value is within rounding error of the expected
+        value. */
+    private void expect(double value, double expected, String when)
+        throws TestFailed
+    {
+        if(Math.abs(value - expected) > 0.01)
+        {
+            throw new TestFailed("counter value " + when + " is " + value +
+                                 ", expected " + expected);
+        }
+    }
+}
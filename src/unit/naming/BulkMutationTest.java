@@ -0,0 +1,245 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks bulk creation and deletion of paths.
+
+    <p>
+    Two storage servers are started on empty temporary directories and
+    registered directly with a naming server object. Tests performed are:
+    <ul>
+    <li>A tree given children first is created in one call, with its files
+        spread over both storage servers.</li>
+    <li>Paths that exist, or whose parent is missing or a file, are reported
+        as such without affecting the rest of the batch.</li>
+    <li>A batch waits for a lock held on a directory it creates under, and
+        leaves no locks held.</li>
+    <li>Deleting a directory together with a path below it, and a path that
+        does not exist, removes the tree from the naming server and the storage
+        servers and leaves no locks held.</li>
+    </ul>
+ */
+public class BulkMutationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking bulk creation and deletion";
+
+    /** Directories served by the storage servers. */
+    private TemporaryDirectory[]    directories = new TemporaryDirectory[2];
+    /** Storage servers holding the files. */
+    private StorageServer[]         storageServers = new StorageServer[2];
+    /** Naming server under test. */
+    private NamingServer            namingServer;
+
+    /** Creates the storage servers' directories. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int i = 0; i < directories.length; ++i)
+                directories[i] = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        try
+        {
+            for(int i = 0; i < storageServers.length; ++i)
+            {
+                storageServers[i] = new StorageServer(directories[i].root());
+                storageServers[i].start("127.0.0.1", namingServer);
+            }
+
+            checkCreate();
+            checkCreateLocking();
+            checkDelete();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that a batch locks the directories it creates under. */
+    private void checkCreateLocking() throws Throwable
+    {
+        FileSystem  fileSystem = namingServer.fileSystem;
+        Path        directory = new Path("/d");
+        Path[]      paths = new Path[] {new Path("/d/g"), new Path("/d/g/h")};
+        Throwable[] thrown = new Throwable[1];
+
+        namingServer.lock(directory, false);
+        Thread      thread = new Thread(() ->
+        {
+            try
+            {
+                namingServer.createAll(paths, new boolean[] {true, false});
+            }
+            catch(Throwable t)
+            {
+                thrown[0] = t;
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+
+        boolean     created = fileSystem.hasPath(paths[0]);
+        namingServer.unlock(directory, false);
+        thread.join(10000);
+
+        if(created)
+            throw new TestFailed("batch created under a locked directory");
+
+        if(thrown[0] != null)
+            throw new TestFailed("batch failed", thrown[0]);
+
+        if(!fileSystem.isFile(paths[1]))
+            throw new TestFailed("batch not created after lock released");
+
+        for(Path path : new Path[] {new Path("/"), directory, paths[0]})
+        {
+            if(fileSystem.get(path).hasActiveLocks())
+                throw new TestFailed("lock left held on " + path);
+        }
+    }
+
+    /** Creates a tree and some invalid paths in one batch. */
+    private void checkCreate() throws Throwable
+    {
+        Path[]      paths = new Path[] {new Path("/d/e/f1"), new Path("/d/e"),
+                                        new Path("/d/f2"), new Path("/d"),
+                                        new Path("/d/f3"), new Path("/d/f4"),
+                                        new Path("/d/f2"), new Path("/x/y"),
+                                        new Path("/d/f3/z"), new Path("/")};
+        boolean[]   kinds = new boolean[] {false, true, false, true, false,
+                                           false, false, false, false, true};
+        BatchStatus[]   expected = new BatchStatus[] {
+            BatchStatus.DONE, BatchStatus.DONE, BatchStatus.DONE,
+            BatchStatus.DONE, BatchStatus.DONE, BatchStatus.DONE,
+            BatchStatus.UNCHANGED, BatchStatus.NOT_FOUND,
+            BatchStatus.NOT_FOUND, BatchStatus.UNCHANGED};
+
+        BatchStatus[]   results = namingServer.createAll(paths, kinds);
+
+        if(!Arrays.equals(results, expected))
+            throw new TestFailed("unexpected results " +
+                                 Arrays.toString(results));
+
+        FileSystem  fileSystem = namingServer.fileSystem;
+
+        if(!fileSystem.isDirectory(new Path("/d/e")) ||
+           !fileSystem.isFile(new Path("/d/e/f1")))
+        {
+            throw new TestFailed("tree not created");
+        }
+
+        int[]       hosted = new int[storageServers.length];
+        for(String file : new String[] {"d/e/f1", "d/f2", "d/f3", "d/f4"})
+        {
+            int     copies = 0;
+            for(int i = 0; i < directories.length; ++i)
+            {
+                if(new File(directories[i].root(), file).isFile())
+                {
+                    ++copies;
+                    ++hosted[i];
+                }
+            }
+
+            if(copies != 1)
+                throw new TestFailed(file + " created on " + copies +
+                                     " storage servers");
+        }
+
+        if(hosted[0] == 0 || hosted[1] == 0)
+            throw new TestFailed("files not spread over storage servers");
+
+        try
+        {
+            namingServer.createAll(new Path[1], new boolean[1]);
+            throw new TestFailed("null path accepted");
+        }
+        catch(NullPointerException e) { }
+
+        try
+        {
+            namingServer.createAll(new Path[] {new Path("/a")}, new boolean[2]);
+            throw new TestFailed("arrays of different lengths accepted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Deletes the tree, a path below it and a missing path in one batch. */
+    private void checkDelete() throws Throwable
+    {
+        BatchStatus[]   results = namingServer.deleteAll(
+            new Path[] {new Path("/d/e/f1"), new Path("/missing"),
+                        new Path("/d"), new Path("/")});
+        BatchStatus[]   expected = new BatchStatus[] {
+            BatchStatus.DONE, BatchStatus.NOT_FOUND, BatchStatus.DONE,
+            BatchStatus.UNCHANGED};
+
+        if(!Arrays.equals(results, expected))
+            throw new TestFailed("unexpected results " +
+                                 Arrays.toString(results));
+
+        if(namingServer.fileSystem.hasPath(new Path("/d")))
+            throw new TestFailed("directory still in the tree");
+
+        for(TemporaryDirectory directory : directories)
+        {
+            if(new File(directory.root(), "d").exists())
+                throw new TestFailed("directory still on a storage server");
+        }
+
+        FileNode    root = namingServer.fileSystem.get(new Path("/"));
+        if(root.getStatus() != Status.OPEN || root.getSharedLocks() != 0)
+            throw new TestFailed("root left locked: " + root.getLockStatus());
+    }
+
+    /** Stops the servers and removes the directories. */
+    @Override
+    protected void clean()
+    {
+        for(int i = 0; i < storageServers.length; ++i)
+        {
+            if(storageServers[i] != null)
+            {
+                storageServers[i].stop();
+                storageServers[i] = null;
+            }
+        }
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+
+        for(int i = 0; i < directories.length; ++i)
+        {
+            if(directories[i] != null)
+            {
+                directories[i].remove();
+                directories[i] = null;
+            }
+        }
+    }
+}
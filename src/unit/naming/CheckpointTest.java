@@ -0,0 +1,171 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks <code>Checkpoint</code> and <code>Checkpointer</code>.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>A checkpoint deletes the journal segments it covers.</li>
+    <li>Restoring loads the checkpoint and replays only the later journal
+        records, restoring files, replicas, sizes and empty directories.</li>
+    <li>A checkpoint is skipped when the journal has not grown.</li>
+    </ul>
+ */
+public class CheckpointTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server checkpoints";
+
+    /** Directory holding the journal and checkpoint. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageContainer    first = container(7001);
+        StorageContainer    second = container(7002);
+
+        try
+        {
+            FileSystem      fileSystem = new FileSystem();
+            Journal         journal = open(fileSystem);
+            Checkpointer    checkpointer =
+                new Checkpointer(directory.root(), fileSystem, journal,
+                                 Long.MAX_VALUE / 2);
+
+            Path            sized = new Path("/directory/sized");
+            sized.addFileSize(1234);
+
+            fileSystem.add(new Path("/empty"), Type.DIRECTORY, null);
+            fileSystem.add(new Path("/deleted"), Type.FILE, first);
+            fileSystem.register(sized, first.getStorage(), first.getCommand());
+            journal.sync();
+
+            if(!checkpointer.checkpoint())
+                throw new TestFailed("checkpoint skipped after mutations");
+
+            // Mutations after the checkpoint, including one undoing part of
+            // it, are left in the journal.
+            fileSystem.remove(new Path("/deleted"));
+            fileSystem.add(new Path("/after"), Type.FILE, second);
+            journal.sync();
+
+            if(Journal.segments(directory.root()).size() != 1)
+            {
+                throw new TestFailed("journal segments covered by the " +
+                                     "checkpoint were not deleted");
+            }
+
+            checkpointer.shutdown();
+            journal.close();
+
+            fileSystem = new FileSystem();
+            journal = open(fileSystem);
+            checkpointer = new Checkpointer(directory.root(), fileSystem,
+                                            journal, Long.MAX_VALUE / 2);
+
+            if(!fileSystem.hasPath(new Path("/empty")) ||
+               !fileSystem.isDirectory(new Path("/empty")))
+            {
+                throw new TestFailed("empty directory not restored");
+            }
+
+            FileNode        restored = fileSystem.get(sized);
+            if(!restored.isFile() || restored.getFileSize() != 1234 ||
+               !restored.getStorageContainers().contains(first))
+            {
+                throw new TestFailed("file in checkpoint not restored");
+            }
+
+            if(!fileSystem.get(new Path("/directory")).getStorageContainers()
+                    .contains(first))
+            {
+                throw new TestFailed("directory replicas not restored");
+            }
+
+            if(fileSystem.hasPath(new Path("/deleted")))
+                throw new TestFailed("deletion after checkpoint not replayed");
+
+            if(!fileSystem.get(new Path("/after")).getStorageContainers()
+                    .contains(second))
+            {
+                throw new TestFailed("file created after checkpoint not " +
+                                     "restored");
+            }
+
+            // The replayed records are folded into a new checkpoint, after
+            // which there is nothing left to write.
+            if(!checkpointer.checkpoint())
+                throw new TestFailed("replayed records not checkpointed");
+
+            if(checkpointer.checkpoint())
+                throw new TestFailed("checkpoint taken without mutations");
+
+            checkpointer.shutdown();
+            journal.close();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens the journal and restores the given file system from it. */
+    private Journal open(FileSystem fileSystem) throws IOException
+    {
+        Journal     journal = new Journal(directory.root(), fileSystem, 1, 16);
+        fileSystem.setJournal(journal);
+        return journal;
+    }
+
+    /** Creates a storage container whose stubs point at the given port. */
+    private StorageContainer container(int port) throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", port);
+            return new StorageContainer(Stub.create(Storage.class, address),
+                                        Stub.create(Command.class, address));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage stubs", t);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Checks <code>ChildTable</code>, the compact table of a directory's
+    children.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Children added to the table are found by name and are given the
+        table's directory as their parent.</li>
+    <li>A child already present is not replaced by <code>putIfAbsent</code>.
+    </li>
+    <li>Children remain reachable after the table grows and after many other
+        children are removed.</li>
+    <li>Files share an empty table that cannot be added to.</li>
+    </ul>
+ */
+public class ChildTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking compact child tables";
+
+    /** Number of children added to the table. */
+    private static final int    CHILDREN = 5000;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        FileNode            directory = new FileNode("d", Type.DIRECTORY);
+        ChildTable          table = directory.getChildren();
+        ArrayList<String>   names = new ArrayList<>();
+
+        for(int index = 0; index < CHILDREN; ++index)
+        {
+            String      name = "f" + index;
+            names.add(name);
+            if(table.putIfAbsent(new FileNode(name, Type.FILE)) != null)
+                throw new TestFailed("new child reported as present");
+        }
+
+        FileNode            first = table.get("f0");
+        if(first == null || first.getParent() != directory)
+            throw new TestFailed("child not linked to its directory");
+
+        if(table.putIfAbsent(new FileNode("f0", Type.FILE)) != first ||
+           table.get("f0") != first)
+        {
+            throw new TestFailed("present child replaced");
+        }
+
+        // Remove a random half of the children.
+        Collections.shuffle(names, new Random(1));
+        Set<String>         removed = new HashSet<>(names.subList(0, CHILDREN / 2));
+        for(String name : removed)
+        {
+            FileNode    child = table.remove(name);
+            if(child == null || !child.getName().equals(name))
+                throw new TestFailed("unable to remove " + name);
+        }
+
+        if(table.size() != CHILDREN - removed.size() ||
+           table.values().size() != table.size())
+        {
+            throw new TestFailed("wrong number of children after removal");
+        }
+
+        for(String name : names)
+        {
+            boolean     present = table.get(name) != null;
+            if(present == removed.contains(name))
+                throw new TestFailed(name + " wrongly " +
+                                     (present ? "present" : "missing"));
+        }
+
+        if(table.remove("missing") != null)
+            throw new TestFailed("missing child removed");
+
+        FileNode            file = new FileNode("g", Type.FILE);
+        if(!file.getChildren().isEmpty())
+            throw new TestFailed("file has children");
+
+        try
+        {
+            file.getChildren().put(new FileNode("h", Type.FILE));
+            throw new TestFailed("child added to a file");
+        }
+        catch(UnsupportedOperationException e) { }
+    }
+}
@@ -0,0 +1,156 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks chunked storage server registration.
+
+    <p>
+    A storage server is started on a temporary directory and registered
+    directly with a naming server object, without going through the network
+    interfaces of the naming server. Tests performed are:
+    <ul>
+    <li>All files are added, including a directory whose files are split over
+        several chunks.</li>
+    <li>A file shadowing a directory, and a file below an existing file, are
+        reported as duplicates and deleted by the storage server.</li>
+    <li>A chunk from a storage server that has not begun registration is
+        rejected, and a storage server cannot begin registration twice.</li>
+    </ul>
+ */
+public class ChunkedRegistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking chunked storage server registration";
+
+    /** Number of files in the large directory. */
+    private static final int    MANY_FILES = 5000;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Storage server under test. */
+    private StorageServer       storageServer;
+    /** Naming server the storage server registers with. */
+    private NamingServer        namingServer;
+
+    /** Creates the storage server's directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"a", "x"}, "x");
+            directory.add(new String[] {"a", "y"});
+            directory.add(new String[] {"b", "c", "z"});
+            directory.add(new String[] {"shadow"});
+            directory.add(new String[] {"file", "below"});
+            for(int i = 0; i < MANY_FILES; ++i)
+                directory.add(new String[] {"many", "f" + i});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        try
+        {
+            FileSystem  fileSystem = namingServer.fileSystem;
+            fileSystem.add(new Path("/shadow"), Type.DIRECTORY, null);
+            fileSystem.register(new Path("/file"), null, null);
+
+            storageServer = new StorageServer(directory.root());
+            storageServer.start("127.0.0.1", namingServer);
+
+            for(String path : new String[] {"/a/x", "/a/y", "/b/c/z",
+                                            "/many/f0", "/many/f4999"})
+            {
+                if(!fileSystem.hasPath(new Path(path)) ||
+                   !fileSystem.isFile(new Path(path)))
+                {
+                    throw new TestFailed(path + " not registered");
+                }
+            }
+
+            if(fileSystem.get(new Path("/many")).getChildren().size() !=
+               MANY_FILES)
+            {
+                throw new TestFailed("files of a directory split over " +
+                                     "chunks were lost");
+            }
+
+            if(fileSystem.get(new Path("/a/x")).getFileSize() != 1)
+                throw new TestFailed("file size not registered");
+
+            if(new File(directory.root(), "shadow").exists())
+                throw new TestFailed("file shadowing a directory not deleted");
+
+            if(new File(directory.root(), "file").exists())
+                throw new TestFailed("file below a file not deleted");
+
+            if(!fileSystem.isDirectory(new Path("/shadow")))
+                throw new TestFailed("directory replaced by a file");
+
+            RegistrationBatch   batch = new RegistrationBatch();
+            batch.add(new Path("/"), new String[] {"late"}, new long[] {0});
+
+            try
+            {
+                namingServer.registerBatch(new TestServer(), batch);
+                throw new TestFailed("chunk accepted from unknown server");
+            }
+            catch(IllegalStateException e) { }
+
+            try
+            {
+                namingServer.beginRegistration(
+                    fileSystem.getStorageRegistry().getLoads().get(0)
+                        .getStorageContainer().getStorage(),
+                    fileSystem.getStorageRegistry().getLoads().get(0)
+                        .getStorageContainer().getCommand());
+                throw new TestFailed("storage server registered twice");
+            }
+            catch(IllegalStateException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the servers and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(storageServer != null)
+        {
+            storageServer.stop();
+            storageServer = null;
+        }
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks paged directory listings with attributes.
+
+    <p>
+    A storage server is started on a temporary directory and registered
+    directly with a naming server object. Tests performed are:
+    <ul>
+    <li>Paging through a large directory returns every entry exactly once, in
+        name order, and the last page has no cursor.</li>
+    <li>Entries carry the type, size and replica count of each child.</li>
+    <li>A page starts after the name given, whether or not it is the name of
+        an entry.</li>
+    <li>A file whose size may have changed has its size fetched from the
+        storage server again.</li>
+    <li>Listing a file returns the file's own entry alone.</li>
+    <li>Asking for an empty page is rejected.</li>
+    </ul>
+ */
+public class DirectoryListingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking paged directory listings with attributes";
+
+    /** Number of files in the large directory. */
+    private static final int    MANY_FILES = 1000;
+    /** Number of entries requested per page. */
+    private static final int    PAGE = 64;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Storage server holding the files. */
+    private StorageServer       storageServer;
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Creates the storage server's directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"a", "x"}, "x");
+            directory.add(new String[] {"a", "sub", "y"});
+            for(int i = 0; i < MANY_FILES; ++i)
+                directory.add(new String[] {"many", "f" + i});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        try
+        {
+            storageServer = new StorageServer(directory.root());
+            storageServer.start("127.0.0.1", namingServer);
+
+            checkPaging();
+            checkAttributes();
+
+            DirectoryListing    file =
+                namingServer.listEntries(new Path("/a/x"), "x", PAGE);
+            if(file.getEntries().length != 1 || file.hasMore() ||
+               !file.getEntries()[0].getName().equals("x") ||
+               file.getEntries()[0].getSize() != 4)
+            {
+                throw new TestFailed("file not listed as its own entry: " +
+                                     Arrays.toString(file.getEntries()));
+            }
+
+            try
+            {
+                namingServer.listEntries(new Path("/a"), null, 0);
+                throw new TestFailed("empty page accepted");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Pages through the large directory. */
+    private void checkPaging() throws Throwable
+    {
+        ArrayList<String>   names = new ArrayList<>();
+        String              cursor = null;
+        int                 pages = 0;
+
+        do
+        {
+            DirectoryListing    page =
+                namingServer.listEntries(new Path("/many"), cursor, PAGE);
+
+            if(page.getEntries().length > PAGE)
+                throw new TestFailed("page larger than requested");
+
+            for(DirectoryEntry entry : page.getEntries())
+                names.add(entry.getName());
+
+            cursor = page.getCursor();
+            ++pages;
+        }
+        while(cursor != null);
+
+        ArrayList<String>   expected = new ArrayList<>();
+        for(int i = 0; i < MANY_FILES; ++i)
+            expected.add("f" + i);
+        Collections.sort(expected);
+
+        if(!names.equals(expected))
+            throw new TestFailed("pages do not list every entry once in order");
+
+        if(pages != (MANY_FILES + PAGE - 1) / PAGE)
+            throw new TestFailed("unexpected number of pages: " + pages);
+
+        // No entry is named "f4999", which sorts between "f499" and "f5".
+        DirectoryEntry[]    entries =
+            namingServer.listEntries(new Path("/many"), "f4999", 2)
+                .getEntries();
+        if(entries.length != 2 || !entries[0].getName().equals("f5") ||
+           !entries[1].getName().equals("f50"))
+        {
+            throw new TestFailed("page does not start after given name: " +
+                                 Arrays.toString(entries));
+        }
+    }
+
+    /** Checks the attributes of the entries of <code>/a</code>. */
+    private void checkAttributes() throws Throwable
+    {
+        DirectoryEntry[]    entries =
+            namingServer.listEntries(new Path("/a"), null, PAGE).getEntries();
+
+        if(entries.length != 2 || !entries[0].getName().equals("sub") ||
+           !entries[1].getName().equals("x"))
+        {
+            throw new TestFailed("unexpected entries " +
+                                 Arrays.toString(entries));
+        }
+
+        if(!entries[0].isDirectory() || entries[1].isDirectory())
+            throw new TestFailed("entry types wrong");
+
+        if(entries[1].getSize() != 1 || entries[1].getReplicaCount() != 1)
+            throw new TestFailed("file attributes wrong: " + entries[1]);
+
+        // Grow the file behind the naming server's back, as a client holding
+        // an exclusive lock would.
+        Path        file = new Path("/a/x");
+        namingServer.fileSystem.get(file).markFileSizeStale();
+        storageServer.write(file, 0, new byte[4]);
+
+        entries = namingServer.listEntries(new Path("/a"), "sub", PAGE)
+            .getEntries();
+
+        if(entries.length != 1 || entries[0].getSize() != 4)
+            throw new TestFailed("stale size not refreshed: " + Arrays.toString(entries));
+
+        if(!namingServer.fileSystem.get(file).isFileSizeKnown())
+            throw new TestFailed("refreshed size not remembered");
+    }
+
+    /** Stops the servers and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(storageServer != null)
+        {
+            storageServer.stop();
+            storageServer = null;
+        }
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
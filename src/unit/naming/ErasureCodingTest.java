@@ -0,0 +1,475 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import client.*;
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks erasure coding of cold files.
+
+    <p>
+    Seven in-memory storage servers are registered directly with a naming
+    server object that keeps a journal and codes files with two data and two
+    parity fragments. Tests performed are:
+    <ul>
+    <li>The Reed-Solomon code rebuilds its shards after any loss of up to as
+        many shards as there are parity shards, and refuses more.</li>
+    <li>A cold file with two replicas is replaced by fragments on four other
+        servers when excess replicas are reclaimed, and the replicas are
+        deleted once the clients caching the file have been called
+        back.</li>
+    <li>The naming server hands out the fragments, and the file is read
+        through a <code>ReplicaSelector</code> with every fragment present,
+        with two holders down, but not with three.</li>
+    <li>A fragment lost with its server is rebuilt on another server.</li>
+    <li>Asking for the storage server of a coded file restores a full replica
+        and deletes the fragments, again only once the clients caching the
+        file have been called back.</li>
+    <li>Layouts, including lost fragments, survive a checkpoint and journal
+        replay.</li>
+    </ul>
+ */
+public class ErasureCodingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking erasure coding of cold files";
+
+    /** Size of the coded file, not a multiple of the number of data
+        fragments, so that the last one is padded. */
+    private static final int    FILE_SIZE = 10001;
+    /** Time a client called back takes to answer, in milliseconds. */
+    private static final long   ANSWER_MILLIS = 100;
+
+    /** Directory holding the journals. */
+    private TemporaryDirectory  directory;
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkCode();
+
+        try
+        {
+            File            journalDirectory = new File(directory.root(), "server");
+            journalDirectory.mkdir();
+            namingServer = new NamingServer(journalDirectory, 1, 16, Long.MAX_VALUE / 2);
+            namingServer.enableErasureCoding(2, 2);
+
+            byte[]          contents = new byte[FILE_SIZE];
+            new Random(7).nextBytes(contents);
+
+            Path            file = new Path("/cold");
+            TestServer[]    servers = new TestServer[7];
+            for(int i = 0; i < servers.length; ++i)
+            {
+                servers[i] = new TestServer(true);
+                Path[]      files = new Path[0];
+                if(i == 0)
+                {
+                    servers[i].files.put(file, contents.clone());
+                    Path    sized = new Path("/cold");
+                    sized.addFileSize(FILE_SIZE);
+                    files = new Path[] {sized};
+                }
+                namingServer.register(servers[i], servers[i], files);
+            }
+
+            if(!namingServer.fileSystem.attemptReplicate(file))
+                throw new TestFailed("unable to replicate file");
+
+            checkEncode(file, servers);
+            checkRead(file, contents, servers);
+            TestServer  failed = checkRepair(file, contents, servers);
+            checkRestore(file, contents, servers, failed);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        checkReplay();
+    }
+
+    /** Checks that the code rebuilds every pattern of lost shards it
+        should. */
+    private void checkCode() throws TestFailed
+    {
+        ReedSolomon     code = new ReedSolomon(3, 2);
+        byte[][]        shards = new byte[5][64];
+        Random          random = new Random(3);
+        for(int i = 0; i < 3; ++i)
+            random.nextBytes(shards[i]);
+        code.encode(shards, 0, 64);
+
+        for(int lost = 0; lost < 1 << 5; ++lost)
+        {
+            byte[][]    damaged = shards.clone();
+            for(int i = 0; i < 5; ++i)
+            {
+                if((lost & (1 << i)) != 0)
+                    damaged[i] = null;
+            }
+
+            try
+            {
+                code.decode(damaged, 0, 64);
+                if(Integer.bitCount(lost) > 2)
+                    throw new TestFailed("decoded with too many shards lost");
+            }
+            catch(IllegalArgumentException e)
+            {
+                if(Integer.bitCount(lost) <= 2)
+                    throw new TestFailed("unable to decode with lost shards", e);
+                continue;
+            }
+
+            for(int i = 0; i < 5; ++i)
+            {
+                if(!Arrays.equals(damaged[i], shards[i]))
+                    throw new TestFailed("shard " + i + " rebuilt wrongly");
+            }
+        }
+    }
+
+    /** Checks that reclaiming replicas codes the cold file. */
+    private void checkEncode(Path file, TestServer[] servers) throws Throwable
+    {
+        boolean[]       held = callBack(file, servers, FILE_SIZE, null);
+        namingServer.replicationScheduler.reclaim();
+
+        if(!held[0])
+            throw new TestFailed("replica deleted before client answered");
+
+        FileNode        node = namingServer.fileSystem.get(file);
+        ErasureLayout   layout = namingServer.fileSystem.getErasureLayout(node);
+        if(layout == null)
+            throw new TestFailed("cold file not coded");
+
+        if(!node.getStorageContainers().isEmpty())
+            throw new TestFailed("replicas of coded file still listed");
+
+        if(layout.getDataFragments() != 2 || layout.getParityFragments() != 2 ||
+           layout.getFileSize() != FILE_SIZE || layout.getLostCount() != 0)
+        {
+            throw new TestFailed("unexpected layout " + layout);
+        }
+
+        int             holding = 0;
+        for(TestServer server : servers)
+        {
+            byte[]      data = server.files.get(file);
+            if(data == null)
+                continue;
+            if(data.length != layout.getFragmentSize())
+                throw new TestFailed("full replica left on a storage server");
+            ++holding;
+        }
+
+        if(holding != 4)
+            throw new TestFailed("fragments not on four storage servers");
+    }
+
+    /** Checks reads through the fragments, with and without lost ones. */
+    private void checkRead(Path file, byte[] contents, TestServer[] servers)
+        throws Throwable
+    {
+        Replica[]       replicas = namingServer.getReplicas(file);
+        if(replicas.length != 4)
+            throw new TestFailed("expected four fragments, got " + replicas.length);
+
+        for(int i = 0; i < replicas.length; ++i)
+        {
+            if(!(replicas[i] instanceof Fragment) ||
+               ((Fragment)replicas[i]).getIndex() != i)
+            {
+                throw new TestFailed("fragments not handed out in order");
+            }
+        }
+
+        checkContents(file, contents);
+
+        // The data fragments are down: the file is rebuilt from parity
+        holder(file, 0).down = true;
+        holder(file, 1).down = true;
+        checkContents(file, contents);
+
+        holder(file, 2).down = true;
+        try
+        {
+            new ReplicaSelector(namingServer.getReplicas(file))
+                .call(storage_server -> storage_server.read(file, 0, 1));
+            throw new TestFailed("read with three of four fragments down");
+        }
+        catch(FileNotFoundException e) { }
+
+        for(TestServer server : servers)
+            server.down = false;
+    }
+
+    /** Checks that a fragment lost with its server is rebuilt elsewhere.
+
+        @return The server declared failed.
+     */
+    private TestServer checkRepair(Path file, byte[] contents,
+                                   TestServer[] servers)
+        throws Throwable
+    {
+        FileSystem          fileSystem = namingServer.fileSystem;
+        StorageContainer    failed =
+            fileSystem.getErasureLayout(file).getHolder(3);
+        fileSystem.getStorageRegistry().unregister(failed);
+        fileSystem.removeStorageServer(failed);
+
+        if(fileSystem.getErasureLayout(file).getLostCount() != 1)
+            throw new TestFailed("fragment on failed server not lost");
+
+        if(!namingServer.erasureCoder.repair(file))
+            throw new TestFailed("lost fragment not rebuilt");
+
+        ErasureLayout       layout = fileSystem.getErasureLayout(file);
+        if(layout.getLostCount() != 0 || layout.isHolder(failed))
+            throw new TestFailed("layout not updated after repair");
+
+        // Only the rebuilt parity fragment and the other one can serve
+        holder(file, 0).down = true;
+        holder(file, 1).down = true;
+        checkContents(file, contents);
+
+        for(TestServer server : servers)
+            server.down = false;
+
+        return (TestServer)failed.getStorage();
+    }
+
+    /** Checks that getStorage restores a full replica. The failed server
+        keeps its fragment, which it would delete as a duplicate when it next
+        registered. */
+    private void checkRestore(Path file, byte[] contents, TestServer[] servers,
+                              TestServer failed)
+        throws Throwable
+    {
+        FileNode        node = namingServer.fileSystem.get(file);
+        int             fragmentSize = namingServer.fileSystem
+            .getErasureLayout(node).getFragmentSize();
+        boolean[]       held = callBack(file, servers, fragmentSize, failed);
+        Storage         storage_server = namingServer.getStorage(file);
+
+        if(!held[0])
+            throw new TestFailed("fragments deleted before client answered");
+
+        if(namingServer.fileSystem.getErasureLayout(node) != null)
+            throw new TestFailed("restored file still coded");
+
+        if(node.getStorageContainers().size() != 1)
+            throw new TestFailed("restored file not listed with one replica");
+
+        if(!Arrays.equals(storage_server.read(file, 0, FILE_SIZE), contents))
+            throw new TestFailed("restored file has wrong contents");
+
+        for(TestServer server : servers)
+        {
+            if(server != storage_server && server != failed &&
+               server.files.containsKey(file))
+                throw new TestFailed("fragment left after restore");
+        }
+    }
+
+    /** Grants a lease on a file to a client which, when called back, takes a
+        while to answer and then records whether a server other than
+        <code>except</code> still holds data of the given length for the
+        file. */
+    private boolean[] callBack(Path file, TestServer[] servers, int length,
+                               TestServer except)
+    {
+        boolean[]       held = new boolean[1];
+        namingServer.leaseTable.grant(file, paths ->
+        {
+            try
+            {
+                Thread.sleep(ANSWER_MILLIS);
+            }
+            catch(InterruptedException e) { }
+
+            for(TestServer server : servers)
+            {
+                byte[]  data = server.files.get(file);
+                if(server != except && data != null && data.length == length)
+                    held[0] = true;
+            }
+        });
+        return held;
+    }
+
+    /** Checks that layouts are restored from a checkpoint and the
+        journal. */
+    private void checkReplay() throws TestFailed
+    {
+        StorageContainer    first = container(7001);
+        StorageContainer    second = container(7002);
+        StorageContainer    third = container(7003);
+        StorageContainer    fourth = container(7004);
+        Path                file = new Path("/coded");
+
+        try
+        {
+            File            journalDirectory = new File(directory.root(), "replay");
+            journalDirectory.mkdir();
+            FileSystem      fileSystem = new FileSystem();
+            Journal         journal = open(fileSystem, journalDirectory);
+            Checkpointer    checkpointer =
+                new Checkpointer(journalDirectory, fileSystem, journal,
+                                 Long.MAX_VALUE / 2);
+
+            fileSystem.add(file, Type.FILE, first);
+            FileNode        node = fileSystem.get(file);
+            ErasureLayout   layout = new ErasureLayout(2, 1, 100,
+                new StorageContainer[] {second, third, fourth});
+            if(fileSystem.switchToErasure(file, node, node.getVersion(),
+                                          layout) == null)
+            {
+                throw new TestFailed("unable to switch file to fragments");
+            }
+            journal.sync();
+
+            if(!checkpointer.checkpoint())
+                throw new TestFailed("checkpoint skipped after coding");
+
+            // A lost fragment is left in the journal
+            fileSystem.removeStorageServer(third);
+            journal.sync();
+            checkpointer.shutdown();
+            journal.close();
+
+            fileSystem = new FileSystem();
+            journal = open(fileSystem, journalDirectory);
+            layout = fileSystem.getErasureLayout(file);
+
+            if(layout == null || layout.getFileSize() != 100 ||
+               layout.getDataFragments() != 2 ||
+               layout.getParityFragments() != 1)
+            {
+                throw new TestFailed("layout not restored: " + layout);
+            }
+
+            if(!second.equals(layout.getHolder(0)) ||
+               layout.getHolder(1) != null ||
+               !fourth.equals(layout.getHolder(2)))
+            {
+                throw new TestFailed("fragment holders not restored");
+            }
+
+            if(!fileSystem.get(file).getStorageContainers().isEmpty())
+                throw new TestFailed("removed replica restored");
+
+            journal.close();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Reads the whole file, and a range spanning both data fragments,
+        through a replica selector. */
+    private void checkContents(Path file, byte[] contents) throws Throwable
+    {
+        ReplicaSelector selector =
+            new ReplicaSelector(namingServer.getReplicas(file));
+
+        if(selector.call(storage_server -> storage_server.size(file)) !=
+           FILE_SIZE)
+        {
+            throw new TestFailed("wrong size for coded file");
+        }
+
+        byte[]          whole =
+            selector.call(storage_server ->
+                storage_server.read(file, 0, FILE_SIZE));
+        if(!Arrays.equals(whole, contents))
+            throw new TestFailed("coded file read wrongly");
+
+        byte[]          middle =
+            selector.call(storage_server ->
+                storage_server.read(file, 4990, 30));
+        if(!Arrays.equals(middle, Arrays.copyOfRange(contents, 4990, 5020)))
+            throw new TestFailed("range across fragments read wrongly");
+    }
+
+    /** Returns the server holding a fragment of the file. */
+    private TestServer holder(Path file, int index)
+        throws FileNotFoundException
+    {
+        return (TestServer)namingServer.fileSystem.getErasureLayout(file)
+            .getHolder(index).getStorage();
+    }
+
+    /** Stops the naming server and removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer.erasureCoder.shutdown();
+            namingServer.checkpointer.shutdown();
+            namingServer.journal.close();
+            namingServer = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens a journal and restores the given file system from it. */
+    private Journal open(FileSystem fileSystem, File journalDirectory)
+        throws IOException
+    {
+        Journal     journal = new Journal(journalDirectory, fileSystem, 1, 16);
+        fileSystem.setJournal(journal);
+        return journal;
+    }
+
+    /** Creates a storage container whose stubs point at the given port. */
+    private StorageContainer container(int port) throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", port);
+            return new StorageContainer(Stub.create(Storage.class, address),
+                                        Stub.create(Command.class, address));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage stubs", t);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks storage server failure detection and re-replication.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The accrual failure detector keeps the suspicion level of a server
+        with regular heartbeats low, raises it past the threshold once the
+        heartbeats stop, and does not suspect servers it never heard from.</li>
+    <li>A storage server whose heartbeats stop is unregistered and removed
+        from every replica list, and is told to register again if it sends
+        another heartbeat.</li>
+    <li>A file that lost a replica is copied again from its surviving replica
+        to another server, and a file that lost its only replica is reported
+        as having none.</li>
+    <li>Heartbeats update the capacity recorded for the server.</li>
+    </ul>
+ */
+public class FailureDetectionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage failure detection and re-replication";
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkDetector();
+
+        namingServer = new NamingServer();
+        // Servers are checked by hand, but repairs run in the background
+        namingServer.repairQueue.start();
+
+        TestServer  failing = new TestServer();
+        TestServer  survivor = new TestServer();
+        TestServer  spare = new TestServer();
+        Path        replicated = new Path("/f");
+        Path        single = new Path("/g");
+
+        failing.copies = true;
+        survivor.copies = true;
+        spare.copies = true;
+
+        try
+        {
+            FileSystem  fileSystem = namingServer.fileSystem;
+            namingServer.register(failing, failing,
+                                  new Path[] {replicated, single});
+            namingServer.register(survivor, survivor, new Path[0]);
+            namingServer.register(spare, spare, new Path[] {new Path("/h")});
+
+            // Read the file often enough for it to need two replicas, with a
+            // margin so that the target survives the decay of the counter.
+            FileNode    node = fileSystem.get(replicated);
+            long        now = System.currentTimeMillis();
+            while(namingServer.replicationPolicy.recordRead(node, now) < 2);
+            for(int read = 0; read < 5; ++read)
+                namingServer.replicationPolicy.recordRead(node, now);
+
+            if(!fileSystem.attemptReplicate(replicated) ||
+               !node.containsStorageContainer(container(survivor)))
+            {
+                throw new TestFailed("file not replicated to the emptiest " +
+                                     "server");
+            }
+
+            // All three servers beat every second; the failing server stops
+            // fifteen seconds ago.
+            StorageContainer    dead = container(failing);
+            long                start = now - 20 * 1000;
+            for(long time = start; time <= now; time += 1000)
+            {
+                if(time <= start + 5 * 1000)
+                    namingServer.failureDetector.heartbeat(dead, time, 1000);
+                namingServer.failureDetector.heartbeat(container(survivor),
+                                                       time, 1000);
+                namingServer.failureDetector.heartbeat(container(spare),
+                                                       time, 1000);
+            }
+
+            namingServer.storageMonitor.check(now);
+
+            StorageRegistry registry = fileSystem.getStorageRegistry();
+            if(registry.get(failing) != null || registry.size() != 2)
+                throw new TestFailed("failed server still registered");
+
+            if(node.containsStorageContainer(dead))
+                throw new TestFailed("failed server still holds a replica");
+
+            // The surviving replica is copied to the spare server.
+            long        deadline = System.currentTimeMillis() + 3000;
+            while(node.getReplicaCount() < 2 &&
+                  System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(20);
+            }
+
+            if(!node.containsStorageContainer(container(spare)) ||
+               spare.copied.isEmpty())
+            {
+                throw new TestFailed("file not re-replicated");
+            }
+
+            try
+            {
+                namingServer.getStorage(single);
+                throw new TestFailed("lost file handed out");
+            }
+            catch(FileNotFoundException e) { }
+
+            try
+            {
+                namingServer.heartbeat(failing,
+                                       new Heartbeat(1000, null));
+                throw new TestFailed("heartbeat accepted from failed server");
+            }
+            catch(IllegalStateException e) { }
+
+            namingServer.heartbeat(spare, new Heartbeat(1000,
+                new CapacityReport(10, 5, 0, 0, 0, 0, 0, 0)));
+            ServerLoad  load = registry.getLoad(container(spare));
+            if(load.getFreeBytes() != 5 || load.getTotalBytes() != 10)
+                throw new TestFailed("capacity not recorded");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the suspicion levels computed by the failure detector. */
+    private void checkDetector() throws TestFailed
+    {
+        FailureDetector     detector = new FailureDetector(8, 100, 100, 0);
+        StorageContainer    watched = new StorageContainer(null, null);
+
+        for(long time = 0; time <= 10 * 1000; time += 1000)
+            detector.heartbeat(watched, time, 1000);
+
+        if(detector.phi(watched, 10 * 1000 + 500) > 1)
+            throw new TestFailed("server suspected between heartbeats");
+
+        if(detector.phi(watched, 14 * 1000) < 8 ||
+           !detector.suspects(14 * 1000).contains(watched))
+        {
+            throw new TestFailed("silent server not suspected");
+        }
+
+        if(detector.phi(new StorageContainer(new TestServer(), null), 0) != 0)
+            throw new TestFailed("unknown server suspected");
+    }
+
+    /** Returns the registered container of a test server. */
+    private StorageContainer container(TestServer server)
+    {
+        return namingServer.fileSystem.getStorageRegistry().get(server);
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer.storageMonitor.shutdown();
+            namingServer.repairQueue.shutdown();
+            namingServer = null;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks a namespace federated over three naming servers on one machine.
+
+    <p>
+    The first server owns the root, the second owns <code>/a</code>, and the
+    third owns <code>/a/b</code>, mounted inside the second's subtree. Each has
+    its own test storage server, registered directly. Tests performed are:
+    <ul>
+    <li>Registration ignores files outside a server's subtrees.</li>
+    <li>Listings show mount points as directories of the enclosing
+        subtree.</li>
+    <li>A client routed by the mount table, and a plain stub for the root
+        server, both create files in the right partition.</li>
+    <li>Batches spanning partitions are split and their results kept in
+        order.</li>
+    <li>Mount points cannot be deleted.</li>
+    <li>A lock in a mounted subtree and an exclusive lock on the root exclude
+        each other, in both orders.</li>
+    <li>A snapshot is taken by every partition, and one that a partition
+        already has a snapshot of that name for is deleted again from the
+        others.</li>
+    </ul>
+ */
+public class FederationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking subtree federation over several naming servers";
+
+    /** First service port; each server uses the next ten ports. */
+    private static final int    BASE_PORT = 7300;
+
+    /** Naming servers, owning <code>/</code>, <code>/a</code> and
+        <code>/a/b</code>. */
+    private final NamingServer[]    servers = new NamingServer[3];
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress[]     addresses = new InetSocketAddress[3];
+            for(int i = 0; i < servers.length; i++)
+            {
+                int port = BASE_PORT + 10 * i;
+                servers[i] = new NamingServer(port, port + 1);
+                servers[i].start();
+                addresses[i] = new InetSocketAddress("127.0.0.1", port);
+            }
+
+            MountTable  table = new MountTable(addresses[0])
+                .mount(new Path("/a"), addresses[1])
+                .mount(new Path("/a/b"), addresses[2]);
+            for(NamingServer server : servers)
+                server.federate(table);
+
+            TestServer  root = new TestServer();
+            TestServer  middle = new TestServer();
+            TestServer  inner = new TestServer();
+            Path[]      duplicates = servers[0].register(root, root,
+                new Path[] {new Path("/top"), new Path("/a/stray")});
+            servers[1].register(middle, middle,
+                new Path[] {new Path("/a/x")});
+            servers[2].register(inner, inner,
+                new Path[] {new Path("/a/b/y")});
+
+            if(duplicates.length != 0 ||
+               servers[0].fileSystem.hasPath(new Path("/a/stray")))
+            {
+                throw new TestFailed("file of another partition registered " +
+                                     "or deleted");
+            }
+
+            Service     client = NamingStubs.federation("127.0.0.1",
+                                                        BASE_PORT);
+            if(!(client instanceof FederatedService))
+                throw new TestFailed("client not routed by mount table");
+
+            checkListing(client, "/", "a", "top");
+            checkListing(client, "/a", "b", "x");
+            checkListing(client, "/a/b", "y");
+
+            if(!client.createFile(new Path("/a/b/new")) ||
+               !servers[2].fileSystem.hasPath(new Path("/a/b/new")))
+            {
+                throw new TestFailed("routed create not made by owner");
+            }
+
+            Service     plain = NamingStubs.service("127.0.0.1", BASE_PORT);
+            if(!plain.createFile(new Path("/a/forwarded")) ||
+               !servers[1].fileSystem.hasPath(new Path("/a/forwarded")) ||
+               servers[0].fileSystem.hasPath(new Path("/a/forwarded")))
+            {
+                throw new TestFailed("misrouted create not forwarded");
+            }
+
+            BatchStatus[]   results = client.createAll(
+                new Path[] {new Path("/d"), new Path("/a/b/f1"),
+                            new Path("/a/f2"), new Path("/missing/f3")},
+                new boolean[] {true, false, false, false});
+            BatchStatus[]   expected = {BatchStatus.DONE, BatchStatus.DONE,
+                                        BatchStatus.DONE, BatchStatus.NOT_FOUND};
+            if(!Arrays.equals(results, expected))
+            {
+                throw new TestFailed("unexpected batch results " +
+                                     Arrays.toString(results));
+            }
+
+            if(client.delete(new Path("/a")) ||
+               client.delete(new Path("/a/b")))
+            {
+                throw new TestFailed("mount point deleted");
+            }
+            if(!client.delete(new Path("/a/x")))
+                throw new TestFailed("file in mounted subtree not deleted");
+
+            checkExclusion(client, plain);
+            checkSnapshots(client);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the names listed in a directory. */
+    private void checkListing(Service client, String directory,
+                              String... names)
+        throws Throwable
+    {
+        String[]    listed = client.list(new Path(directory));
+        Arrays.sort(listed);
+        if(!Arrays.equals(listed, names))
+        {
+            throw new TestFailed("unexpected listing of " + directory + ": " +
+                                 Arrays.toString(listed));
+        }
+    }
+
+    /** Checks that locks in the innermost partition and on the root wait for
+        each other. */
+    private void checkExclusion(Service client, Service plain)
+        throws Throwable
+    {
+        Path    inner = new Path("/a/b/y");
+        Path    root = new Path("/");
+
+        client.lock(inner, true);
+        if(servers[0].fileSystem.get(new Path("/a")).getSharedLocks() != 1 ||
+           servers[1].fileSystem.get(new Path("/a/b")).getSharedLocks() != 1)
+        {
+            throw new TestFailed("mount points not locked in enclosing " +
+                                 "partitions");
+        }
+
+        FutureTask<Void>    rootLock = new FutureTask<>(() -> {
+            plain.lock(root, true);
+            return null;
+        });
+        new Thread(rootLock).start();
+        Thread.sleep(200);
+        if(rootLock.isDone())
+            throw new TestFailed("root locked while mounted subtree locked");
+        client.unlock(inner, true);
+        rootLock.get(2, TimeUnit.SECONDS);
+
+        if(servers[1].fileSystem.get(new Path("/a/b")).getSharedLocks() != 0)
+            throw new TestFailed("mount point still locked after unlock");
+
+        FutureTask<Void>    innerLock = new FutureTask<>(() -> {
+            client.lock(inner, false);
+            return null;
+        });
+        new Thread(innerLock).start();
+        Thread.sleep(200);
+        if(innerLock.isDone())
+            throw new TestFailed("mounted subtree locked while root locked");
+        plain.unlock(root, true);
+        innerLock.get(2, TimeUnit.SECONDS);
+        client.unlock(inner, false);
+    }
+
+    /** Checks that a snapshot is taken by all partitions or by none. */
+    private void checkSnapshots(Service client) throws Throwable
+    {
+        if(!client.createSnapshot("all"))
+            throw new TestFailed("snapshot not taken");
+        for(NamingServer server : servers)
+        {
+            if(server.fileSystem.snapshots.get("all") == null)
+                throw new TestFailed("snapshot missing from a partition");
+        }
+
+        servers[1].createSnapshot("taken");
+        if(client.createSnapshot("taken"))
+            throw new TestFailed("snapshot taken over an existing name");
+        if(servers[0].fileSystem.snapshots.get("taken") != null ||
+           servers[2].fileSystem.snapshots.get("taken") != null)
+        {
+            throw new TestFailed("partly taken snapshot not deleted");
+        }
+        if(servers[1].fileSystem.snapshots.get("taken") == null)
+            throw new TestFailed("existing snapshot deleted");
+
+        if(!client.deleteSnapshot("all"))
+            throw new TestFailed("snapshot not deleted");
+    }
+
+    /** Stops the naming servers. */
+    @Override
+    protected void clean()
+    {
+        for(int i = 0; i < servers.length; i++)
+        {
+            if(servers[i] == null)
+                continue;
+
+            try
+            {
+                servers[i].stop();
+            }
+            catch(Throwable t) { }
+            servers[i] = null;
+        }
+    }
+}
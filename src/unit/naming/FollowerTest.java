@@ -0,0 +1,173 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that a follower naming server tails its primary.
+
+    <p>
+    A primary naming server and a follower run on one machine, with a test
+    storage server registered directly with the primary. Tests performed are:
+    <ul>
+    <li>The follower starts with the files registered before it.</li>
+    <li>A file created at the primary shows up at the follower within the
+        staleness bound.</li>
+    <li>A file created through the follower is visible at the follower as
+        soon as the call returns.</li>
+    <li>A follower that has fallen behind by more mutations than the primary
+        keeps loads a new snapshot.</li>
+    <li>A follower that is not fresh forwards reads to the primary.</li>
+    </ul>
+ */
+public class FollowerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking read-only followers of a naming server";
+
+    /** Primary service port; the registration port follows it. */
+    private static final int    PRIMARY_PORT = 7400;
+    /** Follower service port. */
+    private static final int    FOLLOWER_PORT = 7410;
+    /** Staleness bound of the follower. */
+    private static final long   MAX_STALENESS_MILLIS = 500;
+
+    /** Primary naming server. */
+    private NamingServer        primary;
+    /** Follower under test. */
+    private Follower            follower;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            primary = new NamingServer(PRIMARY_PORT, PRIMARY_PORT + 1);
+            primary.mutationLog = new MutationLog(16);
+            primary.fileSystem.setMutationLog(primary.mutationLog);
+            primary.start();
+
+            TestServer  server = new TestServer();
+            primary.register(server, server,
+                new Path[] {new Path("/d/a"), new Path("/d/b")});
+
+            Service     primaryStub = NamingStubs.service("127.0.0.1",
+                                                          PRIMARY_PORT);
+            follower = new Follower(primaryStub, FOLLOWER_PORT,
+                                    MAX_STALENESS_MILLIS);
+            follower.start();
+            Service     client = NamingStubs.service("127.0.0.1",
+                                                     FOLLOWER_PORT);
+
+            checkListing(client, "/d", "a", "b");
+            if(client.getStorage(new Path("/d/a")) == null)
+                throw new TestFailed("no storage server for file");
+
+            primary.createFile(new Path("/d/c"));
+            awaitListing(client, "/d", "a", "b", "c");
+
+            if(!client.createFile(new Path("/d/e")) ||
+               !Arrays.asList(client.list(new Path("/d"))).contains("e"))
+            {
+                throw new TestFailed("file created through follower not " +
+                                     "visible there");
+            }
+            if(!primary.fileSystem.hasPath(new Path("/d/e")))
+                throw new TestFailed("create not forwarded to primary");
+
+            // Rewind the follower past what the primary keeps
+            synchronized(follower.applyLock)
+            {
+                follower.appliedSequence = 0;
+            }
+            for(int i = 0; i < 20; i++)
+                primary.createFile(new Path("/f" + i));
+            long    deadline = System.currentTimeMillis() + 2000;
+            while(follower.snapshots < 2 ||
+                  !follower.fileSystem.hasPath(new Path("/f19")))
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("follower did not reload snapshot");
+                Thread.sleep(10);
+            }
+
+            follower.stopped = true;
+            follower.tailer.interrupt();
+            follower.tailer.join(2000);
+            follower.freshAt = 0;
+            follower.fileSystem = new FileSystem();
+            if(follower.isFresh() ||
+               !client.isDirectory(new Path("/d")))
+            {
+                throw new TestFailed("stale follower did not forward read");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the names listed in a directory. */
+    private void checkListing(Service client, String directory,
+                              String... names)
+        throws Throwable
+    {
+        String[]    listed = client.list(new Path(directory));
+        Arrays.sort(listed);
+        if(!Arrays.equals(listed, names))
+        {
+            throw new TestFailed("unexpected listing of " + directory + ": " +
+                                 Arrays.toString(listed));
+        }
+    }
+
+    /** Waits, no longer than the staleness bound, for a directory to list
+        the given names. */
+    private void awaitListing(Service client, String directory,
+                              String... names)
+        throws Throwable
+    {
+        long    deadline = System.currentTimeMillis() + MAX_STALENESS_MILLIS;
+        while(true)
+        {
+            String[]    listed = client.list(new Path(directory));
+            Arrays.sort(listed);
+            if(Arrays.equals(listed, names))
+                return;
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("follower listing of " + directory +
+                                     " still " + Arrays.toString(listed));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /** Stops the follower and the primary. */
+    @Override
+    protected void clean()
+    {
+        if(follower != null)
+        {
+            follower.stop();
+            follower = null;
+        }
+
+        if(primary != null)
+        {
+            try
+            {
+                primary.stop();
+            }
+            catch(Throwable t) { }
+            primary = null;
+        }
+    }
+}
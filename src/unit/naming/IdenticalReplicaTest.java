@@ -0,0 +1,145 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that identical copies found at registration are kept as replicas.
+
+    <p>
+    Two storage servers are started on temporary directories and registered
+    one after the other directly with a naming server object. Some of their
+    files collide. Tests performed are:
+    <ul>
+    <li>A copy with the same content as the registered one is added to the
+        file's replicas and is not deleted.</li>
+    <li>Copies of the same size but different content, and copies of a
+        different size, are deleted as duplicates.</li>
+    <li>A storage server that does not fingerprint files has every colliding
+        copy deleted, as before.</li>
+    </ul>
+ */
+public class IdenticalReplicaTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking adoption of identical copies at registration";
+
+    /** Directories served by the storage servers. */
+    private TemporaryDirectory  firstDirectory;
+    private TemporaryDirectory  secondDirectory;
+    /** Storage servers. */
+    private StorageServer       first;
+    private StorageServer       second;
+    /** Naming server the storage servers register with. */
+    private NamingServer        namingServer;
+
+    /** Creates the storage servers' directories. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            firstDirectory = new TemporaryDirectory();
+            firstDirectory.add(new String[] {"d", "same"}, "contents");
+            firstDirectory.add(new String[] {"d", "changed"}, "left");
+            firstDirectory.add(new String[] {"resized"}, "xy");
+
+            secondDirectory = new TemporaryDirectory();
+            secondDirectory.add(new String[] {"d", "same"}, "contents");
+            secondDirectory.add(new String[] {"d", "changed"}, "rite");
+            secondDirectory.add(new String[] {"resized"}, "xyz");
+            secondDirectory.add(new String[] {"new"}, "n");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        try
+        {
+            first = new StorageServer(firstDirectory.root());
+            first.start("127.0.0.1", namingServer);
+            second = new StorageServer(secondDirectory.root());
+            second.start("127.0.0.1", namingServer);
+
+            File    root = secondDirectory.root();
+            if(!new File(root, "d/same").exists())
+                throw new TestFailed("identical copy deleted");
+            if(new File(root, "d/changed").exists())
+                throw new TestFailed("copy with other content kept");
+            if(new File(root, "resized").exists())
+                throw new TestFailed("copy of another size kept");
+            if(!new File(root, "new").exists())
+                throw new TestFailed("new file deleted");
+
+            FileNode    same = namingServer.fileSystem.get(new Path("/d/same"));
+            if(same.getStorageContainers().size() != 2)
+            {
+                throw new TestFailed("identical copy not adopted: " +
+                                     same.getStorageContainers());
+            }
+            if(namingServer.fileSystem.get(new Path("/d/changed"))
+                   .getStorageContainers().size() != 1)
+            {
+                throw new TestFailed("copy with other content adopted");
+            }
+
+            // Without fingerprints, colliding copies are duplicates
+            TestServer  old = new TestServer();
+            Path        colliding = new Path("/d/same");
+            colliding.addFileSize("contents".length());
+            Path[]      duplicates =
+                namingServer.register(old, old, new Path[] {colliding});
+            if(duplicates.length != 1 || !duplicates[0].equals(colliding))
+            {
+                throw new TestFailed("unexpected duplicates " +
+                                     Arrays.toString(duplicates));
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the servers and removes the directories. */
+    @Override
+    protected void clean()
+    {
+        for(StorageServer server : new StorageServer[] {first, second})
+        {
+            if(server != null)
+                server.stop();
+        }
+        first = null;
+        second = null;
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+
+        for(TemporaryDirectory directory :
+                new TemporaryDirectory[] {firstDirectory, secondDirectory})
+        {
+            if(directory != null)
+                directory.remove();
+        }
+        firstDirectory = null;
+        secondDirectory = null;
+    }
+}
@@ -0,0 +1,295 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks <code>Journal</code>.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Replaying the journal restores files, their replicas, and empty
+        directories, at any depth, and does not restore deleted paths.</li>
+    <li>A torn record at the end of the journal is discarded, and records
+        appended afterwards are replayed.</li>
+    <li>A storage server reporting a restored file at registration keeps it,
+        while another server reporting the same file has a duplicate.</li>
+    <li>Files with several replicas are known as replicated again after a
+        restart, from the journal or a checkpoint, also below a renamed
+        directory, and the load of each storage server is rebuilt from the
+        files it reports when it registers again.</li>
+    </ul>
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server journal";
+
+    /** Directory holding the journal. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageContainer    first = container(7001);
+        StorageContainer    second = container(7002);
+
+        try
+        {
+            FileSystem      fileSystem = new FileSystem();
+            Journal         journal = open(fileSystem);
+            fileSystem.setJournal(journal);
+
+            fileSystem.getStorageRegistry().register(first);
+            fileSystem.add(new Path("/empty"), Type.DIRECTORY, null);
+            fileSystem.add(new Path("/directory"), Type.DIRECTORY, null);
+            fileSystem.add(new Path("/directory/file"), Type.FILE, first);
+            fileSystem.add(new Path("/directory/a"), Type.DIRECTORY, null);
+            fileSystem.add(new Path("/directory/a/b"), Type.DIRECTORY, null);
+            fileSystem.add(new Path("/directory/a/b/file"), Type.FILE, first);
+            fileSystem.add(new Path("/directory/a/b/gone"), Type.FILE, first);
+            fileSystem.add(new Path("/directory/a/b/empty"), Type.DIRECTORY,
+                           null);
+            fileSystem.register(new Path("/reported/x/y/file"),
+                                second.getStorage(), second.getCommand());
+            fileSystem.remove(new Path("/directory/a/b/gone"));
+            fileSystem.add(new Path("/deleted"), Type.FILE, first);
+            fileSystem.register(new Path("/reported/file"), second.getStorage(),
+                                second.getCommand());
+            fileSystem.remove(new Path("/deleted"));
+            journal.sync();
+            journal.close();
+
+            // Tear the last record, as a crash during a write would.
+            ArrayList<File>     segments = Journal.segments(directory.root());
+            RandomAccessFile    file = new RandomAccessFile(
+                segments.get(segments.size() - 1), "rw");
+            file.setLength(file.length() - 3);
+            file.close();
+
+            fileSystem = new FileSystem();
+            journal = open(fileSystem);
+            fileSystem.setJournal(journal);
+
+            expectDirectory(fileSystem, "/empty");
+            expectDirectory(fileSystem, "/directory");
+            expectReplica(fileSystem, "/directory/file", first);
+            expectReplica(fileSystem, "/reported/file", second);
+            // Nested paths are restored at their own depth.
+            expectDirectory(fileSystem, "/directory/a/b");
+            expectDirectory(fileSystem, "/directory/a/b/empty");
+            expectReplica(fileSystem, "/directory/a/b/file", first);
+            expectReplica(fileSystem, "/reported/x/y/file", second);
+            if(fileSystem.hasPath(new Path("/directory/a/b/gone")))
+                throw new TestFailed("nested deletion was not replayed");
+            // The torn record was the deletion.
+            if(!fileSystem.hasPath(new Path("/deleted")))
+                throw new TestFailed("torn deletion was replayed");
+
+            fileSystem.remove(new Path("/deleted"));
+            journal.sync();
+            journal.close();
+
+            fileSystem = new FileSystem();
+            journal = open(fileSystem);
+            fileSystem.setJournal(journal);
+
+            if(fileSystem.hasPath(new Path("/deleted")))
+                throw new TestFailed("deletion after torn record not replayed");
+
+            // The server holding a restored file keeps it; a second copy
+            // elsewhere is a duplicate.
+            fileSystem.getStorageRegistry().register(second);
+            fileSystem.getStorageRegistry().register(first);
+            if(!fileSystem.register(new Path("/reported/file"),
+                                    second.getStorage(), second.getCommand()))
+            {
+                throw new TestFailed("restored file rejected from its server");
+            }
+
+            if(fileSystem.register(new Path("/reported/file"),
+                                   first.getStorage(), first.getCommand()))
+            {
+                throw new TestFailed("duplicate of restored file accepted");
+            }
+
+            journal.close();
+
+            checkRestoredLoads();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that replicated files and server loads are rebuilt after a
+        restart. */
+    private void checkRestoredLoads() throws Throwable
+    {
+        File                journalDirectory =
+            new File(directory.root(), "loads");
+        FileSystem          fileSystem = new FileSystem();
+        Journal             journal =
+            new Journal(journalDirectory, fileSystem, 1, 16);
+        fileSystem.setJournal(journal);
+
+        TestServer          left = new TestServer();
+        TestServer          right = new TestServer();
+        left.copies = true;
+        right.copies = true;
+        StorageContainer    first = new StorageContainer(left, left);
+        StorageContainer    second = new StorageContainer(right, right);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(second);
+
+        fileSystem.add(new Path("/d"), Type.DIRECTORY, null);
+        fileSystem.add(new Path("/d/single"), Type.FILE, first);
+        fileSystem.add(new Path("/d/replicated"), Type.FILE, first);
+        if(!fileSystem.attemptReplicate(new Path("/d/replicated")))
+            throw new TestFailed("unable to replicate test file");
+        fileSystem.move(new Path("/d"), new Path("/e"));
+
+        Path                replicated = new Path("/e/replicated");
+        byte[]              image = Checkpoint.image(fileSystem, 0);
+        journal.sync();
+        journal.close();
+
+        FileSystem          loaded = new FileSystem();
+        Checkpoint.load(java.nio.ByteBuffer.wrap(image), loaded);
+        if(!loaded.getReplicatedFiles().equals(Arrays.asList(replicated)))
+        {
+            throw new TestFailed("replicated files not restored from " +
+                                 "checkpoint: " + loaded.getReplicatedFiles());
+        }
+
+        fileSystem = new FileSystem();
+        journal = new Journal(journalDirectory, fileSystem, 1, 16);
+        fileSystem.setJournal(journal);
+        if(!fileSystem.getReplicatedFiles().equals(Arrays.asList(replicated)))
+        {
+            throw new TestFailed("replicated files not restored from " +
+                                 "journal: " + fileSystem.getReplicatedFiles());
+        }
+
+        // The servers register again, reporting the files they hold.
+        StorageRegistry     registry = fileSystem.getStorageRegistry();
+        registry.register(first);
+        registry.register(second);
+        Path[]              reported = new Path[] {
+            new Path("/e/single"), new Path("/e/replicated") };
+        for(Path path : reported)
+        {
+            path.addFileSize(10);
+            if(!fileSystem.register(path, left, left))
+                throw new TestFailed(path + " not kept by its server");
+        }
+
+        replicated.addFileSize(10);
+        if(!fileSystem.register(replicated, right, right))
+            throw new TestFailed(replicated + " not kept by its replica");
+
+        expectLoad(registry, first, 2, 20);
+        expectLoad(registry, second, 1, 10);
+        journal.close();
+    }
+
+    /** Checks the number of files and bytes a server is known to hold. */
+    private void expectLoad(StorageRegistry registry,
+                            StorageContainer storageContainer, long files,
+                            long bytes)
+        throws TestFailed
+    {
+        ServerLoad          load = registry.getLoad(storageContainer);
+        if(load.getFiles() != files || load.getBytes() != bytes)
+        {
+            throw new TestFailed("load not rebuilt after restart: " + load +
+                                 ", expected " + files + " files and " +
+                                 bytes + " bytes");
+        }
+    }
+
+    /** Removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens the journal and replays it into the given file system. */
+    private Journal open(FileSystem fileSystem) throws IOException
+    {
+        return new Journal(directory.root(), fileSystem, 1, 16);
+    }
+
+    /** Checks that a path was restored as a directory. */
+    private void expectDirectory(FileSystem fileSystem, String path)
+        throws TestFailed, FileNotFoundException
+    {
+        if(!fileSystem.hasPath(new Path(path)) ||
+           !fileSystem.isDirectory(new Path(path)))
+        {
+            throw new TestFailed(path + " not restored as a directory");
+        }
+    }
+
+    /** Checks that a path was restored as a file with the given replica. */
+    private void expectReplica(FileSystem fileSystem, String path,
+                               StorageContainer replica)
+        throws TestFailed, FileNotFoundException
+    {
+        if(!fileSystem.hasPath(new Path(path)) ||
+           !fileSystem.isFile(new Path(path)))
+        {
+            throw new TestFailed(path + " not restored as a file");
+        }
+
+        if(!fileSystem.get(new Path(path)).getStorageContainers()
+                .contains(replica))
+        {
+            throw new TestFailed(path + " restored without its replica");
+        }
+    }
+
+    /** Creates a storage container whose stubs point at the given port. */
+    private StorageContainer container(int port) throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", port);
+            return new StorageContainer(Stub.create(Storage.class, address),
+                                        Stub.create(Command.class, address));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage stubs", t);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that the naming server profiles contention for its locks.
+
+    <p>
+    A test storage server is registered directly with a naming server object
+    whose profiler samples every request. Tests performed are:
+    <ul>
+    <li>Clients that wait for a path locked by another are reported under
+        the path's prefix with their waits, the queue ahead of them and the
+        time the path stayed locked, and among the longest waits.</li>
+    <li>Paths are counted under prefixes of bounded depth, and reports are
+        limited to the requested prefix and number of entries.</li>
+    <li>Waits for the exclusive admission lock are reported apart.</li>
+    </ul>
+ */
+public class LockProfilerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking lock contention profiling";
+
+    /** Time for which the first client holds its lock, in milliseconds. */
+    private static final long   HOLD_MILLIS = 200;
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        LockProfiler    profiler = new LockProfiler(1, 2, 16, 1000 * 1000);
+        namingServer.lockProfiler = profiler;
+        namingServer.fileSystem.setLockProfiler(profiler);
+
+        TestServer  server = new TestServer();
+
+        try
+        {
+            namingServer.register(server, server,
+                new Path[] {new Path("/a/b/c/x"), new Path("/a/b/c/y"),
+                            new Path("/e/z")});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+
+        try
+        {
+            checkPrefixes(profiler);
+            checkContention();
+            checkLimits();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that paths are counted under prefixes of bounded depth. */
+    private void checkPrefixes(LockProfiler profiler) throws TestFailed
+    {
+        String[][]  expected = {{"/", "/"}, {"/a", "/a"}, {"/a/b", "/a/b"},
+                                {"/a/b/c/x", "/a/b"}};
+
+        for(String[] pair : expected)
+        {
+            String  prefix = profiler.prefixOf(new Path(pair[0]));
+            if(!prefix.equals(pair[1]))
+            {
+                throw new TestFailed("path " + pair[0] + " counted under " +
+                                     prefix + " instead of " + pair[1]);
+            }
+        }
+    }
+
+    /** Makes two clients wait for a file locked by a third. */
+    private void checkContention() throws Throwable
+    {
+        Path        file = new Path("/a/b/c/x");
+
+        namingServer.lock(file, true);
+
+        // Two clients queue behind the first, the second behind the first
+        // of them.
+        Thread[]    waiters = new Thread[2];
+        FileNode    node = namingServer.fileSystem.get(file);
+
+        for(int index = 0; index < waiters.length; ++index)
+        {
+            waiters[index] = new Thread(() ->
+            {
+                try
+                {
+                    namingServer.lock(file, false);
+                    namingServer.unlock(file, false);
+                }
+                catch(Throwable t) { }
+            });
+            waiters[index].start();
+
+            while(node.getWaitQueueLength() <= index)
+                Thread.sleep(5);
+        }
+
+        Thread.sleep(HOLD_MILLIS);
+        namingServer.unlock(file, true);
+
+        for(Thread waiter : waiters)
+            waiter.join();
+
+        LockReport          report =
+            namingServer.getLockReport(new Path("/"), 10);
+        LockReport.Entry    entry = find(report, "/a/b");
+
+        if(entry.getAcquisitions() != 3 || entry.getExclusive() != 1)
+        {
+            throw new TestFailed("unexpected request counts: " +
+                                 entry.getAcquisitions() + " requests, " +
+                                 entry.getExclusive() + " exclusive");
+        }
+
+        if(entry.getMaxWaitMicros() < HOLD_MILLIS * 1000 / 2 ||
+           entry.getWaitPercentileMicros(1.0) < entry.getMaxWaitMicros())
+        {
+            throw new TestFailed("wait not recorded: " + report);
+        }
+
+        if(entry.getMaxQueued() != 1)
+            throw new TestFailed("queue depth not recorded: " + report);
+
+        if(entry.getMaxHoldMicros() < HOLD_MILLIS * 1000)
+            throw new TestFailed("hold time not recorded: " + report);
+
+        LockReport.Wait[]   waits = report.getLongestWaits();
+        if(waits.length == 0 || !waits[0].getPath().equals(file) ||
+           waits[0].isExclusive())
+        {
+            throw new TestFailed("long wait not reported: " + report);
+        }
+
+        if(report.getAdmission() == null ||
+           report.getAdmission().getAcquisitions() != 1)
+        {
+            throw new TestFailed("admission lock not reported: " + report);
+        }
+
+        for(String path : new String[] {"/", "/a", "/a/b/c", "/a/b/c/x"})
+        {
+            if(namingServer.fileSystem.get(new Path(path)).getStatus() !=
+               Status.OPEN)
+            {
+                throw new TestFailed("lock left on " + path);
+            }
+        }
+    }
+
+    /** Checks that reports are limited by prefix and size. */
+    private void checkLimits() throws Throwable
+    {
+        namingServer.lock(new Path("/e/z"), false);
+        namingServer.unlock(new Path("/e/z"), false);
+
+        LockReport  all = namingServer.getLockReport(new Path("/"), 10);
+        find(all, "/e/z");
+
+        LockReport  under = namingServer.getLockReport(new Path("/e"), 10);
+        if(under.getEntries().length != 1 ||
+           !under.getEntries()[0].getPrefix().equals("/e/z") ||
+           under.getLongestWaits().length != 0)
+        {
+            throw new TestFailed("report not limited to prefix: " + under);
+        }
+
+        LockReport  first = namingServer.getLockReport(new Path("/"), 1);
+        if(first.getEntries().length != 1 ||
+           !first.getEntries()[0].getPrefix().equals("/a/b"))
+        {
+            throw new TestFailed("most contended prefix not first: " + first);
+        }
+
+        try
+        {
+            namingServer.getLockReport(new Path("/"), 0);
+            throw new TestFailed("report with no entries accepted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Returns the entry of a prefix in a report. */
+    private static LockReport.Entry find(LockReport report, String prefix)
+        throws TestFailed
+    {
+        for(LockReport.Entry entry : report.getEntries())
+        {
+            if(entry.getPrefix().equals(prefix))
+                return entry;
+        }
+
+        throw new TestFailed("prefix " + prefix + " not reported: " + report);
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+    }
+}
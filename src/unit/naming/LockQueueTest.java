@@ -0,0 +1,412 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import test.*;
+
+/** Checks the FIFO queue of a node's lock.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Exclusive waiters are granted the lock in the order they queued, and
+        a shared request does not pass a queued exclusive waiter even when
+        the lock is only held shared.</li>
+    <li>A run of shared waiters at the head of the queue is granted the lock
+        in one release, up to the next exclusive waiter.</li>
+    <li>A release hands an exclusive lock to the waiter at the head of the
+        queue alone; the waiters behind it are neither granted nor woken.</li>
+    <li>A waiter interrupted before it is granted the lock leaves the queue
+        with an <code>InterruptedException</code>; one interrupted after it
+        is granted keeps the lock and its interrupt status.</li>
+    <li>A client interrupted while waiting for an exclusive lock on the
+        naming server does not keep other exclusive requests out.</li>
+    </ul>
+ */
+public class LockQueueTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking lock queue ordering";
+
+    /** Number of exclusive waiters in the ordering test. */
+    private static final int    WAITERS = 5;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkOrdering();
+            checkBatching();
+            checkHandoff();
+            checkInterrupted();
+            checkInterruptedAfterGrant();
+            checkAdmissionReleased();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that exclusive waiters run in arrival order and that shared
+        requests do not barge. */
+    private void checkOrdering() throws Throwable
+    {
+        FileNode            node = new FileNode("f", Type.FILE);
+        List<Integer>       order =
+            Collections.synchronizedList(new ArrayList<>());
+        Thread[]            threads = new Thread[WAITERS];
+
+        acquire(node, Status.EXCLUSIVE);
+
+        for(int i = 0; i < WAITERS; ++i)
+        {
+            int         index = i;
+            threads[i] = new Thread(() ->
+            {
+                try
+                {
+                    acquire(node, Status.EXCLUSIVE);
+                    order.add(index);
+                    release(node, Status.EXCLUSIVE);
+                }
+                catch(InterruptedException e) { }
+            });
+            threads[i].start();
+            awaitQueued(node, i + 1);
+        }
+
+        release(node, Status.EXCLUSIVE);
+        for(Thread thread : threads)
+            thread.join(10000);
+
+        for(int i = 0; i < WAITERS; ++i)
+        {
+            if(order.size() != WAITERS || order.get(i) != i)
+                throw new TestFailed("waiters not served in order: " + order);
+        }
+
+        // A reader compatible with the current holder still queues behind
+        // an exclusive waiter.
+        acquire(node, Status.SHARED);
+        node.lock();
+        LockWaiter          writer = node.enqueue(Status.EXCLUSIVE);
+        boolean             barged = node.tryGrant(Status.SHARED);
+        node.unlock();
+
+        if(barged)
+            throw new TestFailed("shared request passed a queued writer");
+
+        release(node, Status.SHARED);
+        if(!writer.isGranted())
+            throw new TestFailed("queued writer not granted on release");
+        release(node, Status.EXCLUSIVE);
+    }
+
+    /** Checks that the shared waiters at the head of the queue are granted
+        together. */
+    private void checkBatching() throws Throwable
+    {
+        FileNode            node = new FileNode("f", Type.FILE);
+
+        // The waiters are never parked; only their grants are observed.
+        acquire(node, Status.EXCLUSIVE);
+        node.lock();
+        LockWaiter[]        readers = new LockWaiter[3];
+        for(int i = 0; i < readers.length; ++i)
+            readers[i] = node.enqueue(Status.SHARED);
+        LockWaiter          writer = node.enqueue(Status.EXCLUSIVE);
+        LockWaiter          late = node.enqueue(Status.SHARED);
+        node.unlock();
+
+        release(node, Status.EXCLUSIVE);
+
+        for(LockWaiter reader : readers)
+        {
+            if(!reader.isGranted())
+                throw new TestFailed("reader at head of queue not granted");
+        }
+
+        if(writer.isGranted() || late.isGranted())
+            throw new TestFailed("batch of readers passed a queued writer");
+
+        if(node.getSharedLocks() != readers.length)
+            throw new TestFailed("wrong number of shared holds");
+
+        for(int i = 0; i < readers.length; ++i)
+        {
+            if(writer.isGranted())
+                throw new TestFailed("writer granted while readers hold lock");
+            release(node, Status.SHARED);
+        }
+
+        if(!writer.isGranted() || late.isGranted())
+            throw new TestFailed("writer not granted after readers");
+
+        release(node, Status.EXCLUSIVE);
+        if(!late.isGranted())
+            throw new TestFailed("reader behind writer not granted");
+        release(node, Status.SHARED);
+    }
+
+    /** Checks that a release hands an exclusive lock to one waiter only. */
+    private void checkHandoff() throws Throwable
+    {
+        FileNode            node = new FileNode("f", Type.FILE);
+        Thread[]            threads = new Thread[WAITERS];
+        AtomicInteger       granted = new AtomicInteger();
+
+        acquire(node, Status.EXCLUSIVE);
+
+        for(int i = 0; i < WAITERS; ++i)
+        {
+            threads[i] = new Thread(() ->
+            {
+                try
+                {
+                    acquire(node, Status.EXCLUSIVE);
+                    granted.incrementAndGet();
+                }
+                catch(InterruptedException e) { }
+            });
+            threads[i].start();
+            awaitQueued(node, i + 1);
+            awaitParked(threads[i]);
+        }
+
+        // Each waiter keeps the lock once granted; it is released here.
+        for(int i = 0; i < WAITERS; ++i)
+        {
+            release(node, Status.EXCLUSIVE);
+            threads[i].join(10000);
+            if(threads[i].isAlive())
+                throw new TestFailed("head of queue not granted the lock");
+
+            node.lock();
+            int             queued = node.getWaitQueueLength();
+            node.unlock();
+
+            if(granted.get() != i + 1 || queued != WAITERS - i - 1)
+                throw new TestFailed("release granted more than one waiter");
+
+            for(int j = i + 1; j < WAITERS; ++j)
+            {
+                if(threads[j].getState() != Thread.State.WAITING)
+                    throw new TestFailed("waiter behind the head woken");
+            }
+        }
+
+        release(node, Status.EXCLUSIVE);
+        if(node.hasActiveLocks())
+            throw new TestFailed("lock not open after release");
+    }
+
+    /** Checks that a waiter interrupted in the queue leaves it. */
+    private void checkInterrupted() throws Throwable
+    {
+        FileNode            node = new FileNode("f", Type.FILE);
+        boolean[]           thrown = new boolean[1];
+
+        acquire(node, Status.EXCLUSIVE);
+
+        Thread              thread = new Thread(() ->
+        {
+            try
+            {
+                acquire(node, Status.EXCLUSIVE);
+            }
+            catch(InterruptedException e)
+            {
+                thrown[0] = true;
+            }
+        });
+        thread.start();
+        awaitQueued(node, 1);
+        awaitParked(thread);
+        thread.interrupt();
+        thread.join(10000);
+
+        if(!thrown[0])
+            throw new TestFailed("interrupted waiter did not give up");
+
+        if(node.getWaitQueueLength() != 0)
+            throw new TestFailed("interrupted waiter left in queue");
+
+        if(!node.hasExclusiveLock())
+            throw new TestFailed("holder lost lock to interrupted waiter");
+
+        release(node, Status.EXCLUSIVE);
+        if(node.hasActiveLocks())
+            throw new TestFailed("lock not open after release");
+    }
+
+    /** Checks that an interrupt arriving with the grant does not clear the
+        interrupt status. */
+    private void checkInterruptedAfterGrant() throws Throwable
+    {
+        FileNode            node = new FileNode("f", Type.FILE);
+        boolean[]           result = new boolean[2];
+        boolean[]           interruptSent = new boolean[1];
+
+        acquire(node, Status.EXCLUSIVE);
+
+        Thread              thread = new Thread(() ->
+        {
+            try
+            {
+                acquire(node, Status.EXCLUSIVE);
+                result[0] = true;
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+
+            // Wait without calls that would consume the interrupt status
+            while(!sent(interruptSent))
+                Thread.onSpinWait();
+
+            result[1] = Thread.currentThread().isInterrupted();
+        });
+        thread.start();
+        awaitQueued(node, 1);
+        awaitParked(thread);
+
+        // Grant first, then interrupt before the thread gets to run.
+        release(node, Status.EXCLUSIVE);
+        thread.interrupt();
+        synchronized(interruptSent)
+        {
+            interruptSent[0] = true;
+        }
+        thread.join(10000);
+
+        if(!result[0])
+            throw new TestFailed("granted waiter gave up on interrupt");
+
+        if(!result[1])
+            throw new TestFailed("interrupt status lost by granted waiter");
+
+        if(!node.hasExclusiveLock())
+            throw new TestFailed("granted waiter does not hold lock");
+
+        release(node, Status.EXCLUSIVE);
+    }
+
+    /** Checks that a failed exclusive request releases the naming server's
+        admission lock. */
+    private void checkAdmissionReleased() throws Throwable
+    {
+        NamingServer        server = new NamingServer();
+        Path                directory = new Path("/d");
+        boolean[]           thrown = new boolean[1];
+
+        server.fileSystem.add(directory, Type.DIRECTORY, null);
+        server.lock(directory, false);
+
+        Thread              thread = new Thread(() ->
+        {
+            try
+            {
+                server.lock(directory, true);
+            }
+            catch(IllegalStateException e)
+            {
+                thrown[0] = true;
+            }
+            catch(Throwable t) { }
+        });
+        thread.start();
+        awaitQueued(server.fileSystem.get(directory), 1);
+        awaitParked(thread);
+        thread.interrupt();
+        thread.join(10000);
+
+        if(!thrown[0])
+            throw new TestFailed("interrupted request did not fail");
+
+        if(!server.lock.tryLock())
+            throw new TestFailed("admission lock kept by failed request");
+        server.lock.unlock();
+        server.unlock(directory, false);
+    }
+
+    /** Reads a flag set by another thread. */
+    private static boolean sent(boolean[] flag)
+    {
+        synchronized(flag)
+        {
+            return flag[0];
+        }
+    }
+
+    /** Takes the lock, queueing and parking as <code>FileSystem</code>
+        does. */
+    private static void acquire(FileNode node, Status status)
+        throws InterruptedException
+    {
+        node.lock();
+        LockWaiter  waiter = node.tryGrant(status) ? null : node.enqueue(status);
+        node.unlock();
+
+        if(waiter == null)
+            return;
+
+        try
+        {
+            waiter.await();
+        }
+        catch(InterruptedException e)
+        {
+            node.lock();
+            node.cancel(waiter);
+            node.unlock();
+            throw e;
+        }
+    }
+
+    /** Releases one hold of the lock. */
+    private static void release(FileNode node, Status status)
+    {
+        node.lock();
+        node.release(status);
+        node.unlock();
+    }
+
+    /** Waits until the given number of waiters are queued. */
+    private static void awaitQueued(FileNode node, int waiters)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() + 10000;
+        while(true)
+        {
+            node.lock();
+            int     queued = node.getWaitQueueLength();
+            node.unlock();
+
+            if(queued >= waiters)
+                return;
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("waiter never queued");
+            Thread.sleep(1);
+        }
+    }
+
+    /** Waits until a thread is parked. */
+    private static void awaitParked(Thread thread)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() + 10000;
+        while(thread.getState() != Thread.State.WAITING)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("waiter never parked");
+            Thread.sleep(1);
+        }
+    }
+}
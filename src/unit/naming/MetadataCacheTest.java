@@ -0,0 +1,249 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import test.*;
+import client.*;
+import storage.*;
+
+/** Checks that clients cache naming metadata under leases.
+
+    <p>
+    A naming server and a <code>MetadataCache</code> run on one machine, with a
+    test storage server registered directly with the naming server. Tests
+    performed are:
+    <ul>
+    <li>Repeated queries on a path are answered from the cache.</li>
+    <li>A file created by another client is listed by the cache as soon as the
+        creation returns, and a negative answer for it is dropped.</li>
+    <li>A file deleted by another client is no longer found by the cache as
+        soon as the deletion returns.</li>
+    <li>A mutation made through the cache is visible in its own answers.</li>
+    </ul>
+ */
+public class MetadataCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking client metadata caching under leases";
+
+    /** Naming server service port; the registration port follows it. */
+    private static final int    SERVICE_PORT = 7500;
+
+    /** Naming server. */
+    private NamingServer        server;
+    /** Cache under test. */
+    private MetadataCache       cache;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer(SERVICE_PORT, SERVICE_PORT + 1);
+            server.start();
+
+            TestServer  storage = new TestServer();
+            server.register(storage, storage,
+                new Path[] {new Path("/d/a"), new Path("/d/b")});
+
+            Service         stub = NamingStubs.service("127.0.0.1",
+                                                       SERVICE_PORT);
+            CountingService counted = new CountingService(stub);
+            cache = new MetadataCache(counted);
+
+            checkListing("/d", "a", "b");
+            if(!cache.isDirectory(new Path("/d")) ||
+               cache.getStorage(new Path("/d/a")) == null)
+            {
+                throw new TestFailed("unexpected metadata from cache");
+            }
+            int     leases = counted.leases;
+            checkListing("/d", "a", "b");
+            cache.isDirectory(new Path("/d"));
+            cache.getReplicas(new Path("/d/a"));
+            if(counted.leases != leases)
+                throw new TestFailed("repeated queries not answered from cache");
+
+            try
+            {
+                cache.isDirectory(new Path("/d/c"));
+                throw new TestFailed("missing path found by cache");
+            }
+            catch(FileNotFoundException e) { }
+
+            // Another client creates and deletes files
+            stub.createFile(new Path("/d/c"));
+            checkListing("/d", "a", "b", "c");
+            if(cache.isDirectory(new Path("/d/c")))
+                throw new TestFailed("created file listed as directory");
+
+            stub.delete(new Path("/d/a"));
+            checkListing("/d", "b", "c");
+            try
+            {
+                cache.getStorage(new Path("/d/a"));
+                throw new TestFailed("deleted file found by cache");
+            }
+            catch(FileNotFoundException e) { }
+
+            cache.createDirectory(new Path("/d/e"));
+            checkListing("/d", "b", "c", "e");
+            if(!cache.isDirectory(new Path("/d/e")))
+                throw new TestFailed("created directory not found by cache");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the names the cache lists in a directory. */
+    private void checkListing(String directory, String... names)
+        throws Throwable
+    {
+        String[]    listed = cache.list(new Path(directory));
+        Arrays.sort(listed);
+        if(!Arrays.equals(listed, names))
+        {
+            throw new TestFailed("unexpected listing of " + directory + ": " +
+                                 Arrays.toString(listed));
+        }
+    }
+
+    /** Stops the cache and the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(cache != null)
+        {
+            cache.stop();
+            cache = null;
+        }
+
+        if(server != null)
+        {
+            try
+            {
+                server.stop();
+            }
+            catch(Throwable t) { }
+            server = null;
+        }
+    }
+
+    /** Naming server interface that counts the leases asked for. */
+    private static class CountingService implements Service
+    {
+        private final Service   service;
+        volatile int            leases = 0;
+
+        CountingService(Service service)
+        {
+            this.service = service;
+        }
+
+        @Override
+        public MetadataLease lease(Path path, CacheClient client)
+            throws RMIException
+        {
+            ++leases;
+            return service.lease(path, client);
+        }
+
+        @Override
+        public void lock(Path path, boolean exclusive)
+            throws RMIException, FileNotFoundException
+        {
+            service.lock(path, exclusive);
+        }
+
+        @Override
+        public void unlock(Path path, boolean exclusive) throws RMIException
+        {
+            service.unlock(path, exclusive);
+        }
+
+        @Override
+        public boolean isDirectory(Path path)
+            throws RMIException, FileNotFoundException
+        {
+            return service.isDirectory(path);
+        }
+
+        @Override
+        public String[] list(Path directory)
+            throws RMIException, FileNotFoundException
+        {
+            return service.list(directory);
+        }
+
+        @Override
+        public DirectoryListing listEntries(Path path, String after,
+                                            int limit)
+            throws RMIException, FileNotFoundException
+        {
+            return service.listEntries(path, after, limit);
+        }
+
+        @Override
+        public boolean createFile(Path file)
+            throws RMIException, FileNotFoundException
+        {
+            return service.createFile(file);
+        }
+
+        @Override
+        public boolean createDirectory(Path directory)
+            throws RMIException, FileNotFoundException
+        {
+            return service.createDirectory(directory);
+        }
+
+        @Override
+        public boolean delete(Path path)
+            throws RMIException, FileNotFoundException
+        {
+            return service.delete(path);
+        }
+
+        @Override
+        public boolean rename(Path source, Path target)
+            throws RMIException, FileNotFoundException
+        {
+            return service.rename(source, target);
+        }
+
+        @Override
+        public BatchStatus[] createAll(Path[] paths, boolean[] directories)
+            throws RMIException
+        {
+            return service.createAll(paths, directories);
+        }
+
+        @Override
+        public BatchStatus[] deleteAll(Path[] paths) throws RMIException
+        {
+            return service.deleteAll(paths);
+        }
+
+        @Override
+        public Storage getStorage(Path file)
+            throws RMIException, FileNotFoundException
+        {
+            return service.getStorage(file);
+        }
+
+        @Override
+        public Replica[] getReplicas(Path file)
+            throws RMIException, FileNotFoundException
+        {
+            return service.getReplicas(file);
+        }
+    }
+}
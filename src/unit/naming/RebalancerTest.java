@@ -0,0 +1,123 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that the rebalancer moves files from full servers to empty ones.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Files are moved from the most loaded server to the least loaded one
+        until a further move would no longer narrow the gap.</li>
+    <li>A moved file is copied to the new server, switched over to it, and
+        deleted from the old one, keeping a single replica throughout.</li>
+    <li>Locked files are not moved.</li>
+    </ul>
+ */
+public class RebalancerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking background rebalancing of storage servers";
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        TestServer  full = new TestServer();
+        TestServer  empty = new TestServer();
+        Path[]      files = new Path[10];
+        for(int index = 0; index < files.length; ++index)
+            files[index] = new Path("/d/f" + index);
+        full.copies = true;
+        empty.copies = true;
+
+        try
+        {
+            FileSystem  fileSystem = namingServer.fileSystem;
+            namingServer.register(full, full, files);
+            namingServer.register(empty, empty, new Path[] {new Path("/e")});
+
+            // A reader holds one of the files.
+            Path        locked = files[0];
+            fileSystem.lock(locked, Status.SHARED);
+
+            // Scores start at eleven and two; four moves leave seven and six,
+            // and a fifth would reverse the order.
+            int         moved = namingServer.rebalancer.rebalance();
+            if(moved != 4)
+                throw new TestFailed("expected 4 files moved, got " + moved);
+
+            StorageContainer    source = container(full);
+            StorageContainer    target = container(empty);
+            int                 onTarget = 0;
+            for(Path file : files)
+            {
+                FileNode    node = fileSystem.get(file);
+                if(node.getReplicaCount() != 1)
+                    throw new TestFailed(file + " has " +
+                                         node.getReplicaCount() + " replicas");
+
+                if(node.containsStorageContainer(target))
+                {
+                    ++onTarget;
+                    if(!empty.copied.contains(file) ||
+                       !full.deleted.contains(file))
+                    {
+                        throw new TestFailed(file + " switched without " +
+                                             "being copied and deleted");
+                    }
+                }
+                else if(!node.containsStorageContainer(source))
+                    throw new TestFailed(file + " lost its replica");
+            }
+
+            if(onTarget != 4 || empty.copied.size() != 4)
+                throw new TestFailed("moved files not switched over");
+
+            if(!fileSystem.get(locked).containsStorageContainer(source))
+                throw new TestFailed("locked file moved");
+
+            fileSystem.unlock(locked, Status.SHARED);
+
+            if(namingServer.rebalancer.rebalance() != 0)
+                throw new TestFailed("balanced servers rebalanced again");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Returns the registered container of a test server. */
+    private StorageContainer container(TestServer server)
+    {
+        return namingServer.fileSystem.getStorageRegistry().get(server);
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer.storageMonitor.shutdown();
+            namingServer.repairQueue.shutdown();
+            namingServer.rebalancer.shutdown();
+            namingServer = null;
+        }
+    }
+}
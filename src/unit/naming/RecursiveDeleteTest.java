@@ -0,0 +1,153 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks that a recursive delete releases the tree before contacting storage
+    servers, and contacts them in parallel.
+
+    <p>
+    Two test storage servers, each hosting part of a directory, are registered
+    directly with a naming server object. Their <code>delete</code> calls block
+    until the test lets them finish. Tests performed are:
+    <ul>
+    <li>Both storage servers are asked to delete the directory at the same
+        time, once each.</li>
+    <li>While they are deleting, the directory is already gone from the tree
+        and no locks are held.</li>
+    <li>The delete succeeds once both servers finish, and the files are no
+        longer counted against the servers.</li>
+    </ul>
+ */
+public class RecursiveDeleteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking parallel recursive delete of a detached subtree";
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+    /** Released when the storage servers may finish deleting. */
+    private final CountDownLatch    release = new CountDownLatch(1);
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        BlockingServer  first = new BlockingServer();
+        BlockingServer  second = new BlockingServer();
+        Path            directory = new Path("/d");
+
+        try
+        {
+            namingServer.register(first, first,
+                new Path[] {new Path("/d/a1"), new Path("/d/x/a2")});
+            namingServer.register(second, second,
+                new Path[] {new Path("/d/b1")});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage servers", t);
+        }
+
+        FutureTask<Boolean> deletion =
+            new FutureTask<>(() -> namingServer.delete(directory));
+        new Thread(deletion).start();
+
+        try
+        {
+            if(!first.entered.await(10, TimeUnit.SECONDS) ||
+               !second.entered.await(10, TimeUnit.SECONDS))
+            {
+                throw new TestFailed("storage servers not asked to delete " +
+                                     "in parallel");
+            }
+
+            if(namingServer.fileSystem.hasPath(directory))
+                throw new TestFailed("directory still in the tree while " +
+                                     "storage servers delete it");
+
+            FileNode    root = namingServer.fileSystem.get(new Path("/"));
+            if(root.getStatus() != Status.OPEN || root.getSharedLocks() != 0)
+                throw new TestFailed("lock held while storage servers " +
+                                     "delete: " + root.getLockStatus());
+
+            release.countDown();
+
+            if(!deletion.get(10, TimeUnit.SECONDS))
+                throw new TestFailed("delete reported failure");
+
+            for(BlockingServer server : new BlockingServer[] {first, second})
+            {
+                if(!server.deleted.equals(
+                       Collections.singletonList(directory)))
+                {
+                    throw new TestFailed("unexpected deletions " +
+                                         server.deleted);
+                }
+
+                StorageContainer    storageContainer = namingServer.fileSystem
+                    .getStorageRegistry().get(server);
+                if(namingServer.fileSystem.getStorageRegistry()
+                       .getLoad(storageContainer).getFiles() != 0)
+                {
+                    throw new TestFailed("deleted files still counted");
+                }
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        release.countDown();
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+    }
+
+    /** Storage server whose deletions block until released. */
+    private class BlockingServer extends TestServer
+    {
+        /** Counted down when the first delete call arrives. */
+        final CountDownLatch    entered = new CountDownLatch(1);
+
+        @Override
+        public boolean delete(Path path) throws RMIException
+        {
+            super.delete(path);
+            entered.countDown();
+
+            try
+            {
+                return release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that files and directories are renamed by moving metadata only.
+
+    <p>
+    Test storage servers, each hosting part of the tree, are registered
+    directly with a naming server object. They record the renames they are
+    asked to make, and one of them can be made to refuse. Tests performed are:
+    <ul>
+    <li>A directory is moved with everything below it, each storage server
+        holding part of it is asked once to move it, and no data is copied.</li>
+    <li>Files keep all of their replicas, and no locks are left behind.</li>
+    <li>Renaming onto an existing path fails, as do renaming a path below
+        itself and renaming a path that does not exist.</li>
+    <li>When a storage server refuses, the servers that moved their copies
+        move them back, and the tree is unchanged.</li>
+    <li>Replaying a rename from the journal is idempotent.</li>
+    </ul>
+ */
+public class RenameTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking metadata-only rename of files and directories";
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        TestServer  first = new TestServer();
+        TestServer  second = new TestServer();
+
+        try
+        {
+            namingServer.register(first, first,
+                new Path[] {new Path("/d/sub/x"), new Path("/e/y"),
+                            new Path("/f/v")});
+            namingServer.register(second, second,
+                new Path[] {new Path("/d/sub/z"), new Path("/f/w")});
+            namingServer.fileSystem.replicatedFiles.add(new Path("/d/sub/x"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage servers", t);
+        }
+
+        try
+        {
+            checkMove(first, second);
+            checkFailures();
+            checkRollback(first, second);
+            checkReplay();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Moves a directory held by both servers into another directory. */
+    private void checkMove(TestServer first, TestServer second)
+        throws Throwable
+    {
+        Path        source = new Path("/d/sub");
+        Path        target = new Path("/e/moved");
+
+        if(!namingServer.rename(source, target))
+            throw new TestFailed("rename reported failure");
+
+        FileSystem  fileSystem = namingServer.fileSystem;
+        if(fileSystem.hasPath(source) ||
+           !fileSystem.isFile(new Path("/e/moved/x")) ||
+           !fileSystem.isFile(new Path("/e/moved/z")))
+        {
+            throw new TestFailed("directory not moved: " + fileSystem);
+        }
+
+        List<String>    expected =
+            Collections.singletonList("/d/sub -> /e/moved");
+        if(!first.renamed.equals(expected) || !second.renamed.equals(expected))
+        {
+            throw new TestFailed("unexpected storage renames " +
+                                 first.renamed + " " + second.renamed);
+        }
+
+        if(namingServer.getStorage(new Path("/e/moved/z")) != second)
+            throw new TestFailed("moved file lost its replica");
+
+        if(!fileSystem.replicatedFiles.contains(new Path("/e/moved/x")))
+            throw new TestFailed("replicated file not tracked at new path");
+
+        if(!fileSystem.get(new Path("/e")).containsStorageContainer(
+               fileSystem.getStorageRegistry().get(second)))
+        {
+            throw new TestFailed("new parent does not record moved server");
+        }
+
+        for(String path : new String[] {"/", "/d", "/e", "/e/moved",
+                                        "/e/moved/x"})
+        {
+            FileNode    node = fileSystem.get(new Path(path));
+            if(node.getStatus() != Status.OPEN)
+            {
+                throw new TestFailed("lock left on " + path + ": " +
+                                     node.getLockStatus());
+            }
+        }
+
+        // A file is renamed within its directory
+        if(!namingServer.rename(new Path("/e/y"), new Path("/e/y2")) ||
+           !fileSystem.isFile(new Path("/e/y2")))
+        {
+            throw new TestFailed("file not renamed");
+        }
+    }
+
+    /** Checks the renames that must be refused. */
+    private void checkFailures() throws Throwable
+    {
+        if(namingServer.rename(new Path("/e/y2"), new Path("/e/moved")))
+            throw new TestFailed("rename replaced an existing path");
+
+        try
+        {
+            namingServer.rename(new Path("/e"), new Path("/e/moved/e"));
+            throw new TestFailed("directory moved below itself");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            namingServer.rename(new Path("/missing"), new Path("/other"));
+            throw new TestFailed("missing path renamed");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            namingServer.rename(new Path("/e/y2"), new Path("/missing/y"));
+            throw new TestFailed("file moved into missing directory");
+        }
+        catch(FileNotFoundException e) { }
+
+        if(!namingServer.fileSystem.isFile(new Path("/e/y2")))
+            throw new TestFailed("refused rename changed the tree");
+    }
+
+    /** Moves a directory while one of its servers refuses. */
+    private void checkRollback(TestServer first, TestServer second)
+        throws Throwable
+    {
+        first.renamed.clear();
+        second.renamed.clear();
+        second.refuse = true;
+
+        try
+        {
+            namingServer.rename(new Path("/f"), new Path("/g"));
+            throw new TestFailed("rename succeeded although a server " +
+                                 "refused");
+        }
+        catch(rmi.RMIException e) { }
+
+        if(!first.renamed.equals(Arrays.asList("/f -> /g", "/g -> /f")))
+            throw new TestFailed("storage rename not undone: " + first.renamed);
+
+        FileSystem  fileSystem = namingServer.fileSystem;
+        if(!fileSystem.isFile(new Path("/f/v")) ||
+           fileSystem.hasPath(new Path("/g")) ||
+           fileSystem.get(new Path("/f")).getStatus() != Status.OPEN)
+        {
+            throw new TestFailed("failed rename changed the tree");
+        }
+    }
+
+    /** Replays a rename record twice on a new tree. */
+    private void checkReplay() throws Throwable
+    {
+        FileSystem  fileSystem = new FileSystem();
+        fileSystem.apply(new JournalRecord(1, JournalRecord.Kind.CREATE_DIRECTORY,
+                                           new Path("/a"), null));
+        fileSystem.apply(new JournalRecord(2, JournalRecord.Kind.CREATE_FILE,
+                                           new Path("/a/b"), null));
+
+        JournalRecord   rename = new JournalRecord(3, JournalRecord.Kind.RENAME,
+            new Path("/a"), null, new Path("/c/a"));
+        fileSystem.apply(rename);
+        fileSystem.apply(rename);
+
+        if(fileSystem.hasPath(new Path("/a")) ||
+           !fileSystem.isFile(new Path("/c/a/b")))
+        {
+            throw new TestFailed("rename not replayed: " + fileSystem);
+        }
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import client.*;
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks that clients are given every replica of a file and choose among
+    them.
+
+    <p>
+    Two storage servers are registered directly with a naming server object,
+    one of them hosting a file, which is then replicated to the other. Tests
+    performed are:
+    <ul>
+    <li><code>getReplicas</code> returns both replicas, least loaded first, with
+        the host of each storage server.</li>
+    <li>Selectors created for the file do not all prefer the same replica.</li>
+    <li>A selector whose preferred replica cannot be reached moves on to the
+        next one.</li>
+    <li><code>DFSInputStream</code> reads the file through the replicas.</li>
+    </ul>
+ */
+public class ReplicaSelectionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking multi-replica lookup and client replica selection";
+
+    /** Contents of the replicated file. */
+    private static final String CONTENTS = "hello";
+
+    /** Directories served by the storage servers. */
+    private TemporaryDirectory[]    directories = new TemporaryDirectory[2];
+    /** Storage servers holding the file. */
+    private StorageServer[]         storageServers = new StorageServer[2];
+    /** Naming server under test. */
+    private NamingServer            namingServer;
+
+    /** Creates the storage servers' directories. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directories[0] = new TemporaryDirectory();
+            directories[0].add(new String[] {"f"}, CONTENTS);
+            directories[1] = new TemporaryDirectory();
+            directories[1].add(new String[] {"g"});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        try
+        {
+            for(int i = 0; i < storageServers.length; ++i)
+            {
+                storageServers[i] = new StorageServer(directories[i].root());
+                storageServers[i].start("127.0.0.1", namingServer);
+            }
+
+            Path        file = new Path("/f");
+            if(!namingServer.fileSystem.attemptReplicate(file))
+                throw new TestFailed("unable to replicate file");
+
+            Replica[]   replicas = namingServer.getReplicas(file);
+
+            if(replicas.length != 2)
+                throw new TestFailed("expected two replicas, got " +
+                                     replicas.length);
+
+            if(replicas[0].getLoad() > replicas[1].getLoad())
+                throw new TestFailed("replicas not ordered by load");
+
+            for(Replica replica : replicas)
+            {
+                if(!"127.0.0.1".equals(replica.getHost()))
+                    throw new TestFailed("wrong host " + replica.getHost());
+            }
+
+            checkSpread(replicas);
+            checkFailover(replicas[0]);
+
+            DFSInputStream  stream = new DFSInputStream(namingServer, file);
+            byte[]          buffer = new byte[CONTENTS.length()];
+
+            if(stream.read(buffer, 0, buffer.length) != buffer.length ||
+               !new String(buffer).equals(CONTENTS))
+            {
+                throw new TestFailed("file not read through its replicas");
+            }
+
+            stream.close();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that both replicas are preferred by some selectors. */
+    private void checkSpread(Replica[] replicas) throws TestFailed
+    {
+        Set<Storage>    preferred = new HashSet<>();
+
+        for(int i = 0; i < 200; ++i)
+            preferred.add(new ReplicaSelector(replicas).current());
+
+        if(preferred.size() != replicas.length)
+            throw new TestFailed("all selectors prefer the same replica");
+    }
+
+    /** Checks that an unreachable replica is skipped. */
+    private void checkFailover(Replica live) throws Throwable
+    {
+        int             unused_port;
+
+        try(ServerSocket socket = new ServerSocket(0))
+        {
+            unused_port = socket.getLocalPort();
+        }
+
+        Storage         dead_stub = Stub.create(Storage.class,
+            new InetSocketAddress("127.0.0.1", unused_port));
+        Replica         dead = new Replica(dead_stub, "127.0.0.1", 0);
+
+        // Whichever order the selector picks, the size is read, and the live
+        // replica is preferred afterwards.
+        ReplicaSelector selector =
+            new ReplicaSelector(new Replica[] {dead, live});
+        long            size = selector.call(storage -> storage.size(
+                                                 new Path("/f")));
+
+        if(size != CONTENTS.length())
+            throw new TestFailed("wrong size read after failover");
+
+        if(!selector.current().equals(live.getStorage()))
+            throw new TestFailed("unreachable replica still preferred");
+    }
+
+    /** Stops the servers and removes the directories. */
+    @Override
+    protected void clean()
+    {
+        for(int i = 0; i < storageServers.length; ++i)
+        {
+            if(storageServers[i] != null)
+            {
+                storageServers[i].stop();
+                storageServers[i] = null;
+            }
+        }
+
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+
+        for(int i = 0; i < directories.length; ++i)
+        {
+            if(directories[i] != null)
+            {
+                directories[i].remove();
+                directories[i] = null;
+            }
+        }
+    }
+}
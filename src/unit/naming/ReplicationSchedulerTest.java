@@ -0,0 +1,487 @@
+package naming;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks lazy invalidation of replicas and the replication scheduler.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Locking a replicated file for writing makes every replica but one
+        stale without contacting any storage server, and the stale replica is
+        deleted later by a background job.</li>
+    <li>A file has at most one job pending, into which later work is
+        merged.</li>
+    <li>Waiting for the jobs on a directory waits for the jobs on every file
+        below it.</li>
+    <li>A job rejected because the queue is full is dropped, and a rejected
+        collection of stale replicas is retried by the reclaim pass.</li>
+    <li>A copy that completes after the file was written is deleted from the
+        new server instead of being listed.</li>
+    <li>A job that cannot reach a storage server is counted as a failure and
+        frees the file for later jobs.</li>
+    <li>Stale replicas survive journal replay and checkpoints, so that they
+        are still deleted after a restart, and their deletion is itself
+        journaled. A stale copy reported at registration is not adopted.</li>
+    <li>A background job dropping a replica does not delete it from its server
+        until the clients caching the file have been called back.</li>
+    </ul>
+ */
+public class ReplicationSchedulerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking lazy invalidation and replication jobs";
+
+    /** Time allowed for a background job, in milliseconds. */
+    private static final long   WAIT = 10000;
+
+    /** Directory holding the journal. */
+    private TemporaryDirectory  directory;
+    /** Scheduler under test. */
+    private ReplicationScheduler    scheduler;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkScheduler();
+            checkRacedCopy();
+            checkUnreachable();
+            checkRestart();
+            checkInvalidationWait();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks invalidation, merging and rejection with a single worker that
+        is kept busy. */
+    private void checkScheduler() throws Throwable
+    {
+        FileSystem      fileSystem = new FileSystem();
+        // One worker, one queued job, and no reclaim pass unless called
+        scheduler = new ReplicationScheduler(fileSystem,
+            new ReplicationPolicy(), 1, 1, Long.MAX_VALUE / 2);
+        fileSystem.setReplicationScheduler(scheduler);
+
+        TestServer      plain = new TestServer();
+        BlockingServer  blocking = new BlockingServer();
+        plain.copies = true;
+        blocking.copies = true;
+        StorageContainer    first = new StorageContainer(plain, plain);
+        StorageContainer    second = new StorageContainer(blocking, blocking);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(second);
+
+        Path            file = new Path("/f");
+        Path            busy = new Path("/g");
+        Path            other = new Path("/h");
+        fileSystem.add(file, Type.FILE, first);
+        fileSystem.add(busy, Type.FILE, second);
+        fileSystem.add(other, Type.FILE, first);
+        if(!fileSystem.attemptReplicate(file) ||
+           !fileSystem.attemptReplicate(busy))
+        {
+            throw new TestFailed("unable to replicate test files");
+        }
+
+        // The replica of the busy file on the blocking server goes stale, and
+        // deleting it keeps the only worker busy.
+        blocking.gate = new CountDownLatch(1);
+        fileSystem.invalidateReplicas(busy);
+        awaitBlocked(blocking);
+
+        Path            root = new Path("/");
+        if(!scheduler.isPending(root) || scheduler.awaitIdle(root, 10))
+            throw new TestFailed("job below a directory not waited for");
+
+        fileSystem.invalidateReplicas(file);
+        FileNode        node = fileSystem.get(file);
+        if(node.getStorageContainers().size() != 1 ||
+           !node.getStaleContainers().contains(first))
+        {
+            throw new TestFailed("replica not made stale on invalidation");
+        }
+
+        if(plain.deleted.contains(file))
+            throw new TestFailed("stale replica deleted while locking");
+
+        if(!scheduler.isPending(file))
+            throw new TestFailed("collection of stale replica not queued");
+
+        // Work for a file that has a job pending is merged into it.
+        if(scheduler.schedule(file))
+            throw new TestFailed("second job queued for the same file");
+
+        // The queue is full: a replication job is dropped, a collection is
+        // kept for the reclaim pass.
+        if(scheduler.schedule(other) || scheduler.isPending(other))
+            throw new TestFailed("rejected job left pending");
+
+        scheduler.collect(other);
+        if(!scheduler.deferredCollections.contains(other))
+            throw new TestFailed("rejected collection not deferred");
+
+        blocking.gate.countDown();
+        if(!scheduler.awaitIdle(root, WAIT))
+        {
+            throw new TestFailed("jobs did not finish");
+        }
+
+        if(!plain.deleted.contains(file) ||
+           !node.getStaleContainers().isEmpty())
+        {
+            throw new TestFailed("stale replica not deleted by job");
+        }
+
+        scheduler.reclaim();
+        if(!scheduler.awaitIdle(other, WAIT) ||
+           !scheduler.deferredCollections.isEmpty())
+        {
+            throw new TestFailed("deferred collection not retried");
+        }
+
+        scheduler.shutdown();
+        scheduler = null;
+    }
+
+    /** Checks that a copy raced by a write is deleted, not listed. */
+    private void checkRacedCopy() throws Throwable
+    {
+        FileSystem      fileSystem = new FileSystem();
+        scheduler = new ReplicationScheduler(fileSystem,
+            new ReplicationPolicy(), 1, 1, Long.MAX_VALUE / 2);
+        fileSystem.setReplicationScheduler(scheduler);
+
+        TestServer      plain = new TestServer();
+        BlockingServer  blocking = new BlockingServer();
+        plain.copies = true;
+        blocking.copies = true;
+        StorageContainer    first = new StorageContainer(plain, plain);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(
+            new StorageContainer(blocking, blocking));
+
+        Path            file = new Path("/f");
+        fileSystem.add(file, Type.FILE, first);
+        wantReplica(fileSystem.get(file));
+
+        // The file is written while the copy is in flight.
+        blocking.gate = new CountDownLatch(1);
+        scheduler.schedule(file);
+        awaitBlocked(blocking);
+
+        fileSystem.invalidateReplicas(file);
+        blocking.gate.countDown();
+        if(!scheduler.awaitIdle(file, WAIT))
+            throw new TestFailed("job did not finish");
+
+        if(fileSystem.get(file).getStorageContainers().size() != 1)
+            throw new TestFailed("copy raced by a write listed as replica");
+
+        if(!blocking.deleted.contains(file))
+            throw new TestFailed("copy raced by a write not deleted");
+
+        scheduler.shutdown();
+        scheduler = null;
+    }
+
+    /** Checks that a job failing to reach a server is counted. */
+    private void checkUnreachable() throws Throwable
+    {
+        FileSystem      fileSystem = new FileSystem();
+        scheduler = new ReplicationScheduler(fileSystem,
+            new ReplicationPolicy(), 1, 1, Long.MAX_VALUE / 2);
+        fileSystem.setReplicationScheduler(scheduler);
+
+        TestServer      lost = new TestServer();
+        TestServer      plain = new TestServer();
+        plain.copies = true;
+        StorageContainer    first = new StorageContainer(lost, lost);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(
+            new StorageContainer(plain, plain));
+
+        Path            file = new Path("/f");
+        fileSystem.add(file, Type.FILE, first);
+        if(!fileSystem.attemptReplicate(file))
+            throw new TestFailed("unable to replicate test file");
+
+        // The stale replica is on the server that cannot be reached
+        lost.down = true;
+        fileSystem.invalidateReplicas(file);
+        if(!scheduler.awaitIdle(file, WAIT))
+            throw new TestFailed("failed job left file pending");
+
+        if(scheduler.failures.sum() != 1)
+            throw new TestFailed("failed collection not counted");
+
+        scheduler.shutdown();
+        scheduler = null;
+    }
+
+    /** Reads a file often enough for it to want a second replica. */
+    private static void wantReplica(FileNode node)
+    {
+        ReplicationPolicy   policy = new ReplicationPolicy();
+        long                now = System.currentTimeMillis();
+        for(int read = 0; read <= ReplicationPolicy.DEFAULT_READS_PER_REPLICA;
+            ++read)
+        {
+            policy.recordRead(node, now);
+        }
+    }
+
+    /** Checks that stale replicas are journaled and checkpointed. */
+    private void checkRestart() throws Throwable
+    {
+        FileSystem      fileSystem = new FileSystem();
+        Journal         journal = open(fileSystem);
+        fileSystem.setJournal(journal);
+        // Nothing is ever run, so stale replicas stay listed
+        scheduler = new ReplicationScheduler(fileSystem,
+            new ReplicationPolicy(), 1, 1, Long.MAX_VALUE / 2);
+        scheduler.shutdown();
+        fileSystem.setReplicationScheduler(scheduler);
+
+        TestServer      left = new TestServer();
+        TestServer      right = new TestServer();
+        left.copies = true;
+        right.copies = true;
+        StorageContainer    first = new StorageContainer(left, left);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(
+            new StorageContainer(right, right));
+
+        Path            file = new Path("/d/e/f");
+        fileSystem.add(new Path("/d"), Type.DIRECTORY, null);
+        fileSystem.add(new Path("/d/e"), Type.DIRECTORY, null);
+        fileSystem.add(file, Type.FILE, first);
+        fileSystem.attemptReplicate(file);
+        fileSystem.invalidateReplicas(file);
+        expectStale(fileSystem.get(file), 1, "before restart");
+
+        byte[]          image = Checkpoint.image(fileSystem, 0);
+        journal.sync();
+        journal.close();
+
+        FileSystem      loaded = new FileSystem();
+        Checkpoint.load(ByteBuffer.wrap(image), loaded);
+        expectStale(loaded.get(file), 1, "after checkpoint");
+
+        // A server reporting its stale copy at registration does not get it
+        // back as a replica, but deletes it as a duplicate.
+        TestServer      reporting =
+            (TestServer)loaded.get(file).getStaleContainers().get(0).getCommand();
+        if(loaded.register(file, reporting, reporting))
+            throw new TestFailed("stale copy adopted at registration");
+        expectStale(loaded.get(file), 0, "after stale copy was reported");
+
+        fileSystem = new FileSystem();
+        journal = open(fileSystem);
+        fileSystem.setJournal(journal);
+        FileNode        node = fileSystem.get(file);
+        expectStale(node, 1, "after replay");
+
+        // The restored stale replica is deleted from its server.
+        TestServer      holder =
+            (TestServer)node.getStaleContainers().get(0).getCommand();
+        if(fileSystem.collectStaleReplicas(file) != 1 ||
+           !holder.deleted.contains(file))
+        {
+            throw new TestFailed("restored stale replica not deleted");
+        }
+
+        journal.sync();
+        journal.close();
+
+        fileSystem = new FileSystem();
+        journal = open(fileSystem);
+        expectStale(fileSystem.get(file), 0, "after deletion was replayed");
+        journal.close();
+    }
+
+    /** Checks that dropping a replica waits for the clients caching the
+        file. */
+    private void checkInvalidationWait() throws Throwable
+    {
+        FileSystem      fileSystem = new FileSystem();
+        LeaseTable      leaseTable = new LeaseTable(WAIT);
+        fileSystem.setLeaseTable(leaseTable);
+
+        TestServer      left = new TestServer();
+        TestServer      right = new TestServer();
+        left.copies = true;
+        right.copies = true;
+        StorageContainer    first = new StorageContainer(left, left);
+        fileSystem.getStorageRegistry().register(first);
+        fileSystem.getStorageRegistry().register(
+            new StorageContainer(right, right));
+
+        Path            file = new Path("/f");
+        fileSystem.add(file, Type.FILE, first);
+        if(!fileSystem.attemptReplicate(file))
+            throw new TestFailed("unable to replicate test file");
+
+        // The client holding a lease on the file answers only once let go.
+        CountDownLatch  answer = new CountDownLatch(1);
+        CountDownLatch  called = new CountDownLatch(1);
+        leaseTable.grant(file, paths ->
+        {
+            called.countDown();
+            try
+            {
+                answer.await();
+            }
+            catch(InterruptedException e) { }
+        });
+
+        Thread          thread = new Thread(() ->
+        {
+            try
+            {
+                fileSystem.dropReplicas(file, 1);
+            }
+            catch(Throwable t) { }
+        });
+        thread.start();
+
+        try
+        {
+            if(!called.await(WAIT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("client not called back");
+            Thread.sleep(100);
+            if(left.deleted.contains(file) || right.deleted.contains(file))
+                throw new TestFailed("replica deleted before client answered");
+        }
+        finally
+        {
+            answer.countDown();
+            thread.join(WAIT);
+            leaseTable.shutdown();
+        }
+
+        if(!left.deleted.contains(file) && !right.deleted.contains(file))
+            throw new TestFailed("replica not deleted after client answered");
+    }
+
+    /** Stops the scheduler and removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(scheduler != null)
+        {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens the journal and replays it into the given file system. */
+    private Journal open(FileSystem fileSystem) throws IOException
+    {
+        return new Journal(directory.root(), fileSystem, 1, 16);
+    }
+
+    /** Checks that a file has one current replica and the given number of
+        stale ones. */
+    private void expectStale(FileNode node, int stale, String when)
+        throws TestFailed
+    {
+        if(node.getStorageContainers().size() != 1 ||
+           node.getStaleContainers().size() != stale)
+        {
+            throw new TestFailed("wrong replicas " + when + ": " +
+                                 node.getStorageContainers() + " current, " +
+                                 node.getStaleContainers() + " stale");
+        }
+    }
+
+    /** Waits until a call is held at the gate of a server. */
+    private static void awaitBlocked(BlockingServer server)
+        throws TestFailed, InterruptedException
+    {
+        long        deadline = System.currentTimeMillis() + WAIT;
+        while(!server.waiting)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("no call reached the server");
+            Thread.sleep(1);
+        }
+    }
+
+    /** Storage server whose copies and deletions wait until a gate is
+        opened. */
+    private static class BlockingServer extends TestServer
+    {
+        /** Gate calls wait on, or <code>null</code> to let them through. */
+        transient volatile CountDownLatch   gate = null;
+        /** Set once a call is waiting on the gate. */
+        transient volatile boolean          waiting = false;
+
+        @Override
+        public boolean copy(Path file, Storage server)
+            throws RMIException, IOException
+        {
+            pass();
+            return super.copy(file, server);
+        }
+
+        @Override
+        public boolean delete(Path path) throws RMIException
+        {
+            pass();
+            return super.delete(path);
+        }
+
+        /** Waits for the gate, if there is one. */
+        private void pass() throws RMIException
+        {
+            CountDownLatch  gate = this.gate;
+            if(gate != null)
+            {
+                waiting = true;
+                try
+                {
+                    gate.await();
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RMIException("call interrupted");
+                }
+            }
+        }
+    }
+}
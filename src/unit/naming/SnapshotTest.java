@@ -0,0 +1,439 @@
+package naming;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks copy-on-write snapshots of the directory tree.
+
+    <p>
+    A test storage server, which records the renames and deletions it is asked
+    to make, is registered directly with a naming server object. Tests
+    performed are:
+    <ul>
+    <li>Taking a snapshot copies no table of children.</li>
+    <li>Files created, deleted and renamed after a snapshot is taken leave the
+        snapshot's view unchanged.</li>
+    <li>A deleted file that a snapshot reaches is moved aside on its storage
+        server instead of deleted, and is read there through the
+        snapshot.</li>
+    <li>Data kept for several snapshots is deleted with the last of
+        them.</li>
+    <li>The first write of a file after a snapshot was taken keeps its old
+        contents for the snapshot: a replica that goes stale is moved aside,
+        or the only replica is copied. The snapshot reads the kept copy, a
+        later write keeps nothing more, later snapshots read the live file,
+        and the copy is deleted with the snapshot.</li>
+    <li>A snapshot whose kept copy could not be made no longer reads the
+        file.</li>
+    <li>Snapshots, the tree they saw and the copies kept for them are
+        restored from a checkpoint and the journal after it.</li>
+    <li>Clients cannot create the reserved directory, and data in it that is
+        not kept for a snapshot is returned as a duplicate at
+        registration.</li>
+    </ul>
+ */
+public class SnapshotTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking copy-on-write snapshots of the directory tree";
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+    /** Directory holding the journal. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        TestServer  server = new TestServer();
+
+        try
+        {
+            namingServer.register(server, server,
+                new Path[] {new Path("/d/a"), new Path("/d/b"),
+                            new Path("/e/c")});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+
+        try
+        {
+            checkChanges(server);
+            checkRelease(server);
+            checkWrites(server);
+            checkReserved();
+            checkRestore();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Changes the tree after a snapshot is taken. */
+    private void checkChanges(TestServer server) throws Throwable
+    {
+        FileSystem  fileSystem = namingServer.fileSystem;
+
+        if(!namingServer.createSnapshot("s1"))
+            throw new TestFailed("snapshot not taken");
+        if(namingServer.createSnapshot("s1"))
+            throw new TestFailed("snapshot taken twice under one name");
+        if(fileSystem.root.getChildren().versions != null)
+            throw new TestFailed("taking a snapshot copied the root table");
+
+        namingServer.createFile(new Path("/d/new"));
+        namingServer.delete(new Path("/d/a"));
+        namingServer.rename(new Path("/e/c"), new Path("/d/c2"));
+
+        checkListing(namingServer.list(new Path("/d")), "b", "c2", "new");
+        checkListing(namingServer.readSnapshot("s1", new Path("/d"))
+                         .getChildren(), "a", "b");
+        checkListing(namingServer.readSnapshot("s1", new Path("/e"))
+                         .getChildren(), "c");
+
+        // A renamed file is read where it is now
+        SnapshotEntry   renamed =
+            namingServer.readSnapshot("s1", new Path("/e/c"));
+        if(renamed.isDirectory() ||
+           !renamed.getStoragePath().equals(new Path("/d/c2")))
+        {
+            throw new TestFailed("renamed file read at " +
+                                 renamed.getStoragePath());
+        }
+
+        // A deleted file is read where its storage server moved it
+        SnapshotEntry   deleted =
+            namingServer.readSnapshot("s1", new Path("/d/a"));
+        Path            kept = deleted.getStoragePath();
+        if(!kept.toString().startsWith("/" + SnapshotTable.RESERVED + "/") ||
+           !kept.toString().endsWith("/d/a"))
+        {
+            throw new TestFailed("deleted file read at " + kept);
+        }
+        if(!server.renamed.contains("/d/a -> " + kept) ||
+           server.deleted.contains(new Path("/d/a")))
+        {
+            throw new TestFailed("deleted file not moved aside: " +
+                                 server.renamed + " " + server.deleted);
+        }
+        if(deleted.getStorage().length != 1 ||
+           deleted.getStorage()[0] != server)
+        {
+            throw new TestFailed("deleted file lost its storage server");
+        }
+
+        try
+        {
+            namingServer.readSnapshot("s1", new Path("/d/new"));
+            throw new TestFailed("file created later found in snapshot");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            namingServer.readSnapshot("missing", new Path("/"));
+            throw new TestFailed("missing snapshot read");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Deletes data reached by two snapshots, then the snapshots. */
+    private void checkRelease(TestServer server) throws Throwable
+    {
+        namingServer.createSnapshot("s2");
+        namingServer.delete(new Path("/d/b"));
+
+        Path    first = namingServer.readSnapshot("s1", new Path("/d/a"))
+                            .getStoragePath();
+        Path    second = namingServer.readSnapshot("s1", new Path("/d/b"))
+                             .getStoragePath();
+        if(!second.equals(namingServer.readSnapshot("s2", new Path("/d/b"))
+                              .getStoragePath()))
+        {
+            throw new TestFailed("snapshots read one file at two paths");
+        }
+
+        checkListing(namingServer.listSnapshots(), "s1", "s2");
+
+        // Only the first snapshot reaches /d/a
+        if(!namingServer.deleteSnapshot("s1"))
+            throw new TestFailed("snapshot not deleted");
+        if(!server.deleted.contains(first) || server.deleted.contains(second))
+        {
+            throw new TestFailed("unexpected deletions after first " +
+                                 "snapshot deleted: " + server.deleted);
+        }
+        checkListing(namingServer.readSnapshot("s2", new Path("/d"))
+                         .getChildren(), "b", "c2", "new");
+
+        if(!namingServer.deleteSnapshot("s2") ||
+           !server.deleted.contains(second))
+        {
+            throw new TestFailed("data kept after last snapshot deleted: " +
+                                 server.deleted);
+        }
+        if(namingServer.deleteSnapshot("s2"))
+            throw new TestFailed("snapshot deleted twice");
+
+        // With no snapshot left, deletions delete
+        server.renamed.clear();
+        namingServer.delete(new Path("/d/new"));
+        if(!server.renamed.isEmpty() ||
+           !server.deleted.contains(new Path("/d/new")))
+        {
+            throw new TestFailed("file moved aside with no snapshot");
+        }
+    }
+
+    /** Writes files around snapshots. */
+    private void checkWrites(TestServer server) throws Throwable
+    {
+        Path        file = new Path("/d/c2");
+
+        // The only replica is copied
+        server.copies = true;
+        namingServer.createSnapshot("s3");
+        namingServer.lock(file, true);
+        SnapshotEntry   copied = namingServer.readSnapshot("s3", file);
+        Path            copy = copied.getStoragePath();
+        if(!server.duplicated.equals(
+               Collections.singletonList(file + " -> " + copy)) ||
+           !copy.toString().startsWith("/" + SnapshotTable.RESERVED + "/") ||
+           copied.getStorage().length != 1 ||
+           copied.getStorage()[0] != server)
+        {
+            throw new TestFailed("single replica not copied for snapshot: " +
+                                 server.duplicated);
+        }
+        namingServer.unlock(file, true);
+
+        // Nothing more is kept until another snapshot is taken
+        namingServer.lock(file, true);
+        namingServer.unlock(file, true);
+        namingServer.createSnapshot("s4");
+        if(server.duplicated.size() != 1 ||
+           !namingServer.readSnapshot("s4", file).getStoragePath()
+               .equals(file))
+        {
+            throw new TestFailed("file copied again without a new snapshot");
+        }
+
+        // A replica going stale is moved aside instead of copied
+        TestServer  other = new TestServer();
+        other.copies = true;
+        namingServer.register(other, other, new Path[0]);
+        if(!namingServer.fileSystem.attemptReplicate(file))
+            throw new TestFailed("unable to replicate file");
+        namingServer.lock(file, true);
+        SnapshotEntry   moved = namingServer.readSnapshot("s4", file);
+        TestServer      holder = (TestServer)moved.getStorage()[0];
+        if(server.duplicated.size() != 1 || other.duplicated.size() != 0 ||
+           !holder.renamed.contains(file + " -> " + moved.getStoragePath()))
+        {
+            throw new TestFailed("stale replica not moved aside for " +
+                                 "snapshot");
+        }
+        FileNode    node = namingServer.fileSystem.get(file);
+        ArrayList<StorageContainer> held =
+            new ArrayList<>(node.getStorageContainers());
+        held.addAll(node.getStaleContainers());
+        for(StorageContainer storageContainer : held)
+        {
+            if(storageContainer.getStorage() == holder)
+                throw new TestFailed("replica moved aside still held by file");
+        }
+        namingServer.unlock(file, true);
+        if(!namingServer.readSnapshot("s3", file).getStoragePath()
+               .equals(copy))
+        {
+            throw new TestFailed("later write changed an older snapshot");
+        }
+
+        // The copies are deleted with their snapshots
+        namingServer.deleteSnapshot("s3");
+        if(!server.deleted.contains(copy))
+            throw new TestFailed("copy kept after its snapshot deleted");
+        namingServer.deleteSnapshot("s4");
+        if(!holder.deleted.contains(moved.getStoragePath()))
+            throw new TestFailed("replica kept after its snapshot deleted");
+
+        // A copy that could not be made is not read
+        server.copies = false;
+        other.copies = false;
+        namingServer.createSnapshot("s5");
+        namingServer.lock(file, true);
+        namingServer.unlock(file, true);
+        try
+        {
+            namingServer.readSnapshot("s5", file);
+            throw new TestFailed("file read through snapshot without its " +
+                                 "copy");
+        }
+        catch(FileNotFoundException e) { }
+        namingServer.deleteSnapshot("s5");
+    }
+
+    /** Checks that the reserved directory stays out of the tree. */
+    private void checkReserved() throws Throwable
+    {
+        Path    reserved = new Path("/" + SnapshotTable.RESERVED);
+
+        if(namingServer.createDirectory(reserved))
+            throw new TestFailed("reserved directory created");
+
+        TestServer  other = new TestServer();
+        Path        stale = new Path(reserved, "9");
+        Path[]      duplicates = namingServer.register(other, other,
+            new Path[] {new Path(stale, "x"), new Path("/f")});
+        if(!Arrays.asList(duplicates).equals(
+               Collections.singletonList(new Path(stale, "x"))))
+        {
+            throw new TestFailed("unexpected duplicates " +
+                                 Arrays.toString(duplicates));
+        }
+        if(namingServer.fileSystem.hasPath(reserved))
+            throw new TestFailed("reserved directory registered");
+    }
+
+    /** Takes snapshots, keeps data for them, and restores them from a
+        checkpoint and the journal after it. */
+    private void checkRestore() throws Throwable
+    {
+        TestServer          server = new TestServer(true);
+        StorageContainer    container = new StorageContainer(server, server);
+        Path                file = new Path("/f");
+        Path                deleted = new Path("/g");
+        byte[]              old = "old".getBytes(StandardCharsets.UTF_8);
+
+        FileSystem          fileSystem = new FileSystem();
+        Journal             journal = open(fileSystem);
+        Checkpointer        checkpointer =
+            new Checkpointer(directory.root(), fileSystem, journal,
+                             Long.MAX_VALUE / 2);
+
+        server.files.put(file, old.clone());
+        server.files.put(deleted, old.clone());
+        fileSystem.add(file, Type.FILE, container);
+        fileSystem.add(deleted, Type.FILE, container);
+
+        fileSystem.createSnapshot("a");
+        fileSystem.lock(file, Status.EXCLUSIVE);
+        server.write(file, 0, "new".getBytes(StandardCharsets.UTF_8));
+        fileSystem.unlock(file, Status.EXCLUSIVE);
+        Path                first = fileSystem.readSnapshot("a", file)
+                                        .getStoragePath();
+        if(!Arrays.equals(server.files.get(first), old))
+            throw new TestFailed("old contents not kept for snapshot");
+        journal.sync();
+
+        if(!checkpointer.checkpoint())
+            throw new TestFailed("checkpoint skipped after snapshot");
+
+        // Left in the journal
+        fileSystem.createSnapshot("b");
+        fileSystem.lock(file, Status.EXCLUSIVE);
+        fileSystem.unlock(file, Status.EXCLUSIVE);
+        Path                second = fileSystem.readSnapshot("b", file)
+                                         .getStoragePath();
+        fileSystem.detach(deleted, new LeaseTable.Invalidations());
+        Path                kept = fileSystem.readSnapshot("a", deleted)
+                                       .getStoragePath();
+        journal.sync();
+        checkpointer.shutdown();
+        journal.close();
+
+        fileSystem = new FileSystem();
+        journal = open(fileSystem);
+
+        checkListing(fileSystem.snapshots.names(), "a", "b");
+        checkListing(fileSystem.readSnapshot("a", new Path("/"))
+                         .getChildren(), "f", "g");
+        if(fileSystem.hasPath(deleted))
+            throw new TestFailed("deleted file restored to the tree");
+
+        SnapshotEntry       restored = fileSystem.readSnapshot("a", file);
+        if(!restored.getStoragePath().equals(first) ||
+           !fileSystem.readSnapshot("b", file).getStoragePath()
+               .equals(second) ||
+           restored.getStorage().length != 1 ||
+           !restored.getStorage()[0].toString().equals(server.toString()))
+        {
+            throw new TestFailed("copies kept for snapshots not restored");
+        }
+
+        if(!fileSystem.readSnapshot("a", deleted).getStoragePath()
+               .equals(kept) ||
+           !fileSystem.readSnapshot("b", deleted).getStoragePath()
+               .equals(kept))
+        {
+            throw new TestFailed("deleted file kept for snapshots not " +
+                                 "restored");
+        }
+
+        journal.close();
+    }
+
+    /** Opens the journal and restores the given file system from it. */
+    private Journal open(FileSystem fileSystem) throws IOException
+    {
+        Journal     journal = new Journal(directory.root(), fileSystem, 1, 16);
+        fileSystem.setJournal(journal);
+        return journal;
+    }
+
+    /** Checks names against those expected, in any order. */
+    private void checkListing(String[] listed, String... names)
+        throws TestFailed
+    {
+        String[]    sorted = listed.clone();
+        Arrays.sort(sorted);
+        if(!Arrays.equals(sorted, names))
+            throw new TestFailed("unexpected names " + Arrays.toString(listed));
+    }
+
+    /** Stops the naming server's background threads and removes the
+        journal directory. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package naming;
+
+import java.net.*;
+import java.util.*;
+
+import rmi.*;
+import test.*;
+import storage.*;
+
+/** Checks <code>StorageRegistry</code>.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>A storage server cannot be registered twice.</li>
+    <li>The least-loaded server is chosen for placement, and servers that
+        already hold a file are skipped.</li>
+    <li>The ordering follows file count, stored bytes and recent I/O, in
+        which a request shared among several servers counts as a
+        fraction.</li>
+    <li>Servers that report less free disk space are chosen less readily, and
+        nearly full servers are only chosen when no other server is left, and
+        never for extra replicas.</li>
+    <li>A server that has gone idle moves up the ordering as its recent I/O
+        decays, although its entry is not otherwise updated.</li>
+    </ul>
+ */
+public class StorageRegistryTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server registry";
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkOrdering();
+        checkDecay();
+    }
+
+    /** Checks the ordering of servers by load and free space. */
+    private void checkOrdering() throws TestFailed
+    {
+        StorageRegistry     registry = new StorageRegistry();
+        StorageContainer    first = container(7001);
+        StorageContainer    second = container(7002);
+        StorageContainer    third = container(7003);
+
+        if(!registry.register(first) || !registry.register(second) ||
+           !registry.register(third))
+        {
+            throw new TestFailed("unable to register storage servers");
+        }
+
+        if(registry.register(container(7001)))
+            throw new TestFailed("storage server registered twice");
+
+        if(registry.size() != 3)
+            throw new TestFailed("registry reports wrong number of servers");
+
+        // Load the first server with files and the second with bytes.
+        for(int file = 0; file < 5; ++file)
+            registry.recordFileAdded(first, 0);
+
+        registry.recordFileAdded(second, 3 * ServerLoad.BYTES_PER_FILE);
+
+        expect(registry.leastLoaded(null), third, "with no exclusions");
+        expect(registry.leastLoaded(Arrays.asList(third)), second,
+               "excluding the emptiest server");
+        expect(registry.leastLoaded(Arrays.asList(first, second, third)), null,
+               "excluding every server");
+
+        // Directing I/O to the third server makes it busier than the second.
+        for(int request = 0; request < 10; ++request)
+            registry.recordIo(third);
+
+        expect(registry.leastLoaded(null), second, "after I/O on the third");
+
+        // A share of a request counts as that fraction of one.
+        double              before = registry.getLoad(third).getIoLoad();
+        registry.recordIo(third, 0.25);
+        double              added = registry.getLoad(third).getIoLoad() - before;
+        if(added < 0.24 || added > 0.25)
+            throw new TestFailed("share of I/O counted as " + added);
+
+        // Removing files from the first server makes it the emptiest again.
+        for(int file = 0; file < 5; ++file)
+            registry.recordFileRemoved(first, 0);
+
+        expect(registry.leastLoaded(null), first, "after removing files");
+
+        // A server with a fifth of its disk free counts as five times as
+        // loaded.
+        long                gigabyte = 1024 * 1024 * 1024;
+        registry.recordCapacity(first, report(gigabyte, gigabyte / 5));
+        expect(registry.leastLoaded(null), second,
+               "after the first server fills up");
+
+        // A nearly full server is skipped while another can take the file.
+        registry.recordCapacity(second, report(gigabyte, gigabyte / 100));
+        if(!registry.getLoad(second).isNearlyFull())
+            throw new TestFailed("server with 1% free not nearly full");
+
+        expect(registry.leastLoaded(null), first,
+               "after the second server is nearly full");
+        expect(registry.leastLoaded(Arrays.asList(first, third)), second,
+               "when only a nearly full server is left");
+        expect(registry.leastLoaded(Arrays.asList(first, third), false), null,
+               "for a replica when only a nearly full server is left");
+    }
+
+    /** Checks that the I/O of an idle server decays in the ordering. */
+    private void checkDecay() throws TestFailed
+    {
+        StorageRegistry     registry = new StorageRegistry();
+        StorageContainer    idle = container(7004);
+        StorageContainer    holding = container(7005);
+        registry.register(idle);
+        registry.register(holding);
+
+        for(int file = 0; file < 2; ++file)
+            registry.recordFileAdded(holding, 0);
+        for(int request = 0; request < 10; ++request)
+            registry.recordIo(idle);
+
+        expect(registry.leastLoaded(null), holding, "after I/O on the other");
+
+        // Ten half-lives later the I/O has all but gone.
+        registry.rescore(System.currentTimeMillis() +
+                         10 * ServerLoad.IO_HALF_LIFE_MILLIS);
+        expect(registry.leastLoaded(null), idle, "after its I/O decayed");
+        if(!registry.getLoads().get(0).getStorageContainer().equals(idle))
+            throw new TestFailed("idle server not first in the ordering");
+    }
+
+    /** Creates a capacity report for a disk of the given size. */
+    private CapacityReport report(long total, long free)
+    {
+        return new CapacityReport(total, free, total - free, 0, 0, 0, 0, 0);
+    }
+
+    /** Creates a storage container whose stubs point at the given port. */
+    private StorageContainer container(int port) throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", port);
+            return new StorageContainer(Stub.create(Storage.class, address),
+                                        Stub.create(Command.class, address));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage stubs", t);
+        }
+    }
+
+    /** Checks that the registry chose the expected server. */
+    private void expect(StorageContainer chosen, StorageContainer expected,
+                        String when) throws TestFailed
+    {
+        if(chosen == null ? expected != null : !chosen.equals(expected))
+        {
+            throw new TestFailed("wrong server chosen " + when + ": " + chosen);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Storage server used by the unit tests of the naming server.
+
+    <p>
+    The server implements both the client and the command interface itself,
+    so that it can be registered with a naming server object, or placed in a
+    <code>StorageContainer</code>, without skeletons. Copies, deletions and
+    renames asked of it are recorded. By default the server keeps no data:
+    every file is empty and copies fail. A server created to keep data holds
+    its files in memory, copies succeed by reading the file from the source
+    server, and renames and duplicates move or copy the file in memory.
+
+    <p>
+    Servers are told apart by a number given at creation, which a copy
+    restored from a journal or checkpoint keeps, so that a restored replica
+    equals the original.
+ */
+class TestServer implements Storage, Command, Serializable
+{
+    /** Number of servers created. */
+    private static final AtomicInteger  created = new AtomicInteger();
+
+    /** Number of this server. */
+    private final int           number = created.incrementAndGet();
+    /** Whether the server holds file contents. */
+    private final boolean       keepsData;
+    /** Files held by the server, if it keeps data. */
+    final Map<Path, byte[]>     files =
+        Collections.synchronizedMap(new HashMap<>());
+    /** Files copied to the server. */
+    final List<Path>            copied =
+        Collections.synchronizedList(new ArrayList<>());
+    /** Paths deleted from the server. */
+    final List<Path>            deleted =
+        Collections.synchronizedList(new ArrayList<>());
+    /** Renames asked for, as <code>source -> target</code>. */
+    final List<String>          renamed =
+        Collections.synchronizedList(new ArrayList<>());
+    /** Duplicates asked for, as <code>source -> target</code>. */
+    final List<String>          duplicated =
+        Collections.synchronizedList(new ArrayList<>());
+    /** Set for copies to a server that keeps no data to succeed. */
+    volatile boolean            copies = false;
+    /** Set to refuse every rename. */
+    volatile boolean            refuse = false;
+    /** Set for calls to fail as if the server could not be reached. */
+    volatile boolean            down = false;
+
+    /** Creates a server that keeps no data. */
+    TestServer()
+    {
+        this(false);
+    }
+
+    /** Creates a server.
+
+        @param keepsData Whether the server holds the contents of its files.
+     */
+    TestServer(boolean keepsData)
+    {
+        this.keepsData = keepsData;
+    }
+
+    /** Fails if the server is down. */
+    private void reach() throws RMIException
+    {
+        if(down)
+            throw new RMIException("storage server down");
+    }
+
+    /** Returns the contents of a file, which is empty if the server keeps no
+        data. */
+    private byte[] get(Path file) throws FileNotFoundException
+    {
+        if(!keepsData)
+            return new byte[0];
+
+        byte[]  data = files.get(file);
+        if(data == null)
+            throw new FileNotFoundException("file not on server");
+        return data;
+    }
+
+    @Override
+    public long size(Path file) throws RMIException, FileNotFoundException
+    {
+        reach();
+        return get(file).length;
+    }
+
+    @Override
+    public byte[] read(Path file, long offset, int length)
+        throws RMIException, FileNotFoundException
+    {
+        reach();
+        if(!keepsData)
+            return new byte[0];
+
+        byte[]  data = get(file);
+        if(offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("range not within file");
+        return Arrays.copyOfRange(data, (int)offset, (int)offset + length);
+    }
+
+    @Override
+    public synchronized void write(Path file, long offset, byte[] data)
+        throws RMIException, FileNotFoundException
+    {
+        reach();
+        if(!keepsData)
+            return;
+
+        byte[]  previous = get(file);
+        byte[]  updated = Arrays.copyOf(previous,
+            Math.max(previous.length, (int)offset + data.length));
+        System.arraycopy(data, 0, updated, (int)offset, data.length);
+        files.put(file, updated);
+    }
+
+    @Override
+    public boolean create(Path file) throws RMIException
+    {
+        reach();
+        return !keepsData || files.putIfAbsent(file, new byte[0]) == null;
+    }
+
+    @Override
+    public boolean delete(Path path) throws RMIException
+    {
+        reach();
+        deleted.add(path);
+        return !keepsData || files.remove(path) != null;
+    }
+
+    @Override
+    public boolean copy(Path file, Storage server)
+        throws RMIException, IOException
+    {
+        reach();
+        copied.add(file);
+        if(!keepsData)
+            return copies;
+
+        files.put(file, server.read(file, 0, (int)server.size(file)));
+        return true;
+    }
+
+    @Override
+    public boolean rename(Path source, Path target) throws RMIException
+    {
+        reach();
+        renamed.add(source + " -> " + target);
+        if(refuse)
+            return false;
+        if(!keepsData)
+            return true;
+
+        synchronized(files)
+        {
+            if(!files.containsKey(source) || files.containsKey(target))
+                return false;
+            files.put(target, files.remove(source));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean duplicate(Path source, Path target) throws RMIException
+    {
+        reach();
+        duplicated.add(source + " -> " + target);
+        if(!keepsData)
+            return copies;
+
+        synchronized(files)
+        {
+            byte[]  data = files.get(source);
+            if(data == null || files.containsKey(target))
+                return false;
+            files.put(target, data.clone());
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TestServer " + number;
+    }
+}
@@ -0,0 +1,235 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+import storage.*;
+
+/** Checks that clients can watch the directory tree for changes.
+
+    <p>
+    A test storage server is registered directly with a naming server object.
+    Tests performed are:
+    <ul>
+    <li>A watch on a directory reports the creation of its children and their
+        replicas, in order, and not changes elsewhere or further down.</li>
+    <li>A subtree watch reports changes anywhere below the path, and a rename
+        is reported to watches on either its source or its target.</li>
+    <li>Deleting or renaming a directory above a watched path is reported to
+        the watch.</li>
+    <li>A waiting watch is not woken by changes to paths it does not watch,
+        and returns as soon as a watched path changes.</li>
+    <li>A watch that has fallen behind the mutations kept is truncated, and
+        one that is behind but within them finds its events past more
+        records than are copied out of the log at a time.</li>
+    </ul>
+ */
+public class WatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking watches on the directory tree";
+
+    /** Delay before a watched path is changed, in milliseconds. */
+    private static final long   DELAY_MILLIS = 200;
+
+    /** Naming server under test. */
+    private NamingServer        namingServer;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namingServer = new NamingServer();
+
+        TestServer  server = new TestServer();
+
+        try
+        {
+            namingServer.register(server, server,
+                new Path[] {new Path("/d/a"), new Path("/e/b")});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+
+        try
+        {
+            checkEvents();
+            checkAncestors();
+            checkWait();
+            checkTruncation();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the events reported to directory and subtree watches. */
+    private void checkEvents() throws Throwable
+    {
+        long        start = namingServer.watch(new Path("/d"), false, -1, 10,
+                                               0).getSequence();
+
+        namingServer.createFile(new Path("/d/c"));
+        namingServer.createFile(new Path("/e/x"));
+        namingServer.createDirectory(new Path("/d/sub"));
+        namingServer.createFile(new Path("/d/sub/q"));
+        namingServer.rename(new Path("/d/c"), new Path("/e/c"));
+
+        checkBatch(namingServer.watch(new Path("/d"), false, start, 10, 0),
+                   "CREATE_FILE /d/c", "REPLICA_ADD /d/c",
+                   "CREATE_DIRECTORY /d/sub", "RENAME /d/c -> /e/c");
+
+        checkBatch(namingServer.watch(new Path("/d"), true, start, 10, 0),
+                   "CREATE_FILE /d/c", "REPLICA_ADD /d/c",
+                   "CREATE_DIRECTORY /d/sub", "CREATE_FILE /d/sub/q",
+                   "REPLICA_ADD /d/sub/q", "RENAME /d/c -> /e/c");
+
+        checkBatch(namingServer.watch(new Path("/e"), false, start, 10, 0),
+                   "CREATE_FILE /e/x", "REPLICA_ADD /e/x",
+                   "RENAME /d/c -> /e/c");
+
+        // A limited batch resumes where it stopped.
+        WatchBatch  first = namingServer.watch(new Path("/d"), false, start,
+                                               2, 0);
+        checkBatch(first, "CREATE_FILE /d/c", "REPLICA_ADD /d/c");
+        checkBatch(namingServer.watch(new Path("/d"), false,
+                                      first.getSequence(), 10, 0),
+                   "CREATE_DIRECTORY /d/sub", "RENAME /d/c -> /e/c");
+
+        WatchEvent  replica =
+            namingServer.watch(new Path("/d/c"), false, start, 10, 0)
+                .getEvents()[1];
+        if(replica.getStorage() == null)
+            throw new TestFailed("replica event without storage server");
+    }
+
+    /** Checks that changes to the directories above a watched path are
+        reported. */
+    private void checkAncestors() throws Throwable
+    {
+        long        start = namingServer.watch(new Path("/d/sub/q"), false, -1,
+                                               10, 0).getSequence();
+
+        namingServer.rename(new Path("/d/sub"), new Path("/d/moved"));
+        namingServer.delete(new Path("/d/moved"));
+
+        checkBatch(namingServer.watch(new Path("/d/sub/q"), false, start, 10,
+                                      0),
+                   "RENAME /d/sub -> /d/moved");
+        checkBatch(namingServer.watch(new Path("/d/moved/q"), true, start, 10,
+                                      0),
+                   "RENAME /d/sub -> /d/moved", "DELETE /d/moved");
+        checkBatch(namingServer.watch(new Path("/e"), true, start, 10, 0));
+    }
+
+    /** Checks that a waiting watch ignores unwatched changes. */
+    private void checkWait() throws Throwable
+    {
+        long        start = namingServer.watch(new Path("/d"), false, -1, 10,
+                                               0).getSequence();
+
+        Thread      writer = new Thread(() ->
+        {
+            try
+            {
+                namingServer.createFile(new Path("/e/y"));
+                Thread.sleep(DELAY_MILLIS);
+                namingServer.createDirectory(new Path("/d/w"));
+            }
+            catch(Throwable t) { }
+        });
+
+        long        started = System.currentTimeMillis();
+        writer.start();
+
+        WatchBatch  batch = namingServer.watch(new Path("/d"), false, start,
+                                               10, 10 * 1000);
+        long        elapsed = System.currentTimeMillis() - started;
+        writer.join();
+
+        checkBatch(batch, "CREATE_DIRECTORY /d/w");
+        if(elapsed < DELAY_MILLIS / 2)
+            throw new TestFailed("watch returned before watched change");
+
+        if(elapsed > 5 * 1000)
+            throw new TestFailed("watch did not return on watched change");
+
+        // Nothing more is reported once the client has caught up.
+        checkBatch(namingServer.watch(new Path("/d"), false,
+                                      batch.getSequence(), 10, 50));
+    }
+
+    /** Checks that a watch behind the kept mutations is truncated. */
+    private void checkTruncation() throws Throwable
+    {
+        MutationLog log = new MutationLog(4);
+
+        for(int index = 0; index < 6; ++index)
+        {
+            log.append(JournalRecord.Kind.CREATE_DIRECTORY,
+                       new Path("/" + index), null, null);
+        }
+
+        WatchBatch  batch = log.watch(new Path("/"), true, 0, 10, 0);
+        if(!batch.isTruncated() || batch.getSequence() != 6)
+            throw new TestFailed("lagging watch not truncated: " + batch);
+
+        checkBatch(log.watch(new Path("/"), true, 4, 10, 0),
+                   "CREATE_DIRECTORY /4", "CREATE_DIRECTORY /5");
+
+        log = new MutationLog(4 * MutationLog.WATCH_SCAN);
+        for(int index = 0; index < 2 * MutationLog.WATCH_SCAN; ++index)
+        {
+            log.append(JournalRecord.Kind.CREATE_DIRECTORY,
+                       new Path("/" + index), null, null);
+        }
+        log.append(JournalRecord.Kind.CREATE_FILE, new Path("/w"), null, null);
+
+        batch = log.watch(new Path("/w"), false, 0, 10, 1000);
+        checkBatch(batch, "CREATE_FILE /w");
+        if(batch.getSequence() != 2 * MutationLog.WATCH_SCAN + 1)
+            throw new TestFailed("watch did not resume after its event");
+    }
+
+    /** Checks the events of a batch, ignoring sequence numbers. */
+    private static void checkBatch(WatchBatch batch, String... expected)
+        throws TestFailed
+    {
+        if(batch.isTruncated())
+            throw new TestFailed("unexpected truncated batch");
+
+        List<String>    events = new ArrayList<>();
+        long            last = 0;
+        for(WatchEvent event : batch.getEvents())
+        {
+            if(event.getSequence() <= last)
+                throw new TestFailed("events out of order: " + events);
+
+            last = event.getSequence();
+            String  string = event.toString();
+            events.add(string.substring(string.indexOf(' ') + 1));
+        }
+
+        if(!events.equals(Arrays.asList(expected)))
+            throw new TestFailed("unexpected events " + events);
+    }
+
+    /** Stops the naming server's background threads. */
+    @Override
+    protected void clean()
+    {
+        if(namingServer != null)
+        {
+            namingServer.replicationScheduler.shutdown();
+            namingServer.storageFanout.shutdown();
+            namingServer = null;
+        }
+    }
+}